@@ -0,0 +1,52 @@
+package net.scottnotfound.clara.lang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs call heavy scripts from the test resources through each engine. Run with 'gradle jmh' from the
+ * project root, the scripts are found relative to it. What the scripts print is thrown away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClaraBenchmark {
+
+    @Param({"bench/fib", "basic/recursive/sum100", "basic/recursive/deep"})
+    public String script;
+
+    /** Command line flags selecting the engine, separated by spaces. */
+    @Param({"--no-jit", "", "--vm"})
+    public String flags;
+
+    private String[] args;
+    private PrintStream out;
+
+    @Setup
+    public void setup() {
+        String path = "src/test/resources/scripts/" + script;
+        args = flags.isEmpty() ? new String[]{path} : (flags + " " + path).split(" ");
+        out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+        }));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public void run() throws IOException {
+        Lang.main(args);
+    }
+}
@@ -0,0 +1,71 @@
+package net.scottnotfound.clara.lang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lexes a source of exactly 1 MiB made of the test scripts repeated, so operations per second read
+ * as MB/s. Run with 'gradle jmh' from the project root, the scripts are found relative to it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LexerBenchmark {
+
+    private static final int SIZE = 1 << 20;
+
+    private static final String[] SCRIPTS = {
+            "bench/fib", "bench/arith", "bench/loop", "basic/iterative/sum100",
+            "basic/iterative/control", "basic/recursive/sum100", "basic/recursive/deep"
+    };
+
+    private String source;
+    private Lexer lexer;
+    private Parser parser;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder scripts = new StringBuilder();
+        for (String script : SCRIPTS) {
+            byte[] bytes = Files.readAllBytes(Paths.get("src/test/resources/scripts/" + script));
+            scripts.append(new String(bytes, StandardCharsets.UTF_8)).append('\n');
+        }
+        StringBuilder builder = new StringBuilder(SIZE);
+        while (builder.length() + scripts.length() <= SIZE) {
+            builder.append(scripts);
+        }
+        while (builder.length() < SIZE) {
+            builder.append(' ');
+        }
+        source = builder.toString();
+        lexer = new Lexer();
+        parser = new Parser();
+    }
+
+    /** Lexes into a list of Token objects, as code outside the Parser gets them. */
+    @Benchmark
+    public List<Token> tokens() {
+        return lexer.lex(source);
+    }
+
+    /** Lexes into the buffer the Parser reads. */
+    @Benchmark
+    public TokenBuffer buffer() {
+        return lexer.lexBuffer(source);
+    }
+
+    /** Lexes and parses, the work done before a script is resolved. */
+    @Benchmark
+    public List<Stmt> parse() {
+        return parser.parse(lexer.lexBuffer(source), false);
+    }
+}
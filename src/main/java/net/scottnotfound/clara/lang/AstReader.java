@@ -0,0 +1,331 @@
+package net.scottnotfound.clara.lang;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.scottnotfound.clara.lang.AstWriter.*;
+
+/**
+ * Reads back the statements written by AstWriter, one at a time, straight from a buffer such as a
+ * mapped file. The statements come back resolved and ready to run.
+ */
+final class AstReader {
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private final ByteBuffer buffer;
+    private final List<String> strings = new ArrayList<>();
+    private int line = 0;
+
+    AstReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Reads the next statement, null after the last one.
+     */
+    Stmt next() {
+        return stmt();
+    }
+
+
+    private Stmt stmt() {
+        int tag = tag();
+        switch (tag) {
+            case NONE:
+                return null;
+            case STMT_BLOCK: {
+                Stmt.Block block = new Stmt.Block(stmts());
+                block.slots = integer();
+                return block;
+            }
+            case STMT_BREAK:
+                return new Stmt.Break(token());
+            case STMT_COMMAND:
+                return new Stmt.Command(cmd());
+            case STMT_CONTINUE:
+                return new Stmt.Continue(token());
+            case STMT_EXPRESSION:
+                return new Stmt.Expression(expr());
+            case STMT_FUNCTION: {
+                Token token = token();
+                List<Token> parameters = tokens();
+                Stmt.Function function = new Stmt.Function(token, parameters, stmts());
+                function.slot = integer() - 1;
+                function.slots = integer();
+                function.writesOutside = integer() != 0;
+                return function;
+            }
+            case STMT_IF: {
+                Expr condition = expr();
+                Stmt thenB = stmt();
+                return new Stmt.If(condition, thenB, stmt());
+            }
+            case STMT_FOR_IN: {
+                Token keyword = token();
+                Token name = token();
+                Expr iterable = expr();
+                Stmt.ForIn forIn = new Stmt.ForIn(keyword, name, iterable, stmt());
+                forIn.slots = integer();
+                return forIn;
+            }
+            case STMT_PFOR: {
+                Token keyword = token();
+                Token name = token();
+                Expr start = expr();
+                Expr end = expr();
+                Stmt.PFor pfor = new Stmt.PFor(keyword, name, start, end, stmt());
+                pfor.slots = integer();
+                return pfor;
+            }
+            case STMT_PRINT:
+                return new Stmt.Print(expr());
+            case STMT_RETURN: {
+                Stmt.Return stmt = new Stmt.Return(token(), expr());
+                stmt.tailCall = Resolver.tailCall(stmt.value);
+                return stmt;
+            }
+            case STMT_VARIABLE: {
+                Stmt.Variable variable = new Stmt.Variable(token(), expr());
+                variable.slot = integer() - 1;
+                return variable;
+            }
+            case STMT_WHILE: {
+                Expr condition = expr();
+                Stmt body = stmt();
+                return new Stmt.While(condition, body, expr());
+            }
+            default:
+                throw new IllegalStateException("Unknown statement tag " + tag);
+        }
+    }
+
+    private List<Stmt> stmts() {
+        int count = integer();
+        List<Stmt> stmts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            stmts.add(stmt());
+        }
+        return stmts;
+    }
+
+    private Expr expr() {
+        int tag = tag();
+        switch (tag) {
+            case NONE:
+                return null;
+            case EXPR_ASSIGN: {
+                Expr.Assign assign = new Expr.Assign(token(), expr());
+                assign.depth = integer() - 1;
+                assign.slot = integer() - 1;
+                return assign;
+            }
+            case EXPR_BINARY: {
+                Expr left = expr();
+                Token operator = token();
+                return new Expr.Binary(left, operator, expr());
+            }
+            case EXPR_CALL: {
+                Expr callee = expr();
+                Token paren = token();
+                return new Expr.Call(callee, paren, exprs());
+            }
+            case EXPR_AWAIT: {
+                Token keyword = token();
+                return new Expr.Await(keyword, expr());
+            }
+            case EXPR_COMMAND:
+                return new Expr.Command(cmd());
+            case EXPR_GROUPING:
+                return new Expr.Grouping(expr());
+            case EXPR_INDEX: {
+                Expr object = expr();
+                Token bracket = token();
+                return new Expr.Index(object, bracket, expr());
+            }
+            case EXPR_INDEX_ASSIGN: {
+                Expr object = expr();
+                Token bracket = token();
+                Expr index = expr();
+                return new Expr.IndexAssign(object, bracket, index, expr());
+            }
+            case EXPR_LIST: {
+                Token bracket = token();
+                return new Expr.ListLiteral(bracket, exprs());
+            }
+            case EXPR_MAP: {
+                Token brace = token();
+                List<Expr> keys = exprs();
+                return new Expr.MapLiteral(brace, keys, exprs());
+            }
+            case EXPR_LITERAL:
+                return new Expr.Literal(value());
+            case EXPR_LOGICAL: {
+                Expr left = expr();
+                Token operator = token();
+                return new Expr.Logical(left, operator, expr());
+            }
+            case EXPR_UNARY:
+                return new Expr.Unary(expr(), token());
+            case EXPR_VARIABLE: {
+                Expr.Variable variable = new Expr.Variable(token());
+                variable.depth = integer() - 1;
+                variable.slot = integer() - 1;
+                return variable;
+            }
+            default:
+                throw new IllegalStateException("Unknown expression tag " + tag);
+        }
+    }
+
+    private List<Expr> exprs() {
+        int count = integer();
+        List<Expr> exprs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            exprs.add(expr());
+        }
+        return exprs;
+    }
+
+    private Cmd cmd() {
+        int tag = tag();
+        switch (tag) {
+            case CMD_DEFAULT: {
+                Token command = token();
+                int count = integer();
+                List<Arg> args = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    args.add(arg());
+                }
+                return new Cmd.Default(command, args);
+            }
+            case CMD_EXIT:
+                return new Cmd.Exit();
+            case CMD_HELP:
+                return new Cmd.Help(token());
+            case CMD_REACTION: {
+                String flags = string();
+                List<Arg.Argument> reactants = arguments();
+                Expr input = expr();
+                return new Cmd.Reaction(flags == null ? null : new Arg.Flag(flags), reactants, input, expr());
+            }
+            case CMD_STATS:
+                return new Cmd.Stats();
+            default:
+                throw new IllegalStateException("Unknown command tag " + tag);
+        }
+    }
+
+    private Arg arg() {
+        int tag = tag();
+        switch (tag) {
+            case ARG_ARGUMENT:
+                return new Arg.Argument(expr());
+            case ARG_FLAG:
+                return new Arg.Flag(string());
+            case ARG_PARAMETER: {
+                String parameter = string();
+                return new Arg.Parameter(parameter, arguments());
+            }
+            default:
+                throw new IllegalStateException("Unknown argument tag " + tag);
+        }
+    }
+
+    private List<Arg.Argument> arguments() {
+        int count = integer();
+        List<Arg.Argument> arguments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            arguments.add((Arg.Argument) arg());
+        }
+        return arguments;
+    }
+
+    private Token token() {
+        int tag = tag();
+        if (tag == NONE) {
+            return null;
+        }
+        TokenType type = TOKEN_TYPES[tag - 1];
+        String lexeme = string();
+        if (type == TokenType.IDENTIFIER) {
+            lexeme = lexeme.intern();
+        }
+        Object literal = value();
+        line += signed();
+        return new Token(type, lexeme, literal, line);
+    }
+
+    private List<Token> tokens() {
+        int count = integer();
+        List<Token> tokens = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add(token());
+        }
+        return tokens;
+    }
+
+    private Object value() {
+        int tag = tag();
+        switch (tag) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_TRUE:
+                return true;
+            case VALUE_FALSE:
+                return false;
+            case VALUE_INTEGER:
+                return (double) signed();
+            case VALUE_DOUBLE:
+                return Double.longBitsToDouble(buffer.getLong());
+            case VALUE_STRING:
+                return string();
+            default:
+                throw new IllegalStateException("Unknown value tag " + tag);
+        }
+    }
+
+    private String string() {
+        int reference = integer();
+        if (reference == STRING_NULL) {
+            return null;
+        }
+        if (reference != STRING_NEW) {
+            return strings.get(reference - 2);
+        }
+        int length = integer();
+        String string;
+        if (buffer.hasArray()) {
+            string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] utf8 = new byte[length];
+            buffer.get(utf8);
+            string = new String(utf8, StandardCharsets.UTF_8);
+        }
+        strings.add(string);
+        return string;
+    }
+
+    private int tag() {
+        return buffer.get() & 0xff;
+    }
+
+    private int signed() {
+        int zigzag = integer();
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private int integer() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
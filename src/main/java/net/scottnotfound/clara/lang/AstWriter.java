@@ -0,0 +1,524 @@
+package net.scottnotfound.clara.lang;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes resolved statements into bytes, read back by AstReader. Each node is a tag followed by its
+ * fields, including the slots set by the Resolver, so the tree read back can run without being
+ * resolved again. Counts are written as variable length integers, lines as the difference from the
+ * line before, and each distinct string is written once and referred to by index after that.
+ *
+ * Caches filled in while running, such as call sites and specializations, are not written, so the
+ * statements must be written before they run.
+ */
+final class AstWriter implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVisitor<Void>, IArgVisitor<Void> {
+
+    /* Tag of a missing node, and of the end of the statements. */
+    static final int NONE = 0;
+
+    static final int STMT_BLOCK = 1;
+    static final int STMT_BREAK = 2;
+    static final int STMT_COMMAND = 3;
+    static final int STMT_CONTINUE = 4;
+    static final int STMT_EXPRESSION = 5;
+    static final int STMT_FUNCTION = 6;
+    static final int STMT_IF = 7;
+    static final int STMT_PRINT = 8;
+    static final int STMT_RETURN = 9;
+    static final int STMT_VARIABLE = 10;
+    static final int STMT_WHILE = 11;
+    static final int STMT_PFOR = 12;
+    static final int STMT_FOR_IN = 13;
+
+    static final int EXPR_ASSIGN = 20;
+    static final int EXPR_BINARY = 21;
+    static final int EXPR_CALL = 22;
+    static final int EXPR_COMMAND = 23;
+    static final int EXPR_GROUPING = 24;
+    static final int EXPR_LITERAL = 25;
+    static final int EXPR_LOGICAL = 26;
+    static final int EXPR_UNARY = 27;
+    static final int EXPR_VARIABLE = 28;
+    static final int EXPR_AWAIT = 29;
+    static final int EXPR_INDEX = 30;
+    static final int EXPR_INDEX_ASSIGN = 31;
+    static final int EXPR_LIST = 32;
+    static final int EXPR_MAP = 33;
+
+    static final int CMD_DEFAULT = 40;
+    static final int CMD_EXIT = 41;
+    static final int CMD_HELP = 42;
+    static final int CMD_REACTION = 43;
+    static final int CMD_STATS = 44;
+
+    static final int ARG_ARGUMENT = 50;
+    static final int ARG_FLAG = 51;
+    static final int ARG_PARAMETER = 52;
+
+    /* Tags of literal values. Numbers that are whole fit in a variable length integer. */
+    static final int VALUE_NULL = 0;
+    static final int VALUE_TRUE = 1;
+    static final int VALUE_FALSE = 2;
+    static final int VALUE_INTEGER = 3;
+    static final int VALUE_DOUBLE = 4;
+    static final int VALUE_STRING = 5;
+
+    /* String references: 0 is null, 1 is a new string that follows, n is the string at index n - 2. */
+    static final int STRING_NULL = 0;
+    static final int STRING_NEW = 1;
+
+    private final Map<String, Integer> strings = new HashMap<>();
+    /* Lines are written as the difference from the line of the token before. */
+    private int line = 0;
+    private byte[] bytes = new byte[256];
+    private int size = 0;
+
+    AstWriter() {}
+
+    /**
+     * Writes one statement. Throws an IllegalArgumentException for a tree that can not be written,
+     * such as one holding a literal of a type that has no encoding.
+     */
+    void write(Stmt stmt, OutputStream out) throws IOException {
+        size = 0;
+        stmt.accept(this);
+        out.write(bytes, 0, size);
+    }
+
+    /**
+     * Writes the tag that ends the statements.
+     */
+    void end(OutputStream out) throws IOException {
+        out.write(NONE);
+    }
+
+
+    private void stmt(Stmt stmt) {
+        if (stmt == null) {
+            tag(NONE);
+        } else {
+            stmt.accept(this);
+        }
+    }
+
+    private void stmts(List<Stmt> stmts) {
+        integer(stmts.size());
+        for (Stmt stmt : stmts) {
+            stmt(stmt);
+        }
+    }
+
+    private void expr(Expr expr) {
+        if (expr == null) {
+            tag(NONE);
+        } else {
+            expr.accept(this);
+        }
+    }
+
+    private void exprs(List<Expr> exprs) {
+        integer(exprs.size());
+        for (Expr expr : exprs) {
+            expr(expr);
+        }
+    }
+
+    private void arguments(List<Arg.Argument> arguments) {
+        integer(arguments.size());
+        for (Arg.Argument argument : arguments) {
+            argument.accept(this);
+        }
+    }
+
+    private void token(Token token) {
+        if (token == null) {
+            tag(NONE);
+            return;
+        }
+        tag(token.type.ordinal() + 1);
+        string(token.lexeme);
+        value(token.literal);
+        signed(token.line - line);
+        line = token.line;
+    }
+
+    private void tokens(List<Token> tokens) {
+        integer(tokens.size());
+        for (Token token : tokens) {
+            token(token);
+        }
+    }
+
+    private void value(Object value) {
+        if (value == null) {
+            tag(VALUE_NULL);
+        } else if (value instanceof Boolean) {
+            tag((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+        } else if (value instanceof Double) {
+            double number = (Double) value;
+            int whole = (int) number;
+            if (whole == number && Double.doubleToRawLongBits(number) != Double.doubleToRawLongBits(-0.0)) {
+                tag(VALUE_INTEGER);
+                signed(whole);
+            } else {
+                tag(VALUE_DOUBLE);
+                long bits = Double.doubleToRawLongBits(number);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    tag((int) (bits >>> shift));
+                }
+            }
+        } else if (value instanceof String) {
+            tag(VALUE_STRING);
+            string((String) value);
+        } else {
+            throw new IllegalArgumentException("No encoding for a literal of " + value.getClass().getName());
+        }
+    }
+
+    private void string(String string) {
+        if (string == null) {
+            integer(STRING_NULL);
+            return;
+        }
+        Integer index = strings.get(string);
+        if (index != null) {
+            integer(index + 2);
+            return;
+        }
+        strings.put(string, strings.size());
+        byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+        integer(STRING_NEW);
+        integer(utf8.length);
+        ensure(utf8.length);
+        System.arraycopy(utf8, 0, bytes, size, utf8.length);
+        size += utf8.length;
+    }
+
+    private void tag(int tag) {
+        ensure(1);
+        bytes[size++] = (byte) tag;
+    }
+
+    /**
+     * Writes a non negative integer seven bits at a time, low bits first.
+     */
+    private void integer(int value) {
+        ensure(5);
+        while ((value & ~0x7f) != 0) {
+            bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[size++] = (byte) value;
+    }
+
+    private void signed(int value) {
+        integer((value << 1) ^ (value >> 31));
+    }
+
+    private void ensure(int more) {
+        if (size + more > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+        }
+    }
+
+
+    @Override
+    public Void visitStmt(Stmt.Block stmt) {
+        tag(STMT_BLOCK);
+        stmts(stmt.statements);
+        integer(stmt.slots);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Break stmt) {
+        tag(STMT_BREAK);
+        token(stmt.token);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Command stmt) {
+        tag(STMT_COMMAND);
+        stmt.cmd.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Continue stmt) {
+        tag(STMT_CONTINUE);
+        token(stmt.token);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Expression stmt) {
+        tag(STMT_EXPRESSION);
+        expr(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Function stmt) {
+        tag(STMT_FUNCTION);
+        token(stmt.token);
+        tokens(stmt.parameters);
+        stmts(stmt.body);
+        integer(stmt.slot + 1);
+        integer(stmt.slots);
+        integer(stmt.writesOutside ? 1 : 0);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.If stmt) {
+        tag(STMT_IF);
+        expr(stmt.condition);
+        stmt(stmt.thenB);
+        stmt(stmt.elseB);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.ForIn stmt) {
+        tag(STMT_FOR_IN);
+        token(stmt.keyword);
+        token(stmt.name);
+        expr(stmt.iterable);
+        stmt(stmt.body);
+        integer(stmt.slots);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.PFor stmt) {
+        tag(STMT_PFOR);
+        token(stmt.keyword);
+        token(stmt.name);
+        expr(stmt.start);
+        expr(stmt.end);
+        stmt(stmt.body);
+        integer(stmt.slots);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Print stmt) {
+        tag(STMT_PRINT);
+        expr(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Return stmt) {
+        tag(STMT_RETURN);
+        token(stmt.token);
+        expr(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Variable stmt) {
+        tag(STMT_VARIABLE);
+        token(stmt.token);
+        expr(stmt.expression);
+        integer(stmt.slot + 1);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.While stmt) {
+        tag(STMT_WHILE);
+        expr(stmt.condition);
+        stmt(stmt.body);
+        expr(stmt.increment);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Assign expr) {
+        tag(EXPR_ASSIGN);
+        token(expr.token);
+        expr(expr.expression);
+        integer(expr.depth + 1);
+        integer(expr.slot + 1);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Await expr) {
+        tag(EXPR_AWAIT);
+        token(expr.keyword);
+        expr(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Binary expr) {
+        tag(EXPR_BINARY);
+        expr(expr.expr_left);
+        token(expr.operator);
+        expr(expr.expr_right);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Call expr) {
+        tag(EXPR_CALL);
+        expr(expr.callee);
+        token(expr.paren);
+        exprs(expr.arguments);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Command expr) {
+        tag(EXPR_COMMAND);
+        expr.cmd.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Grouping expr) {
+        tag(EXPR_GROUPING);
+        expr(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Index expr) {
+        tag(EXPR_INDEX);
+        expr(expr.object);
+        token(expr.bracket);
+        expr(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.IndexAssign expr) {
+        tag(EXPR_INDEX_ASSIGN);
+        expr(expr.object);
+        token(expr.bracket);
+        expr(expr.index);
+        expr(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.ListLiteral expr) {
+        tag(EXPR_LIST);
+        token(expr.bracket);
+        exprs(expr.elements);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.MapLiteral expr) {
+        tag(EXPR_MAP);
+        token(expr.brace);
+        exprs(expr.keys);
+        exprs(expr.values);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Literal expr) {
+        tag(EXPR_LITERAL);
+        value(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Logical expr) {
+        tag(EXPR_LOGICAL);
+        expr(expr.left);
+        token(expr.operator);
+        expr(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Unary expr) {
+        tag(EXPR_UNARY);
+        expr(expr.expression);
+        token(expr.operator);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Variable expr) {
+        tag(EXPR_VARIABLE);
+        token(expr.token);
+        integer(expr.depth + 1);
+        integer(expr.slot + 1);
+        return null;
+    }
+
+    @Override
+    public Void visitCmd(Cmd.Default cmd) {
+        tag(CMD_DEFAULT);
+        token(cmd.command);
+        integer(cmd.args.size());
+        for (Arg arg : cmd.args) {
+            arg.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCmd(Cmd.Exit cmd) {
+        tag(CMD_EXIT);
+        return null;
+    }
+
+    @Override
+    public Void visitCmd(Cmd.Help cmd) {
+        tag(CMD_HELP);
+        token(cmd.command);
+        return null;
+    }
+
+    @Override
+    public Void visitCmd(Cmd.Reaction cmd) {
+        tag(CMD_REACTION);
+        string(cmd.flags);
+        arguments(cmd.reactants);
+        expr(cmd.input);
+        expr(cmd.output);
+        return null;
+    }
+
+    @Override
+    public Void visitCmd(Cmd.Stats cmd) {
+        tag(CMD_STATS);
+        return null;
+    }
+
+    @Override
+    public Void visitArg(Arg.Argument arg) {
+        tag(ARG_ARGUMENT);
+        expr(arg.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitArg(Arg.Flag arg) {
+        tag(ARG_FLAG);
+        string(arg.flags);
+        return null;
+    }
+
+    @Override
+    public Void visitArg(Arg.Parameter arg) {
+        tag(ARG_PARAMETER);
+        string(arg.parameter);
+        arguments(arg.arguments);
+        return null;
+    }
+}
@@ -0,0 +1,67 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where async commands run unless a ClaraRuntime is given an executor of its own. By default that is
+ * a pool of -Dclara.async.threads daemon threads, one per processor unless set. With
+ * -Dclara.async=virtual every command gets a virtual thread of its own instead, on JVMs that have
+ * them, so any number of slow commands can wait at once. Older JVMs fall back to the pool.
+ */
+final class Async {
+
+    static final Executor EXECUTOR = create();
+
+    /**
+     * awaitAll(futures...) waits for all of the futures it is given. The first one that failed is
+     * raised once all of them are done.
+     */
+    static final Callable AWAIT_ALL = new Callable() {
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            CommandFuture[] futures = new CommandFuture[arguments.size()];
+            for (int i = 0; i < futures.length; i++) {
+                if (!(arguments.get(i) instanceof CommandFuture)) {
+                    throw new RuntimeError(null, "awaitAll: arguments must be futures.");
+                }
+                futures[i] = (CommandFuture) arguments.get(i);
+            }
+            CommandFuture.awaitAll(futures, null);
+            return null;
+        }
+
+        @Override
+        public int arity() {
+            return VARIADIC;
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn awaitAll>";
+        }
+    };
+
+    private Async() {}
+
+    private static Executor create() {
+        if ("virtual".equals(System.getProperty("clara.async"))) {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // virtual threads came with Java 21
+            }
+        }
+
+        AtomicInteger threads = new AtomicInteger();
+        return Executors.newFixedThreadPool(
+                Integer.getInteger("clara.async.threads", Runtime.getRuntime().availableProcessors()),
+                task -> {
+                    Thread thread = new Thread(task, "clara-async-" + threads.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+}
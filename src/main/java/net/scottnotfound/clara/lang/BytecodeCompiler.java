@@ -0,0 +1,641 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles resolved statements into Chunks for the VirtualMachine. Must run after the Resolver since
+ * variable access is compiled from the depth and slot the Resolver assigned.
+ *
+ * Blocks that declare no variables do not get a frame of their own at runtime, so the compiler
+ * keeps track of which of the Resolver's scopes are real frames and converts the Resolver's depth
+ * into a count of frames to walk. Globals are compiled to the slots the Resolver gave them, so the
+ * VirtualMachine finds them without looking up names.
+ */
+class BytecodeCompiler implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVisitor<Void>, IArgVisitor<Void> {
+
+    /** One entry per scope the Resolver saw, true if the scope has a frame at runtime. */
+    private final List<Boolean> frames = new ArrayList<>();
+    /** Loops being compiled in the current chunk, innermost last. */
+    private List<Loop> loops = new ArrayList<>();
+    private Chunk chunk;
+    private int stackDepth;
+
+    /* Where globals the Resolver did not number are given their slots. */
+    private final Globals globals;
+
+    BytecodeCompiler(Globals globals) {
+        this.globals = globals;
+    }
+
+    /**
+     * Compiles top level statements into a chunk that can be run by the VirtualMachine.
+     */
+    Chunk compile(List<Stmt> statements) {
+        chunk = new Chunk("script", 0);
+        stackDepth = 0;
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emit(OpCode.NIL, null, 1);
+        emit(OpCode.RETURN, null, -1);
+        chunk.finish();
+        return chunk;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    /**
+     * Writes an instruction and tracks how it changes the depth of the operand stack.
+     */
+    private void emit(int op, Token token, int stackEffect) {
+        chunk.write(op, token);
+        stackDepth += stackEffect;
+        if (stackDepth > chunk.maxStack) {
+            chunk.maxStack = stackDepth;
+        }
+    }
+
+    private void emitOperand(int operand) {
+        chunk.write(operand, null);
+    }
+
+    /**
+     * Writes a jump with a target to be filled in later.
+     *
+     * @return position of the target operand to pass to patchJump
+     */
+    private int emitJump(int op, Token token, int stackEffect) {
+        emit(op, token, stackEffect);
+        emitOperand(-1);
+        return chunk.count - 1;
+    }
+
+    private void patchJump(int operand) {
+        chunk.code[operand] = chunk.count;
+    }
+
+    private void emitConstant(Object value) {
+        emit(OpCode.CONSTANT, null, 1);
+        emitOperand(chunk.addConstant(value));
+    }
+
+    /**
+     * Converts a depth counted in Resolver scopes into a depth counted in runtime frames.
+     */
+    private int frameDepth(int depth) {
+        int frameDepth = 0;
+        for (int i = frames.size() - depth; i < frames.size(); i++) {
+            if (frames.get(i)) {
+                frameDepth++;
+            }
+        }
+        return frameDepth;
+    }
+
+    private void emitDefine(Token token, int slot) {
+        if (slot != -1) {
+            emit(OpCode.DEFINE_LOCAL, token, -1);
+            emitOperand(slot);
+        } else {
+            emit(OpCode.DEFINE_GLOBAL, token, -1);
+            emitOperand(globals.slot(token.lexeme));
+        }
+    }
+
+    /**
+     * Jumps out of the scopes opened inside the innermost loop, for 'break' and 'continue'. The
+     * jump target is filled in when the loop is done.
+     */
+    private void emitLoopJump(List<Integer> jumps) {
+        Loop loop = loops.get(loops.size() - 1);
+        for (int i = frames.size() - 1; i >= loop.frames; i--) {
+            if (frames.get(i)) {
+                emit(OpCode.EXIT_SCOPE, null, 0);
+            }
+        }
+        jumps.add(emitJump(OpCode.JUMP, null, 0));
+    }
+
+    private void emitBinary(int op, Token operator) {
+        emit(op, operator, -1);
+    }
+
+
+    @Override
+    public Void visitExpr(Expr.Assign expr) {
+        compileAssign(expr);
+        // assignment evaluates to null, same as the Interpreter
+        emit(OpCode.NIL, null, 1);
+        return null;
+    }
+
+    /**
+     * Compiles the store of an assignment without pushing its result, used directly when the
+     * assignment is a statement of its own.
+     */
+    private void compileAssign(Expr.Assign expr) {
+        compile(expr.expression);
+        if (expr.depth != -1) {
+            emit(OpCode.SET_LOCAL, expr.token, -1);
+            emitOperand(frameDepth(expr.depth));
+            emitOperand(expr.slot);
+        } else {
+            emit(OpCode.SET_GLOBAL, expr.token, -1);
+            emitOperand(expr.globalSlot != -1 ? expr.globalSlot : globals.slot(expr.token.lexeme));
+        }
+    }
+
+    @Override
+    public Void visitExpr(Expr.Binary expr) {
+        compile(expr.expr_left);
+        compile(expr.expr_right);
+
+        switch (expr.operator.type) {
+            case BRACKNQ_RIGHT:     emitBinary(OpCode.GREATER, expr.operator);          break;
+            case BRACKNQ_LEFT:      emitBinary(OpCode.LESS, expr.operator);             break;
+            case GREATER_EQUALS:    emitBinary(OpCode.GREATER_EQUAL, expr.operator);    break;
+            case LESS_EQUALS:       emitBinary(OpCode.LESS_EQUAL, expr.operator);       break;
+            case NOT_EQUALS:        emitBinary(OpCode.NOT_EQUAL, expr.operator);        break;
+            case DOUBLE_EQUALS:     emitBinary(OpCode.EQUAL, expr.operator);            break;
+            case MINUS:             emitBinary(OpCode.SUBTRACT, expr.operator);         break;
+            case SLASH_FRWD:        emitBinary(OpCode.DIVIDE, expr.operator);           break;
+            case ASTERISK:          emitBinary(OpCode.MULTIPLY, expr.operator);         break;
+            case PLUS:              emitBinary(OpCode.ADD, expr.operator);              break;
+            default: {
+                // unknown operators evaluate to null
+                emit(OpCode.POP, null, -1);
+                emit(OpCode.POP, null, -1);
+                emit(OpCode.NIL, null, 1);
+                break;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Call expr) {
+        compileCall(expr, OpCode.CALL);
+        return null;
+    }
+
+    private void compileCall(Expr.Call expr, int op) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        emit(op, expr.paren, -expr.arguments.size());
+        emitOperand(expr.arguments.size());
+    }
+
+    @Override
+    public Void visitExpr(Expr.Await expr) {
+        compile(expr.expression);
+        emit(OpCode.AWAIT, expr.keyword, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Command expr) {
+        if (expr.cmd instanceof Cmd.Reaction) {
+            Cmd.Reaction cmd = (Cmd.Reaction) expr.cmd;
+            for (Arg.Argument argument : cmd.reactants) {
+                argument.accept(this);
+            }
+            int files = compileFiles(cmd);
+            emit(OpCode.ASYNC_REACTION, null, 1 - cmd.reactants.size() - files);
+            emitOperand(chunk.addConstant(cmd.flags));
+            emitOperand(cmd.reactants.size());
+            emitOperand(files);
+            return null;
+        }
+        emit(OpCode.NIL, null, 1);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Index expr) {
+        compile(expr.object);
+        compile(expr.index);
+        emit(OpCode.GET_INDEX, expr.bracket, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.IndexAssign expr) {
+        compileIndexAssign(expr);
+        emit(OpCode.NIL, null, 1);
+        return null;
+    }
+
+    private void compileIndexAssign(Expr.IndexAssign expr) {
+        compile(expr.object);
+        compile(expr.index);
+        compile(expr.value);
+        emit(OpCode.SET_INDEX, expr.bracket, -3);
+    }
+
+    @Override
+    public Void visitExpr(Expr.ListLiteral expr) {
+        for (Expr element : expr.elements) {
+            compile(element);
+        }
+        emit(OpCode.LIST, expr.bracket, 1 - expr.elements.size());
+        emitOperand(expr.elements.size());
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.MapLiteral expr) {
+        for (int i = 0; i < expr.keys.size(); i++) {
+            compile(expr.keys.get(i));
+            compile(expr.values.get(i));
+        }
+        emit(OpCode.MAP, expr.brace, 1 - 2 * expr.keys.size());
+        emitOperand(expr.keys.size());
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL, null, 1);
+        } else {
+            emitConstant(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Logical expr) {
+        compile(expr.left);
+        int op = expr.operator.type == TokenType.OR ? OpCode.JUMP_IF_TRUE_KEEP : OpCode.JUMP_IF_FALSE_KEEP;
+        int end = emitJump(op, expr.operator, 0);
+        emit(OpCode.POP, null, -1);
+        compile(expr.right);
+        patchJump(end);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Unary expr) {
+        compile(expr.expression);
+        switch (expr.operator.type) {
+            case MINUS:     emit(OpCode.NEGATE, expr.operator, 0);  break;
+            case EXCLAMK:   emit(OpCode.NOT, expr.operator, 0);     break;
+            default: {
+                emit(OpCode.POP, null, -1);
+                emit(OpCode.NIL, null, 1);
+                break;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Variable expr) {
+        if (expr.depth == -1) {
+            emit(OpCode.GET_GLOBAL, expr.token, 1);
+            emitOperand(expr.globalSlot != -1 ? expr.globalSlot : globals.slot(expr.token.lexeme));
+            return null;
+        }
+        int depth = frameDepth(expr.depth);
+        if (depth == 0) {
+            emit(OpCode.GET_LOCAL, expr.token, 1);
+            emitOperand(expr.slot);
+        } else {
+            emit(OpCode.GET_UPPER, expr.token, 1);
+            emitOperand(depth);
+            emitOperand(expr.slot);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Block stmt) {
+        boolean hasFrame = stmt.slots > 0;
+        frames.add(hasFrame);
+        if (hasFrame) {
+            emit(OpCode.ENTER_SCOPE, null, 0);
+            emitOperand(stmt.slots);
+        }
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        if (hasFrame) {
+            emit(OpCode.EXIT_SCOPE, null, 0);
+        }
+        frames.remove(frames.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Break stmt) {
+        emitLoopJump(loops.get(loops.size() - 1).breaks);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Command stmt) {
+        stmt.cmd.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Continue stmt) {
+        emitLoopJump(loops.get(loops.size() - 1).continues);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign) {
+            compileAssign((Expr.Assign) stmt.expression);
+            return null;
+        }
+        if (stmt.expression instanceof Expr.IndexAssign) {
+            compileIndexAssign((Expr.IndexAssign) stmt.expression);
+            return null;
+        }
+        compile(stmt.expression);
+        emit(OpCode.POP, null, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Function stmt) {
+        Chunk enclosingChunk = chunk;
+        int enclosingDepth = stackDepth;
+        List<Loop> enclosingLoops = loops;
+        loops = new ArrayList<>();
+
+        chunk = new Chunk(stmt.token.lexeme, stmt.parameters.size());
+        chunk.slots = stmt.slots;
+        stackDepth = 0;
+        frames.add(true);
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+        emit(OpCode.NIL, null, 1);
+        emit(OpCode.RETURN, null, -1);
+        frames.remove(frames.size() - 1);
+        chunk.finish();
+
+        Chunk function = chunk;
+        chunk = enclosingChunk;
+        stackDepth = enclosingDepth;
+        loops = enclosingLoops;
+
+        emit(OpCode.CLOSURE, stmt.token, 1);
+        emitOperand(chunk.addConstant(function));
+        emitDefine(stmt.token, stmt.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSE, null, -1);
+        compile(stmt.thenB);
+        if (stmt.elseB != null) {
+            int endJump = emitJump(OpCode.JUMP, null, 0);
+            patchJump(elseJump);
+            compile(stmt.elseB);
+            patchJump(endJump);
+        } else {
+            patchJump(elseJump);
+        }
+        return null;
+    }
+
+    /**
+     * Keeps the index and the list on the operand stack while the loop runs, like the range of a
+     * 'pfor', so a 'break' has to pop them on its way out.
+     */
+    @Override
+    public Void visitStmt(Stmt.ForIn stmt) {
+        compile(stmt.iterable);
+        emit(OpCode.ITER_START, stmt.keyword, 1);
+        int loopStart = chunk.count;
+        int exitJump = emitJump(OpCode.ITER_NEXT, stmt.keyword, 1);
+
+        Loop loop = new Loop(frames.size());
+        loops.add(loop);
+        frames.add(true);
+        emit(OpCode.ENTER_SCOPE, null, 0);
+        emitOperand(stmt.slots);
+        emitDefine(stmt.name, 0);
+        compile(stmt.body);
+        emit(OpCode.EXIT_SCOPE, null, 0);
+        frames.remove(frames.size() - 1);
+        loops.remove(loops.size() - 1);
+
+        for (int jump : loop.continues) {
+            patchJump(jump);
+        }
+        emit(OpCode.RANGE_STEP, null, 0);
+        emit(OpCode.JUMP, null, 0);
+        emitOperand(loopStart);
+        for (int jump : loop.breaks) {
+            patchJump(jump);
+        }
+        emit(OpCode.POP, null, -1);
+        emit(OpCode.POP, null, -1);
+        // ITER_NEXT pops the index and the list itself when it jumps here
+        patchJump(exitJump);
+        return null;
+    }
+
+    /**
+     * Runs the iterations one after another, which is one of the orders they may run in. The VM has
+     * one stack and one set of frames, so they can not run in parallel here. The range stays on the
+     * operand stack so the frames are the ones the Resolver counted.
+     */
+    @Override
+    public Void visitStmt(Stmt.PFor stmt) {
+        compile(stmt.start);
+        compile(stmt.end);
+        int loopStart = chunk.count;
+        int exitJump = emitJump(OpCode.RANGE_NEXT, stmt.keyword, 1);
+
+        Loop loop = new Loop(frames.size());
+        loops.add(loop);
+        frames.add(true);
+        emit(OpCode.ENTER_SCOPE, null, 0);
+        emitOperand(stmt.slots);
+        emitDefine(stmt.name, 0);
+        compile(stmt.body);
+        emit(OpCode.EXIT_SCOPE, null, 0);
+        frames.remove(frames.size() - 1);
+        loops.remove(loops.size() - 1);
+
+        for (int jump : loop.continues) {
+            patchJump(jump);
+        }
+        emit(OpCode.RANGE_STEP, null, 0);
+        emit(OpCode.JUMP, null, 0);
+        emitOperand(loopStart);
+        patchJump(exitJump);
+        // RANGE_NEXT leaves the stack as it was before the range once it jumps here
+        stackDepth -= 2;
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Print stmt) {
+        compile(stmt.value);
+        emit(OpCode.PRINT, null, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Return stmt) {
+        if (stmt.tailCall != null) {
+            compileCall(stmt.tailCall, OpCode.TAIL_CALL);
+        } else if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(OpCode.NIL, null, 1);
+        }
+        emit(OpCode.RETURN, stmt.token, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Variable stmt) {
+        if (stmt.expression != null) {
+            compile(stmt.expression);
+        } else {
+            emit(OpCode.NIL, null, 1);
+        }
+        emitDefine(stmt.token, stmt.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.While stmt) {
+        int loopStart = chunk.count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE, null, -1);
+
+        Loop loop = new Loop(frames.size());
+        loops.add(loop);
+        compile(stmt.body);
+        loops.remove(loops.size() - 1);
+
+        for (int jump : loop.continues) {
+            patchJump(jump);
+        }
+        if (stmt.increment != null) {
+            compile(new Stmt.Expression(stmt.increment));
+        }
+        emit(OpCode.JUMP, null, 0);
+        emitOperand(loopStart);
+        patchJump(exitJump);
+        for (int jump : loop.breaks) {
+            patchJump(jump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitArg(Arg.Argument arg) {
+        compile(arg.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitArg(Arg.Flag arg) {
+        return null;
+    }
+
+    @Override
+    public Void visitArg(Arg.Parameter arg) {
+        return null;
+    }
+
+    @Override
+    public Void visitCmd(Cmd.Default cmd) {
+        emit(OpCode.COMMAND, cmd.command, 0);
+        emitOperand(chunk.addConstant(cmd));
+        return null;
+    }
+
+    @Override
+    public Void visitCmd(Cmd.Exit cmd) {
+        emit(OpCode.COMMAND, null, 0);
+        emitOperand(chunk.addConstant(cmd));
+        return null;
+    }
+
+    @Override
+    public Void visitCmd(Cmd.Help cmd) {
+        emit(OpCode.COMMAND, cmd.command, 0);
+        emitOperand(chunk.addConstant(cmd));
+        return null;
+    }
+
+    @Override
+    public Void visitCmd(Cmd.Reaction cmd) {
+        for (Arg.Argument argument : cmd.reactants) {
+            argument.accept(this);
+        }
+        int files = compileFiles(cmd);
+        emit(OpCode.REACTION, null, -cmd.reactants.size() - files);
+        emitOperand(chunk.addConstant(cmd.flags));
+        emitOperand(cmd.reactants.size());
+        emitOperand(files);
+        return null;
+    }
+
+    /**
+     * Pushes the input and output files of a reaction read from a file, nil for no output. Returns the
+     * number of values pushed, 2 if the reaction is read from a file and 0 if not.
+     */
+    private int compileFiles(Cmd.Reaction cmd) {
+        if (cmd.input == null) {
+            return 0;
+        }
+        compile(cmd.input);
+        if (cmd.output == null) {
+            emit(OpCode.NIL, null, 1);
+        } else {
+            compile(cmd.output);
+        }
+        return 2;
+    }
+
+    @Override
+    public Void visitCmd(Cmd.Stats cmd) {
+        emit(OpCode.COMMAND, null, 0);
+        emitOperand(chunk.addConstant(cmd));
+        return null;
+    }
+
+    /**
+     * Jumps for 'break' and 'continue' waiting for the end of their loop.
+     */
+    private static class Loop {
+        /** Number of scopes open when the loop started, these stay open on 'break' and 'continue'. */
+        final int frames;
+        final List<Integer> breaks = new ArrayList<>();
+        final List<Integer> continues = new ArrayList<>();
+
+        Loop(int frames) {
+            this.frames = frames;
+        }
+    }
+
+}
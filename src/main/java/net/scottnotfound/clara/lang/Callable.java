@@ -1,11 +1,38 @@
 package net.scottnotfound.clara.lang;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public interface Callable {
 
+    /** Arity of builtins that take any number of arguments, such as awaitAll. */
+    int VARIADIC = -1;
+
     Object call(Interpreter interpreter, List<Object> arguments);
 
     int arity();
 
+    /*
+     * Entry points for calls with a fixed number of arguments, used by the Interpreter and the
+     * VirtualMachine so calls to builtins do not need an argument list. Builtins override the one
+     * matching their arity, everything else ends up in call.
+     */
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, Collections.singletonList(a));
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, Arrays.asList(a, b));
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, Arrays.asList(a, b, c));
+    }
+
 }
@@ -0,0 +1,56 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled function body. Holds the instructions, the constants they refer to and the token
+ * each instruction came from so runtime errors can still report a line.
+ */
+class Chunk {
+
+    final String name;
+    final int arity;
+
+    /* Size of the call frame and the deepest the operand stack gets while running this chunk. */
+    int slots;
+    int maxStack;
+
+    int[] code = new int[16];
+    Token[] tokens = new Token[16];
+    int count = 0;
+
+    private final List<Object> constantList = new ArrayList<>();
+    Object[] constants;
+
+    Chunk(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    void write(int value, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+        code[count] = value;
+        tokens[count] = token;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        constantList.add(value);
+        return constantList.size() - 1;
+    }
+
+    /**
+     * Trims the code and freezes the constant pool. Called once compilation of the chunk is done.
+     */
+    void finish() {
+        code = Arrays.copyOf(code, count);
+        tokens = Arrays.copyOf(tokens, count);
+        constants = constantList.toArray();
+    }
+
+}
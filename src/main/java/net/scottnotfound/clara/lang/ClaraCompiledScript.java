@@ -0,0 +1,31 @@
+package net.scottnotfound.clara.lang;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+/**
+ * A script compiled by a ClaraScriptEngine. It holds only the Program, so it can be evaluated any
+ * number of times, from any number of threads, each time with its own context.
+ */
+final class ClaraCompiledScript extends CompiledScript {
+
+    private final ClaraScriptEngine engine;
+    private final Program program;
+
+    ClaraCompiledScript(ClaraScriptEngine engine, Program program) {
+        this.engine = engine;
+        this.program = program;
+    }
+
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException {
+        return engine.eval(program, context);
+    }
+
+    @Override
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+}
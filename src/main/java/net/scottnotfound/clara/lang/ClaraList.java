@@ -0,0 +1,251 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The list value of scripts. Elements are stored in a double[] while every element is a number, in a
+ * String[] while every element is a string, and in an Object[] once they are mixed, so lists of numbers
+ * hold no boxes and the Interpreter can read and write them as doubles. A list only ever moves to a
+ * more general store, except that an empty list takes the store of its first element.
+ *
+ * Lists are compared by identity, like functions. While anything runs on the pool of Parallel a list
+ * locks itself, since iterations may reach one through an alias the Resolver can not see, and it is
+ * used without locking otherwise. Its store may then change between isNumeric and the next call, so
+ * getNumber and setNumber check it again under the lock.
+ */
+final class ClaraList {
+
+    private static final int NUMBERS = 0;
+    private static final int STRINGS = 1;
+    private static final int OBJECTS = 2;
+
+    private static final double[] NO_NUMBERS = new double[0];
+
+    private int store = NUMBERS;
+    private double[] numbers = NO_NUMBERS;
+    private String[] strings;
+    private Object[] objects;
+    private int size;
+
+    ClaraList() {}
+
+    ClaraList(int capacity) {
+        this.numbers = new double[capacity];
+    }
+
+    /**
+     * append(list, value) adds a value to the end of a list and returns the list.
+     */
+    static final Callable APPEND = new Callable() {
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return call2(interpreter, arguments.get(0), arguments.get(1));
+        }
+
+        @Override
+        public Object call2(Interpreter interpreter, Object list, Object value) {
+            if (!(list instanceof ClaraList)) {
+                throw new RuntimeError(null, "append: can only append to lists.");
+            }
+            ((ClaraList) list).add(value);
+            return list;
+        }
+
+        @Override
+        public int arity() {
+            return 2;
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn append>";
+        }
+    };
+
+    int size() {
+        if (Parallel.running()) {
+            synchronized (this) {
+                return size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Whether every element is a number, so getNumber and setNumber can be used.
+     */
+    boolean isNumeric() {
+        if (Parallel.running()) {
+            synchronized (this) {
+                return store == NUMBERS;
+            }
+        }
+        return store == NUMBERS;
+    }
+
+    Object get(int index) {
+        if (Parallel.running()) {
+            synchronized (this) {
+                return element(index);
+            }
+        }
+        return element(index);
+    }
+
+    /**
+     * @throws UnexpectedValue if the list stopped holding only numbers while shared by a 'pfor'
+     */
+    double getNumber(int index) {
+        if (Parallel.running()) {
+            synchronized (this) {
+                if (store != NUMBERS) {
+                    throw new UnexpectedValue(element(index));
+                }
+                return numbers[index];
+            }
+        }
+        return numbers[index];
+    }
+
+    void set(int index, Object value) {
+        if (Parallel.running()) {
+            synchronized (this) {
+                replace(index, value);
+            }
+            return;
+        }
+        replace(index, value);
+    }
+
+    void setNumber(int index, double value) {
+        if (Parallel.running()) {
+            synchronized (this) {
+                if (store == NUMBERS) {
+                    numbers[index] = value;
+                } else {
+                    replace(index, value);
+                }
+            }
+            return;
+        }
+        numbers[index] = value;
+    }
+
+    void add(Object value) {
+        if (Parallel.running()) {
+            synchronized (this) {
+                append(value);
+            }
+            return;
+        }
+        append(value);
+    }
+
+    private Object element(int index) {
+        switch (store) {
+            case NUMBERS:   return numbers[index];
+            case STRINGS:   return strings[index];
+            default:        return objects[index];
+        }
+    }
+
+    private void replace(int index, Object value) {
+        if (store == NUMBERS && value instanceof Double) {
+            numbers[index] = (double) value;
+        } else if (store == STRINGS && value instanceof String) {
+            strings[index] = (String) value;
+        } else {
+            generalize();
+            objects[index] = value;
+        }
+    }
+
+    private void append(Object value) {
+        if (size == 0) {
+            adopt(value);
+        }
+        if (store == NUMBERS && value instanceof Double) {
+            addNumber((double) value);
+            return;
+        }
+        if (store == STRINGS && value instanceof String) {
+            if (size == strings.length) {
+                strings = Arrays.copyOf(strings, grow(size));
+            }
+            strings[size++] = (String) value;
+            return;
+        }
+        generalize();
+        if (size == objects.length) {
+            objects = Arrays.copyOf(objects, grow(size));
+        }
+        objects[size++] = value;
+    }
+
+    private void addNumber(double value) {
+        if (size == numbers.length) {
+            numbers = Arrays.copyOf(numbers, grow(size));
+        }
+        numbers[size++] = value;
+    }
+
+    /**
+     * Picks the store for the first element of an empty list.
+     */
+    private void adopt(Object value) {
+        int capacity = capacity();
+        if (value instanceof Double && store != NUMBERS) {
+            numbers = new double[capacity];
+            strings = null;
+            objects = null;
+            store = NUMBERS;
+        } else if (value instanceof String && store != STRINGS) {
+            strings = new String[capacity];
+            numbers = null;
+            objects = null;
+            store = STRINGS;
+        }
+    }
+
+    private int capacity() {
+        switch (store) {
+            case NUMBERS:   return numbers.length;
+            case STRINGS:   return strings.length;
+            default:        return objects.length;
+        }
+    }
+
+    /**
+     * Moves the elements into the Object[] store, boxing them.
+     */
+    private void generalize() {
+        if (store == OBJECTS) {
+            return;
+        }
+        Object[] boxed = new Object[Math.max(capacity(), 4)];
+        for (int i = 0; i < size; i++) {
+            boxed[i] = element(i);
+        }
+        objects = boxed;
+        numbers = null;
+        strings = null;
+        store = OBJECTS;
+    }
+
+    private static int grow(int size) {
+        return Math.max(4, size + (size >> 1));
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(Interpreter.stringify(element(i)));
+        }
+        return builder.append(']').toString();
+    }
+}
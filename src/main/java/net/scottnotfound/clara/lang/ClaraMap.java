@@ -0,0 +1,152 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.Arrays;
+
+/**
+ * The map value of scripts. Keys and values are kept in arrays in the order the keys were first
+ * added, and found through an open addressing table of indices into them probed linearly, so a
+ * lookup touches no nodes and iteration follows insertion order. Keys are compared like '==' does.
+ * Nothing is ever removed, assigning null to a key keeps it.
+ *
+ * Maps are compared by identity. Like ClaraList, a map locks itself while anything runs on the pool
+ * of Parallel, since iterations may reach one through an alias the Resolver can not see, and is used
+ * without locking otherwise.
+ */
+final class ClaraMap {
+
+    private static final int EMPTY = -1;
+
+    /* Indices into keys and values by hash, EMPTY where there is none. Always a power of two long. */
+    private int[] table = newTable(8);
+    /* Moves the top bits of a hash down to index the table. */
+    private int shift = 32 - 3;
+    private Object[] keys = new Object[4];
+    private Object[] values = new Object[4];
+    private int size;
+
+    int size() {
+        if (Parallel.running()) {
+            synchronized (this) {
+                return size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The value of a key, null if it has none.
+     */
+    Object get(Object key) {
+        if (Parallel.running()) {
+            synchronized (this) {
+                return lookup(key);
+            }
+        }
+        return lookup(key);
+    }
+
+    void put(Object key, Object value) {
+        if (Parallel.running()) {
+            synchronized (this) {
+                insert(key, value);
+            }
+            return;
+        }
+        insert(key, value);
+    }
+
+    /**
+     * The keys in the order they were added.
+     */
+    ClaraList keys() {
+        if (Parallel.running()) {
+            synchronized (this) {
+                return copyKeys();
+            }
+        }
+        return copyKeys();
+    }
+
+    private Object lookup(Object key) {
+        int slot = find(key);
+        return table[slot] == EMPTY ? null : values[table[slot]];
+    }
+
+    private void insert(Object key, Object value) {
+        int slot = find(key);
+        if (table[slot] != EMPTY) {
+            values[table[slot]] = value;
+            return;
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        table[slot] = size++;
+        // keep the table at most half full so probes stay short
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+    }
+
+    private ClaraList copyKeys() {
+        ClaraList list = new ClaraList(size);
+        for (int i = 0; i < size; i++) {
+            list.add(keys[i]);
+        }
+        return list;
+    }
+
+    /**
+     * Slot of the table holding the key, or the empty slot where it would go.
+     */
+    private int find(Object key) {
+        int mask = table.length - 1;
+        int slot = hash(key) >>> shift;
+        while (table[slot] != EMPTY && !Interpreter.isEqual(keys[table[slot]], key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int length) {
+        table = newTable(length);
+        shift = Integer.numberOfLeadingZeros(length) + 1;
+        int mask = length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = hash(keys[i]) >>> shift;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i;
+        }
+    }
+
+    /**
+     * Fibonacci hash of the key, its top bits depend on all bits of hashCode. Whole numbers as doubles
+     * have hash codes that only differ in their high bits, so the low bits alone would all collide.
+     */
+    private static int hash(Object key) {
+        return key == null ? 0 : key.hashCode() * 0x9E3779B9;
+    }
+
+    private static int[] newTable(int length) {
+        int[] table = new int[length];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(Interpreter.stringify(keys[i])).append(": ").append(Interpreter.stringify(values[i]));
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,401 @@
+package net.scottnotfound.clara.lang;
+
+import net.scottnotfound.clara.metrics.Counter;
+import net.scottnotfound.clara.metrics.Histogram;
+import net.scottnotfound.clara.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * A session running scripts. It owns everything that changes while a script runs: the Interpreter
+ * and its globals, the VirtualMachine, the Lexer and Parser, where output goes and whether there has
+ * been an error. Runtimes share nothing with each other except compiled Programs, so any number of
+ * them can run at once, each on its own thread. A single runtime is not meant to be used by more
+ * than one thread at a time.
+ *
+ * Nothing here picks a thread to run on. Calls into the Interpreter recurse on the Java stack, so
+ * callers that run deep scripts should call in from a thread with a large stack, as Lang does.
+ */
+public final class ClaraRuntime {
+
+    private static final Histogram INTERPRET_TIME = Metrics.histogram("clara_interpret_seconds", "Time taken to run statements in the Interpreter or VirtualMachine.");
+    private static final Counter ERRORS = Metrics.counter("clara_errors_total", "Errors reported in the source of scripts.");
+    private static final Counter RUNTIME_ERRORS = Metrics.counter("clara_runtime_errors_total", "Errors raised while running scripts, stack overflows included.");
+
+    final PrintWriter out;
+    final PrintWriter err;
+
+    final Interpreter interpreter;
+    private final VirtualMachine vm;
+    private final Lexer lexer;
+    private final Parser parser;
+
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    /** Set once a script has run 'exit', nothing after it runs. Only Lang exits the process. */
+    boolean exited = false;
+
+    /** The first error reported and its line, for callers that raise it rather than print it. */
+    String error;
+    int errorLine = -1;
+
+    /** Run scripts on the bytecode VirtualMachine instead of the tree walking Interpreter. */
+    boolean useVM = false;
+
+    /** Run the Optimizer over parsed statements, and print what it removed. */
+    boolean optimize = true;
+    boolean reportOptimizer = false;
+
+    /** Where script files are looked up before they are lexed, null to always run from source. */
+    ScriptCache cache;
+
+    /** Where async commands run, see Async. */
+    Executor executor = Async.EXECUTOR;
+
+    public ClaraRuntime() {
+        this(System.out, System.err);
+    }
+
+    public ClaraRuntime(PrintStream out, PrintStream err) {
+        this(new PrintWriter(out, true), new PrintWriter(err, true));
+    }
+
+    /**
+     * Creates a runtime printing to writers. Output is only flushed when the writers flush themselves,
+     * so callers that do not create them with autoflush should flush them once the script is done.
+     */
+    public ClaraRuntime(PrintWriter out, PrintWriter err) {
+        this.out = out;
+        this.err = err;
+        this.interpreter = new Interpreter(this);
+        this.vm = new VirtualMachine(interpreter);
+        this.lexer = new Lexer(this);
+        this.parser = new Parser(this);
+    }
+
+    /**
+     * Runs the async commands of this runtime on an executor, such as one the application already
+     * has, instead of the one shared by every runtime. Commands already issued are not moved.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Records what the Interpreter of this runtime runs in a Profiler, or stops recording when it is
+     * null. Scripts run on the VirtualMachine are not profiled.
+     */
+    void profile(Profiler profiler) {
+        interpreter.profile = profiler == null ? null : profiler.newStack();
+    }
+
+    /**
+     * Parses, resolves and optimizes a script. Errors are reported to this runtime, and null is
+     * returned if there were any.
+     */
+    public Program compile(String source) {
+        List<Stmt> stmts = parse(source, false);
+        if (hadError) {
+            return null;
+        }
+
+        // kept out of the Optimizer, which drops statements that are only a value
+        Stmt.Expression result = null;
+        if (!stmts.isEmpty() && stmts.get(stmts.size() - 1) instanceof Stmt.Expression) {
+            result = (Stmt.Expression) stmts.remove(stmts.size() - 1);
+            new Resolver(this).resolveStmts(Collections.singletonList(result));
+        }
+        List<Stmt> statements = prepare(stmts);
+        return statements == null || hadError ? null : new Program(statements, result, interpreter.globals.layout());
+    }
+
+    /**
+     * Runs a compiled Program with the globals of this runtime.
+     */
+    public void run(Program program) {
+        interpreter.globals.use(program.layout);
+        interpret(program.statements);
+        if (program.result != null && !hadRuntimeError && !exited) {
+            interpret(Collections.singletonList(program.result));
+        }
+    }
+
+    /**
+     * Runs a compiled Program like run, and returns the value of its last statement if that is an
+     * expression, null otherwise or after an error or 'exit'. The value is always evaluated by the
+     * Interpreter.
+     */
+    public Object eval(Program program) {
+        interpreter.globals.use(program.layout);
+        interpret(program.statements);
+        if (program.result != null && !hadRuntimeError && !exited) {
+            return interpreter.evaluate(program.result.expression);
+        }
+        return null;
+    }
+
+    /**
+     * Runs a line entered at the prompt, in which commands do not need a semicolon.
+     */
+    public void run(String source) {
+        List<Stmt> stmts = parse(source, true);
+
+        if (hadError) {
+            return;
+        }
+
+        List<Stmt> statements = prepare(stmts);
+        if (statements == null) {
+            return;
+        }
+        interpret(statements);
+
+        out.println();
+    }
+
+    /**
+     * Runs a script file, from the cache if there is one.
+     */
+    public void runFile(Path path) throws IOException {
+        if (cache != null && !reportOptimizer) {
+            runCached(path);
+        } else {
+            try (Reader reader = new InputStreamReader(Files.newInputStream(path), Charset.defaultCharset())) {
+                runStream(reader, null);
+            }
+        }
+    }
+
+    /**
+     * The exit status for what has run so far: 65 after an error in the source, 70 after an error
+     * while running, 0 otherwise.
+     */
+    public int exitCode() {
+        if (hadError) {
+            return 65;
+        }
+        if (hadRuntimeError) {
+            return 70;
+        }
+        return 0;
+    }
+
+    /**
+     * Runs a script from its entry in the cache, or from source while writing its entry. The entry
+     * is only kept if the script runs to the end without errors, and the source read is the source
+     * the key was made from.
+     */
+    private void runCached(Path path) throws IOException {
+        byte[] key = ScriptCache.key(path, optimize);
+        AstReader entry = cache.find(key);
+        if (entry != null) {
+            while (!hadRuntimeError && !exited) {
+                Stmt statement = entry.next();
+                if (statement == null) {
+                    break;
+                }
+                interpret(Collections.singletonList(statement));
+            }
+            out.println();
+            return;
+        }
+
+        ScriptCache.Writer writer = cache.create(key);
+        MessageDigest digest = ScriptCache.digest(optimize);
+        try (Reader reader = new InputStreamReader(new DigestInputStream(Files.newInputStream(path), digest), Charset.defaultCharset())) {
+            runStream(reader, writer);
+        }
+        if (writer != null) {
+            if (hadError || hadRuntimeError || exited) {
+                writer.abort();
+            } else {
+                writer.commit(digest.digest());
+            }
+        }
+    }
+
+    /**
+     * Runs a script one top level statement at a time while it is being read, so the first statements
+     * run before the rest is read and only the statement being run is held in memory. Stops at the first
+     * error, unlike run the statements before it have already been run by then. Statements are given
+     * to the writer once prepared, unless it is null.
+     */
+    private void runStream(Reader reader, ScriptCache.Writer writer) {
+        parser.parse(lexer, lexer.stream(reader));
+        while (!hadError && !hadRuntimeError && !exited) {
+            LangEvents.Parse event = new LangEvents.Parse();
+            event.begin();
+            Stmt statement = parser.next();
+            if (statement == null) {
+                break;
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.tokens = parser.consumed();
+                event.statements = 1;
+                event.streamed = true;
+                event.commit();
+            }
+            List<Stmt> statements = prepare(Collections.singletonList(statement));
+            if (statements != null) {
+                if (writer != null) {
+                    for (Stmt prepared : statements) {
+                        writer.write(prepared);
+                    }
+                }
+                interpret(statements);
+            }
+        }
+
+        if (!hadError) {
+            out.println();
+        }
+    }
+
+    /**
+     * Lexes and parses a whole source. The statements that parsed are returned even if there are errors.
+     */
+    private List<Stmt> parse(String source, boolean commandMode) {
+        LangEvents.Lex lex = new LangEvents.Lex();
+        lex.begin();
+        TokenBuffer tokens = lexer.lexBuffer(source);
+        lex.end();
+        if (lex.shouldCommit()) {
+            lex.characters = source.length();
+            lex.tokens = tokens.count();
+            lex.commit();
+        }
+
+        LangEvents.Parse parse = new LangEvents.Parse();
+        parse.begin();
+        List<Stmt> stmts = parser.parse(tokens, commandMode);
+        parse.end();
+        if (parse.shouldCommit()) {
+            parse.tokens = tokens.count();
+            parse.statements = stmts == null ? 0 : stmts.size();
+            parse.commit();
+        }
+        return stmts;
+    }
+
+    /**
+     * Resolves and optimizes parsed statements, returns null if there are errors.
+     */
+    private List<Stmt> prepare(List<Stmt> stmts) {
+        // the Parser leaves out statements it could not parse, and goes on with the ones after them
+        if (hadError) {
+            return null;
+        }
+        LangEvents.Resolve event = new LangEvents.Resolve();
+        event.begin();
+        stmts = resolve(stmts);
+        event.end();
+        if (event.shouldCommit()) {
+            event.statements = stmts == null ? 0 : stmts.size();
+            event.optimized = optimize;
+            event.commit();
+        }
+        return stmts;
+    }
+
+    /**
+     * Resolves statements, then optimizes and resolves them again if optimize is on. Returns null if
+     * there are errors.
+     */
+    private List<Stmt> resolve(List<Stmt> stmts) {
+        Resolver resolver = new Resolver(this);
+        resolver.resolveStmts(stmts);
+
+        if (hadError) {
+            return null;
+        }
+
+        if (optimize) {
+            Optimizer optimizer = new Optimizer();
+            stmts = optimizer.optimize(stmts);
+            if (reportOptimizer) {
+                err.println(optimizer.report());
+            }
+            new Resolver(this).resolveStmts(stmts);
+        }
+
+        return stmts;
+    }
+
+    private void interpret(List<Stmt> statements) {
+        LangEvents.Interpret event = new LangEvents.Interpret();
+        event.begin();
+        long start = System.nanoTime();
+        if (useVM) {
+            vm.interpret(statements);
+        } else {
+            interpreter.interpret(statements);
+        }
+        INTERPRET_TIME.recordSince(start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.statements = statements.size();
+            event.vm = useVM;
+            event.commit();
+        }
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    private void report(int line, String where, String message) {
+        err.println("[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+        ERRORS.increment();
+        record(line, "Error" + where + ": " + message);
+    }
+
+    void runtimeError(RuntimeError e) {
+        // builtins have no token of their own to report
+        int line = e.token != null ? e.token.line : -1;
+        err.println(e.getMessage() + (line != -1 ? "\n[line " + line + "]" : ""));
+        if (Lang.debug) {
+            e.printStackTrace(err);
+        }
+        hadRuntimeError = true;
+        RUNTIME_ERRORS.increment();
+        record(line, e.getMessage());
+    }
+
+    void stackOverflow() {
+        String message = "Stack overflow, recursion is deeper than a clara.stackSize of " + Lang.STACK_SIZE + " MB allows.";
+        err.println(message);
+        hadRuntimeError = true;
+        RUNTIME_ERRORS.increment();
+        record(-1, message);
+    }
+
+    private void record(int line, String message) {
+        if (error == null) {
+            error = message;
+            errorLine = line;
+        }
+    }
+}
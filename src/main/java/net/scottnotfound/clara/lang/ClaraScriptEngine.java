@@ -0,0 +1,224 @@
+package net.scottnotfound.clara.lang;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs Clara scripts through javax.script. Every eval runs in a ClaraRuntime of its own, so one engine
+ * can be used by any number of threads at once without locking, and a script compiled once can be run
+ * by all of them. The runtime starts with a global for each entry of the bindings whose key is a name,
+ * and afterwards the globals of the script are put back into the engine scope bindings. Numbers are
+ * given to scripts as doubles, and Java lists and maps are copied into script lists and maps and back.
+ *
+ * Output of print goes to the writer of the context, errors go to its error writer and the first one
+ * is also thrown as a ScriptException. The 'exit' command ends the script, not the application, and
+ * eval then returns null. Scripts run on the thread calling eval, and the Interpreter recurses on the
+ * Java stack, so scripts that recurse deeply need to be called from a thread with a large stack.
+ */
+public class ClaraScriptEngine extends AbstractScriptEngine implements Compilable {
+
+    private final ClaraScriptEngineFactory factory;
+
+    ClaraScriptEngine(ClaraScriptEngineFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return eval(compile(script, context), context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return eval(read(reader), context);
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        return new ClaraCompiledScript(this, compile(script, context));
+    }
+
+    @Override
+    public CompiledScript compile(Reader script) throws ScriptException {
+        return compile(read(script));
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * Parses, resolves and optimizes a script into a Program that can be run by any runtime.
+     */
+    private Program compile(String script, ScriptContext context) throws ScriptException {
+        PrintWriter err = writer(context.getErrorWriter());
+        ClaraRuntime runtime = new ClaraRuntime(writer(context.getWriter()), err);
+        Program program;
+        try {
+            program = runtime.compile(script);
+        } finally {
+            err.flush();
+        }
+        if (program == null) {
+            throw exception(runtime, context);
+        }
+        return program;
+    }
+
+    /**
+     * Runs a compiled script in a new runtime with the bindings of the context as its globals.
+     */
+    Object eval(Program program, ScriptContext context) throws ScriptException {
+        PrintWriter out = writer(context.getWriter());
+        PrintWriter err = writer(context.getErrorWriter());
+        ClaraRuntime runtime = new ClaraRuntime(out, err);
+        Globals globals = runtime.interpreter.globals;
+        globals.use(program.layout);
+
+        Bindings engineScope = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        define(globals, context.getBindings(ScriptContext.GLOBAL_SCOPE));
+        define(globals, engineScope);
+
+        Object value;
+        try {
+            value = runtime.eval(program);
+        } finally {
+            out.flush();
+            err.flush();
+        }
+        if (runtime.exitCode() != 0) {
+            throw exception(runtime, context);
+        }
+
+        if (engineScope != null) {
+            globals.forEach((name, global) -> {
+                if (!Interpreter.isBuiltin(global)) {
+                    engineScope.put(name, toJava(global));
+                }
+            });
+        }
+        return toJava(value);
+    }
+
+    private static void define(Globals globals, Bindings bindings) {
+        if (bindings == null) {
+            return;
+        }
+        for (Map.Entry<String, Object> entry : bindings.entrySet()) {
+            if (isName(entry.getKey())) {
+                globals.define(entry.getKey(), toClara(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Converts a Java value to the value a script would have, scripts only know doubles as numbers.
+     */
+    private static Object toClara(Object value) {
+        if (value instanceof Number && !(value instanceof Double)) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Character) {
+            return value.toString();
+        }
+        if (value instanceof List) {
+            ClaraList list = new ClaraList(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                list.add(toClara(element));
+            }
+            return list;
+        }
+        if (value instanceof Map) {
+            ClaraMap map = new ClaraMap();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                map.put(toClara(entry.getKey()), toClara(entry.getValue()));
+            }
+            return map;
+        }
+        return value;
+    }
+
+    /**
+     * Copies script lists and maps into Java ones, other values are already Java values.
+     */
+    private static Object toJava(Object value) {
+        if (value instanceof ClaraList) {
+            ClaraList list = (ClaraList) value;
+            List<Object> copy = new ArrayList<>(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                copy.add(toJava(list.get(i)));
+            }
+            return copy;
+        }
+        if (value instanceof ClaraMap) {
+            ClaraMap map = (ClaraMap) value;
+            ClaraList keys = map.keys();
+            Map<Object, Object> copy = new LinkedHashMap<>();
+            for (int i = 0; i < keys.size(); i++) {
+                copy.put(toJava(keys.get(i)), toJava(map.get(keys.get(i))));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * Whether a key of the bindings could be written as a variable in a script, keys such as
+     * javax.script.filename are not given to scripts.
+     */
+    private static boolean isName(String key) {
+        if (key.isEmpty() || !Lexer.isAlpha(key.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < key.length(); i++) {
+            if (!Lexer.isAlphaNumeric(key.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ScriptException exception(ClaraRuntime runtime, ScriptContext context) {
+        Object file = context.getAttribute(ScriptEngine.FILENAME);
+        String fileName = file == null ? null : file.toString();
+        return new ScriptException(runtime.error, fileName, runtime.errorLine);
+    }
+
+    private static PrintWriter writer(Writer writer) {
+        return writer instanceof PrintWriter ? (PrintWriter) writer : new PrintWriter(writer);
+    }
+
+    private static String read(Reader reader) throws ScriptException {
+        StringBuilder source = new StringBuilder();
+        char[] buffer = new char[8192];
+        try {
+            for (int count; (count = reader.read(buffer)) != -1; ) {
+                source.append(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        return source.toString();
+    }
+}
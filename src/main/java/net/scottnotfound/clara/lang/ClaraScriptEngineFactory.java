@@ -0,0 +1,94 @@
+package net.scottnotfound.clara.lang;
+
+import net.scottnotfound.clara.Clara;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Makes Clara available through javax.script, found by a ScriptEngineManager under the name "clara"
+ * or the extension "clara".
+ */
+public class ClaraScriptEngineFactory implements ScriptEngineFactory {
+
+    private static final List<String> NAMES = Collections.unmodifiableList(Arrays.asList("clara", "Clara"));
+    private static final List<String> EXTENSIONS = Collections.singletonList("clara");
+    private static final List<String> MIME_TYPES = Collections.singletonList("application/x-clara");
+
+    @Override
+    public String getEngineName() {
+        return Clara.APP_NAME;
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return Clara.APP_VERSION;
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return EXTENSIONS;
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return MIME_TYPES;
+    }
+
+    @Override
+    public List<String> getNames() {
+        return NAMES;
+    }
+
+    @Override
+    public String getLanguageName() {
+        return "clara";
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return Clara.APP_VERSION;
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        switch (key) {
+            case ScriptEngine.ENGINE: return getEngineName();
+            case ScriptEngine.ENGINE_VERSION: return getEngineVersion();
+            case ScriptEngine.NAME: return NAMES.get(0);
+            case ScriptEngine.LANGUAGE: return getLanguageName();
+            case ScriptEngine.LANGUAGE_VERSION: return getLanguageVersion();
+            // every eval runs in a ClaraRuntime of its own, only the Bindings given to it are shared
+            case "THREADING": return "MULTITHREADED";
+            default: return null;
+        }
+    }
+
+    @Override
+    public String getMethodCallSyntax(String obj, String m, String... args) {
+        // there are no objects yet, so this is a call to a function named m
+        return m + "(" + String.join(", ", args) + ")";
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return "print \"" + toDisplay + "\";";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        StringBuilder program = new StringBuilder();
+        for (String statement : statements) {
+            program.append(statement).append(";\n");
+        }
+        return program.toString();
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new ClaraScriptEngine(this);
+    }
+}
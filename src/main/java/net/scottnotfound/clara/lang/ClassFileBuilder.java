@@ -0,0 +1,376 @@
+package net.scottnotfound.clara.lang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal writer for JVM class files, just enough for the JitCompiler. Classes are written as version
+ * 49 (Java 5) so the verifier infers types itself and no stack map frames have to be computed.
+ */
+class ClassFileBuilder {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final String className;
+    private final int thisClass;
+    private final int superClass;
+    private final List<Integer> interfaces = new ArrayList<>();
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassFileBuilder(String className, String superName, String... interfaceNames) {
+        this.className = className;
+        this.thisClass = classRef(className);
+        this.superClass = classRef(superName);
+        for (String interfaceName : interfaceNames) {
+            interfaces.add(classRef(interfaceName));
+        }
+    }
+
+    String className() {
+        return className;
+    }
+
+    void addField(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    MethodBuilder addMethod(int access, String name, String descriptor) {
+        return new MethodBuilder(access, name, descriptor);
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.size());
+            for (int i : interfaces) {
+                out.writeShort(i);
+            }
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+
+    /* constant pool */
+
+    private int entry(String key, int slots, PoolWriter writer) {
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            writer.write();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = poolCount;
+        poolCount += slots;
+        if (poolCount > 0xFFFF) {
+            throw new IllegalStateException("Constant pool overflow.");
+        }
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    int utf8(String value) {
+        return entry("U" + value, 1, () -> {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return entry("C" + internalName, 1, () -> {
+            pool.writeByte(CONSTANT_CLASS);
+            pool.writeShort(name);
+        });
+    }
+
+    int string(String value) {
+        int utf = utf8(value);
+        return entry("S" + value, 1, () -> {
+            pool.writeByte(CONSTANT_STRING);
+            pool.writeShort(utf);
+        });
+    }
+
+    int integer(int value) {
+        return entry("I" + value, 1, () -> {
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+        });
+    }
+
+    int doubleConstant(double value) {
+        return entry("D" + Double.doubleToRawLongBits(value), 2, () -> {
+            pool.writeByte(CONSTANT_DOUBLE);
+            pool.writeDouble(value);
+        });
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int n = utf8(name);
+        int d = utf8(descriptor);
+        return entry("N" + name + ":" + descriptor, 1, () -> {
+            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+            pool.writeShort(n);
+            pool.writeShort(d);
+        });
+    }
+
+    private int memberRef(int tag, String prefix, String owner, String name, String descriptor) {
+        int c = classRef(owner);
+        int nt = nameAndType(name, descriptor);
+        return entry(prefix + owner + "." + name + ":" + descriptor, 1, () -> {
+            pool.writeByte(tag);
+            pool.writeShort(c);
+            pool.writeShort(nt);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, "F", owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, "M", owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_INTERFACE_METHODREF, "A", owner, name, descriptor);
+    }
+
+    private interface PoolWriter {
+        void write() throws IOException;
+    }
+
+
+    /**
+     * Position in the code of a method, possibly not yet known when jumps to it are written.
+     */
+    static class Label {
+        private int position = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+
+        private Label() {}
+    }
+
+    /**
+     * Assembles the code of a single method. The caller passes the effect each instruction has
+     * on the operand stack so the maximum depth can be tracked.
+     */
+    class MethodBuilder {
+
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals = 0;
+
+        private MethodBuilder(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        int position() {
+            return code.size();
+        }
+
+        int stackDepth() {
+            return stack;
+        }
+
+        /** Used after an unconditional jump, where the depth continues from the jump target. */
+        void setStackDepth(int depth) {
+            stack = depth;
+        }
+
+        void useLocals(int count) {
+            maxLocals = Math.max(maxLocals, count);
+        }
+
+        private void adjust(int stackEffect) {
+            stack += stackEffect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        void op(int opcode, int stackEffect) {
+            code.write(opcode);
+            adjust(stackEffect);
+        }
+
+        void opU1(int opcode, int operand, int stackEffect) {
+            code.write(opcode);
+            code.write(operand);
+            adjust(stackEffect);
+        }
+
+        void opU2(int opcode, int operand, int stackEffect) {
+            code.write(opcode);
+            code.write(operand >> 8);
+            code.write(operand);
+            adjust(stackEffect);
+        }
+
+        /** Loads or stores a local, switching to the wide form when the index needs it. */
+        void local(int opcode, int index, int stackEffect) {
+            if (index > 0xFF) {
+                code.write(0xC4);
+                opU2(opcode, index, stackEffect);
+            } else {
+                opU1(opcode, index, stackEffect);
+            }
+        }
+
+        void invokeInterface(int methodRef, int argSlots, int stackEffect) {
+            code.write(0xB9);
+            code.write(methodRef >> 8);
+            code.write(methodRef);
+            code.write(argSlots + 1);
+            code.write(0);
+            adjust(stackEffect);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                opU1(0x10, value, 1);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                opU2(0x11, value, 1);
+            } else {
+                ldc(integer(value), 1);
+            }
+        }
+
+        /** Loads a single slot constant from the pool. */
+        void ldc(int index, int stackEffect) {
+            if (index > 0xFF) {
+                opU2(0x13, index, stackEffect);
+            } else {
+                opU1(0x12, index, stackEffect);
+            }
+        }
+
+        void jump(int opcode, Label label, int stackEffect) {
+            int at = code.size();
+            code.write(opcode);
+            if (label.position != -1) {
+                int offset = label.position - at;
+                code.write(offset >> 8);
+                code.write(offset);
+            } else {
+                label.jumps.add(at);
+                code.write(0);
+                code.write(0);
+            }
+            adjust(stackEffect);
+        }
+
+        void mark(Label label) {
+            label.position = code.size();
+        }
+
+        byte[] finish() {
+            byte[] bytes = code.toByteArray();
+            if (bytes.length > Short.MAX_VALUE) {
+                throw new IllegalStateException("Method too large.");
+            }
+            // fill in forward jumps now that every label has a position
+            for (Label label : labels) {
+                for (int at : label.jumps) {
+                    int offset = label.position - at;
+                    bytes[at + 1] = (byte) (offset >> 8);
+                    bytes[at + 2] = (byte) offset;
+                }
+            }
+
+            ByteArrayOutputStream method = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(method);
+            try {
+                out.writeShort(access);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(descriptor));
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + bytes.length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeShort(0);
+                out.writeShort(0);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            methods.add(method.toByteArray());
+            return bytes;
+        }
+
+        Label newLabel() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+    }
+
+}
@@ -64,12 +64,19 @@ abstract class Cmd {
     }
 
     /**
-     * Used when the command is the reaction command
+     * Used when the command is the reaction command. The reactions are either named by the reactants,
+     * or read from the input file, with --in, and written to the output file, with --out.
      */
     static class Reaction extends Cmd {
         Reaction(Arg.Flag flags, List<Arg.Argument> reactants) {
+            this(flags, reactants, null, null);
+        }
+
+        Reaction(Arg.Flag flags, List<Arg.Argument> reactants, Expr input, Expr output) {
             this.flags = (flags == null ? null : flags.flags);
             this.reactants = reactants;
+            this.input = input;
+            this.output = output;
         }
 
         @Override
@@ -79,6 +86,22 @@ abstract class Cmd {
 
         final String flags;
         final List<Arg.Argument> reactants;
+        final Expr input;
+        final Expr output;
+    }
+
+    /**
+     * Used when the command is the stats command.
+     */
+    static class Stats extends Cmd {
+        Stats() {
+
+        }
+
+        @Override
+        <R> R accept(ICmdVisitor<R> visitor) {
+            return visitor.visitCmd(this);
+        }
     }
 
 
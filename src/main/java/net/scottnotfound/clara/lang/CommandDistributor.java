@@ -2,16 +2,24 @@ package net.scottnotfound.clara.lang;
 
 import net.scottnotfound.clara.IModule;
 import net.scottnotfound.clara.ModuleRegistry;
+import net.scottnotfound.clara.metrics.Counter;
+import net.scottnotfound.clara.metrics.Metrics;
 
 import java.util.Map;
 
 class CommandDistributor {
 
+    private static final Counter COMMANDS = Metrics.counter("clara_commands_total", "Commands handed to the modules.");
+
     CommandDistributor() {
 
     }
 
     void distributeCommand(Map<String, Object> commandMap) {
+        COMMANDS.increment();
+        LangEvents.Command event = new LangEvents.Command();
+        event.begin();
+        int receivers = 0;
         Map<String,IModule> registry = ModuleRegistry.getModuleRegistry();
         for (Map.Entry<String,IModule> entry : registry.entrySet()) {
             String moduleName = entry.getKey();
@@ -19,8 +27,15 @@ class CommandDistributor {
             if (module instanceof ICommandReceiver) {
                 ICommandReceiver commandReceiver = (ICommandReceiver) module;
                 commandReceiver.receiveCommand(commandMap);
+                receivers++;
             }
         }
+        event.end();
+        if (event.shouldCommit()) {
+            event.entries = String.join(",", commandMap.keySet());
+            event.receivers = receivers;
+            event.commit();
+        }
     }
 
     Object haltCommand(Cmd command) {
@@ -0,0 +1,72 @@
+package net.scottnotfound.clara.lang;
+
+import net.scottnotfound.clara.metrics.Gauge;
+import net.scottnotfound.clara.metrics.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * The value of an async command. The command runs on the executor of the ClaraRuntime that issued it
+ * while the script goes on, and await gives its result once it is done or raises the error it failed
+ * with. A future can be awaited any number of times and from any thread, such as the iterations of a
+ * 'pfor'.
+ */
+final class CommandFuture {
+
+    private static final Gauge PENDING = Metrics.gauge("clara_async_commands_pending", "Async commands issued that have not finished.");
+
+    private final CompletableFuture<Object> future;
+
+    private CommandFuture(CompletableFuture<Object> future) {
+        this.future = future;
+    }
+
+    /**
+     * Distributes a command on the executor. Commands do not give a result yet, so the future
+     * completes with null.
+     */
+    static CommandFuture submit(Executor executor, CommandDistributor distributor, Map<String, Object> commandMap) {
+        PENDING.increment();
+        return new CommandFuture(CompletableFuture.supplyAsync(() -> {
+            try {
+                distributor.distributeCommand(commandMap);
+                return null;
+            } finally {
+                PENDING.decrement();
+            }
+        }, executor));
+    }
+
+    /**
+     * Waits for every future and then awaits them in order, so the first one that failed is raised
+     * only once none of them is still running.
+     */
+    static void awaitAll(CommandFuture[] futures, Token keyword) {
+        CompletableFuture<?>[] all = new CompletableFuture<?>[futures.length];
+        for (int i = 0; i < futures.length; i++) {
+            all[i] = futures[i].future;
+        }
+        CompletableFuture.allOf(all).exceptionally(e -> null).join();
+        for (CommandFuture future : futures) {
+            future.await(keyword);
+        }
+    }
+
+    Object await(Token keyword) {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw new RuntimeError(keyword, "Async command failed: " + cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return future.isDone() ? "<future done>" : "<future>";
+    }
+}
@@ -0,0 +1,17 @@
+package net.scottnotfound.clara.lang;
+
+/**
+ * Base class of the classes generated by the JitCompiler for a single closure of a function. Public
+ * only because the generated classes are defined by their own class loader.
+ */
+public abstract class CompiledFunction {
+
+    protected CompiledFunction() {}
+
+    /**
+     * Runs the compiled body. The arguments are in the first slots of a call frame created by
+     * Function.newFrame, which is handed on to the Interpreter if the guards reject them.
+     */
+    public abstract Object call(Interpreter interpreter, Object[] frame);
+
+}
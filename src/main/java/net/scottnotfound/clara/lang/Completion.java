@@ -0,0 +1,13 @@
+package net.scottnotfound.clara.lang;
+
+/**
+ * How a statement finished when run by the Interpreter. Anything other than NORMAL stops the
+ * enclosing blocks until it reaches the loop or function that handles it, so 'return', 'break'
+ * and 'continue' unwind without throwing. The value of a 'return' is held by the Interpreter.
+ */
+enum Completion {
+    NORMAL,
+    BREAK,
+    CONTINUE,
+    RETURN
+}
@@ -1,56 +1,44 @@
 package net.scottnotfound.clara.lang;
 
-import java.util.HashMap;
-import java.util.Map;
-
+/**
+ * A single frame of local variables. Variables are addressed by the slot the Resolver assigned
+ * to them, so a lookup is a walk up the enclosing frames followed by an array index.
+ */
 class Environment {
 
-    private final Map<String, Object> values = new HashMap<>();
+    final Object[] values;
     private final Environment enclosing;
 
-    Environment() {
-        this.enclosing = null;
-    }
-
-    Environment(Environment enclosing) {
+    Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        this.values = new Object[size];
     }
 
-    void define(String key, Object value) {
-        values.put(key, value);
+    /**
+     * Creates a frame around slots that were already filled in, such as the arguments of a call.
+     */
+    Environment(Environment enclosing, Object[] values) {
+        this.enclosing = enclosing;
+        this.values = values;
     }
 
-    Object get(Token token) {
-        if (values.containsKey(token.lexeme)) {
-            return values.get(token.lexeme);
-        }
-        if (enclosing != null) {
-            return enclosing.get(token);
-        }
-        return null;
+    void define(int slot, Object value) {
+        values[slot] = value;
     }
 
-    void assign(Token token, Object value) {
-        if (values.containsKey(token.lexeme)) {
-            values.put(token.lexeme, value);
-            return;
-        }
-        if (enclosing != null) {
-            enclosing.assign(token, value);
-            return;
-        }
-        throw new RuntimeError(token, "Undefined variable '" + token.lexeme + "'.");
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).values[slot];
     }
 
-    Object getAt(Integer distance, String lexeme) {
-        return ancestor(distance).values.get(lexeme);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).values[slot] = value;
     }
 
-    void assignAt(Integer distance, Token token, Object value) {
-        ancestor(distance).values.put(token.lexeme, value);
+    Environment enclosing() {
+        return enclosing;
     }
 
-    private Environment ancestor(Integer distance) {
+    private Environment ancestor(int distance) {
         Environment environment = this;
         for (int i = 0; i < distance; i++) {
             environment = environment.enclosing;
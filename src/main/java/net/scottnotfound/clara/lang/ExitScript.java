@@ -0,0 +1,13 @@
+package net.scottnotfound.clara.lang;
+
+/**
+ * Thrown by the 'exit' command to end the script, however deep in calls or 'pfor' workers it runs.
+ * The Interpreter or VirtualMachine that started the script catches it and marks the ClaraRuntime as
+ * exited, so a runtime embedded in an application only ends its script. Lang exits the process.
+ */
+final class ExitScript extends RuntimeException {
+
+    ExitScript() {
+        super(null, null, false, false);
+    }
+}
@@ -32,6 +32,31 @@ abstract class Expr {
 
         final Token token;
         final Expr expression;
+
+        /* Frame location assigned by the Resolver, depth of -1 means a global. */
+        int depth = -1;
+        int slot = -1;
+
+        /* Slot of a global in the Layout of the Globals, given by the Resolver. */
+        int globalSlot = -1;
+    }
+
+    /**
+     * Used when the expression waits for the future of an async command.
+     */
+    static class Await extends Expr {
+        Await(Token keyword, Expr expression) {
+            this.keyword = keyword;
+            this.expression = expression;
+        }
+
+        @Override
+        <R> R accept(IExprVisitor<R> visitor) {
+            return visitor.visitExpr(this);
+        }
+
+        final Token keyword;
+        final Expr expression;
     }
 
     /**
@@ -52,6 +77,9 @@ abstract class Expr {
         final Expr expr_left;
         final Expr expr_right;
         final Token operator;
+
+        /* Operand types observed by the Interpreter, see Specialization. */
+        Specialization specialization = Specialization.UNINITIALIZED;
     }
 
     /**
@@ -72,10 +100,17 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+
+        /* Callees the Interpreter has checked can take these arguments, Functions by declaration. */
+        final Object[] callees = new Object[CALLEES];
+        int calleeCount;
+
+        static final int CALLEES = 4;
     }
 
     /**
-     * Used when the expression is a command issued to the program.
+     * Used when the expression is a command issued to the program, such as 'async reaction', which
+     * evaluates to a CommandFuture.
      */
     static class Command extends Expr {
         Command(Cmd cmd) {
@@ -106,6 +141,67 @@ abstract class Expr {
         final Expr expression;
     }
 
+    /**
+     * Used when the expression reads an element of a list or map, or a character of a string, such
+     * as 'xs[i]'.
+     */
+    static class Index extends Expr {
+        Index(Expr object, Token bracket, Expr index) {
+            this.object = object;
+            this.bracket = bracket;
+            this.index = index;
+        }
+
+        @Override
+        <R> R accept(IExprVisitor<R> visitor) {
+            return visitor.visitExpr(this);
+        }
+
+        final Expr object;
+        final Token bracket;
+        final Expr index;
+    }
+
+    /**
+     * Used when the expression assigns an element of a list or map, such as 'xs[i] = 1'.
+     */
+    static class IndexAssign extends Expr {
+        IndexAssign(Expr object, Token bracket, Expr index, Expr value) {
+            this.object = object;
+            this.bracket = bracket;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(IExprVisitor<R> visitor) {
+            return visitor.visitExpr(this);
+        }
+
+        final Expr object;
+        final Token bracket;
+        final Expr index;
+        final Expr value;
+    }
+
+    /**
+     * Used when the expression creates a list, such as '[1, 2, 3]'.
+     */
+    static class ListLiteral extends Expr {
+        ListLiteral(Token bracket, List<Expr> elements) {
+            this.bracket = bracket;
+            this.elements = elements;
+        }
+
+        @Override
+        <R> R accept(IExprVisitor<R> visitor) {
+            return visitor.visitExpr(this);
+        }
+
+        final Token bracket;
+        final List<Expr> elements;
+    }
+
     /**
      * Used when the expression is a literal value such as a number or string.
      */
@@ -140,6 +236,29 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+
+        /* Operand types observed by the Interpreter, see Specialization. */
+        Specialization specialization = Specialization.UNINITIALIZED;
+    }
+
+    /**
+     * Used when the expression creates a map, such as '{"a": 1, "b": 2}'.
+     */
+    static class MapLiteral extends Expr {
+        MapLiteral(Token brace, List<Expr> keys, List<Expr> values) {
+            this.brace = brace;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        <R> R accept(IExprVisitor<R> visitor) {
+            return visitor.visitExpr(this);
+        }
+
+        final Token brace;
+        final List<Expr> keys;
+        final List<Expr> values;
     }
 
     /**
@@ -158,6 +277,9 @@ abstract class Expr {
 
         final Expr expression;
         final Token operator;
+
+        /* Operand types observed by the Interpreter, see Specialization. */
+        Specialization specialization = Specialization.UNINITIALIZED;
     }
 
     /**
@@ -174,6 +296,13 @@ abstract class Expr {
         }
 
         final Token token;
+
+        /* Frame location assigned by the Resolver, depth of -1 means a global. */
+        int depth = -1;
+        int slot = -1;
+
+        /* Slot of a global in the Layout of the Globals, given by the Resolver. */
+        int globalSlot = -1;
     }
 
 
@@ -1,5 +1,6 @@
 package net.scottnotfound.clara.lang;
 
+import java.util.Arrays;
 import java.util.List;
 
 public class Function implements Callable {
@@ -7,26 +8,128 @@ public class Function implements Callable {
     private final Stmt.Function declaration;
     private final Environment closure;
 
+    /*
+     * Compiled code for this closure and the profile version it was created from, null until there is
+     * some. Calls on other threads may replace or drop it at any time, so it is read once per call.
+     */
+    private volatile FunctionProfile.Instance compiled;
+
     Function(Stmt.Function declaration, Environment closure) {
         this.closure = closure;
         this.declaration = declaration;
     }
 
+    /**
+     * Creates the frame for a call, the arguments go in its first slots.
+     */
+    Object[] newFrame() {
+        return new Object[declaration.slots];
+    }
+
+    /**
+     * Creates a frame holding the given arguments.
+     */
+    Object[] frame(Object[] arguments) {
+        return arguments.length == declaration.slots ? arguments : Arrays.copyOf(arguments, declaration.slots);
+    }
+
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.parameters.size(); i++) {
-            environment.define(declaration.parameters.get(i).lexeme, arguments.get(i));
+        Object[] frame = newFrame();
+        for (int i = 0; i < arguments.size(); i++) {
+            frame[i] = arguments.get(i);
+        }
+        return call(interpreter, frame);
+    }
+
+    /**
+     * Calls the function with a frame from newFrame, then keeps making the tail calls it returns
+     * until one returns a value.
+     */
+    Object call(Interpreter interpreter, Object[] frame) {
+        if (interpreter.profile != null) {
+            return interpreter.profile.call(interpreter, this, frame);
+        }
+        Object result = callOnce(interpreter, frame);
+        while (result instanceof TailCall) {
+            TailCall tailCall = (TailCall) result;
+            result = tailCall.function.callOnce(interpreter, tailCall.frame);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the body once in whichever tier the function is in, may return a TailCall.
+     */
+    private Object callOnce(Interpreter interpreter, Object[] frame) {
+        FunctionProfile profile = declaration.profile;
+
+        if (profile.tier == Tier.INTERPRETED && JitCompiler.enabled) {
+            profile.record(frame);
+            if (profile.calls >= JitCompiler.THRESHOLD) {
+                JitCompiler.compile(declaration);
+            }
         }
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
+
+        if (profile.tier == Tier.COMPILED) {
+            FunctionProfile.Instance instance = compiled;
+            if (instance == null || instance.version != profile.version) {
+                instance = profile.instantiate(this, closure);
+                compiled = instance;
+            }
+            if (instance != null) {
+                return instance.code.call(interpreter, frame);
+            }
+        }
+
+        return interpret(interpreter, frame);
+    }
+
+    /**
+     * Runs the function body with the tree walking Interpreter, using the frame as its environment.
+     */
+    Object interpret(Interpreter interpreter, Object[] frame) {
+        Environment environment = new Environment(closure, frame);
+        if (interpreter.executeBlock(declaration.body, environment) == Completion.RETURN) {
+            return interpreter.takeReturnValue();
         }
 
         return null;
     }
 
+    /**
+     * Drops the compiled code after its guards rejected the arguments and runs the call in the Interpreter.
+     * Goes back to call, so it may return a TailCall like interpret.
+     */
+    Object deoptimize(Interpreter interpreter, Object[] frame) {
+        declaration.profile.deoptimize(frame);
+        compiled = null;
+        JitCompiler.trace(declaration, "deoptimized, now " + getTier());
+        return interpret(interpreter, frame);
+    }
+
+    /**
+     * How this function is currently being run, for diagnostics.
+     */
+    public Tier getTier() {
+        return declaration.profile.tier;
+    }
+
+    /**
+     * Number of calls counted towards compilation since the function was last (de)compiled.
+     */
+    public int getCallCount() {
+        return declaration.profile.calls;
+    }
+
+    /**
+     * Identifies the function for call site caches, closures of the same declaration take the same
+     * arguments.
+     */
+    Stmt.Function declaration() {
+        return declaration;
+    }
+
     @Override
     public int arity() {
         return declaration.parameters.size();
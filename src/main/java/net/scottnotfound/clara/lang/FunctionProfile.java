@@ -0,0 +1,129 @@
+package net.scottnotfound.clara.lang;
+
+import net.scottnotfound.clara.metrics.Counter;
+import net.scottnotfound.clara.metrics.Metrics;
+
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+
+/**
+ * Execution profile of a function declaration, shared by every closure created from it. Counts calls
+ * and records which parameters have only ever been passed numbers so the JitCompiler can keep them
+ * unboxed.
+ *
+ * A declaration is shared by every ClaraRuntime running its tree, so the profile may be updated from
+ * several threads. The counts are only a guide and may lose updates, and a parameter wrongly kept
+ * numeric only costs a deoptimization when the guard of the compiled code fails. The compiled code
+ * itself changes under the lock of the profile.
+ */
+class FunctionProfile {
+
+    private static final Counter COMPILATIONS = Metrics.counter("clara_jit_compilations_total", "Functions compiled by the JitCompiler.");
+    private static final Counter DEOPTIMIZATIONS = Metrics.counter("clara_jit_deoptimizations_total", "Compiled functions sent back to the Interpreter.");
+
+    int calls = 0;
+    volatile Tier tier = Tier.INTERPRETED;
+
+    /** Bumped every time the compiled code changes so closures know to drop their old instance. */
+    volatile int version = 0;
+    private int compilations = 0;
+    private boolean compiling = false;
+
+    /** True for each parameter that has only been passed numbers so far. */
+    final boolean[] numeric;
+
+    private Constructor<?> compiled;
+    private Object[] constants;
+
+    FunctionProfile(int parameters) {
+        this.numeric = new boolean[parameters];
+        Arrays.fill(numeric, true);
+    }
+
+    /**
+     * Counts a call with the arguments in the first slots of its frame.
+     */
+    void record(Object[] frame) {
+        calls++;
+        for (int i = 0; i < numeric.length; i++) {
+            numeric[i] &= frame[i] instanceof Double;
+        }
+    }
+
+    /**
+     * Claims the compilation of the function, false if it is compiled already or being compiled by
+     * another thread.
+     */
+    synchronized boolean startCompiling() {
+        if (tier != Tier.INTERPRETED || compiling) {
+            return false;
+        }
+        compiling = true;
+        compilations++;
+        return true;
+    }
+
+    /**
+     * Ends a compilation started with startCompiling, with the constructor of the generated class or
+     * null if the function can not be compiled.
+     */
+    synchronized void install(Constructor<?> compiled, Object[] constants) {
+        compiling = false;
+        if (compiled == null) {
+            tier = Tier.UNSUPPORTED;
+            return;
+        }
+        this.compiled = compiled;
+        this.constants = constants;
+        version++;
+        tier = Tier.COMPILED;
+        COMPILATIONS.increment();
+    }
+
+    /**
+     * Compiled code of a single closure and the version of the profile it was created from, kept
+     * together so a closure reads both with one load.
+     */
+    static final class Instance {
+
+        final CompiledFunction code;
+        final int version;
+
+        Instance(CompiledFunction code, int version) {
+            this.code = code;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Creates the compiled code for a single closure of the function, null if the code has been
+     * dropped since the tier was read.
+     */
+    synchronized Instance instantiate(Function function, Environment closure) {
+        if (compiled == null) {
+            return null;
+        }
+        try {
+            return new Instance((CompiledFunction) compiled.newInstance(function, closure, constants), version);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Called when compiled code was given arguments its guards do not accept. The function goes back
+     * to the Interpreter to be profiled again, or stays there if it has been compiled too many times.
+     */
+    synchronized void deoptimize(Object[] frame) {
+        for (int i = 0; i < numeric.length; i++) {
+            numeric[i] &= frame[i] instanceof Double;
+        }
+        compiled = null;
+        constants = null;
+        calls = 0;
+        version++;
+        DEOPTIMIZATIONS.increment();
+        tier = compilations >= JitCompiler.MAX_COMPILATIONS ? Tier.DEOPTIMIZED : Tier.INTERPRETED;
+    }
+
+}
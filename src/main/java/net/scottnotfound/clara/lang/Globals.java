@@ -0,0 +1,207 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Holds the variables defined at the top level. The Resolver gives every global a script names a slot
+ * in the Layout of the runtime resolving it, and stores the slot at the variable site, so a read of a
+ * global costs an array load. The REPL resolves one line at a time against the same Layout, so a name
+ * keeps its slot across lines.
+ *
+ * A Layout belongs to the tree it numbered, and a compiled Program carries its own. Each Globals holds
+ * its own values for the slots of its Layout, and a runtime running a Program numbered by another
+ * Layout switches to that one first. Names defined from outside the script, such as the bindings of a
+ * ClaraScriptEngine, that the script never names are kept by name beside the slots, so they do not
+ * grow a Layout shared by every runtime running the Program.
+ */
+class Globals {
+
+    /** Held in the slots of names that have been looked up but not defined. */
+    private static final Object UNDEFINED = new Object();
+
+    /** Defined by every Interpreter, these have the first slots of every Layout. */
+    private static final String[] BUILTINS = {"clock", "preduce", "awaitAll", "len", "append"};
+
+    private Layout layout;
+    private Object[] values;
+
+    /* Globals defined by name that have no slot in the Layout, null until there is one. */
+    private Map<String, Object> unslotted = null;
+
+    Globals() {
+        this.layout = new Layout();
+        this.values = new Object[16];
+        Arrays.fill(values, UNDEFINED);
+    }
+
+    /**
+     * The numbering of globals in a tree. Names are given slots in the order they are first resolved
+     * and keep them, so sites already resolved stay right as more of a script is resolved. A Layout
+     * may be used by runtimes on several threads at once.
+     */
+    static final class Layout {
+
+        private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+        private volatile String[] names = new String[0];
+
+        Layout() {
+            for (String builtin : BUILTINS) {
+                slot(builtin);
+            }
+        }
+
+        /**
+         * Finds the slot of a name, giving it a new one if it has none.
+         */
+        int slot(String name) {
+            Integer slot = slots.get(name);
+            if (slot != null) {
+                return slot;
+            }
+            synchronized (this) {
+                slot = slots.get(name);
+                if (slot == null) {
+                    String[] names = Arrays.copyOf(this.names, this.names.length + 1);
+                    slot = this.names.length;
+                    names[slot] = name;
+                    this.names = names;
+                    slots.put(name, slot);
+                }
+                return slot;
+            }
+        }
+
+        /**
+         * The slot of a name, or -1 if it has none.
+         */
+        int find(String name) {
+            Integer slot = slots.get(name);
+            return slot != null ? slot : -1;
+        }
+
+        String name(int slot) {
+            return names[slot];
+        }
+    }
+
+    Layout layout() {
+        return layout;
+    }
+
+    /**
+     * Moves the values held here to the slots of another Layout, such as the one of a Program about
+     * to run. Nothing changes if the Layout is already the one in use.
+     */
+    void use(Layout layout) {
+        if (layout == this.layout) {
+            return;
+        }
+        Layout previous = this.layout;
+        Object[] previousValues = values;
+        Map<String, Object> previousUnslotted = unslotted;
+        this.layout = layout;
+        this.values = new Object[16];
+        Arrays.fill(values, UNDEFINED);
+        this.unslotted = null;
+        for (int slot = 0; slot < previousValues.length; slot++) {
+            if (previousValues[slot] != UNDEFINED) {
+                define(previous.name(slot), previousValues[slot]);
+            }
+        }
+        if (previousUnslotted != null) {
+            previousUnslotted.forEach(this::define);
+        }
+    }
+
+    /**
+     * Finds the slot of a name in the Layout, giving it a new one if it has none, for sites the
+     * Resolver has not numbered such as those read back from the ScriptCache. A global defined by
+     * name before it had a slot is moved into it.
+     */
+    int slot(String name) {
+        int slot = layout.slot(name);
+        if (unslotted != null && unslotted.containsKey(name)) {
+            define(slot, unslotted.remove(name));
+        }
+        return slot;
+    }
+
+    /**
+     * Defines a global by name, in its slot if the Layout has one.
+     */
+    void define(String key, Object value) {
+        int slot = layout.find(key);
+        if (slot != -1) {
+            define(slot, value);
+            return;
+        }
+        if (unslotted == null) {
+            unslotted = new HashMap<>();
+        }
+        unslotted.put(key, value);
+    }
+
+    void define(int slot, Object value) {
+        if (slot >= values.length) {
+            int length = values.length;
+            values = Arrays.copyOf(values, Math.max(length * 2, slot + 1));
+            Arrays.fill(values, length, values.length, UNDEFINED);
+        }
+        values[slot] = value;
+    }
+
+    Object get(int slot) {
+        Object value = slot < values.length ? values[slot] : UNDEFINED;
+        return value != UNDEFINED ? value : null;
+    }
+
+    /**
+     * Reads a global through the slot stored at the variable site.
+     */
+    Object get(Expr.Variable site) {
+        int slot = site.globalSlot;
+        if (slot == -1) {
+            slot = slot(site.token.lexeme);
+            site.globalSlot = slot;
+        }
+        return get(slot);
+    }
+
+    void assign(int slot, Token token, Object value) {
+        if (slot >= values.length || values[slot] == UNDEFINED) {
+            throw new RuntimeError(token, "Undefined variable '" + token.lexeme + "'.");
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Assigns a global through the slot stored at the assignment site.
+     */
+    void assign(Expr.Assign site, Object value) {
+        int slot = site.globalSlot;
+        if (slot == -1) {
+            slot = slot(site.token.lexeme);
+            site.globalSlot = slot;
+        }
+        assign(slot, site.token, value);
+    }
+
+    /**
+     * Calls the action with the name and value of every global defined here.
+     */
+    void forEach(BiConsumer<String, Object> action) {
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != UNDEFINED) {
+                action.accept(layout.name(slot), values[slot]);
+            }
+        }
+        if (unslotted != null) {
+            unslotted.forEach(action);
+        }
+    }
+
+}
@@ -22,4 +22,9 @@ interface ICmdVisitor<R> {
      */
     R visitCmd(Cmd.Reaction cmd);
 
+    /**
+     * Used when the command is the stats command.
+     */
+    R visitCmd(Cmd.Stats cmd);
+
 }
@@ -13,6 +13,11 @@ interface IExprVisitor<R> {
      */
     R visitExpr(Expr.Assign expr);
 
+    /**
+     * Used when the expression waits for the future of an async command.
+     */
+    R visitExpr(Expr.Await expr);
+
     /**
      * Used when the expression is a binary operation such as '4 + 5' or '6 > 3'.
      */
@@ -33,6 +38,21 @@ interface IExprVisitor<R> {
      */
     R visitExpr(Expr.Grouping expr);
 
+    /**
+     * Used when the expression reads an element of a list or map, or a character of a string.
+     */
+    R visitExpr(Expr.Index expr);
+
+    /**
+     * Used when the expression assigns an element of a list or map.
+     */
+    R visitExpr(Expr.IndexAssign expr);
+
+    /**
+     * Used when the expression creates a list.
+     */
+    R visitExpr(Expr.ListLiteral expr);
+
     /**
      * Used when the expression is a literal value such as a number or string.
      */
@@ -43,6 +63,11 @@ interface IExprVisitor<R> {
      */
     R visitExpr(Expr.Logical expr);
 
+    /**
+     * Used when the expression creates a map.
+     */
+    R visitExpr(Expr.MapLiteral expr);
+
     /**
      * Used when the expression is a unary operation such as '-' for negating a number or '!' for negating a boolean.
      */
@@ -13,16 +13,31 @@ interface IStmtVisitor<R> {
      */
     R visitStmt(Stmt.Block stmt);
 
+    /**
+     * Used when the statement is a 'break' out of the innermost loop.
+     */
+    R visitStmt(Stmt.Break stmt);
+
     /**
      * Used when the statement is a command issued to the program.
      */
     R visitStmt(Stmt.Command stmt);
 
+    /**
+     * Used when the statement is a 'continue' with the next iteration of the innermost loop.
+     */
+    R visitStmt(Stmt.Continue stmt);
+
     /**
      * Used when the statement is just an expression.
      */
     R visitStmt(Stmt.Expression stmt);
 
+    /**
+     * Used when the statement is a loop over the elements of a list or the keys of a map.
+     */
+    R visitStmt(Stmt.ForIn stmt);
+
     /**
      * Used when the statement is a function definition.
      */
@@ -33,6 +48,11 @@ interface IStmtVisitor<R> {
      */
     R visitStmt(Stmt.If stmt);
 
+    /**
+     * Used when the statement is a 'pfor' loop running its iterations in parallel.
+     */
+    R visitStmt(Stmt.PFor stmt);
+
     /**
      * Used when the statement is a print statement.
      */
@@ -1,28 +1,83 @@
 package net.scottnotfound.clara.lang;
 
-import net.scottnotfound.clara.Clara;
+import net.scottnotfound.clara.metrics.Metrics;
 
 import java.util.*;
 
-public class Interpreter implements IExprVisitor<Object>, IStmtVisitor<Void>, IArgVisitor<Void>, ICmdVisitor<Void> {
+public class Interpreter implements IExprVisitor<Object>, IStmtVisitor<Completion>, IArgVisitor<Void>, ICmdVisitor<Void> {
 
-    private Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
-    private final CommandDistributor commandDistributor = new CommandDistributor();
+    /* Builtins hold no state, so every Interpreter shares them and call sites can cache them. */
+    private static final Callable CLOCK = new Callable() {
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return call0(interpreter);
+        }
 
-    Interpreter() {
-        globals.define("clock", new Callable() {
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double) System.currentTimeMillis() / 1000.0;
-            }
+        @Override
+        public Object call0(Interpreter interpreter) {
+            return (double) System.currentTimeMillis() / 1000.0;
+        }
+
+        @Override
+        public int arity() {
+            return 0;
+        }
+    };
+
+    /* len(value) is the number of elements of a list or map, or of characters of a string. */
+    private static final Callable LEN = new Callable() {
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return call1(interpreter, arguments.get(0));
+        }
 
-            @Override
-            public int arity() {
-                return 0;
+        @Override
+        public Object call1(Interpreter interpreter, Object value) {
+            if (value instanceof ClaraList) {
+                return (double) ((ClaraList) value).size();
             }
-        });
+            if (value instanceof ClaraMap) {
+                return (double) ((ClaraMap) value).size();
+            }
+            if (value instanceof String) {
+                return (double) ((String) value).length();
+            }
+            throw new RuntimeError(null, "len: argument must be a list, map or string.");
+        }
+
+        @Override
+        public int arity() {
+            return 1;
+        }
+    };
+
+    final ClaraRuntime runtime;
+    final Globals globals;
+    private Environment environment = null;
+    private Object returnValue = null;
+    private final CommandDistributor commandDistributor = new CommandDistributor();
+
+    /** Where statements and calls are recorded while profiling, null otherwise. */
+    Profiler.Stack profile = null;
+
+    Interpreter(ClaraRuntime runtime) {
+        this.runtime = runtime;
+        this.globals = new Globals();
+        globals.define("clock", CLOCK);
+        globals.define("preduce", Parallel.REDUCE);
+        globals.define("awaitAll", Async.AWAIT_ALL);
+        globals.define("len", LEN);
+        globals.define("append", ClaraList.APPEND);
+    }
+
+    /**
+     * Creates an Interpreter for a worker thread running part of the same script, such as iterations
+     * of a 'pfor'. It shares the runtime and globals of the parent and has a call stack of its own.
+     */
+    Interpreter(Interpreter parent) {
+        this.runtime = parent.runtime;
+        this.globals = parent.globals;
+        this.profile = parent.profile == null ? null : parent.profile.profiler().threadStack();
     }
 
     public void interpret(List<Stmt> statements) {
@@ -31,43 +86,84 @@ public class Interpreter implements IExprVisitor<Object>, IStmtVisitor<Void>, IA
                 executeStatement(statement);
             }
         } catch (RuntimeError e) {
-            Lang.runtimeError(e);
+            runtime.runtimeError(e);
+        } catch (ExitScript e) {
+            runtime.exited = true;
+        } catch (StackOverflowError e) {
+            runtime.stackOverflow();
         }
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    /**
+     * Evaluates a resolved expression at the top level, reporting errors like interpret does. Returns
+     * null after an error.
+     */
+    Object evaluate(Expr expr) {
+        try {
+            return evaluateExpression(expr);
+        } catch (RuntimeError e) {
+            runtime.runtimeError(e);
+        } catch (ExitScript e) {
+            runtime.exited = true;
+        } catch (StackOverflowError e) {
+            runtime.stackOverflow();
+        }
+        return null;
+    }
+
+    /**
+     * Whether a value is one of the builtins every Interpreter defines.
+     */
+    static boolean isBuiltin(Object value) {
+        return value == CLOCK || value == LEN || value == ClaraList.APPEND
+                || value == Parallel.REDUCE || value == Async.AWAIT_ALL;
     }
 
     private Object evaluateExpression(Expr expr) {
         return expr.accept(this);
     }
 
-    private void executeStatement(Stmt statement) {
-        statement.accept(this);
+    private Completion executeStatement(Stmt statement) {
+        if (profile != null) {
+            return profile.execute(this, statement);
+        }
+        return statement.accept(this);
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    Completion executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
             for (Stmt statement : statements) {
-                executeStatement(statement);
+                Completion completion = executeStatement(statement);
+                if (completion != Completion.NORMAL) {
+                    return completion;
+                }
             }
+            return Completion.NORMAL;
         } finally {
             this.environment = previous;
         }
     }
 
-    private boolean isTruthy(Object object) {
+    /**
+     * Hands over the value of the 'return' that last completed with Completion.RETURN.
+     */
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
+    static boolean isTruthy(Object object) {
         return object != null && (!(object instanceof Boolean) || (boolean) object);
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         return a == null && b == null || a != null && a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) {
             return "null";
         }
@@ -96,32 +192,227 @@ public class Interpreter implements IExprVisitor<Object>, IStmtVisitor<Void>, IA
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private Object lookUpVariable(Token token, Expr expression) {
-        Integer distance = locals.get(expression);
-        if (distance != null) {
-            return environment.getAt(distance, token.lexeme);
+    private Object lookUpVariable(Expr.Variable expr) {
+        if (expr.depth != -1) {
+            return environment.getAt(expr.depth, expr.slot);
         } else {
-            return globals.get(token);
+            return globals.get(expr);
+        }
+    }
+
+    private void defineVariable(Token token, int slot, Object value) {
+        if (slot != -1) {
+            environment.define(slot, value);
+        } else {
+            globals.define(token.lexeme, value);
         }
     }
 
     @Override
     public Object visitExpr(Expr.Assign expr) {
         Object value = evaluateExpression(expr.expression);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.token, value);
+        if (expr.depth != -1) {
+            environment.assignAt(expr.depth, expr.slot, value);
         } else {
-            globals.assign(expr.token, value);
+            globals.assign(expr, value);
         }
         return null;
     }
 
     @Override
     public Object visitExpr(Expr.Binary expr) {
-        Object left = evaluateExpression(expr.expr_left);
-        Object right = evaluateExpression(expr.expr_right);
+        switch (expr.specialization) {
+            case NUMBER: {
+                if (isComparison(expr.operator.type)) {
+                    return numberComparison(expr);
+                }
+                try {
+                    return numberArithmetic(expr);
+                } catch (UnexpectedValue e) {
+                    return e.value;
+                }
+            }
+            case STRING: {
+                Object left = evaluateExpression(expr.expr_left);
+                Object right = evaluateExpression(expr.expr_right);
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                return despecialize(expr, left, right);
+            }
+            default: {
+                Object left = evaluateExpression(expr.expr_left);
+                Object right = evaluateExpression(expr.expr_right);
+                if (expr.specialization == Specialization.UNINITIALIZED) {
+                    expr.specialization = specialize(expr.operator.type, left, right);
+                }
+                return binary(expr, left, right);
+            }
+        }
+    }
 
+    private static Specialization specialize(TokenType operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return isComparison(operator) || isArithmetic(operator) ? Specialization.NUMBER : Specialization.GENERIC;
+        }
+        if (left instanceof String && right instanceof String && operator == TokenType.PLUS) {
+            return Specialization.STRING;
+        }
+        return Specialization.GENERIC;
+    }
+
+    private static boolean isArithmetic(TokenType operator) {
+        switch (operator) {
+            case PLUS:
+            case MINUS:
+            case ASTERISK:
+            case SLASH_FRWD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isComparison(TokenType operator) {
+        switch (operator) {
+            case BRACKNQ_RIGHT:
+            case BRACKNQ_LEFT:
+            case GREATER_EQUALS:
+            case LESS_EQUALS:
+            case NOT_EQUALS:
+            case DOUBLE_EQUALS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Evaluates an expression that is expected to produce a number without boxing it. Nodes specialized
+     * for numbers, number literals and variables holding numbers never allocate here.
+     *
+     * @throws UnexpectedValue if the expression produced something other than a number
+     */
+    private double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (binary.specialization == Specialization.NUMBER && isArithmetic(binary.operator.type)) {
+                return numberArithmetic(binary);
+            }
+        } else if (expr instanceof Expr.Variable) {
+            return expectNumber(lookUpVariable((Expr.Variable) expr));
+        } else if (expr instanceof Expr.Literal) {
+            return expectNumber(((Expr.Literal) expr).value);
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Index) {
+            return numberIndex((Expr.Index) expr);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (unary.specialization == Specialization.NUMBER) {
+                return numberNegate(unary);
+            }
+        }
+        return expectNumber(evaluateExpression(expr));
+    }
+
+    /**
+     * Reads an element of a list of numbers without boxing it or its index.
+     *
+     * @throws UnexpectedValue if the element is not a number
+     */
+    private double numberIndex(Expr.Index expr) {
+        Object object = evaluateExpression(expr.object);
+        if (object instanceof ClaraList && ((ClaraList) object).isNumeric()) {
+            ClaraList list = (ClaraList) object;
+            return list.getNumber(listIndex(expr.bracket, list, indexNumber(expr.bracket, expr.index)));
+        }
+        return expectNumber(index(expr.bracket, object, evaluateExpression(expr.index)));
+    }
+
+    /**
+     * Evaluates the index of a list element without boxing it.
+     */
+    private double indexNumber(Token bracket, Expr index) {
+        try {
+            return evaluateNumber(index);
+        } catch (UnexpectedValue e) {
+            throw new RuntimeError(bracket, "List index must be a number.");
+        }
+    }
+
+    private static double expectNumber(Object value) {
+        if (value instanceof Double) {
+            return (double) value;
+        }
+        throw new UnexpectedValue(value);
+    }
+
+    /**
+     * Arithmetic of a node specialized for numbers. When an operand turns out not to be a number the
+     * node goes back to GENERIC and finishes the operation with the values already evaluated.
+     *
+     * @throws UnexpectedValue if the despecialized operation produced something other than a number
+     */
+    private double numberArithmetic(Expr.Binary expr) {
+        double left;
+        try {
+            left = evaluateNumber(expr.expr_left);
+        } catch (UnexpectedValue e) {
+            return expectNumber(despecialize(expr, e.value, evaluateExpression(expr.expr_right)));
+        }
+        double right;
+        try {
+            right = evaluateNumber(expr.expr_right);
+        } catch (UnexpectedValue e) {
+            return expectNumber(despecialize(expr, left, e.value));
+        }
+
+        switch (expr.operator.type) {
+            case MINUS:         return left - right;
+            case SLASH_FRWD:    return left / right;
+            case ASTERISK:      return left * right;
+            default:            return left + right;
+        }
+    }
+
+    /**
+     * Comparison of a node specialized for numbers, falls back like numberArithmetic.
+     */
+    private boolean numberComparison(Expr.Binary expr) {
+        double left;
+        try {
+            left = evaluateNumber(expr.expr_left);
+        } catch (UnexpectedValue e) {
+            return (boolean) despecialize(expr, e.value, evaluateExpression(expr.expr_right));
+        }
+        double right;
+        try {
+            right = evaluateNumber(expr.expr_right);
+        } catch (UnexpectedValue e) {
+            return (boolean) despecialize(expr, left, e.value);
+        }
+
+        switch (expr.operator.type) {
+            case BRACKNQ_RIGHT:     return left > right;
+            case BRACKNQ_LEFT:      return left < right;
+            case GREATER_EQUALS:    return left >= right;
+            case LESS_EQUALS:       return left <= right;
+            // same as Double.equals, which isEqual compares with
+            case NOT_EQUALS:        return Double.compare(left, right) != 0;
+            default:                return Double.compare(left, right) == 0;
+        }
+    }
+
+    private Object despecialize(Expr.Binary expr, Object left, Object right) {
+        expr.specialization = Specialization.GENERIC;
+        return binary(expr, left, right);
+    }
+
+    /**
+     * Applies a binary operator to evaluated operands, checking their types.
+     */
+    private Object binary(Expr.Binary expr, Object left, Object right) {
         switch (expr.operator.type) {
             case BRACKNQ_RIGHT: {
                 checkNumberOperands(expr.operator, left, right);
@@ -173,11 +464,97 @@ public class Interpreter implements IExprVisitor<Object>, IStmtVisitor<Void>, IA
 
     @Override
     public Object visitExpr(Expr.Call expr) {
+        return call(expr, false);
+    }
+
+    /**
+     * Evaluates and makes a call. A tail call to a Function is not made here but handed back as a
+     * TailCall for the calling Function to make once this frame is gone.
+     *
+     * Each call site remembers the callees that passed its checks, up to Expr.Call.CALLEES of them.
+     * Those are called without checking again, with the arguments evaluated straight into the frame
+     * of a Function or passed to the fixed arity entry points of a builtin.
+     */
+    private Object call(Expr.Call expr, boolean tail) {
         Object callee = evaluateExpression(expr.callee);
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluateExpression(argument));
+        if (callee instanceof Function) {
+            Function function = (Function) callee;
+            if (isCached(expr, function.declaration())) {
+                List<Expr> arguments = expr.arguments;
+                Object[] frame = function.newFrame();
+                for (int i = 0; i < arguments.size(); i++) {
+                    frame[i] = evaluateExpression(arguments.get(i));
+                }
+                return tail ? new TailCall(function, frame) : function.call(this, frame);
+            }
+        } else if (isCached(expr, callee)) {
+            return callFixed(expr, (Callable) callee);
+        }
+
+        return callUncached(expr, callee, tail);
+    }
+
+    private static boolean isCached(Expr.Call expr, Object callee) {
+        Object[] callees = expr.callees;
+        int count = expr.calleeCount;
+        for (int i = 0; i < count; i++) {
+            if (callees[i] == callee) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a checked callee to the call site if there is room. Sites are shared by every ClaraRuntime
+     * running the tree, so the count is read once and only ever written after the entry: another
+     * thread may see an entry late or lose one, but never an entry that was not checked.
+     */
+    private static void cache(Expr.Call expr, Object callee) {
+        int count = expr.calleeCount;
+        if (count < Expr.Call.CALLEES) {
+            expr.callees[count] = callee;
+            expr.calleeCount = count + 1;
+        }
+    }
+
+    /**
+     * Calls a cached builtin without building an argument list when it takes few enough arguments.
+     */
+    private Object callFixed(Expr.Call expr, Callable function) {
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return function.call0(this);
+            case 1:
+                return function.call1(this, evaluateExpression(arguments.get(0)));
+            case 2: {
+                Object a = evaluateExpression(arguments.get(0));
+                return function.call2(this, a, evaluateExpression(arguments.get(1)));
+            }
+            case 3: {
+                Object a = evaluateExpression(arguments.get(0));
+                Object b = evaluateExpression(arguments.get(1));
+                return function.call3(this, a, b, evaluateExpression(arguments.get(2)));
+            }
+            default: {
+                List<Object> values = new ArrayList<>(arguments.size());
+                for (int i = 0; i < arguments.size(); i++) {
+                    values.add(evaluateExpression(arguments.get(i)));
+                }
+                return function.call(this, values);
+            }
+        }
+    }
+
+    /**
+     * Makes a call the call site has not seen yet, checking the callee and caching it if there is room.
+     */
+    private Object callUncached(Expr.Call expr, Object callee, boolean tail) {
+        List<Object> arguments = new ArrayList<>(expr.arguments.size());
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            arguments.add(evaluateExpression(expr.arguments.get(i)));
         }
 
         if (!(callee instanceof Callable)) {
@@ -186,22 +563,164 @@ public class Interpreter implements IExprVisitor<Object>, IStmtVisitor<Void>, IA
 
         Callable function = (Callable)callee;
 
-        if (arguments.size() != function.arity()) {
+        if (function.arity() != Callable.VARIADIC && arguments.size() != function.arity()) {
             throw new RuntimeError(expr.paren, "Expected " + function.arity() +
                     " arguments but got " + arguments.size() + ".");
         }
 
+        if (function instanceof Function) {
+            Function target = (Function) function;
+            cache(expr, target.declaration());
+            Object[] frame = target.frame(arguments.toArray());
+            return tail ? new TailCall(target, frame) : target.call(this, frame);
+        }
+
+        cache(expr, function);
         return function.call(this, arguments);
     }
 
+    @Override
+    public Object visitExpr(Expr.Await expr) {
+        Object future = evaluateExpression(expr.expression);
+        if (!(future instanceof CommandFuture)) {
+            throw new RuntimeError(expr.keyword, "Can only await futures.");
+        }
+        return ((CommandFuture) future).await(expr.keyword);
+    }
+
     @Override
     public Object visitExpr(Expr.Command expr) {
+        if (expr.cmd instanceof Cmd.Reaction) {
+            return CommandFuture.submit(runtime.executor, commandDistributor, reactionCommand((Cmd.Reaction) expr.cmd));
+        }
         return null;
     }
 
     @Override
     public Object visitExpr(Expr.Grouping expr) {
-        return evaluateExpression(expr);
+        return evaluateExpression(expr.expression);
+    }
+
+    @Override
+    public Object visitExpr(Expr.Index expr) {
+        Object object = evaluateExpression(expr.object);
+        if (object instanceof ClaraList) {
+            ClaraList list = (ClaraList) object;
+            int index = listIndex(expr.bracket, list, indexNumber(expr.bracket, expr.index));
+            return list.get(index);
+        }
+        return index(expr.bracket, object, evaluateExpression(expr.index));
+    }
+
+    @Override
+    public Object visitExpr(Expr.IndexAssign expr) {
+        Object object = evaluateExpression(expr.object);
+        if (object instanceof ClaraList) {
+            ClaraList list = (ClaraList) object;
+            int index = listIndex(expr.bracket, list, indexNumber(expr.bracket, expr.index));
+            if (!list.isNumeric()) {
+                list.set(index, evaluateExpression(expr.value));
+                return null;
+            }
+            double value;
+            try {
+                value = evaluateNumber(expr.value);
+            } catch (UnexpectedValue e) {
+                list.set(index, e.value);
+                return null;
+            }
+            list.setNumber(index, value);
+            return null;
+        }
+        Object index = evaluateExpression(expr.index);
+        assignIndex(expr.bracket, object, index, evaluateExpression(expr.value));
+        return null;
+    }
+
+    @Override
+    public Object visitExpr(Expr.ListLiteral expr) {
+        ClaraList list = new ClaraList(expr.elements.size());
+        for (Expr element : expr.elements) {
+            list.add(evaluateExpression(element));
+        }
+        return list;
+    }
+
+    @Override
+    public Object visitExpr(Expr.MapLiteral expr) {
+        ClaraMap map = new ClaraMap();
+        for (int i = 0; i < expr.keys.size(); i++) {
+            Object key = evaluateExpression(expr.keys.get(i));
+            map.put(key, evaluateExpression(expr.values.get(i)));
+        }
+        return map;
+    }
+
+    /**
+     * Element of a list at a number, checking that it is a whole number within the list.
+     */
+    static int listIndex(Token bracket, ClaraList list, double index) {
+        if (index >= 0 && index < list.size() && index == (int) index) {
+            return (int) index;
+        }
+        throw new RuntimeError(bracket, "List index out of range.");
+    }
+
+    /**
+     * Reads an element of a list or map, or a character of a string.
+     */
+    static Object index(Token bracket, Object object, Object index) {
+        if (object instanceof ClaraList) {
+            if (!(index instanceof Double)) {
+                throw new RuntimeError(bracket, "List index must be a number.");
+            }
+            ClaraList list = (ClaraList) object;
+            return list.get(listIndex(bracket, list, (double) index));
+        }
+        if (object instanceof ClaraMap) {
+            return ((ClaraMap) object).get(index);
+        }
+        if (object instanceof String) {
+            String string = (String) object;
+            if (!(index instanceof Double)) {
+                throw new RuntimeError(bracket, "String index must be a number.");
+            }
+            double at = (double) index;
+            if (at >= 0 && at < string.length() && at == (int) at) {
+                return String.valueOf(string.charAt((int) at));
+            }
+            throw new RuntimeError(bracket, "String index out of range.");
+        }
+        throw new RuntimeError(bracket, "Can only index lists, maps and strings.");
+    }
+
+    static void assignIndex(Token bracket, Object object, Object index, Object value) {
+        if (object instanceof ClaraList) {
+            if (!(index instanceof Double)) {
+                throw new RuntimeError(bracket, "List index must be a number.");
+            }
+            ClaraList list = (ClaraList) object;
+            list.set(listIndex(bracket, list, (double) index), value);
+            return;
+        }
+        if (object instanceof ClaraMap) {
+            ((ClaraMap) object).put(index, value);
+            return;
+        }
+        throw new RuntimeError(bracket, "Can only assign to elements of lists and maps.");
+    }
+
+    /**
+     * What a 'for in' loop goes through: a list itself, or the keys of a map.
+     */
+    static ClaraList iterable(Token keyword, Object value) {
+        if (value instanceof ClaraList) {
+            return (ClaraList) value;
+        }
+        if (value instanceof ClaraMap) {
+            return ((ClaraMap) value).keys();
+        }
+        throw new RuntimeError(keyword, "Can only iterate over lists and maps.");
     }
 
     @Override
@@ -212,12 +731,24 @@ public class Interpreter implements IExprVisitor<Object>, IStmtVisitor<Void>, IA
     @Override
     public Object visitExpr(Expr.Logical expr) {
         Object left = evaluateExpression(expr.left);
+
+        boolean truthy;
+        if (expr.specialization == Specialization.BOOLEAN && left instanceof Boolean) {
+            truthy = (boolean) left;
+        } else {
+            if (expr.specialization != Specialization.GENERIC) {
+                boolean booleans = expr.specialization == Specialization.UNINITIALIZED && left instanceof Boolean;
+                expr.specialization = booleans ? Specialization.BOOLEAN : Specialization.GENERIC;
+            }
+            truthy = isTruthy(left);
+        }
+
         if (expr.operator.type == TokenType.OR) {
-            if (isTruthy(left)) {
+            if (truthy) {
                 return left;
             }
         } else {
-            if (!isTruthy(left)) {
+            if (!truthy) {
                 return left;
             }
         }
@@ -226,8 +757,47 @@ public class Interpreter implements IExprVisitor<Object>, IStmtVisitor<Void>, IA
 
     @Override
     public Object visitExpr(Expr.Unary expr) {
-        Object right = evaluateExpression(expr.expression);
+        switch (expr.specialization) {
+            case NUMBER: {
+                return numberNegate(expr);
+            }
+            case BOOLEAN: {
+                Object right = evaluateExpression(expr.expression);
+                if (right instanceof Boolean) {
+                    return !(boolean) right;
+                }
+                expr.specialization = Specialization.GENERIC;
+                return unary(expr, right);
+            }
+            default: {
+                Object right = evaluateExpression(expr.expression);
+                if (expr.specialization == Specialization.UNINITIALIZED) {
+                    if (right instanceof Double && expr.operator.type == TokenType.MINUS) {
+                        expr.specialization = Specialization.NUMBER;
+                    } else if (right instanceof Boolean && expr.operator.type == TokenType.EXCLAMK) {
+                        expr.specialization = Specialization.BOOLEAN;
+                    } else {
+                        expr.specialization = Specialization.GENERIC;
+                    }
+                }
+                return unary(expr, right);
+            }
+        }
+    }
+
+    private double numberNegate(Expr.Unary expr) {
+        try {
+            return -evaluateNumber(expr.expression);
+        } catch (UnexpectedValue e) {
+            expr.specialization = Specialization.GENERIC;
+            return (double) unary(expr, e.value);
+        }
+    }
 
+    /**
+     * Applies a unary operator to an evaluated operand, checking its type.
+     */
+    private Object unary(Expr.Unary expr, Object right) {
         switch (expr.operator.type) {
             case MINUS:
                 checkNumberOperand(expr.operator, right);
@@ -241,77 +811,148 @@ public class Interpreter implements IExprVisitor<Object>, IStmtVisitor<Void>, IA
 
     @Override
     public Object visitExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.token, expr);
+        return lookUpVariable(expr);
     }
 
     @Override
-    public Void visitStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitStmt(Stmt.Block stmt) {
+        return executeBlock(stmt.statements, new Environment(environment, stmt.slots));
     }
 
     @Override
-    public Void visitStmt(Stmt.Command stmt) {
+    public Completion visitStmt(Stmt.Break stmt) {
+        return Completion.BREAK;
+    }
+
+    @Override
+    public Completion visitStmt(Stmt.Command stmt) {
         stmt.cmd.accept(this);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitStmt(Stmt.Expression stmt) {
+    public Completion visitStmt(Stmt.Continue stmt) {
+        return Completion.CONTINUE;
+    }
+
+    @Override
+    public Completion visitStmt(Stmt.Expression stmt) {
         evaluateExpression(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitStmt(Stmt.Function stmt) {
+    public Completion visitStmt(Stmt.ForIn stmt) {
+        ClaraList list = iterable(stmt.keyword, evaluateExpression(stmt.iterable));
+        Environment previous = this.environment;
+        try {
+            for (int i = 0; i < list.size(); i++) {
+                Environment frame = new Environment(previous, stmt.slots);
+                frame.define(0, list.get(i));
+                this.environment = frame;
+                Completion completion = executeStatement(stmt.body);
+                if (completion == Completion.BREAK) {
+                    break;
+                }
+                if (completion == Completion.RETURN) {
+                    return completion;
+                }
+            }
+        } finally {
+            this.environment = previous;
+        }
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitStmt(Stmt.Function stmt) {
         Function function = new Function(stmt, environment);
-        environment.define(stmt.token.lexeme, function);
-        return null;
+        defineVariable(stmt.token, stmt.slot, function);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitStmt(Stmt.If stmt) {
+    public Completion visitStmt(Stmt.If stmt) {
         if (isTruthy(evaluateExpression(stmt.condition))) {
-            executeStatement(stmt.thenB);
+            return executeStatement(stmt.thenB);
         } else if (stmt.elseB != null) {
-            executeStatement(stmt.elseB);
+            return executeStatement(stmt.elseB);
+        }
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitStmt(Stmt.PFor stmt) {
+        Object start = evaluateExpression(stmt.start);
+        Object end = evaluateExpression(stmt.end);
+        if (!(start instanceof Double && end instanceof Double)) {
+            throw new RuntimeError(stmt.keyword, "Range of 'pfor' must be numbers.");
+        }
+        Parallel.forRange(this, stmt, environment, (double) start, (double) end);
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Runs one iteration of a 'pfor' in a frame of its own under the frame the loop is in. A 'continue'
+     * ends the iteration, the Resolver does not let anything else leave it.
+     */
+    void iterate(Stmt.PFor stmt, Environment enclosing, double value) {
+        Environment frame = new Environment(enclosing, stmt.slots);
+        frame.define(0, value);
+        Environment previous = this.environment;
+        try {
+            this.environment = frame;
+            executeStatement(stmt.body);
+        } finally {
+            this.environment = previous;
         }
-        return null;
     }
 
     @Override
-    public Void visitStmt(Stmt.Print stmt) {
+    public Completion visitStmt(Stmt.Print stmt) {
         Object value = evaluateExpression(stmt.value);
-        System.out.println(stringify(value));
-        return null;
+        runtime.out.println(stringify(value));
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitStmt(Stmt.Return stmt) {
+    public Completion visitStmt(Stmt.Return stmt) {
         Object value = null;
-        if (stmt.value != null) {
+        if (stmt.tailCall != null) {
+            value = call(stmt.tailCall, true);
+        } else if (stmt.value != null) {
             value = evaluateExpression(stmt.value);
         }
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitStmt(Stmt.Variable stmt) {
+    public Completion visitStmt(Stmt.Variable stmt) {
         Object value = null;
         if (stmt.expression != null) {
             value = evaluateExpression(stmt.expression);
         }
 
-        environment.define(stmt.token.lexeme, value);
-        return null;
+        defineVariable(stmt.token, stmt.slot, value);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitStmt(Stmt.While stmt) {
+    public Completion visitStmt(Stmt.While stmt) {
         while (isTruthy(evaluateExpression(stmt.condition))) {
-            executeStatement(stmt.body);
+            Completion completion = executeStatement(stmt.body);
+            if (completion == Completion.BREAK) {
+                break;
+            }
+            if (completion == Completion.RETURN) {
+                return completion;
+            }
+            if (stmt.increment != null) {
+                evaluateExpression(stmt.increment);
+            }
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
@@ -353,8 +994,7 @@ public class Interpreter implements IExprVisitor<Object>, IStmtVisitor<Void>, IA
 
     @Override
     public Void visitCmd(Cmd.Exit cmd) {
-        Clara.shutdown(0);
-        return null;
+        throw new ExitScript();
     }
 
     @Override
@@ -362,14 +1002,14 @@ public class Interpreter implements IExprVisitor<Object>, IStmtVisitor<Void>, IA
 
         if (cmd.command == null) {
             // only "help" was entered
-            System.out.println("No commands available yet.");
+            runtime.out.println("No commands available yet.");
         } else {
 
             switch (cmd.command.lexeme) {
 
 
                 default: {
-                    System.out.println("Command not yet implemented.");
+                    runtime.out.println("Command not yet implemented.");
                 }
 
             }
@@ -380,19 +1020,49 @@ public class Interpreter implements IExprVisitor<Object>, IStmtVisitor<Void>, IA
 
     @Override
     public Void visitCmd(Cmd.Reaction cmd) {
+        commandDistributor.distributeCommand(reactionCommand(cmd));
+        return null;
+    }
+
+    @Override
+    public Void visitCmd(Cmd.Stats cmd) {
+        runtime.out.print(Metrics.report());
+        return null;
+    }
+
+    /**
+     * Evaluates the reactants of a reaction command into the map given to the modules.
+     */
+    private Map<String,Object> reactionCommand(Cmd.Reaction cmd) {
         List<String> reactants = new ArrayList<>();
         for (Arg.Argument arg : cmd.reactants) {
             Object result = evaluateExpression(arg.expr);
             try {
                 reactants.add((String) result);
             } catch (Exception e) {
-                Lang.error(-1, e.getMessage());
+                runtime.error(-1, e.getMessage());
             }
         }
         Map<String,Object> commandMap = new TreeMap<>();
         commandMap.put("flags", cmd.flags);
         commandMap.put("reactants", reactants);
-        commandDistributor.distributeCommand(commandMap);
-        return null;
+        if (cmd.input != null) {
+            commandMap.put("input", fileName(cmd.input));
+        }
+        if (cmd.output != null) {
+            commandMap.put("output", fileName(cmd.output));
+        }
+        return commandMap;
+    }
+
+    /**
+     * The name of a file given to a command, which must be a string.
+     */
+    private String fileName(Expr expr) {
+        Object name = evaluateExpression(expr);
+        if (!(name instanceof String)) {
+            throw new RuntimeError(null, "File name must be a string.");
+        }
+        return (String) name;
     }
 }
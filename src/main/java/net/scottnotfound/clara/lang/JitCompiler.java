@@ -0,0 +1,1120 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Translates hot functions into JVM classes extending CompiledFunction so HotSpot can optimize them like any
+ * other Java code. Functions start out in the Interpreter, which profiles them, and are compiled once
+ * they have been called THRESHOLD times.
+ *
+ * Locals of the function live in JVM locals. A local that is only ever assigned numbers is kept as an
+ * unboxed double, and so is a parameter that has only been passed numbers while profiling; the compiled
+ * code checks those parameters on entry and deoptimizes back to the Interpreter if the guess was wrong.
+ * Calls of the function to itself skip the argument list and go straight to the compiled body, or
+ * jump back to its start when they are tail calls.
+ *
+ * Nested function declarations and commands are not supported, functions using them stay interpreted.
+ */
+class JitCompiler implements IExprVisitor<JitCompiler.Kind>, IStmtVisitor<Void> {
+
+    /** Can be turned off with -Dclara.jit=false or the --no-jit flag. */
+    static boolean enabled = !"false".equals(System.getProperty("clara.jit"));
+    static final int THRESHOLD = Integer.getInteger("clara.jit.threshold", 50);
+    static final int MAX_COMPILATIONS = 3;
+    private static final boolean TRACE = Boolean.getBoolean("clara.jit.trace");
+
+    private static final AtomicInteger classCount = new AtomicInteger();
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String COMPILED_FUNCTION = "net/scottnotfound/clara/lang/CompiledFunction";
+    private static final String FUNCTION = "net/scottnotfound/clara/lang/Function";
+    private static final String INTERPRETER = "net/scottnotfound/clara/lang/Interpreter";
+    private static final String RUNTIME = "net/scottnotfound/clara/lang/JitRuntime";
+
+    private static final String FUNCTION_TYPE = "L" + FUNCTION + ";";
+    private static final String INTERPRETER_TYPE = "L" + INTERPRETER + ";";
+    private static final String OBJECT_TYPE = "Ljava/lang/Object;";
+
+    /** How a value is held on the JVM stack or in a JVM local. */
+    enum Kind {
+        DOUBLE,
+        BOOLEAN,
+        OBJECT
+    }
+
+    /** A variable declared inside the function being compiled. */
+    private static class Local {
+        Kind kind;
+        int index = -1;
+
+        Local(Kind kind) {
+            this.kind = kind;
+        }
+    }
+
+    /** Thrown when the function uses something that can not be compiled. */
+    private static class Unsupported extends RuntimeException {
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final Stmt.Function declaration;
+    private final Map<Token, Local> locals = new IdentityHashMap<>();
+    private final List<Object> constants = new ArrayList<>();
+
+    /** Scopes of the function being compiled, each maps a slot to the token that declared it. */
+    private final List<Token[]> scopes = new ArrayList<>();
+
+    /** Where 'break' and 'continue' jump to in the loops being compiled, innermost last. */
+    private final List<ClassFileBuilder.Label> breakLabels = new ArrayList<>();
+    private final List<ClassFileBuilder.Label> continueLabels = new ArrayList<>();
+
+    private ClassFileBuilder classFile;
+    private ClassFileBuilder.MethodBuilder method;
+    private String runDescriptor;
+    private int nextLocal;
+
+    /** Start of the body in run, where tail calls of the function to itself jump back to. */
+    private ClassFileBuilder.Label start;
+
+    private JitCompiler(Stmt.Function declaration) {
+        this.declaration = declaration;
+    }
+
+    /**
+     * Compiles the declaration and installs the result on its profile. Failure leaves the function with
+     * the Interpreter for good.
+     */
+    static void compile(Stmt.Function declaration) {
+        FunctionProfile profile = declaration.profile;
+        if (!profile.startCompiling()) {
+            return;
+        }
+        try {
+            JitCompiler compiler = new JitCompiler(declaration);
+            String name = "net/scottnotfound/clara/lang/jit/" + declaration.token.lexeme + "$" + classCount.incrementAndGet();
+            byte[] bytes = compiler.generate(name);
+
+            Class<?> type = new JitClassLoader(JitCompiler.class.getClassLoader()).define(name.replace('/', '.'), bytes);
+            profile.install(type.getConstructor(Function.class, Object.class, Object[].class), compiler.constants.toArray());
+            trace(declaration, "compiled after " + profile.calls + " calls");
+        } catch (Unsupported e) {
+            profile.install(null, null);
+            trace(declaration, "not compiled, " + e.getMessage());
+        } catch (ReflectiveOperationException | LinkageError | IllegalStateException e) {
+            profile.install(null, null);
+            trace(declaration, "not compiled, " + e);
+        }
+    }
+
+    static void trace(Stmt.Function declaration, String message) {
+        if (TRACE) {
+            System.err.println("[jit] " + declaration.token.lexeme + " (line " + declaration.token.line + ") " + message);
+        }
+    }
+
+    private static class JitClassLoader extends ClassLoader {
+        JitClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+
+    /* class layout */
+
+    private byte[] generate(String name) {
+        inferKinds();
+
+        classFile = new ClassFileBuilder(name, COMPILED_FUNCTION);
+        classFile.addField(ClassFileBuilder.ACC_PRIVATE | ClassFileBuilder.ACC_FINAL, "function", FUNCTION_TYPE);
+        classFile.addField(ClassFileBuilder.ACC_PRIVATE | ClassFileBuilder.ACC_FINAL, "closure", OBJECT_TYPE);
+        classFile.addField(ClassFileBuilder.ACC_PRIVATE | ClassFileBuilder.ACC_FINAL, "constants", "[" + OBJECT_TYPE);
+
+        StringBuilder descriptor = new StringBuilder("(").append(INTERPRETER_TYPE);
+        for (Token parameter : declaration.parameters) {
+            descriptor.append(locals.get(parameter).kind == Kind.DOUBLE ? "D" : OBJECT_TYPE);
+        }
+        runDescriptor = descriptor.append(")").append(OBJECT_TYPE).toString();
+
+        generateConstructor();
+        generateCall();
+        generateRun();
+
+        return classFile.toByteArray();
+    }
+
+    private void generateConstructor() {
+        method = classFile.addMethod(ClassFileBuilder.ACC_PUBLIC, "<init>",
+                "(" + FUNCTION_TYPE + OBJECT_TYPE + "[" + OBJECT_TYPE + ")V");
+        method.useLocals(4);
+        method.opU1(0x19, 0, 1);
+        method.opU2(0xB7, classFile.methodRef(COMPILED_FUNCTION, "<init>", "()V"), -1);
+        storeField(1, "function", FUNCTION_TYPE);
+        storeField(2, "closure", OBJECT_TYPE);
+        storeField(3, "constants", "[" + OBJECT_TYPE);
+        method.op(0xB1, 0);
+        method.finish();
+    }
+
+    private void storeField(int local, String name, String type) {
+        method.opU1(0x19, 0, 1);
+        method.opU1(0x19, local, 1);
+        method.opU2(0xB5, classFile.fieldRef(classFile.className(), name, type), -2);
+    }
+
+    /**
+     * The CompiledFunction entry point. Checks the parameters that were compiled as numbers, unpacks
+     * the arguments from the frame and runs the body.
+     */
+    private void generateCall() {
+        method = classFile.addMethod(ClassFileBuilder.ACC_PUBLIC, "call",
+                "(" + INTERPRETER_TYPE + "[" + OBJECT_TYPE + ")" + OBJECT_TYPE);
+        method.useLocals(3);
+        ClassFileBuilder.Label deoptimize = method.newLabel();
+
+        List<Token> parameters = declaration.parameters;
+        for (int i = 0; i < parameters.size(); i++) {
+            if (locals.get(parameters.get(i)).kind == Kind.DOUBLE) {
+                method.opU1(0x19, 2, 1);
+                method.pushInt(i);
+                method.op(0x32, -1);
+                method.opU2(0xC1, classFile.classRef(DOUBLE), 0);
+                method.jump(0x99, deoptimize, -1);
+            }
+        }
+
+        method.opU1(0x19, 0, 1);
+        method.opU1(0x19, 1, 1);
+        for (int i = 0; i < parameters.size(); i++) {
+            method.opU1(0x19, 2, 1);
+            method.pushInt(i);
+            method.op(0x32, -1);
+            if (locals.get(parameters.get(i)).kind == Kind.DOUBLE) {
+                method.opU2(0xC0, classFile.classRef(DOUBLE), 0);
+                method.opU2(0xB6, classFile.methodRef(DOUBLE, "doubleValue", "()D"), 1);
+            }
+        }
+        method.opU2(0xB6, classFile.methodRef(classFile.className(), "run", runDescriptor), -parameterSlots() - 1);
+        method.op(0xB0, -1);
+
+        method.mark(deoptimize);
+        method.setStackDepth(0);
+        method.opU1(0x19, 0, 1);
+        method.opU2(0xB4, classFile.fieldRef(classFile.className(), "function", FUNCTION_TYPE), 0);
+        method.opU1(0x19, 1, 1);
+        method.opU1(0x19, 2, 1);
+        method.opU2(0xB8, classFile.methodRef(RUNTIME, "deoptimize",
+                "(" + FUNCTION_TYPE + INTERPRETER_TYPE + "[" + OBJECT_TYPE + ")" + OBJECT_TYPE), -2);
+        method.op(0xB0, -1);
+        method.finish();
+    }
+
+    private int parameterSlots() {
+        int slots = 0;
+        for (Token parameter : declaration.parameters) {
+            slots += locals.get(parameter).kind == Kind.DOUBLE ? 2 : 1;
+        }
+        return slots;
+    }
+
+    /**
+     * The compiled body. Takes the interpreter and the parameters, unboxed where the profile allows.
+     */
+    private void generateRun() {
+        method = classFile.addMethod(ClassFileBuilder.ACC_PUBLIC, "run", runDescriptor);
+        nextLocal = 2;
+
+        Token[] scope = new Token[declaration.slots];
+        scopes.add(scope);
+        for (int i = 0; i < declaration.parameters.size(); i++) {
+            Token parameter = declaration.parameters.get(i);
+            scope[i] = parameter;
+            allocate(locals.get(parameter));
+        }
+        start = method.newLabel();
+        method.mark(start);
+        for (Stmt statement : declaration.body) {
+            compile(statement);
+        }
+        scopes.remove(scopes.size() - 1);
+
+        method.op(0x01, 1);
+        method.op(0xB0, -1);
+        method.useLocals(nextLocal);
+        method.finish();
+    }
+
+
+    /* kind inference */
+
+    /**
+     * Decides which locals can be kept as doubles. Starts by assuming every local assigned a number is
+     * a double and demotes any local that is assigned something else, until nothing changes.
+     */
+    private void inferKinds() {
+        for (int i = 0; i < declaration.parameters.size(); i++) {
+            Kind kind = declaration.profile.numeric[i] ? Kind.DOUBLE : Kind.OBJECT;
+            locals.put(declaration.parameters.get(i), new Local(kind));
+        }
+
+        KindInference inference = new KindInference();
+        do {
+            inference.changed = false;
+            scopes.add(new Token[declaration.slots]);
+            for (int i = 0; i < declaration.parameters.size(); i++) {
+                scopes.get(0)[i] = declaration.parameters.get(i);
+            }
+            for (Stmt statement : declaration.body) {
+                statement.accept(inference);
+            }
+            scopes.clear();
+        } while (inference.changed);
+    }
+
+    /**
+     * The local a resolved variable refers to, or null if it lives outside the function.
+     */
+    private Local local(int depth, int slot) {
+        if (depth == -1 || depth >= scopes.size()) {
+            return null;
+        }
+        return locals.get(scopes.get(scopes.size() - 1 - depth)[slot]);
+    }
+
+    /**
+     * The kind an expression compiles to, given the kinds currently assigned to locals.
+     */
+    private Kind kindOf(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            if (value instanceof Double) {
+                return Kind.DOUBLE;
+            }
+            return value instanceof Boolean ? Kind.BOOLEAN : Kind.OBJECT;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return kindOf(((Expr.Grouping) expr).expression);
+        }
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            Local local = local(variable.depth, variable.slot);
+            return local != null && local.kind == Kind.DOUBLE ? Kind.DOUBLE : Kind.OBJECT;
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            switch (binary.operator.type) {
+                case MINUS:
+                case ASTERISK:
+                case SLASH_FRWD:
+                    return Kind.DOUBLE;
+                case PLUS:
+                    return bothDouble(binary) ? Kind.DOUBLE : Kind.OBJECT;
+                case BRACKNQ_RIGHT:
+                case BRACKNQ_LEFT:
+                case GREATER_EQUALS:
+                case LESS_EQUALS:
+                case NOT_EQUALS:
+                case DOUBLE_EQUALS:
+                    return Kind.BOOLEAN;
+                default:
+                    return Kind.OBJECT;
+            }
+        }
+        if (expr instanceof Expr.Unary) {
+            switch (((Expr.Unary) expr).operator.type) {
+                case MINUS:     return Kind.DOUBLE;
+                case EXCLAMK:   return Kind.BOOLEAN;
+                default:        return Kind.OBJECT;
+            }
+        }
+        return Kind.OBJECT;
+    }
+
+    private boolean bothDouble(Expr.Binary expr) {
+        return kindOf(expr.expr_left) == Kind.DOUBLE && kindOf(expr.expr_right) == Kind.DOUBLE;
+    }
+
+    /**
+     * Walks the body to demote locals that are assigned anything but a number, and to find
+     * anything that can not be compiled.
+     */
+    private class KindInference implements IExprVisitor<Void>, IStmtVisitor<Void> {
+
+        boolean changed;
+
+        private void assigned(Local local, Expr value) {
+            if (local != null && local.kind == Kind.DOUBLE && (value == null || kindOf(value) != Kind.DOUBLE)) {
+                local.kind = Kind.OBJECT;
+                changed = true;
+            }
+        }
+
+        @Override
+        public Void visitExpr(Expr.Assign expr) {
+            expr.expression.accept(this);
+            assigned(local(expr.depth, expr.slot), expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Binary expr) {
+            expr.expr_left.accept(this);
+            expr.expr_right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Call expr) {
+            expr.callee.accept(this);
+            for (Expr argument : expr.arguments) {
+                argument.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Await expr) {
+            throw new Unsupported("await is not compiled");
+        }
+
+        @Override
+        public Void visitExpr(Expr.Command expr) {
+            throw new Unsupported("commands are not compiled");
+        }
+
+        @Override
+        public Void visitExpr(Expr.Index expr) {
+            throw new Unsupported("lists and maps are not compiled");
+        }
+
+        @Override
+        public Void visitExpr(Expr.IndexAssign expr) {
+            throw new Unsupported("lists and maps are not compiled");
+        }
+
+        @Override
+        public Void visitExpr(Expr.ListLiteral expr) {
+            throw new Unsupported("lists and maps are not compiled");
+        }
+
+        @Override
+        public Void visitExpr(Expr.MapLiteral expr) {
+            throw new Unsupported("lists and maps are not compiled");
+        }
+
+        @Override
+        public Void visitExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Logical expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Unary expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Variable expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Block stmt) {
+            scopes.add(new Token[stmt.slots]);
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            scopes.remove(scopes.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Break stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Command stmt) {
+            throw new Unsupported("commands are not compiled");
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Continue stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.ForIn stmt) {
+            throw new Unsupported("for in loops are not compiled");
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Function stmt) {
+            throw new Unsupported("nested functions are not compiled");
+        }
+
+        @Override
+        public Void visitStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenB.accept(this);
+            if (stmt.elseB != null) {
+                stmt.elseB.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.PFor stmt) {
+            throw new Unsupported("pfor loops are not compiled");
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Print stmt) {
+            stmt.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Return stmt) {
+            if (stmt.value != null) {
+                stmt.value.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Variable stmt) {
+            if (stmt.expression != null) {
+                stmt.expression.accept(this);
+            }
+            if (stmt.slot == -1) {
+                throw new Unsupported("global declaration");
+            }
+            scopes.get(scopes.size() - 1)[stmt.slot] = stmt.token;
+            Local local = locals.get(stmt.token);
+            if (local == null) {
+                local = new Local(Kind.DOUBLE);
+                locals.put(stmt.token, local);
+            }
+            assigned(local, stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.While stmt) {
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            if (stmt.increment != null) {
+                stmt.increment.accept(this);
+            }
+            return null;
+        }
+    }
+
+
+    /* code generation */
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private Kind compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void allocate(Local local) {
+        local.index = nextLocal;
+        nextLocal += local.kind == Kind.DOUBLE ? 2 : 1;
+    }
+
+    private int temp(Kind kind) {
+        int index = nextLocal;
+        nextLocal += kind == Kind.DOUBLE ? 2 : 1;
+        return index;
+    }
+
+    private void load(Kind kind, int index) {
+        method.local(kind == Kind.DOUBLE ? 0x18 : kind == Kind.BOOLEAN ? 0x15 : 0x19, index, kind == Kind.DOUBLE ? 2 : 1);
+    }
+
+    private void store(Kind kind, int index) {
+        method.local(kind == Kind.DOUBLE ? 0x39 : kind == Kind.BOOLEAN ? 0x36 : 0x3A, index, kind == Kind.DOUBLE ? -2 : -1);
+    }
+
+    private void pop(Kind kind) {
+        method.op(kind == Kind.DOUBLE ? 0x58 : 0x57, kind == Kind.DOUBLE ? -2 : -1);
+    }
+
+    /** Converts the value on top of the stack to an object. */
+    private void box(Kind kind) {
+        if (kind == Kind.DOUBLE) {
+            method.opU2(0xB8, classFile.methodRef(DOUBLE, "valueOf", "(D)L" + DOUBLE + ";"), -1);
+        } else if (kind == Kind.BOOLEAN) {
+            method.opU2(0xB8, classFile.methodRef(BOOLEAN, "valueOf", "(Z)L" + BOOLEAN + ";"), 0);
+        }
+    }
+
+    /** Converts the value on top of the stack to an int that is 1 if the value is truthy. */
+    private void truthy(Kind kind) {
+        if (kind == Kind.DOUBLE) {
+            pop(kind);
+            method.pushInt(1);
+        } else if (kind == Kind.OBJECT) {
+            invokeRuntime("isTruthy", "(" + OBJECT_TYPE + ")Z", 0);
+        }
+    }
+
+    private void invokeRuntime(String name, String descriptor, int stackEffect) {
+        method.opU2(0xB8, classFile.methodRef(RUNTIME, name, descriptor), stackEffect);
+    }
+
+    /** Pushes a value from the constants array, used for tokens that errors are reported at. */
+    private void loadConstant(Object value) {
+        int index = constants.indexOf(value);
+        if (index == -1) {
+            constants.add(value);
+            index = constants.size() - 1;
+        }
+        method.opU1(0x19, 0, 1);
+        method.opU2(0xB4, classFile.fieldRef(classFile.className(), "constants", "[" + OBJECT_TYPE), 0);
+        method.pushInt(index);
+        method.op(0x32, -1);
+    }
+
+    private void loadField(String name, String type) {
+        method.opU1(0x19, 0, 1);
+        method.opU2(0xB4, classFile.fieldRef(classFile.className(), name, type), 0);
+    }
+
+    /**
+     * Turns an int comparison result into a boolean, branching with opcode to push false.
+     */
+    private void pushCondition(int opcode) {
+        ClassFileBuilder.Label otherwise = method.newLabel();
+        ClassFileBuilder.Label end = method.newLabel();
+        method.jump(opcode, otherwise, -1);
+        method.pushInt(1);
+        method.jump(0xA7, end, 0);
+        method.setStackDepth(method.stackDepth() - 1);
+        method.mark(otherwise);
+        method.pushInt(0);
+        method.mark(end);
+    }
+
+    /**
+     * Compiles a condition that jumps to otherwise when it is not truthy. Comparisons of two numbers
+     * branch directly on the doubles.
+     */
+    private void compileCondition(Expr condition, ClassFileBuilder.Label otherwise) {
+        while (condition instanceof Expr.Grouping) {
+            condition = ((Expr.Grouping) condition).expression;
+        }
+        if (condition instanceof Expr.Binary && bothDouble((Expr.Binary) condition)) {
+            Expr.Binary binary = (Expr.Binary) condition;
+            int branch = -1;
+            int compare = 0x97;
+            switch (binary.operator.type) {
+                case BRACKNQ_RIGHT:     branch = 0x9E;                  break;
+                case GREATER_EQUALS:    branch = 0x9B;                  break;
+                case BRACKNQ_LEFT:      branch = 0x9C; compare = 0x98;  break;
+                case LESS_EQUALS:       branch = 0x9D; compare = 0x98;  break;
+            }
+            if (branch != -1) {
+                compile(binary.expr_left);
+                compile(binary.expr_right);
+                method.op(compare, -3);
+                method.jump(branch, otherwise, -1);
+                return;
+            }
+        }
+        truthy(compile(condition));
+        method.jump(0x99, otherwise, -1);
+    }
+
+    /**
+     * Compiles the store of an assignment without leaving a result on the stack.
+     */
+    private void compileAssign(Expr.Assign expr) {
+        Local local = local(expr.depth, expr.slot);
+        if (local != null) {
+            Kind kind = compile(expr.expression);
+            if (local.kind == Kind.OBJECT) {
+                box(kind);
+            }
+            store(local.kind, local.index);
+        } else if (expr.depth != -1) {
+            loadField("closure", OBJECT_TYPE);
+            method.pushInt(expr.depth - scopes.size());
+            method.pushInt(expr.slot);
+            box(compile(expr.expression));
+            invokeRuntime("assignAt", "(" + OBJECT_TYPE + "II" + OBJECT_TYPE + ")V", -4);
+        } else {
+            method.opU1(0x19, 1, 1);
+            loadConstant(expr);
+            box(compile(expr.expression));
+            invokeRuntime("assignGlobal", "(" + INTERPRETER_TYPE + OBJECT_TYPE + OBJECT_TYPE + ")V", -3);
+        }
+    }
+
+    @Override
+    public Kind visitExpr(Expr.Assign expr) {
+        compileAssign(expr);
+        method.op(0x01, 1);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitExpr(Expr.Binary expr) {
+        if (bothDouble(expr)) {
+            return compileNumberBinary(expr);
+        }
+
+        box(compile(expr.expr_left));
+        box(compile(expr.expr_right));
+
+        String checked = "(" + OBJECT_TYPE + OBJECT_TYPE + OBJECT_TYPE + ")";
+        switch (expr.operator.type) {
+            case BRACKNQ_RIGHT:     return invokeChecked("greater", checked + "Z", expr.operator, -2);
+            case BRACKNQ_LEFT:      return invokeChecked("less", checked + "Z", expr.operator, -2);
+            case GREATER_EQUALS:    return invokeChecked("greaterEqual", checked + "Z", expr.operator, -2);
+            case LESS_EQUALS:       return invokeChecked("lessEqual", checked + "Z", expr.operator, -2);
+            case MINUS:             return invokeChecked("subtract", checked + "D", expr.operator, -1);
+            case SLASH_FRWD:        return invokeChecked("divide", checked + "D", expr.operator, -1);
+            case ASTERISK:          return invokeChecked("multiply", checked + "D", expr.operator, -1);
+            case PLUS:              return invokeChecked("add", checked + OBJECT_TYPE, expr.operator, -2);
+            case DOUBLE_EQUALS:
+            case NOT_EQUALS: {
+                invokeRuntime("isEqual", "(" + OBJECT_TYPE + OBJECT_TYPE + ")Z", -1);
+                if (expr.operator.type == TokenType.NOT_EQUALS) {
+                    method.pushInt(1);
+                    method.op(0x82, -1);
+                }
+                return Kind.BOOLEAN;
+            }
+            default: {
+                // unknown operators evaluate to null
+                method.op(0x57, -1);
+                method.op(0x57, -1);
+                method.op(0x01, 1);
+                return Kind.OBJECT;
+            }
+        }
+    }
+
+    /**
+     * Calls a JitRuntime operation taking both operands and the operator token to report errors at.
+     */
+    private Kind invokeChecked(String name, String descriptor, Token operator, int stackEffect) {
+        loadConstant(operator);
+        invokeRuntime(name, descriptor, stackEffect);
+        char result = descriptor.charAt(descriptor.length() - 1);
+        return result == 'D' ? Kind.DOUBLE : result == 'Z' ? Kind.BOOLEAN : Kind.OBJECT;
+    }
+
+    /**
+     * Binary operation on two unboxed numbers, no checks needed.
+     */
+    private Kind compileNumberBinary(Expr.Binary expr) {
+        compile(expr.expr_left);
+        compile(expr.expr_right);
+        switch (expr.operator.type) {
+            case PLUS:          method.op(0x63, -2); return Kind.DOUBLE;
+            case MINUS:         method.op(0x67, -2); return Kind.DOUBLE;
+            case ASTERISK:      method.op(0x6B, -2); return Kind.DOUBLE;
+            case SLASH_FRWD:    method.op(0x6F, -2); return Kind.DOUBLE;
+            case BRACKNQ_RIGHT:     method.op(0x97, -3); pushCondition(0x9E); return Kind.BOOLEAN;
+            case GREATER_EQUALS:    method.op(0x97, -3); pushCondition(0x9B); return Kind.BOOLEAN;
+            case BRACKNQ_LEFT:      method.op(0x98, -3); pushCondition(0x9C); return Kind.BOOLEAN;
+            case LESS_EQUALS:       method.op(0x98, -3); pushCondition(0x9D); return Kind.BOOLEAN;
+            case DOUBLE_EQUALS:
+            case NOT_EQUALS: {
+                // same as Double.equals, which is what the Interpreter compares with
+                invokeCompare();
+                pushCondition(expr.operator.type == TokenType.DOUBLE_EQUALS ? 0x9A : 0x99);
+                return Kind.BOOLEAN;
+            }
+            default: {
+                method.op(0x58, -2);
+                method.op(0x58, -2);
+                method.op(0x01, 1);
+                return Kind.OBJECT;
+            }
+        }
+    }
+
+    private void invokeCompare() {
+        method.opU2(0xB8, classFile.methodRef(DOUBLE, "compare", "(DD)I"), -3);
+    }
+
+    @Override
+    public Kind visitExpr(Expr.Call expr) {
+        return compileCall(expr, false);
+    }
+
+    /**
+     * Compiles a call. A tail call of the function to itself becomes a jump back to the start of the
+     * body with the parameters replaced, so tail recursion runs as a loop.
+     */
+    private Kind compileCall(Expr.Call expr, boolean tail) {
+        int callee = temp(Kind.OBJECT);
+        box(compile(expr.callee));
+        store(Kind.OBJECT, callee);
+
+        int count = expr.arguments.size();
+        Kind[] kinds = new Kind[count];
+        int[] temps = new int[count];
+        for (int i = 0; i < count; i++) {
+            Kind kind = compile(expr.arguments.get(i));
+            if (kind == Kind.BOOLEAN) {
+                box(kind);
+                kind = Kind.OBJECT;
+            }
+            kinds[i] = kind;
+            temps[i] = temp(kind);
+            store(kind, temps[i]);
+        }
+
+        ClassFileBuilder.Label end = method.newLabel();
+        boolean direct = count == declaration.parameters.size();
+        for (int i = 0; direct && i < count; i++) {
+            direct = kinds[i] == Kind.DOUBLE || locals.get(declaration.parameters.get(i)).kind == Kind.OBJECT;
+        }
+
+        if (direct) {
+            // calls to this same function go straight to the compiled body
+            ClassFileBuilder.Label generic = method.newLabel();
+            load(Kind.OBJECT, callee);
+            loadField("function", FUNCTION_TYPE);
+            method.jump(0xA6, generic, -2);
+            if (tail) {
+                for (int i = 0; i < count; i++) {
+                    Local parameter = locals.get(declaration.parameters.get(i));
+                    load(kinds[i], temps[i]);
+                    if (parameter.kind == Kind.OBJECT) {
+                        box(kinds[i]);
+                    }
+                    store(parameter.kind, parameter.index);
+                }
+                method.jump(0xA7, start, 0);
+                method.mark(generic);
+                return compileGenericCall(expr, callee, kinds, temps);
+            }
+            method.opU1(0x19, 0, 1);
+            method.opU1(0x19, 1, 1);
+            for (int i = 0; i < count; i++) {
+                load(kinds[i], temps[i]);
+                if (locals.get(declaration.parameters.get(i)).kind == Kind.OBJECT) {
+                    box(kinds[i]);
+                }
+            }
+            method.opU2(0xB6, classFile.methodRef(classFile.className(), "run", runDescriptor), -parameterSlots() - 1);
+            method.jump(0xA7, end, 0);
+            method.setStackDepth(method.stackDepth() - 1);
+            method.mark(generic);
+        }
+
+        compileGenericCall(expr, callee, kinds, temps);
+        method.mark(end);
+        return Kind.OBJECT;
+    }
+
+    /**
+     * Calls through JitRuntime with the callee and arguments evaluated into locals.
+     */
+    private Kind compileGenericCall(Expr.Call expr, int callee, Kind[] kinds, int[] temps) {
+        int count = kinds.length;
+        method.opU1(0x19, 1, 1);
+        load(Kind.OBJECT, callee);
+        method.pushInt(count);
+        method.opU2(0xBD, classFile.classRef(OBJECT), 0);
+        for (int i = 0; i < count; i++) {
+            method.op(0x59, 1);
+            method.pushInt(i);
+            load(kinds[i], temps[i]);
+            box(kinds[i]);
+            method.op(0x53, -3);
+        }
+        loadConstant(expr.paren);
+        invokeRuntime("call", "(" + INTERPRETER_TYPE + OBJECT_TYPE + "[" + OBJECT_TYPE + OBJECT_TYPE + ")" + OBJECT_TYPE, -3);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitExpr(Expr.Await expr) {
+        throw new Unsupported("await is not compiled");
+    }
+
+    @Override
+    public Kind visitExpr(Expr.Command expr) {
+        throw new Unsupported("commands are not compiled");
+    }
+
+    @Override
+    public Kind visitExpr(Expr.Index expr) {
+        throw new Unsupported("lists and maps are not compiled");
+    }
+
+    @Override
+    public Kind visitExpr(Expr.IndexAssign expr) {
+        throw new Unsupported("lists and maps are not compiled");
+    }
+
+    @Override
+    public Kind visitExpr(Expr.ListLiteral expr) {
+        throw new Unsupported("lists and maps are not compiled");
+    }
+
+    @Override
+    public Kind visitExpr(Expr.MapLiteral expr) {
+        throw new Unsupported("lists and maps are not compiled");
+    }
+
+    @Override
+    public Kind visitExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Kind visitExpr(Expr.Literal expr) {
+        if (expr.value instanceof Double) {
+            method.opU2(0x14, classFile.doubleConstant((Double) expr.value), 2);
+            return Kind.DOUBLE;
+        }
+        if (expr.value instanceof Boolean) {
+            method.pushInt((Boolean) expr.value ? 1 : 0);
+            return Kind.BOOLEAN;
+        }
+        if (expr.value instanceof String) {
+            method.ldc(classFile.string((String) expr.value), 1);
+            return Kind.OBJECT;
+        }
+        if (expr.value == null) {
+            method.op(0x01, 1);
+            return Kind.OBJECT;
+        }
+        loadConstant(expr.value);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitExpr(Expr.Logical expr) {
+        ClassFileBuilder.Label end = method.newLabel();
+        box(compile(expr.left));
+        method.op(0x59, 1);
+        invokeRuntime("isTruthy", "(" + OBJECT_TYPE + ")Z", 0);
+        method.jump(expr.operator.type == TokenType.OR ? 0x9A : 0x99, end, -1);
+        method.op(0x57, -1);
+        box(compile(expr.right));
+        method.mark(end);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitExpr(Expr.Unary expr) {
+        switch (expr.operator.type) {
+            case MINUS: {
+                Kind kind = compile(expr.expression);
+                if (kind == Kind.DOUBLE) {
+                    method.op(0x77, 0);
+                } else {
+                    box(kind);
+                    loadConstant(expr.operator);
+                    invokeRuntime("negate", "(" + OBJECT_TYPE + OBJECT_TYPE + ")D", 0);
+                }
+                return Kind.DOUBLE;
+            }
+            case EXCLAMK: {
+                truthy(compile(expr.expression));
+                method.pushInt(1);
+                method.op(0x82, -1);
+                return Kind.BOOLEAN;
+            }
+            default: {
+                pop(compile(expr.expression));
+                method.op(0x01, 1);
+                return Kind.OBJECT;
+            }
+        }
+    }
+
+    @Override
+    public Kind visitExpr(Expr.Variable expr) {
+        Local local = local(expr.depth, expr.slot);
+        if (local != null) {
+            load(local.kind, local.index);
+            return local.kind;
+        }
+        if (expr.depth != -1) {
+            loadField("closure", OBJECT_TYPE);
+            method.pushInt(expr.depth - scopes.size());
+            method.pushInt(expr.slot);
+            invokeRuntime("getAt", "(" + OBJECT_TYPE + "II)" + OBJECT_TYPE, -2);
+        } else {
+            method.opU1(0x19, 1, 1);
+            loadConstant(expr);
+            invokeRuntime("getGlobal", "(" + INTERPRETER_TYPE + OBJECT_TYPE + ")" + OBJECT_TYPE, -1);
+        }
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Block stmt) {
+        scopes.add(new Token[stmt.slots]);
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Break stmt) {
+        method.jump(0xA7, breakLabels.get(breakLabels.size() - 1), 0);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Command stmt) {
+        throw new Unsupported("commands are not compiled");
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Continue stmt) {
+        method.jump(0xA7, continueLabels.get(continueLabels.size() - 1), 0);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign) {
+            compileAssign((Expr.Assign) stmt.expression);
+        } else {
+            pop(compile(stmt.expression));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.ForIn stmt) {
+        throw new Unsupported("for in loops are not compiled");
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Function stmt) {
+        throw new Unsupported("nested functions are not compiled");
+    }
+
+    @Override
+    public Void visitStmt(Stmt.If stmt) {
+        ClassFileBuilder.Label otherwise = method.newLabel();
+        compileCondition(stmt.condition, otherwise);
+        compile(stmt.thenB);
+        if (stmt.elseB != null) {
+            ClassFileBuilder.Label end = method.newLabel();
+            method.jump(0xA7, end, 0);
+            method.mark(otherwise);
+            compile(stmt.elseB);
+            method.mark(end);
+        } else {
+            method.mark(otherwise);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.PFor stmt) {
+        throw new Unsupported("pfor loops are not compiled");
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Print stmt) {
+        method.opU1(0x19, 1, 1);
+        box(compile(stmt.value));
+        invokeRuntime("print", "(" + INTERPRETER_TYPE + OBJECT_TYPE + ")V", -2);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Return stmt) {
+        if (stmt.tailCall != null) {
+            compileCall(stmt.tailCall, true);
+        } else if (stmt.value != null) {
+            box(compile(stmt.value));
+        } else {
+            method.op(0x01, 1);
+        }
+        method.op(0xB0, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Variable stmt) {
+        Local local = locals.get(stmt.token);
+        if (local.index == -1) {
+            allocate(local);
+        }
+        if (stmt.expression != null) {
+            Kind kind = compile(stmt.expression);
+            if (local.kind == Kind.OBJECT) {
+                box(kind);
+            }
+        } else {
+            method.op(0x01, 1);
+        }
+        store(local.kind, local.index);
+        scopes.get(scopes.size() - 1)[stmt.slot] = stmt.token;
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.While stmt) {
+        ClassFileBuilder.Label start = method.newLabel();
+        ClassFileBuilder.Label next = method.newLabel();
+        ClassFileBuilder.Label end = method.newLabel();
+        method.mark(start);
+        compileCondition(stmt.condition, end);
+        breakLabels.add(end);
+        continueLabels.add(next);
+        compile(stmt.body);
+        breakLabels.remove(breakLabels.size() - 1);
+        continueLabels.remove(continueLabels.size() - 1);
+        method.mark(next);
+        if (stmt.increment != null) {
+            compile(new Stmt.Expression(stmt.increment));
+        }
+        method.jump(0xA7, start, 0);
+        method.mark(end);
+        return null;
+    }
+
+}
@@ -0,0 +1,132 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.Arrays;
+
+/**
+ * Operations called from classes generated by the JitCompiler. The generated classes are defined by
+ * their own class loader and can not reach package private members, so everything they need goes
+ * through here. Not meant to be called from anywhere else.
+ *
+ * The checks and error messages match the Interpreter so compiled functions fail the same way.
+ */
+public final class JitRuntime {
+
+    private JitRuntime() {}
+
+    private static void checkNumberOperands(Object operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return;
+        }
+        throw new RuntimeError((Token) operator, "Operands must be numbers.");
+    }
+
+    public static Object add(Object left, Object right, Object operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String) left + (String) right;
+        }
+        throw new RuntimeError((Token) operator, "Operands must be two numbers or two strings.");
+    }
+
+    public static double subtract(Object left, Object right, Object operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left - (double) right;
+    }
+
+    public static double multiply(Object left, Object right, Object operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left * (double) right;
+    }
+
+    public static double divide(Object left, Object right, Object operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left / (double) right;
+    }
+
+    public static boolean greater(Object left, Object right, Object operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left > (double) right;
+    }
+
+    public static boolean greaterEqual(Object left, Object right, Object operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left >= (double) right;
+    }
+
+    public static boolean less(Object left, Object right, Object operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left < (double) right;
+    }
+
+    public static boolean lessEqual(Object left, Object right, Object operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left <= (double) right;
+    }
+
+    public static double negate(Object operand, Object operator) {
+        if (operand instanceof Double) {
+            return -(double) operand;
+        }
+        throw new RuntimeError((Token) operator, "Operands must be a number.");
+    }
+
+    public static boolean isEqual(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    public static boolean isTruthy(Object object) {
+        return Interpreter.isTruthy(object);
+    }
+
+    public static void print(Interpreter interpreter, Object value) {
+        interpreter.runtime.out.println(Interpreter.stringify(value));
+    }
+
+    public static Object getAt(Object environment, int distance, int slot) {
+        return ((Environment) environment).getAt(distance, slot);
+    }
+
+    public static void assignAt(Object environment, int distance, int slot, Object value) {
+        ((Environment) environment).assignAt(distance, slot, value);
+    }
+
+    public static Object getGlobal(Interpreter interpreter, Object site) {
+        return interpreter.globals.get((Expr.Variable) site);
+    }
+
+    public static void assignGlobal(Interpreter interpreter, Object site, Object value) {
+        interpreter.globals.assign((Expr.Assign) site, value);
+    }
+
+    /**
+     * Calls anything other than the compiled function itself, with the same checks the Interpreter makes.
+     */
+    public static Object call(Interpreter interpreter, Object callee, Object[] arguments, Object paren) {
+        if (!(callee instanceof Callable)) {
+            throw new RuntimeError((Token) paren, "Can only call functions.");
+        }
+
+        Callable function = (Callable) callee;
+
+        if (function.arity() != Callable.VARIADIC && arguments.length != function.arity()) {
+            throw new RuntimeError((Token) paren, "Expected " + function.arity() +
+                    " arguments but got " + arguments.length + ".");
+        }
+
+        if (function instanceof Function) {
+            return ((Function) function).call(interpreter, ((Function) function).frame(arguments));
+        }
+        return function.call(interpreter, Arrays.asList(arguments));
+    }
+
+    /**
+     * Called by compiled code whose parameter guards failed. Runs this call in the Interpreter and
+     * throws the compiled code away.
+     */
+    public static Object deoptimize(Function function, Interpreter interpreter, Object[] frame) {
+        return function.deoptimize(interpreter, frame);
+    }
+
+}
@@ -1,96 +1,338 @@
 package net.scottnotfound.clara.lang;
 
+import net.scottnotfound.clara.metrics.Metrics;
+
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.PrintStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Command line entry point. Runs a single script file, the prompt when there is none, or a batch of
+ * scripts on a pool of workers when given several files or a directory. Each script runs in a
+ * ClaraRuntime of its own.
+ */
 public class Lang {
 
-    private static final Interpreter interpreter = new Interpreter();
-    private static final Parser parser = new Parser();
-    private static final Lexer lexer = new Lexer();
+    /**
+     * Stack size in megabytes of the threads scripts run on. Every call that is not a tail call takes
+     * Java stack in the Interpreter, so deep recursion needs far more than the default thread stack.
+     */
+    static final long STACK_SIZE = Long.getLong("clara.stackSize", 512);
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(threads("clara-interpreter"));
+
+    /** Run scripts on the bytecode VirtualMachine instead of the tree walking Interpreter. */
+    private static boolean useVM = false;
+
+    /** Run the Optimizer over parsed statements, and print what it removed. */
+    private static boolean optimize = true;
+    private static boolean reportOptimizer = false;
 
-    private static boolean hadError = false;
-    private static boolean hadRuntimeError = false;
+    /** Keep Java stack traces of runtime errors and print them, with -Dclara.debug=true or --debug. */
+    static boolean debug = false;
+
+    /** Keeps resolved scripts between runs, with -Dclara.cache=true or --cache, null otherwise. */
+    private static ScriptCache cache;
+    private static boolean reportCache = false;
+
+    /** Workers running a batch, with -Dclara.jobs or --jobs=n, one per processor by default. */
+    private static int jobs;
+
+    /**
+     * Profile scripts and print a report of them, with --profile. With --profile=file the samples are
+     * also written to the file as collapsed stacks, except in a batch where each script only gets a
+     * report. At the prompt, entering 'profile' starts or stops profiling.
+     */
+    private static boolean profile;
+    private static Path profileOutput;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("");
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        useVM = false;
+        optimize = !"false".equals(System.getProperty("clara.optimize"));
+        reportOptimizer = false;
+        debug = Boolean.getBoolean("clara.debug");
+        boolean useCache = Boolean.getBoolean("clara.cache");
+        reportCache = false;
+        jobs = Integer.getInteger("clara.jobs", Runtime.getRuntime().availableProcessors());
+        profile = false;
+        profileOutput = null;
+        JitCompiler.enabled = !"false".equals(System.getProperty("clara.jit"));
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            switch (arg) {
+                case "--vm": useVM = true; break;
+                case "--no-jit": JitCompiler.enabled = false; break;
+                case "--no-opt": optimize = false; break;
+                case "--opt-report": reportOptimizer = true; break;
+                case "--debug": debug = true; break;
+                case "--cache": useCache = true; break;
+                case "--cache-stats": useCache = true; reportCache = true; break;
+                default: {
+                    if (arg.startsWith("--jobs=")) {
+                        jobs = Math.max(1, Integer.parseInt(arg.substring("--jobs=".length())));
+                    } else if (arg.equals("--profile")) {
+                        profile = true;
+                    } else if (arg.startsWith("--profile=")) {
+                        profile = true;
+                        profileOutput = Paths.get(arg.substring("--profile=".length()));
+                    } else {
+                        paths.add(arg);
+                    }
+                    break;
+                }
+            }
+        }
+
+        if (profile && useVM) {
+            System.err.println("Profiling runs scripts on the Interpreter, --vm is ignored.");
+            useVM = false;
+        }
+
+        Metrics.startDumps();
+
+        cache = useCache ? new ScriptCache(ScriptCache.defaultDirectory(), Integer.getInteger("clara.cache.maxEntries", 1024)) : null;
+
+        if (paths.size() > 1 || paths.size() == 1 && Files.isDirectory(Paths.get(paths.get(0)))) {
+            runBatch(paths);
+        } else if (paths.size() == 1) {
+            runFile(paths.get(0));
         } else {
             runPrompt();
         }
     }
 
-    private static void runFile(String path) throws IOException {
-        parser.commandMode = false;
+    /**
+     * Creates a runtime with the settings given on the command line.
+     */
+    private static ClaraRuntime newRuntime(PrintStream out, PrintStream err) {
+        ClaraRuntime runtime = new ClaraRuntime(out, err);
+        runtime.useVM = useVM;
+        runtime.optimize = optimize;
+        runtime.reportOptimizer = reportOptimizer;
+        runtime.cache = cache;
+        return runtime;
+    }
 
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        if (hadError) {
-            System.exit(65);
+    private static void runFile(String path) throws IOException {
+        ClaraRuntime runtime = newRuntime(System.out, System.err);
+        Profiler profiler = profile ? startProfiler(runtime) : null;
+        execute(() -> {
+            runtime.runFile(Paths.get(path));
+            return null;
+        });
+        reportCache();
+        if (profiler != null) {
+            reportProfile(profiler, System.err, profileOutput);
         }
-        if (hadRuntimeError) {
-            System.exit(70);
+
+        int status = runtime.exitCode();
+        if (status != 0 || runtime.exited) {
+            System.exit(status);
         }
     }
 
     private static void runPrompt() throws IOException {
-        parser.commandMode = true;
+        ClaraRuntime runtime = newRuntime(System.out, System.err);
 
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
+        Profiler profiler = profile ? startProfiler(runtime) : null;
 
         for (;;) {
             System.out.print("> ");
-            run(reader.readLine());
-            hadError = false;
+            String line = reader.readLine();
+            if (line != null && line.trim().equals("profile")) {
+                if (profiler == null) {
+                    profiler = startProfiler(runtime);
+                    System.out.println("Profiling, enter 'profile' again for the report.");
+                } else {
+                    runtime.profile(null);
+                    reportProfile(profiler, System.out, profileOutput);
+                    profiler = null;
+                }
+                continue;
+            }
+            execute(() -> {
+                runtime.run(line);
+                return null;
+            });
+            if (runtime.exited) {
+                System.exit(0);
+            }
+            runtime.hadError = false;
         }
     }
 
-    private static void run(String source) {
-        List<Stmt> stmts = parser.parse(lexer.lex(source));
+    /**
+     * Runs every script given, and every file under the directories given, on a pool of jobs workers.
+     * Output of each script is held until it is done, then printed in the order the scripts were
+     * given, followed by a line with its exit status. Exits with the highest status of any script.
+     */
+    private static void runBatch(List<String> paths) throws IOException {
+        List<Path> scripts = new ArrayList<>();
+        for (String path : paths) {
+            Path script = Paths.get(path);
+            if (Files.isDirectory(script)) {
+                try (Stream<Path> files = Files.walk(script)) {
+                    scripts.addAll(files.filter(Files::isRegularFile).sorted().collect(Collectors.toList()));
+                }
+            } else {
+                scripts.add(script);
+            }
+        }
 
-        if (hadError) {
-            return;
+        ExecutorService workers = Executors.newFixedThreadPool(jobs, threads("clara-worker"));
+        List<Future<BatchResult>> results = new ArrayList<>();
+        for (Path script : scripts) {
+            results.add(workers.submit(() -> runBatchScript(script)));
         }
 
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolveStmts(stmts);
+        int status = 0;
+        try {
+            for (Future<BatchResult> future : results) {
+                BatchResult result = future.get();
+                System.out.write(result.output.toByteArray());
+                System.out.flush();
+                System.err.write(result.errors.toByteArray());
+                System.err.println(result.script + ": " + (result.status == 0 ? "ok" : "exit " + result.status)
+                        + " in " + result.millis + " ms");
+                status = Math.max(status, result.status);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        reportCache();
 
-        if (hadError) {
-            return;
+        if (status != 0) {
+            System.exit(status);
         }
+    }
 
-        interpreter.interpret(stmts);
+    /**
+     * Runs one script of a batch in a runtime of its own. A script that can not be read exits with 66,
+     * one that fails inside the runtime with 70.
+     */
+    private static BatchResult runBatchScript(Path script) {
+        BatchResult result = new BatchResult(script);
+        PrintStream err = new PrintStream(result.errors, true);
+        ClaraRuntime runtime = newRuntime(new PrintStream(result.output, true), err);
+        Profiler profiler = profile ? startProfiler(runtime) : null;
+        long start = System.nanoTime();
+        try {
+            runtime.runFile(script);
+            result.status = runtime.exitCode();
+        } catch (IOException e) {
+            err.println("Can not read " + script + ": " + e);
+            result.status = 66;
+        } catch (RuntimeException | StackOverflowError e) {
+            e.printStackTrace(err);
+            result.status = 70;
+        }
+        result.millis = (System.nanoTime() - start) / 1000000;
+        if (profiler != null) {
+            reportProfile(profiler, err, null);
+        }
+        return result;
+    }
 
-        System.out.println();
+    /**
+     * Output and exit status of a script run in a batch.
+     */
+    private static class BatchResult {
+        final Path script;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        int status;
+        long millis;
+
+        BatchResult(Path script) {
+            this.script = script;
+        }
     }
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+    private static void reportCache() {
+        if (cache != null) {
+            cache.saveStats();
+            if (reportCache) {
+                System.err.println(cache.report());
+            }
         }
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
+    private static Profiler startProfiler(ClaraRuntime runtime) {
+        Profiler profiler = new Profiler();
+        runtime.profile(profiler);
+        profiler.start();
+        return profiler;
     }
 
-    private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+    /**
+     * Stops a profiler and prints its report, then writes its collapsed stacks to output unless it is null.
+     */
+    private static void reportProfile(Profiler profiler, PrintStream out, Path output) {
+        profiler.stop();
+        out.print(profiler.report());
+        if (output != null) {
+            try {
+                profiler.writeCollapsed(output);
+            } catch (IOException e) {
+                out.println("Can not write profile to " + output + ": " + e);
+            }
+        }
     }
 
-    public static void runtimeError(RuntimeError e) {
-        System.err.println(e.getMessage() + "\n[line " + e.token.line + "]");
-        hadRuntimeError = true;
+    /**
+     * Creates daemon threads with a stack of STACK_SIZE megabytes.
+     */
+    private static ThreadFactory threads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(null, runnable, name + "-" + count.incrementAndGet(), STACK_SIZE * 1024 * 1024);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Runs a task on the interpreter thread and waits for it to finish.
+     */
+    private static void execute(Callable<Void> task) throws IOException {
+        try {
+            executor.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
     }
 }
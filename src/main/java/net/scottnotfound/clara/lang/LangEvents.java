@@ -0,0 +1,87 @@
+package net.scottnotfound.clara.lang;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events of the phases a script goes through in a ClaraRuntime and of the commands
+ * it issues. They are only recorded while a recording has them enabled, which they are by default,
+ * and cost next to nothing otherwise. Sizes are only counted for events that will be committed.
+ */
+final class LangEvents {
+
+    private LangEvents() {}
+
+    @Name("net.scottnotfound.clara.Lex")
+    @Label("Lex")
+    @Category({"Clara", "Language"})
+    @Description("Source lexed into tokens at once, streamed sources are lexed while they are parsed")
+    static final class Lex extends Event {
+
+        @Label("Characters")
+        int characters;
+
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("net.scottnotfound.clara.Parse")
+    @Label("Parse")
+    @Category({"Clara", "Language"})
+    @Description("Tokens parsed into statements")
+    static final class Parse extends Event {
+
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Statements")
+        int statements;
+
+        @Label("Streamed")
+        @Description("Whether the tokens were lexed while parsing")
+        boolean streamed;
+    }
+
+    @Name("net.scottnotfound.clara.Resolve")
+    @Label("Resolve")
+    @Category({"Clara", "Language"})
+    @Description("Statements resolved, and optimized and resolved again when the Optimizer is on")
+    static final class Resolve extends Event {
+
+        @Label("Statements")
+        int statements;
+
+        @Label("Optimized")
+        boolean optimized;
+    }
+
+    @Name("net.scottnotfound.clara.Interpret")
+    @Label("Interpret")
+    @Category({"Clara", "Language"})
+    @Description("Statements run by the Interpreter or the VirtualMachine")
+    static final class Interpret extends Event {
+
+        @Label("Statements")
+        int statements;
+
+        @Label("Virtual Machine")
+        boolean vm;
+    }
+
+    @Name("net.scottnotfound.clara.Command")
+    @Label("Command")
+    @Category({"Clara", "Commands"})
+    @Description("Command handed to every module that receives commands")
+    static final class Command extends Event {
+
+        @Label("Entries")
+        @Description("Entries of the command map, such as flags and reactants")
+        String entries;
+
+        @Label("Receivers")
+        int receivers;
+    }
+}
@@ -1,86 +1,185 @@
 package net.scottnotfound.clara.lang;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.*;
 
+/**
+ * Turns source text into tokens, held in a TokenBuffer. Either lexes a whole string at once, or streams
+ * a Reader and lexes one token at a time as the Parser asks for them. When streaming only the characters
+ * of the tokens the Parser has not finished with and the next block read are kept, so memory use does
+ * not depend on the length of the input.
+ *
+ * Keywords and commands are found through a perfect hash of the first and last character and the
+ * length of a word, and identifier names are interned, so lexing a word allocates nothing unless it is
+ * a name not seen before.
+ */
 public class Lexer {
 
-    private String sourceSequence;
-    private List<Token> tokenSequence = new ArrayList<>();
+    /** Characters read from a stream at a time. */
+    private static final int BLOCK = 1 << 16;
+
+    /* Characters of the source held in memory, the first limit are valid. */
+    private char[] sourceSequence;
+    private int limit;
+    /* Where more characters come from when streaming, null once it is used up or for a string. */
+    private Reader reader;
+
+    private TokenBuffer tokenSequence;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    private static final Map<String, TokenType> keywords;
-    private static final Set<String> commands;
+    /* Open addressing table of the identifier names seen so far. */
+    private String[] names = new String[256];
+    private int nameCount = 0;
 
-    static {
-        keywords = new HashMap<>();
+    /* Keywords and commands by perfectHash, the table is checked for collisions when it is built. */
+    private static final int WORDS = 128;
+    private static final String[] wordNames = new String[WORDS];
+    private static final TokenType[] wordTypes = new TokenType[WORDS];
 
+    static {
         // base keywords
-        keywords.put("var", TokenType.VAR);
-        keywords.put("let", TokenType.VAR);
-        keywords.put("if", TokenType.IF);
-        keywords.put("while", TokenType.WHILE);
-        keywords.put("const", TokenType.CONST);
-        keywords.put("fun", TokenType.FUN);
-        keywords.put("func", TokenType.FUN);
-        keywords.put("def", TokenType.FUN);
-        keywords.put("else", TokenType.ELSE);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("for", TokenType.FOR);
+        word("var", TokenType.VAR);
+        word("let", TokenType.VAR);
+        word("if", TokenType.IF);
+        word("while", TokenType.WHILE);
+        word("const", TokenType.CONST);
+        word("fun", TokenType.FUN);
+        word("func", TokenType.FUN);
+        word("def", TokenType.FUN);
+        word("else", TokenType.ELSE);
+        word("return", TokenType.RETURN);
+        word("for", TokenType.FOR);
+        word("pfor", TokenType.PFOR);
+        word("break", TokenType.BREAK);
+        word("continue", TokenType.CONTINUE);
+        word("async", TokenType.ASYNC);
+        word("await", TokenType.AWAIT);
+        word("in", TokenType.IN);
 
         // built in operations
-        keywords.put("print", TokenType.PRINT);
-        keywords.put("echo", TokenType.PRINT);
-
+        word("print", TokenType.PRINT);
+        word("echo", TokenType.PRINT);
 
+        // boolean literals, unlike the others these are case sensitive
+        word("true", TokenType.BOOLEAN);
+        word("false", TokenType.BOOLEAN);
 
         // commands
-        commands = new HashSet<>();
-
-        commands.add("help");
-        commands.add("create");
-        commands.add("start");
-        commands.add("end");
-        commands.add("finish");
-        commands.add("begin");
-        commands.add("react");
-        commands.add("reaction");
-        commands.add("scheme");
-        commands.add("open");
-        commands.add("close");
-        commands.add("command");
-        commands.add("exit");
+        word("help", TokenType.COMMAND);
+        word("create", TokenType.COMMAND);
+        word("start", TokenType.COMMAND);
+        word("end", TokenType.COMMAND);
+        word("finish", TokenType.COMMAND);
+        word("begin", TokenType.COMMAND);
+        word("react", TokenType.COMMAND);
+        word("reaction", TokenType.COMMAND);
+        word("scheme", TokenType.COMMAND);
+        word("open", TokenType.COMMAND);
+        word("close", TokenType.COMMAND);
+        word("command", TokenType.COMMAND);
+        word("exit", TokenType.COMMAND);
+        word("stats", TokenType.COMMAND);
+    }
 
+    private static void word(String name, TokenType type) {
+        char[] chars = name.toCharArray();
+        int hash = perfectHash(chars, 0, chars.length);
+        if (wordNames[hash] != null) {
+            throw new IllegalStateException("'" + name + "' and '" + wordNames[hash] + "' have the same hash.");
+        }
+        wordNames[hash] = name;
+        wordTypes[hash] = type;
     }
 
+    /**
+     * Hash of a word that differs for every keyword and command, ignoring case.
+     */
+    private static int perfectHash(char[] chars, int start, int end) {
+        return (((chars[start] | 0x20) * 17) ^ ((chars[end - 1] | 0x20) * 37) ^ (end - start)) & (WORDS - 1);
+    }
 
-    Lexer() {}
+
+    /* Where errors are reported. */
+    private final ClaraRuntime runtime;
+
+    Lexer() {
+        this(new ClaraRuntime());
+    }
+
+    Lexer(ClaraRuntime runtime) {
+        this.runtime = runtime;
+    }
 
     public static List<Token> staticLex(String source) {
         Lexer lexer = new Lexer();
         return lexer.lex(source);
     }
 
+    /**
+     * Lexes a whole string into Token objects.
+     */
     public List<Token> lex(String source) {
-        this.sourceSequence = source;
-        this.tokenSequence = new ArrayList<>();
+        TokenBuffer buffer = lexBuffer(source);
+        List<Token> tokens = new ArrayList<>(buffer.count());
+        for (int i = 0; i < buffer.count(); i++) {
+            tokens.add(buffer.token(i));
+        }
+        return tokens;
+    }
+
+    /**
+     * Lexes a whole string into a TokenBuffer, ending with an EOF token.
+     */
+    TokenBuffer lexBuffer(String source) {
+        this.sourceSequence = source.toCharArray();
+        this.limit = sourceSequence.length;
+        this.reader = null;
+        this.tokenSequence = new TokenBuffer(sourceSequence);
         this.line = 1;
         this.start = 0;
         this.current = 0;
-        return lex();
-    }
-
-    private List<Token> lex() {
         while (!isAtEnd()) {
             start = current;
             lexToken();
         }
+        tokenSequence.add(TokenType.EOF, current, current, line, null);
+        return tokenSequence;
+    }
 
-        tokenSequence.add(new Token(TokenType.EOF, "", null, line));
+    /**
+     * Starts lexing the characters of a reader into the returned buffer, one token for each call to
+     * lexNext.
+     */
+    TokenBuffer stream(Reader reader) {
+        this.sourceSequence = new char[BLOCK];
+        this.limit = 0;
+        this.reader = reader;
+        this.tokenSequence = new TokenBuffer(sourceSequence);
+        this.line = 1;
+        this.start = 0;
+        this.current = 0;
         return tokenSequence;
     }
 
+    /**
+     * Lexes the next token of the stream into the buffer, an EOF token once it has all been read.
+     */
+    void lexNext() {
+        int count = tokenSequence.count();
+        while (tokenSequence.count() == count) {
+            if (isAtEnd()) {
+                tokenSequence.add(TokenType.EOF, current, current, line, null);
+                return;
+            }
+            start = current;
+            lexToken();
+        }
+    }
+
     private void lexToken() {
         char c = advanceChar();
         switch (c) {
@@ -148,7 +247,7 @@ public class Lexer {
                 } else if (isAlpha(c)) {
                     collectOther();
                 } else {
-                    Lang.error(line, "Unexpected character.");
+                    runtime.error(line, "Unexpected character.");
                 }
                 break;
             }
@@ -164,13 +263,13 @@ public class Lexer {
         }
 
         if (isAtEnd()) {
-            System.err.println("error at line " + line);
+            runtime.err.println("error at line " + line);
             return;
         }
 
         advanceChar();
 
-        String value = sourceSequence.substring(start + 1, current - 1);
+        String value = new String(sourceSequence, start + 1, current - start - 2);
         addToken(TokenType.STRING, value);
     }
 
@@ -187,7 +286,7 @@ public class Lexer {
             }
         }
 
-        addToken(TokenType.NUMBER, Double.parseDouble(sourceSequence.substring(start, current)));
+        addToken(TokenType.NUMBER, Double.parseDouble(new String(sourceSequence, start, current - start)));
     }
 
     private void collectOther() {
@@ -195,38 +294,86 @@ public class Lexer {
             current++;
         }
 
-        String text = sourceSequence.substring(start, current);
+        int hash = perfectHash(sourceSequence, start, current);
+        String word = wordNames[hash];
+        if (word != null && isWord(word, wordTypes[hash] != TokenType.BOOLEAN)) {
+            TokenType type = wordTypes[hash];
+            addToken(type, type == TokenType.BOOLEAN ? (Object) (word.charAt(0) == 't') : null);
+        } else {
+            addToken(TokenType.IDENTIFIER, intern());
+        }
+    }
+
+    /**
+     * True if the word just collected is the given keyword.
+     */
+    private boolean isWord(String word, boolean ignoreCase) {
+        if (current - start != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            char c = sourceSequence[start + i];
+            if (ignoreCase && c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        // collect identifier
-        TokenType type = keywords.get(text.toLowerCase());
-        if (type == null) {
-            type = TokenType.IDENTIFIER;
+    /**
+     * The name of the identifier just collected, the same interned String every time it is seen.
+     */
+    private String intern() {
+        int hash = 0;
+        for (int i = start; i < current; i++) {
+            hash = 31 * hash + sourceSequence[i];
+        }
+        int mask = names.length - 1;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        for (String name = names[index]; name != null; name = names[index]) {
+            if (name.length() == current - start && isName(name)) {
+                return name;
+            }
+            index = (index + 1) & mask;
         }
 
-        // collect command
-        if (commands.contains(text.toLowerCase())) {
-            type = TokenType.COMMAND;
+        String name = new String(sourceSequence, start, current - start).intern();
+        names[index] = name;
+        if (++nameCount * 2 > names.length) {
+            String[] old = names;
+            names = new String[old.length * 2];
+            mask = names.length - 1;
+            for (String entry : old) {
+                if (entry != null) {
+                    int h = entry.hashCode();
+                    int i = (h ^ (h >>> 16)) & mask;
+                    while (names[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    names[i] = entry;
+                }
+            }
         }
+        return name;
+    }
 
-        // collect boolean literal
-        switch (text) {
-            case "true":
-                addToken(TokenType.BOOLEAN, true);
-                break;
-            case "false":
-                addToken(TokenType.BOOLEAN, false);
-                break;
-            default:
-                addToken(type);
-                break;
+    private boolean isName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (sourceSequence[start + i] != name.charAt(i)) {
+                return false;
+            }
         }
+        return true;
     }
 
     private boolean matchChar(char expected) {
         if (isAtEnd()) {
             return false;
         }
-        if (sourceSequence.charAt(current) != expected) {
+        if (sourceSequence[current] != expected) {
             return false;
         }
 
@@ -239,26 +386,25 @@ public class Lexer {
     }
 
     private void addToken(TokenType type, Object value) {
-        String lexeme = sourceSequence.substring(start, current);
-        tokenSequence.add(new Token(type, lexeme, value, line));
+        tokenSequence.add(type, start, current, line, value);
     }
 
     private char advanceChar() {
-        return sourceSequence.charAt(current++);
+        return sourceSequence[current++];
     }
 
     private char peekCurrent() {
         if (isAtEnd()) {
             return '\0';
         }
-        return sourceSequence.charAt(current);
+        return sourceSequence[current];
     }
 
     private char peekNext() {
-        if (current + 1 >= sourceSequence.length()) {
+        if (current + 1 >= limit && !fill(1)) {
             return '\0';
         } else {
-            return sourceSequence.charAt(current + 1);
+            return sourceSequence[current + 1];
         }
     }
 
@@ -267,29 +413,69 @@ public class Lexer {
             return false;
         }
         for (char c : chars) {
-            if (sourceSequence.charAt(current) == c) {
+            if (sourceSequence[current] == c) {
                 return true;
             }
         }
         return false;
     }
 
-    private boolean isDigit(char c) {
+    static boolean isDigit(char c) {
         return c >= '0' && c <= '9';
     }
 
-    private boolean isAlpha(char c) {
+    static boolean isAlpha(char c) {
         return ((c >= 'a' && c <= 'z') ||
                 (c >= 'A' && c <= 'Z') ||
                 (c == '_'));
     }
 
-    private boolean isAlphaNumeric(char c) {
+    static boolean isAlphaNumeric(char c) {
         return isAlpha(c) || isDigit(c);
     }
 
     private boolean isAtEnd() {
-        return current >= sourceSequence.length();
+        return current >= limit && !fill(0);
+    }
+
+    /**
+     * Reads from the stream until the character ahead of the current one is available, dropping the
+     * characters before the token being lexed to make room. Returns false if the input ends first.
+     */
+    private boolean fill(int ahead) {
+        if (reader == null) {
+            return false;
+        }
+        try {
+            while (current + ahead >= limit) {
+                if (limit == sourceSequence.length) {
+                    // keep the token being lexed and those the Parser still holds
+                    int keep = tokenSequence.firstStart();
+                    keep = keep == -1 ? start : Math.min(keep, start);
+                    if (keep > 0) {
+                        System.arraycopy(sourceSequence, keep, sourceSequence, 0, limit - keep);
+                        limit -= keep;
+                        current -= keep;
+                        start -= keep;
+                        tokenSequence.shift(keep);
+                    } else {
+                        // a single token longer than the buffer, such as a long string
+                        sourceSequence = Arrays.copyOf(sourceSequence, sourceSequence.length * 2);
+                        tokenSequence.source = sourceSequence;
+                    }
+                }
+                int read = reader.read(sourceSequence, limit, sourceSequence.length - limit);
+                if (read == -1) {
+                    reader.close();
+                    reader = null;
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
 }
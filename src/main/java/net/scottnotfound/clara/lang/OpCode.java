@@ -0,0 +1,113 @@
+package net.scottnotfound.clara.lang;
+
+/**
+ * Instruction set of the VirtualMachine. Each instruction is a single int in the code array of a
+ * Chunk followed by its operands. Jump targets are absolute positions in the code array.
+ */
+final class OpCode {
+
+    private OpCode() {}
+
+    /** [index] Pushes the constant at index. */
+    static final int CONSTANT       = 0;
+    /** Pushes null. */
+    static final int NIL            = 1;
+    /** Discards the top of the stack. */
+    static final int POP            = 2;
+
+    /** [slot] Pushes the local at slot of the current frame. */
+    static final int GET_LOCAL      = 3;
+    /** [depth, slot] Pushes the local at slot of an enclosing frame. */
+    static final int GET_UPPER      = 4;
+    /** [depth, slot] Pops into the local at slot of the frame depth frames up. */
+    static final int SET_LOCAL      = 5;
+    /** [slot] Pops into a newly defined local of the current frame. */
+    static final int DEFINE_LOCAL   = 6;
+    /** [slot] Pushes the global at slot of the Globals. */
+    static final int GET_GLOBAL     = 7;
+    /** [slot] Pops into the existing global at slot of the Globals. */
+    static final int SET_GLOBAL     = 8;
+    /** [slot] Pops into a newly defined global. */
+    static final int DEFINE_GLOBAL  = 9;
+
+    static final int ADD            = 10;
+    static final int SUBTRACT       = 11;
+    static final int MULTIPLY       = 12;
+    static final int DIVIDE         = 13;
+    static final int NEGATE         = 14;
+    static final int NOT            = 15;
+    static final int EQUAL          = 16;
+    static final int NOT_EQUAL      = 17;
+    static final int GREATER        = 18;
+    static final int GREATER_EQUAL  = 19;
+    static final int LESS           = 20;
+    static final int LESS_EQUAL     = 21;
+
+    /** [target] Unconditional jump. */
+    static final int JUMP           = 22;
+    /** [target] Pops the condition and jumps if it is not truthy. */
+    static final int JUMP_IF_FALSE  = 23;
+    /** [target] Jumps if the top of the stack is not truthy, leaving it in place. */
+    static final int JUMP_IF_FALSE_KEEP = 24;
+    /** [target] Jumps if the top of the stack is truthy, leaving it in place. */
+    static final int JUMP_IF_TRUE_KEEP  = 25;
+
+    /** [count] Calls the callee sitting below count arguments. */
+    static final int CALL           = 26;
+    /** [index] Pushes a new function closing over the current frame. */
+    static final int CLOSURE        = 27;
+    /** Pops the return value and leaves the current call frame. */
+    static final int RETURN         = 28;
+
+    /** [size] Opens a new frame of size slots for a block. */
+    static final int ENTER_SCOPE    = 29;
+    /** Closes the frame opened by the matching ENTER_SCOPE. */
+    static final int EXIT_SCOPE     = 30;
+
+    /** Pops and prints a value. */
+    static final int PRINT          = 31;
+    /** [flags, count, files] Pops count reactants, then the input and output files if files is 2, and distributes a reaction command. */
+    static final int REACTION       = 32;
+    /** [index] Hands the command constant to the interpreter, for commands without expressions. */
+    static final int COMMAND        = 33;
+
+    /**
+     * [count] Call in tail position, always followed by RETURN. Calls to compiled functions replace
+     * the current call frame instead of pushing a new one.
+     */
+    static final int TAIL_CALL      = 34;
+
+    /**
+     * [target] Steps a 'pfor' loop with the next value and the end of its range on top of the stack.
+     * Pushes the value when it is below the end, otherwise pops both and jumps.
+     */
+    static final int RANGE_NEXT     = 35;
+    /** Adds one to the value below the end of the range on top of the stack. */
+    static final int RANGE_STEP     = 36;
+
+    /** [flags, count, files] Pops count reactants and files like REACTION, starts the reaction command in the background and pushes its future. */
+    static final int ASYNC_REACTION = 37;
+    /** Pops a future and pushes its result once it is done. */
+    static final int AWAIT          = 38;
+
+    /** [count] Pops count elements and pushes a list of them. */
+    static final int LIST           = 39;
+    /** [count] Pops count keys each followed by its value and pushes a map of them. */
+    static final int MAP            = 40;
+    /** Pops an index and the list, map or string below it and pushes the element. */
+    static final int GET_INDEX      = 41;
+    /** Pops a value, an index and the list or map below them and stores the value. */
+    static final int SET_INDEX      = 42;
+    /**
+     * Replaces the value on top of the stack with the index 0 and the list a 'for in' loop goes
+     * through, the keys for a map.
+     */
+    static final int ITER_START     = 43;
+    /**
+     * [target] Steps a 'for in' loop with the index and the list on top of the stack. Pushes the
+     * element at the index when there is one, otherwise pops both and jumps. RANGE_STEP moves the
+     * index on.
+     */
+    static final int ITER_NEXT      = 44;
+
+}
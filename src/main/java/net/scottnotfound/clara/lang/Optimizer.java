@@ -0,0 +1,1030 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * Rewrites parsed statements before they are run. Folds operations on literals, removes branches and
+ * loops whose conditions are literals, statements after a return, break or continue and statements
+ * that do nothing, and
+ * moves expressions that give the same result on every iteration out of while loops.
+ *
+ * Runs between two passes of the Resolver: the first one reports errors in the code as written, the
+ * second one assigns slots for the rewritten statements. The Optimizer itself finds the declaration
+ * each variable refers to the same way the Resolver does, by name through the enclosing scopes.
+ *
+ * An expression is only moved out of a loop when it can not fail and has no side effects, so evaluating
+ * it once before the loop, even if the loop never runs, is not observable. That means it may only read
+ * local variables the loop does not assign, and may only do arithmetic or comparisons on variables that
+ * are never assigned anything but a number.
+ */
+class Optimizer implements IExprVisitor<Expr>, IStmtVisitor<Stmt> {
+
+    /** Nodes removed by each optimization in the last call to optimize. */
+    int folded;
+    int unreachable;
+    int empty;
+    int invariant;
+    int hoisted;
+
+    private final Map<Expr, Declaration> bindings = new IdentityHashMap<>();
+    private final Map<Token, Declaration> declarations = new IdentityHashMap<>();
+    private final Map<Stmt.While, Loop> loops = new IdentityHashMap<>();
+
+    /** Innermost loop being optimized, or null outside of loops and inside function bodies. */
+    private Loop loop;
+    private int temporaries = 0;
+
+    Optimizer() {}
+
+    /**
+     * A local variable, parameter or function name.
+     */
+    private static class Declaration {
+        /** True while nothing but numbers has been found being assigned to the variable. */
+        boolean numeric;
+        final Expr initializer;
+        final List<Expr> assignments = new ArrayList<>();
+
+        Declaration(Expr initializer) {
+            this.initializer = initializer;
+            this.numeric = initializer != null;
+        }
+    }
+
+    /**
+     * What a while loop does to the variables around it, and the declarations moved out of it.
+     */
+    private static class Loop {
+        final List<Declaration> declared = new ArrayList<>();
+        final List<Declaration> assigned = new ArrayList<>();
+        boolean calls;
+        final List<Stmt.Variable> hoisted = new ArrayList<>();
+    }
+
+    /**
+     * Optimizes resolved top level statements. The result has to be resolved again before it is run.
+     */
+    List<Stmt> optimize(List<Stmt> statements) {
+        folded = unreachable = empty = invariant = hoisted = 0;
+        new Analysis().analyze(statements);
+        inferNumeric();
+        return optimizeAll(statements);
+    }
+
+    /**
+     * Describes what the last call to optimize removed.
+     */
+    String report() {
+        return "optimizer removed " + folded + " nodes by constant folding, " + unreachable +
+                " unreachable, " + empty + " in empty statements and " + invariant +
+                " by hoisting " + hoisted + " loop invariant expressions";
+    }
+
+    /**
+     * Marks variables as non numeric if anything but a number is assigned to them, repeating until no
+     * more variables change since one variable can be assigned from another.
+     */
+    private void inferNumeric() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Declaration declaration : declarations.values()) {
+                if (!declaration.numeric) {
+                    continue;
+                }
+                boolean numeric = isNumeric(declaration.initializer);
+                for (Expr value : declaration.assignments) {
+                    numeric &= isNumeric(value);
+                }
+                if (!numeric) {
+                    declaration.numeric = false;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * True if the expression always produces a number and can not fail.
+     */
+    private boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return ((Expr.Literal) expr).value instanceof Double;
+        }
+        if (expr instanceof Expr.Variable) {
+            Declaration declaration = bindings.get(expr);
+            return declaration != null && declaration.numeric;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return isNumeric(((Expr.Grouping) expr).expression);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return unary.operator.type == TokenType.MINUS && isNumeric(unary.expression);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return isArithmetic(binary.operator.type) && isNumeric(binary.expr_left) && isNumeric(binary.expr_right);
+        }
+        return false;
+    }
+
+    private static boolean isArithmetic(TokenType operator) {
+        switch (operator) {
+            case PLUS:
+            case MINUS:
+            case ASTERISK:
+            case SLASH_FRWD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * True if the expression gives the same result on every iteration of the loop, and evaluating it
+     * can not fail or change anything.
+     */
+    private boolean isInvariant(Expr expr, Loop loop) {
+        if (expr instanceof Expr.Literal) {
+            return true;
+        }
+        if (expr instanceof Expr.Variable) {
+            Declaration declaration = bindings.get(expr);
+            return declaration != null
+                    && !loop.declared.contains(declaration)
+                    && !loop.assigned.contains(declaration)
+                    // a function called in the loop could assign the variable
+                    && (!loop.calls || declaration.assignments.isEmpty());
+        }
+        if (expr instanceof Expr.Grouping) {
+            return isInvariant(((Expr.Grouping) expr).expression, loop);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            switch (unary.operator.type) {
+                case MINUS:     return isNumeric(unary.expression) && isInvariant(unary.expression, loop);
+                case EXCLAMK:   return isInvariant(unary.expression, loop);
+                default:        return false;
+            }
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (!isInvariant(binary.expr_left, loop) || !isInvariant(binary.expr_right, loop)) {
+                return false;
+            }
+            switch (binary.operator.type) {
+                case DOUBLE_EQUALS:
+                case NOT_EQUALS:
+                    return true;
+                case BRACKNQ_RIGHT:
+                case BRACKNQ_LEFT:
+                case GREATER_EQUALS:
+                case LESS_EQUALS:
+                    return isNumeric(binary.expr_left) && isNumeric(binary.expr_right);
+                default:
+                    return isArithmetic(binary.operator.type) && isNumeric(expr);
+            }
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) expr;
+            return isInvariant(logical.left, loop) && isInvariant(logical.right, loop);
+        }
+        return false;
+    }
+
+    private static boolean isOperation(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        return expr instanceof Expr.Binary || expr instanceof Expr.Unary || expr instanceof Expr.Logical;
+    }
+
+
+    /* rewriting */
+
+    private Expr optimize(Expr expr) {
+        if (loop != null && isOperation(expr) && isInvariant(expr, loop)) {
+            Loop current = loop;
+            loop = null;
+            Expr value = expr.accept(this);
+            loop = current;
+            if (value instanceof Expr.Literal) {
+                return value;
+            }
+            return hoist(value, current);
+        }
+        return expr.accept(this);
+    }
+
+    /**
+     * Moves an invariant expression into a temporary declared before the loop.
+     */
+    private Expr hoist(Expr value, Loop loop) {
+        Token name = new Token(TokenType.IDENTIFIER, ("$" + temporaries++).intern(), null, line(value));
+        loop.hoisted.add(new Stmt.Variable(name, value));
+        invariant += count(value) - 1;
+        hoisted++;
+        return new Expr.Variable(name);
+    }
+
+    private static int line(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        if (expr instanceof Expr.Binary) {
+            return ((Expr.Binary) expr).operator.line;
+        }
+        if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary) expr).operator.line;
+        }
+        if (expr instanceof Expr.Logical) {
+            return ((Expr.Logical) expr).operator.line;
+        }
+        return 0;
+    }
+
+    /**
+     * Optimizes a statement, returns null if nothing is left of it.
+     */
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    /**
+     * Optimizes a statement that has to be kept, such as the body of a loop.
+     */
+    private Stmt optimizeRequired(Stmt stmt) {
+        Stmt result = optimize(stmt);
+        return result != null ? result : new Stmt.Block(new ArrayList<>());
+    }
+
+    private List<Stmt> optimizeAll(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = optimize(statements.get(i));
+            if (statement != null) {
+                result.add(statement);
+            }
+            if (endsBlock(statements.get(i))) {
+                for (Stmt after : statements.subList(i + 1, statements.size())) {
+                    unreachable += count(after);
+                }
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * True for statements that always leave the block they are in.
+     */
+    private static boolean endsBlock(Stmt stmt) {
+        return stmt instanceof Stmt.Return || stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue;
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object valueOf(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    /**
+     * Replaces an operation by its result, counting the nodes that go away.
+     */
+    private Expr fold(Expr operation, Object value) {
+        folded += count(operation) - 1;
+        return new Expr.Literal(value);
+    }
+
+    @Override
+    public Expr visitExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.expression);
+        return value == expr.expression ? expr : new Expr.Assign(expr.token, value);
+    }
+
+    @Override
+    public Expr visitExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.expr_left);
+        Expr right = optimize(expr.expr_right);
+        Expr.Binary result = left == expr.expr_left && right == expr.expr_right ?
+                expr : new Expr.Binary(left, expr.operator, right);
+        if (!isLiteral(left) || !isLiteral(right)) {
+            return result;
+        }
+
+        Object a = valueOf(left);
+        Object b = valueOf(right);
+        switch (expr.operator.type) {
+            case DOUBLE_EQUALS: return fold(result, Interpreter.isEqual(a, b));
+            case NOT_EQUALS:    return fold(result, !Interpreter.isEqual(a, b));
+        }
+        if (a instanceof String && b instanceof String && expr.operator.type == TokenType.PLUS) {
+            return fold(result, (String) a + (String) b);
+        }
+        // anything else fails at runtime and is left for the Interpreter to report
+        if (!(a instanceof Double) || !(b instanceof Double)) {
+            return result;
+        }
+        double x = (double) a;
+        double y = (double) b;
+        switch (expr.operator.type) {
+            case PLUS:              return fold(result, x + y);
+            case MINUS:             return fold(result, x - y);
+            case ASTERISK:          return fold(result, x * y);
+            case SLASH_FRWD:        return fold(result, x / y);
+            case BRACKNQ_RIGHT:     return fold(result, x > y);
+            case BRACKNQ_LEFT:      return fold(result, x < y);
+            case GREATER_EQUALS:    return fold(result, x >= y);
+            case LESS_EQUALS:       return fold(result, x <= y);
+            default:                return result;
+        }
+    }
+
+    @Override
+    public Expr visitExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments) {
+            arguments.add(optimize(argument));
+        }
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitExpr(Expr.Await expr) {
+        Expr expression = optimize(expr.expression);
+        return expression == expr.expression ? expr : new Expr.Await(expr.keyword, expression);
+    }
+
+    @Override
+    public Expr visitExpr(Expr.Command expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitExpr(Expr.Index expr) {
+        return new Expr.Index(optimize(expr.object), expr.bracket, optimize(expr.index));
+    }
+
+    @Override
+    public Expr visitExpr(Expr.IndexAssign expr) {
+        return new Expr.IndexAssign(optimize(expr.object), expr.bracket, optimize(expr.index), optimize(expr.value));
+    }
+
+    @Override
+    public Expr visitExpr(Expr.ListLiteral expr) {
+        List<Expr> elements = new ArrayList<>(expr.elements.size());
+        for (Expr element : expr.elements) {
+            elements.add(optimize(element));
+        }
+        return new Expr.ListLiteral(expr.bracket, elements);
+    }
+
+    @Override
+    public Expr visitExpr(Expr.MapLiteral expr) {
+        List<Expr> keys = new ArrayList<>(expr.keys.size());
+        List<Expr> values = new ArrayList<>(expr.values.size());
+        for (int i = 0; i < expr.keys.size(); i++) {
+            keys.add(optimize(expr.keys.get(i)));
+            values.add(optimize(expr.values.get(i)));
+        }
+        return new Expr.MapLiteral(expr.brace, keys, values);
+    }
+
+    @Override
+    public Expr visitExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        if (isLiteral(expression)) {
+            folded++;
+            return expression;
+        }
+        return expression == expr.expression ? expr : new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (isLiteral(left)) {
+            boolean truthy = Interpreter.isTruthy(valueOf(left));
+            boolean keepLeft = expr.operator.type == TokenType.OR ? truthy : !truthy;
+            folded += 1 + count(keepLeft ? right : left);
+            return keepLeft ? left : right;
+        }
+        return left == expr.left && right == expr.right ? expr : new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitExpr(Expr.Unary expr) {
+        Expr expression = optimize(expr.expression);
+        Expr.Unary result = expression == expr.expression ? expr : new Expr.Unary(expression, expr.operator);
+        if (!isLiteral(expression)) {
+            return result;
+        }
+
+        Object value = valueOf(expression);
+        switch (expr.operator.type) {
+            case EXCLAMK:
+                return fold(result, !Interpreter.isTruthy(value));
+            case MINUS:
+                return value instanceof Double ? fold(result, -(double) value) : result;
+            default:
+                return result;
+        }
+    }
+
+    @Override
+    public Expr visitExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimizeAll(stmt.statements);
+        if (statements.isEmpty()) {
+            empty++;
+            return null;
+        }
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitStmt(Stmt.Command stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitStmt(Stmt.Continue stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (isLiteral(expression)) {
+            // includes the statements the Parser creates for stray semicolons
+            empty += 1 + count(expression);
+            return null;
+        }
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitStmt(Stmt.Function stmt) {
+        // the body runs when the function is called, so nothing in it can move out of a loop
+        Loop enclosing = loop;
+        loop = null;
+        List<Stmt> body = optimizeAll(stmt.body);
+        loop = enclosing;
+        return new Stmt.Function(stmt.token, stmt.parameters, body);
+    }
+
+    @Override
+    public Stmt visitStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isLiteral(condition)) {
+            boolean truthy = Interpreter.isTruthy(valueOf(condition));
+            Stmt removed = truthy ? stmt.elseB : stmt.thenB;
+            unreachable += 1 + count(condition) + (removed != null ? count(removed) : 0);
+            Stmt kept = truthy ? stmt.thenB : stmt.elseB;
+            return kept != null ? optimize(kept) : null;
+        }
+        Stmt thenB = optimizeRequired(stmt.thenB);
+        Stmt elseB = stmt.elseB != null ? optimize(stmt.elseB) : null;
+        return new Stmt.If(condition, thenB, elseB);
+    }
+
+    @Override
+    public Stmt visitStmt(Stmt.ForIn stmt) {
+        Expr iterable = optimize(stmt.iterable);
+        // like 'pfor', every iteration has a frame of its own
+        Loop enclosing = loop;
+        loop = null;
+        Stmt body = optimizeRequired(stmt.body);
+        loop = enclosing;
+        return new Stmt.ForIn(stmt.keyword, stmt.name, iterable, body);
+    }
+
+    @Override
+    public Stmt visitStmt(Stmt.PFor stmt) {
+        Expr start = optimize(stmt.start);
+        Expr end = optimize(stmt.end);
+        // every iteration has a frame of its own, so nothing in the body can move out of it either
+        Loop enclosing = loop;
+        loop = null;
+        Stmt body = optimizeRequired(stmt.body);
+        loop = enclosing;
+        return new Stmt.PFor(stmt.keyword, stmt.name, start, end, body);
+    }
+
+    @Override
+    public Stmt visitStmt(Stmt.Print stmt) {
+        Expr value = optimize(stmt.value);
+        return value == stmt.value ? stmt : new Stmt.Print(value);
+    }
+
+    @Override
+    public Stmt visitStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return stmt;
+        }
+        Expr value = optimize(stmt.value);
+        return value == stmt.value ? stmt : new Stmt.Return(stmt.token, value);
+    }
+
+    @Override
+    public Stmt visitStmt(Stmt.Variable stmt) {
+        if (stmt.expression == null) {
+            return stmt;
+        }
+        Expr expression = optimize(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Variable(stmt.token, expression);
+    }
+
+    /**
+     * Removes loops that never run. Expressions moved out of the loop are declared in a block around
+     * it, or in front of the enclosing loop if they do not change there either.
+     */
+    @Override
+    public Stmt visitStmt(Stmt.While stmt) {
+        Loop enclosing = loop;
+        Loop current = loops.get(stmt);
+        loop = current;
+        Expr condition = optimize(stmt.condition);
+        if (isLiteral(condition) && !Interpreter.isTruthy(valueOf(condition))) {
+            loop = enclosing;
+            unreachable += count(stmt);
+            return null;
+        }
+        Stmt body = optimizeRequired(stmt.body);
+        Expr increment = stmt.increment != null ? optimize(stmt.increment) : null;
+        loop = enclosing;
+
+        Stmt result = new Stmt.While(condition, body, increment);
+        if (current.hoisted.isEmpty()) {
+            return result;
+        }
+
+        List<Stmt> statements = new ArrayList<>();
+        for (Stmt.Variable declaration : current.hoisted) {
+            if (enclosing != null && isInvariant(declaration.expression, enclosing)) {
+                enclosing.hoisted.add(declaration);
+            } else {
+                statements.add(declaration);
+            }
+        }
+        statements.add(result);
+        return new Stmt.Block(statements);
+    }
+
+
+    /* analysis */
+
+    /**
+     * Finds the declaration of every local variable use and assignment, everything assigned to each
+     * declaration, and what each loop declares, assigns and calls.
+     */
+    private class Analysis implements IExprVisitor<Void>, IStmtVisitor<Void> {
+
+        private final Stack<Map<String, Declaration>> scopes = new Stack<>();
+        private final List<Loop> active = new ArrayList<>();
+
+        void analyze(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                statement.accept(this);
+            }
+        }
+
+        private Declaration lookUp(Token token) {
+            for (int i = scopes.size() - 1; i >= 0; i--) {
+                Declaration declaration = scopes.get(i).get(token.lexeme);
+                if (declaration != null) {
+                    return declaration;
+                }
+            }
+            return null;
+        }
+
+        private void declare(Token token, Declaration declaration) {
+            if (scopes.isEmpty()) {
+                return;
+            }
+            scopes.peek().put(token.lexeme, declaration);
+            declarations.put(token, declaration);
+            for (Loop loop : active) {
+                loop.declared.add(declaration);
+            }
+        }
+
+        @Override
+        public Void visitExpr(Expr.Assign expr) {
+            expr.expression.accept(this);
+            Declaration declaration = lookUp(expr.token);
+            if (declaration != null) {
+                bindings.put(expr, declaration);
+                declaration.assignments.add(expr.expression);
+                for (Loop loop : active) {
+                    loop.assigned.add(declaration);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Binary expr) {
+            expr.expr_left.accept(this);
+            expr.expr_right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Call expr) {
+            for (Loop loop : active) {
+                loop.calls = true;
+            }
+            expr.callee.accept(this);
+            for (Expr argument : expr.arguments) {
+                argument.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Await expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Command expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Index expr) {
+            expr.object.accept(this);
+            expr.index.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.IndexAssign expr) {
+            expr.object.accept(this);
+            expr.index.accept(this);
+            expr.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.ListLiteral expr) {
+            for (Expr element : expr.elements) {
+                element.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.MapLiteral expr) {
+            for (int i = 0; i < expr.keys.size(); i++) {
+                expr.keys.get(i).accept(this);
+                expr.values.get(i).accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Logical expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Unary expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr.Variable expr) {
+            Declaration declaration = lookUp(expr.token);
+            if (declaration != null) {
+                bindings.put(expr, declaration);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Block stmt) {
+            scopes.push(new IdentityHashMap<>());
+            analyze(stmt.statements);
+            scopes.pop();
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Break stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Command stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Continue stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.ForIn stmt) {
+            stmt.iterable.accept(this);
+            scopes.push(new IdentityHashMap<>());
+            declare(stmt.name, new Declaration(null));
+            stmt.body.accept(this);
+            scopes.pop();
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Function stmt) {
+            declare(stmt.token, new Declaration(null));
+            scopes.push(new IdentityHashMap<>());
+            for (Token parameter : stmt.parameters) {
+                declare(parameter, new Declaration(null));
+            }
+            analyze(stmt.body);
+            scopes.pop();
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenB.accept(this);
+            if (stmt.elseB != null) {
+                stmt.elseB.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.PFor stmt) {
+            stmt.start.accept(this);
+            stmt.end.accept(this);
+            scopes.push(new IdentityHashMap<>());
+            declare(stmt.name, new Declaration(null));
+            stmt.body.accept(this);
+            scopes.pop();
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Print stmt) {
+            stmt.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Return stmt) {
+            if (stmt.value != null) {
+                stmt.value.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.Variable stmt) {
+            if (stmt.expression != null) {
+                stmt.expression.accept(this);
+            }
+            declare(stmt.token, new Declaration(stmt.expression));
+            return null;
+        }
+
+        @Override
+        public Void visitStmt(Stmt.While stmt) {
+            Loop loop = new Loop();
+            loops.put(stmt, loop);
+            active.add(loop);
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            if (stmt.increment != null) {
+                stmt.increment.accept(this);
+            }
+            active.remove(active.size() - 1);
+            return null;
+        }
+    }
+
+
+    /* node counts */
+
+    private static int count(Expr expr) {
+        return expr.accept(NodeCounter.INSTANCE);
+    }
+
+    private static int count(Stmt stmt) {
+        return stmt.accept(NodeCounter.INSTANCE);
+    }
+
+    /**
+     * Counts the statements and expressions in a tree, used to report how much was removed.
+     */
+    private static class NodeCounter implements IExprVisitor<Integer>, IStmtVisitor<Integer> {
+
+        static final NodeCounter INSTANCE = new NodeCounter();
+
+        private int countAll(List<Stmt> statements) {
+            int count = 0;
+            for (Stmt statement : statements) {
+                count += count(statement);
+            }
+            return count;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Assign expr) {
+            return 1 + count(expr.expression);
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Binary expr) {
+            return 1 + count(expr.expr_left) + count(expr.expr_right);
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Call expr) {
+            int count = 1 + count(expr.callee);
+            for (Expr argument : expr.arguments) {
+                count += count(argument);
+            }
+            return count;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Await expr) {
+            return 1 + count(expr.expression);
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Command expr) {
+            return 1;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Index expr) {
+            return 1 + count(expr.object) + count(expr.index);
+        }
+
+        @Override
+        public Integer visitExpr(Expr.IndexAssign expr) {
+            return 1 + count(expr.object) + count(expr.index) + count(expr.value);
+        }
+
+        @Override
+        public Integer visitExpr(Expr.ListLiteral expr) {
+            int count = 1;
+            for (Expr element : expr.elements) {
+                count += count(element);
+            }
+            return count;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.MapLiteral expr) {
+            int count = 1;
+            for (int i = 0; i < expr.keys.size(); i++) {
+                count += count(expr.keys.get(i)) + count(expr.values.get(i));
+            }
+            return count;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Grouping expr) {
+            return 1 + count(expr.expression);
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Literal expr) {
+            return 1;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Logical expr) {
+            return 1 + count(expr.left) + count(expr.right);
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Unary expr) {
+            return 1 + count(expr.expression);
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Variable expr) {
+            return 1;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Block stmt) {
+            return 1 + countAll(stmt.statements);
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Break stmt) {
+            return 1;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Command stmt) {
+            return 1;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Continue stmt) {
+            return 1;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Expression stmt) {
+            return 1 + count(stmt.expression);
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Function stmt) {
+            return 1 + countAll(stmt.body);
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.If stmt) {
+            return 1 + count(stmt.condition) + count(stmt.thenB) + (stmt.elseB != null ? count(stmt.elseB) : 0);
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.ForIn stmt) {
+            return 1 + count(stmt.iterable) + count(stmt.body);
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.PFor stmt) {
+            return 1 + count(stmt.start) + count(stmt.end) + count(stmt.body);
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Print stmt) {
+            return 1 + count(stmt.value);
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Return stmt) {
+            return 1 + (stmt.value != null ? count(stmt.value) : 0);
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Variable stmt) {
+            return 1 + (stmt.expression != null ? count(stmt.expression) : 0);
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.While stmt) {
+            return 1 + count(stmt.condition) + count(stmt.body) +
+                    (stmt.increment != null ? count(stmt.increment) : 0);
+        }
+    }
+
+}
@@ -0,0 +1,285 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the iterations of 'pfor' loops and the preduce builtin on a fork join pool shared by every
+ * ClaraRuntime, with -Dclara.parallelism workers, one per processor by default. Ranges are split in
+ * halves until the pieces are small enough to run one after another, and each piece runs in an
+ * Interpreter of its own on the worker that takes it, so commands issued by different iterations,
+ * such as reactions, are handled at the same time.
+ *
+ * The first error in any iteration stops the pieces that have not started yet and is thrown once
+ * the rest are done, and whatever Java exception a worker throws is reported as an error of the
+ * script. The Resolver rejects bodies that write to variables declared outside of them, append to
+ * or assign elements of their lists and maps, or call functions that do, and preduce rejects map
+ * and combine functions that do the same. Lists and maps reached some other way, such as through a
+ * local the body copies an outer list into, can not be checked. They lock themselves while anything
+ * runs on the pool, so such writes are not lost, but iterations make them in no particular order.
+ * Workers have the default thread stack, so recursion inside a parallel body can not go as deep as
+ * on the thread the script runs on.
+ */
+final class Parallel {
+
+    static final ForkJoinPool POOL = new ForkJoinPool(
+            Integer.getInteger("clara.parallelism", Runtime.getRuntime().availableProcessors()),
+            pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("clara-parallel-" + thread.getPoolIndex());
+                return thread;
+            },
+            null, false);
+
+    /** Pieces per worker a 'pfor' range is split into, more than one so fast workers can steal. */
+    private static final int PIECES_PER_WORKER = 8;
+
+    /**
+     * Most leaves preduce splits a range into. The split only depends on the length of the range, so
+     * values are combined in the same order on every run and with any number of workers.
+     */
+    private static final int REDUCE_LEAVES = 256;
+
+    /**
+     * preduce(start, end, identity, map, combine) maps every whole step from start up to end and
+     * combines the results, left before right, in a tree that does not depend on how the work is
+     * scheduled. The identity is the result of an empty range.
+     */
+    static final Callable REDUCE = new Callable() {
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return reduce(interpreter, arguments.get(0), arguments.get(1), arguments.get(2), arguments.get(3), arguments.get(4));
+        }
+
+        @Override
+        public int arity() {
+            return 5;
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn preduce>";
+        }
+    };
+
+    /** Number of 'pfor' loops and preduce calls running on the pool, in every ClaraRuntime. */
+    private static final AtomicInteger RUNNING = new AtomicInteger();
+
+    private Parallel() {}
+
+    /**
+     * Whether anything runs on the pool, so lists and maps may be used by several threads at once.
+     */
+    static boolean running() {
+        return RUNNING.get() != 0;
+    }
+
+    /**
+     * Runs the body of a 'pfor' once for each whole step from start up to end, and returns once all
+     * of the iterations are done.
+     */
+    static void forRange(Interpreter interpreter, Stmt.PFor stmt, Environment environment, double start, double end) {
+        long count = count(start, end);
+        if (count == 0) {
+            return;
+        }
+        long grain = Math.max(1, count / ((long) POOL.getParallelism() * PIECES_PER_WORKER));
+        Iterations iterations = new Iterations(interpreter, stmt, environment, start, 0, count, grain, new AtomicReference<>());
+        invoke(iterations);
+        rethrow(iterations.failure.get(), stmt.keyword, "pfor");
+    }
+
+    private static Object reduce(Interpreter interpreter, Object start, Object end, Object identity, Object map, Object combine) {
+        if (!(start instanceof Double && end instanceof Double)) {
+            throw new RuntimeError(null, "preduce: range must be numbers.");
+        }
+        if (!(map instanceof Callable) || ((Callable) map).arity() != 1) {
+            throw new RuntimeError(null, "preduce: map must be a function of one argument.");
+        }
+        if (!(combine instanceof Callable) || ((Callable) combine).arity() != 2) {
+            throw new RuntimeError(null, "preduce: combine must be a function of two arguments.");
+        }
+        // map and combine run on several workers at once, like the body of a 'pfor'
+        if (writesOutside(map)) {
+            throw new RuntimeError(null, "preduce: map may not assign a variable declared outside of it.");
+        }
+        if (writesOutside(combine)) {
+            throw new RuntimeError(null, "preduce: combine may not assign a variable declared outside of it.");
+        }
+
+        long count = count((double) start, (double) end);
+        if (count == 0) {
+            return identity;
+        }
+        long grain = (count + REDUCE_LEAVES - 1) / REDUCE_LEAVES;
+        // functions of the VirtualMachine run on its stack, which only the thread running the script may use
+        boolean parallel = !(map instanceof VMFunction || combine instanceof VMFunction);
+        Reduction reduction = new Reduction(interpreter, (double) start, 0, count, grain,
+                (Callable) map, (Callable) combine, parallel, new AtomicReference<>());
+        Object result = parallel ? invoke(reduction) : reduction.compute();
+        rethrow(reduction.failure.get(), null, "preduce");
+        return result;
+    }
+
+    /**
+     * Whether a function passed to preduce assigns, appends to or assigns an element of a variable
+     * declared outside of it, or calls a function that does.
+     */
+    private static boolean writesOutside(Object function) {
+        return function instanceof Function && ((Function) function).declaration().writesOutside;
+    }
+
+    /**
+     * Number of whole steps from start that are below end.
+     */
+    private static long count(double start, double end) {
+        return end > start ? (long) Math.ceil(end - start) : 0;
+    }
+
+    private static <T> T invoke(ForkJoinTask<T> task) {
+        RUNNING.incrementAndGet();
+        try {
+            // a nested pfor is forked from a worker, which helps run it instead of blocking
+            return ForkJoinTask.getPool() == POOL ? task.invoke() : POOL.invoke(task);
+        } finally {
+            RUNNING.decrementAndGet();
+        }
+    }
+
+    /**
+     * Throws the first failure of the workers on the thread running the script. Errors of the script
+     * and 'exit' are thrown as they are, any other exception thrown by a worker becomes a RuntimeError
+     * so it is reported like the errors of the script.
+     */
+    private static void rethrow(Throwable failure, Token token, String name) {
+        if (failure instanceof RuntimeError || failure instanceof ExitScript) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new RuntimeError(token, name + ": " + failure);
+        }
+    }
+
+    /**
+     * The iterations of a 'pfor' from lo up to hi, counted in steps from start.
+     */
+    private static final class Iterations extends RecursiveAction {
+
+        private final Interpreter interpreter;
+        private final Stmt.PFor stmt;
+        private final Environment environment;
+        private final double start;
+        private final long lo;
+        private final long hi;
+        private final long grain;
+        final AtomicReference<Throwable> failure;
+
+        Iterations(Interpreter interpreter, Stmt.PFor stmt, Environment environment, double start,
+                   long lo, long hi, long grain, AtomicReference<Throwable> failure) {
+            this.interpreter = interpreter;
+            this.stmt = stmt;
+            this.environment = environment;
+            this.start = start;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > grain) {
+                long mid = lo + (hi - lo) / 2;
+                invokeAll(new Iterations(interpreter, stmt, environment, start, lo, mid, grain, failure),
+                          new Iterations(interpreter, stmt, environment, start, mid, hi, grain, failure));
+                return;
+            }
+
+            Interpreter worker = new Interpreter(interpreter);
+            try {
+                for (long i = lo; i < hi && failure.get() == null; i++) {
+                    worker.iterate(stmt, environment, start + i);
+                }
+            } catch (RuntimeException | Error e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    /**
+     * The combined results of preduce from lo up to hi, counted in steps from start. Runs on the
+     * calling thread with the calling Interpreter unless parallel.
+     */
+    private static final class Reduction extends RecursiveTask<Object> {
+
+        private final Interpreter interpreter;
+        private final double start;
+        private final long lo;
+        private final long hi;
+        private final long grain;
+        private final Callable map;
+        private final Callable combine;
+        private final boolean parallel;
+        final AtomicReference<Throwable> failure;
+
+        Reduction(Interpreter interpreter, double start, long lo, long hi, long grain,
+                  Callable map, Callable combine, boolean parallel, AtomicReference<Throwable> failure) {
+            this.interpreter = interpreter;
+            this.start = start;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+            this.map = map;
+            this.combine = combine;
+            this.parallel = parallel;
+            this.failure = failure;
+        }
+
+        @Override
+        protected Object compute() {
+            if (failure.get() != null) {
+                return null;
+            }
+            Interpreter worker = parallel ? new Interpreter(interpreter) : interpreter;
+            try {
+                if (hi - lo <= grain) {
+                    Object result = map.call1(worker, start + lo);
+                    for (long i = lo + 1; i < hi; i++) {
+                        result = combine.call2(worker, result, map.call1(worker, start + i));
+                    }
+                    return result;
+                }
+
+                long mid = lo + (hi - lo) / 2;
+                Reduction left = new Reduction(interpreter, start, lo, mid, grain, map, combine, parallel, failure);
+                Reduction right = new Reduction(interpreter, start, mid, hi, grain, map, combine, parallel, failure);
+                Object leftResult;
+                Object rightResult;
+                if (parallel) {
+                    right.fork();
+                    leftResult = left.compute();
+                    rightResult = right.join();
+                } else {
+                    leftResult = left.compute();
+                    rightResult = right.compute();
+                }
+                if (failure.get() != null) {
+                    return null;
+                }
+                return combine.call2(worker, leftResult, rightResult);
+            } catch (RuntimeException | Error e) {
+                failure.compareAndSet(null, e);
+                return null;
+            }
+        }
+    }
+}
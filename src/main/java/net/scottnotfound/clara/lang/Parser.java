@@ -6,11 +6,22 @@ import java.util.List;
 
 public class Parser {
 
-    private List<Token> tokenSequence;
+    private TokenBuffer tokens;
     private int current = 0;
+    /* Lexer tokens are pulled from one at a time when parsing a stream, null otherwise. */
+    private Lexer stream;
     boolean commandMode;
 
-    Parser() {}
+    /* Where errors are reported. */
+    private final ClaraRuntime runtime;
+
+    Parser() {
+        this(new ClaraRuntime());
+    }
+
+    Parser(ClaraRuntime runtime) {
+        this.runtime = runtime;
+    }
 
     public static List<Stmt> staticParse(List<Token> tokenSequence) {
         return staticParse(tokenSequence, false);
@@ -26,13 +37,55 @@ public class Parser {
     }
 
     public List<Stmt> parse(List<Token> tokenSequence, boolean commandMode) {
-        this.tokenSequence = tokenSequence;
+        return parse(TokenBuffer.of(tokenSequence), commandMode);
+    }
+
+    /**
+     * Parses the tokens of a buffer filled by the Lexer, without creating Token objects up front.
+     */
+    List<Stmt> parse(TokenBuffer tokens, boolean commandMode) {
+        this.tokens = tokens;
         this.commandMode = commandMode;
         this.current = 0;
+        this.stream = null;
 
         return parse();
     }
 
+    /**
+     * Starts parsing the tokens of a streaming Lexer, the statements are taken with next.
+     */
+    void parse(Lexer lexer, TokenBuffer tokens) {
+        this.tokens = tokens;
+        this.current = 0;
+        this.stream = lexer;
+    }
+
+    /**
+     * Parses the next top level statement of the stream. Returns null at the end of the stream or
+     * after an error. Tokens of the statements already returned are dropped, so only the tokens of
+     * one statement are held at a time.
+     */
+    Stmt next() {
+        tokens.drop(current);
+        current = 0;
+        if (!notEOF()) {
+            return null;
+        }
+        try {
+            return statement();
+        } catch (ParseError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Number of tokens read since the last statement taken with next, the size of that statement.
+     */
+    int consumed() {
+        return current;
+    }
+
     /**
      * Parses the sequence of tokens contained by the Parser into a list of statements to execute.
      */
@@ -63,6 +116,9 @@ public class Parser {
         if (matchToken(TokenType.FOR)) {
             return forStatement();
         }
+        if (matchToken(TokenType.PFOR)) {
+            return pforStatement();
+        }
         if (matchToken(TokenType.IF)) {
             return ifStatement();
         }
@@ -75,6 +131,12 @@ public class Parser {
         if (matchToken(TokenType.WHILE)) {
             return whileStatement();
         }
+        if (matchToken(TokenType.BREAK)) {
+            return breakStatement();
+        }
+        if (matchToken(TokenType.CONTINUE)) {
+            return continueStatement();
+        }
         if (matchToken(TokenType.BRACE_LEFT)) {
             return blockStatement();
         }
@@ -83,14 +145,19 @@ public class Parser {
 
     private Stmt commandStatement() {
         Cmd cmd = command();
-        if (!commandMode) {
-            requireToken(TokenType.SEMICOLON, "Expect ';' after value.");
+        // commands taking arguments read up to and including the semicolon themselves
+        if (!commandMode && peekPrevious().type != TokenType.SEMICOLON) {
+            require(TokenType.SEMICOLON, "Expect ';' after value.");
         }
         return new Stmt.Command(cmd);
     }
 
     private Stmt forStatement() {
-        requireToken(TokenType.PAREN_LEFT, "Expect '(' after 'for'.");
+        Token keyword = peekPrevious();
+        require(TokenType.PAREN_LEFT, "Expect '(' after 'for'.");
+        if (checkCurrentToken(TokenType.VAR) && checkAhead(1, TokenType.IDENTIFIER) && checkAhead(2, TokenType.IN)) {
+            return forInStatement(keyword);
+        }
 
         Stmt initializer;
         if (matchToken(TokenType.SEMICOLON)) {
@@ -105,23 +172,19 @@ public class Parser {
         if (!checkCurrentToken(TokenType.SEMICOLON)) {
             condition = expression();
         }
-        requireToken(TokenType.SEMICOLON, "Expect ';' after loop condition.");
+        require(TokenType.SEMICOLON, "Expect ';' after loop condition.");
 
         Expr increment = null;
         if (!checkCurrentToken(TokenType.PAREN_RIGHT)) {
             increment = expression();
         }
-        requireToken(TokenType.PAREN_RIGHT, "Expect ')' after clauses.");
+        require(TokenType.PAREN_RIGHT, "Expect ')' after clauses.");
         Stmt body = statement();
 
-        if (increment != null) {
-            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
-        }
-
         if (condition == null) {
             condition = new Expr.Literal(true);
         }
-        body = new Stmt.While(condition,body);
+        body = new Stmt.While(condition, body, increment);
 
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -130,10 +193,36 @@ public class Parser {
         return body;
     }
 
+    private Stmt forInStatement(Token keyword) {
+        require(TokenType.VAR, "Expect 'var' after '('.");
+        Token name = requireToken(TokenType.IDENTIFIER, "Expect variable name.");
+        require(TokenType.IN, "Expect 'in' after variable name.");
+        Expr iterable = expression();
+        require(TokenType.PAREN_RIGHT, "Expect ')' after loop iterable.");
+        Stmt body = statement();
+
+        return new Stmt.ForIn(keyword, name, iterable, body);
+    }
+
+    private Stmt pforStatement() {
+        Token keyword = peekPrevious();
+        require(TokenType.PAREN_LEFT, "Expect '(' after 'pfor'.");
+        require(TokenType.VAR, "Expect 'var' after '('.");
+        Token name = requireToken(TokenType.IDENTIFIER, "Expect variable name.");
+        require(TokenType.EQUALS, "Expect '=' after variable name.");
+        Expr start = expression();
+        require(TokenType.COMMA, "Expect ',' after start of range.");
+        Expr end = expression();
+        require(TokenType.PAREN_RIGHT, "Expect ')' after end of range.");
+        Stmt body = statement();
+
+        return new Stmt.PFor(keyword, name, start, end, body);
+    }
+
     private Stmt ifStatement() {
-        requireToken(TokenType.PAREN_LEFT, "Expect '(' after 'if'.");
+        require(TokenType.PAREN_LEFT, "Expect '(' after 'if'.");
         Expr condition = expression();
-        requireToken(TokenType.PAREN_RIGHT, "Expect ')' after condition.");
+        require(TokenType.PAREN_RIGHT, "Expect ')' after condition.");
         Stmt thenB = statement();
         Stmt elseB = null;
         if (matchToken(TokenType.ELSE)) {
@@ -148,7 +237,7 @@ public class Parser {
             value = new Expr.Literal("");
         }
         if (!commandMode) {
-            requireToken(TokenType.SEMICOLON, "Expect ';' after value.");
+            require(TokenType.SEMICOLON, "Expect ';' after value.");
         }
         return new Stmt.Print(value);
     }
@@ -159,14 +248,26 @@ public class Parser {
         if (!checkCurrentToken(TokenType.SEMICOLON)) {
             value = expression();
         }
-        requireToken(TokenType.SEMICOLON, "Expect ';' after return value.");
+        require(TokenType.SEMICOLON, "Expect ';' after return value.");
         return new Stmt.Return(keyword, value);
     }
 
+    private Stmt breakStatement() {
+        Token keyword = peekPrevious();
+        require(TokenType.SEMICOLON, "Expect ';' after 'break'.");
+        return new Stmt.Break(keyword);
+    }
+
+    private Stmt continueStatement() {
+        Token keyword = peekPrevious();
+        require(TokenType.SEMICOLON, "Expect ';' after 'continue'.");
+        return new Stmt.Continue(keyword);
+    }
+
     private Stmt whileStatement() {
-        requireToken(TokenType.PAREN_LEFT, "Expect '(' after 'while'.");
+        require(TokenType.PAREN_LEFT, "Expect '(' after 'while'.");
         Expr condition = expression();
-        requireToken(TokenType.PAREN_RIGHT, "Expect ')' after condition.");
+        require(TokenType.PAREN_RIGHT, "Expect ')' after condition.");
         Stmt body = statement();
 
         return new Stmt.While(condition, body);
@@ -181,7 +282,7 @@ public class Parser {
         while (!checkCurrentToken(TokenType.BRACE_RIGHT) && notEOF()) {
             statements.add(declaration());
         }
-        requireToken(TokenType.BRACE_RIGHT, "Expect '}' after block.");
+        require(TokenType.BRACE_RIGHT, "Expect '}' after block.");
         return statements;
     }
 
@@ -205,7 +306,7 @@ public class Parser {
 
     private Stmt functionDefine(String kind) {
         Token token = requireToken(TokenType.IDENTIFIER, "Expect " + kind + " name.");
-        requireToken(TokenType.PAREN_LEFT, "Expect '(' after " + kind + " name.");
+        require(TokenType.PAREN_LEFT, "Expect '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
         if (!checkCurrentToken(TokenType.PAREN_RIGHT)) {
             do {
@@ -215,8 +316,8 @@ public class Parser {
                 parameters.add(requireToken(TokenType.IDENTIFIER, "Expect parameter name."));
             } while (matchToken(TokenType.COMMA));
         }
-        requireToken(TokenType.PAREN_RIGHT, "Expect ')' after parameters.");
-        requireToken(TokenType.BRACE_LEFT, "Expect '{' before " + kind + " body.");
+        require(TokenType.PAREN_RIGHT, "Expect ')' after parameters.");
+        require(TokenType.BRACE_LEFT, "Expect '{' before " + kind + " body.");
         List<Stmt> body = buildBlockStatement();
         return new Stmt.Function(token, parameters, body);
     }
@@ -229,13 +330,13 @@ public class Parser {
             expr = expression();
         }
 
-        requireToken(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
+        require(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
         return new Stmt.Variable(token, expr);
     }
 
     private Stmt expressionStatement() {
         Expr expr = expression();
-        requireToken(TokenType.SEMICOLON, "Expect ';' after expression.");
+        require(TokenType.SEMICOLON, "Expect ';' after expression.");
         return new Stmt.Expression(expr);
     }
 
@@ -257,6 +358,10 @@ public class Parser {
                 Token token = ((Expr.Variable)expr).token;
                 return new Expr.Assign(token, value);
             }
+            if (expr instanceof Expr.Index) {
+                Expr.Index index = (Expr.Index) expr;
+                return new Expr.IndexAssign(index.object, index.bracket, index.index, value);
+            }
             error(equals, "Invalid assignment target.");
         }
         return expr;
@@ -337,15 +442,28 @@ public class Parser {
             return new Expr.Unary(expr, operator);
         }
 
+        if (matchToken(TokenType.AWAIT)) {
+            Token keyword = peekPrevious();
+            return new Expr.Await(keyword, unaryCheck());
+        }
+
         return functionCallCheck();
     }
 
     private Expr functionCallCheck() {
         Expr expr = primaryParseCheck();
+        if (expr == null) {
+            throw error(peekCurrent(), "Expect expression.");
+        }
 
         while (true) {
             if (matchToken(TokenType.PAREN_LEFT)) {
                 expr = functionCallParse(expr);
+            } else if (matchToken(TokenType.BRACKSQ_LEFT)) {
+                Token bracket = peekPrevious();
+                Expr index = expression();
+                require(TokenType.BRACKSQ_RIGHT, "Expect ']' after index.");
+                expr = new Expr.Index(expr, bracket, index);
             } else {
                 break;
             }
@@ -372,7 +490,7 @@ public class Parser {
      */
     private Expr primaryParseCheck() {
         if (matchToken(TokenType.NUMBER, TokenType.STRING, TokenType.BOOLEAN)) {
-            return new Expr.Literal(peekPrevious().literal);
+            return new Expr.Literal(tokens.literal(current - 1));
         }
 
         if (matchToken(TokenType.IDENTIFIER)) {
@@ -381,10 +499,22 @@ public class Parser {
 
         if (matchToken(TokenType.PAREN_LEFT)) {
             Expr expr = expression();
-            requireToken(TokenType.PAREN_RIGHT, "Expect ')' after expression.");
+            require(TokenType.PAREN_RIGHT, "Expect ')' after expression.");
             return new Expr.Grouping(expr);
         }
 
+        if (matchToken(TokenType.BRACKSQ_LEFT)) {
+            return listLiteral();
+        }
+
+        if (matchToken(TokenType.BRACE_LEFT)) {
+            return mapLiteral();
+        }
+
+        if (matchToken(TokenType.ASYNC)) {
+            return asyncCommand();
+        }
+
         return null;
     }
 
@@ -403,24 +533,94 @@ public class Parser {
             case ("help") :         return helpCommand();
             case ("exit") :         return exitCommand();
             case ("reaction") :     return reactionCommand();
+            case ("stats") :        return statsCommand();
             default:                return commandDefault(commandToken);
         }
     }
 
+    private Expr listLiteral() {
+        Token bracket = peekPrevious();
+        List<Expr> elements = new ArrayList<>();
+        if (!checkCurrentToken(TokenType.BRACKSQ_RIGHT)) {
+            do {
+                elements.add(expression());
+            } while (matchToken(TokenType.COMMA));
+        }
+        require(TokenType.BRACKSQ_RIGHT, "Expect ']' after list elements.");
+        return new Expr.ListLiteral(bracket, elements);
+    }
+
+    private Expr mapLiteral() {
+        Token brace = peekPrevious();
+        List<Expr> keys = new ArrayList<>();
+        List<Expr> values = new ArrayList<>();
+        if (!checkCurrentToken(TokenType.BRACE_RIGHT)) {
+            do {
+                keys.add(expression());
+                require(TokenType.COLON, "Expect ':' after map key.");
+                values.add(expression());
+            } while (matchToken(TokenType.COMMA));
+        }
+        require(TokenType.BRACE_RIGHT, "Expect '}' after map entries.");
+        return new Expr.MapLiteral(brace, keys, values);
+    }
+
+    /**
+     * Parses 'async' followed by a command, which runs in the background while the script goes on.
+     * The arguments end before the ';', ')' or ',' that ends the expression around it.
+     */
+    private Expr asyncCommand() {
+        Token commandToken = requireToken(TokenType.COMMAND, "Expect a command after 'async'.");
+        if (!commandToken.lexeme.equals("reaction")) {
+            throw error(commandToken, "Only reaction commands can be async.");
+        }
+        return new Expr.Command(reactionCommand(true));
+    }
+
     private Cmd reactionCommand() {
+        return reactionCommand(false);
+    }
+
+    /**
+     * Parses the flags, the files given with --in and --out, and the reactants of a reaction command.
+     * A reaction read from a file names no reactants.
+     */
+    private Cmd reactionCommand(boolean expression) {
         Arg.Flag flag = null;
-        if (matchToken(TokenType.MINUS)) {
-            if (matchToken(TokenType.MINUS)) {
-                throw error(peekCurrent(), "flag expected");
-            } else {
+        Expr input = null;
+        Expr output = null;
+        while (matchToken(TokenType.MINUS)) {
+            if (!matchToken(TokenType.MINUS)) {
+                if (flag != null) {
+                    throw error(peekCurrent(), "only one set of flags expected");
+                }
                 flag = collectFlag();
+            } else if (matchToken(TokenType.IN)) {
+                input = primaryParseCheck();
+            } else if (checkCurrentToken(TokenType.IDENTIFIER) && peekCurrent().lexeme.equals("out")) {
+                advanceToken();
+                output = primaryParseCheck();
+            } else {
+                throw error(peekCurrent(), "Expect 'in' or 'out' after '--'.");
             }
         }
+        if (output != null && input == null) {
+            throw error(peekPrevious(), "Expect '--in' with '--out'.");
+        }
         List<Arg.Argument> arguments = new ArrayList<>();
-        while (notEOF() && !matchToken(TokenType.SEMICOLON)) {
-            arguments.add(new Arg.Argument(primaryParseCheck()));
+        if (expression) {
+            while (notEOF() && !checkCurrentToken(TokenType.SEMICOLON, TokenType.PAREN_RIGHT, TokenType.COMMA)) {
+                arguments.add(new Arg.Argument(primaryParseCheck()));
+            }
+        } else {
+            while (notEOF() && !matchToken(TokenType.SEMICOLON)) {
+                arguments.add(new Arg.Argument(primaryParseCheck()));
+            }
+        }
+        if (input != null && !arguments.isEmpty()) {
+            throw error(peekPrevious(), "A reaction read with '--in' takes no reactants.");
         }
-        return new Cmd.Reaction(flag, arguments);
+        return new Cmd.Reaction(flag, arguments, input, output);
     }
 
     private Cmd commandDefault(Token commandToken) {
@@ -441,6 +641,10 @@ public class Parser {
         return new Cmd.Exit();
     }
 
+    private Cmd statsCommand() {
+        return new Cmd.Stats();
+    }
+
     /**
      * Collects arguments passed to the command. A single minus denotes flags, double minus denotes a parameter
      * with additional arguments.
@@ -502,8 +706,17 @@ public class Parser {
      * @return The token that was found to match the type
      */
     private Token requireToken(TokenType type, String message) {
+        require(type, message);
+        return peekPrevious();
+    }
+
+    /**
+     * Same as requireToken for when the token itself is not kept.
+     */
+    private void require(TokenType type, String message) {
         if (checkCurrentToken(type)) {
-            return advanceToken();
+            advanceToken();
+            return;
         }
 
         throw error(peekCurrent(), message);
@@ -517,7 +730,7 @@ public class Parser {
      * @return a runtime exception
      */
     private ParseError error(Token token, String message) {
-        Lang.error(token, message);
+        runtime.error(token, message);
         return new ParseError();
     }
 
@@ -529,11 +742,11 @@ public class Parser {
         advanceToken();
 
         while (notEOF()) {
-            if (peekPrevious().type == TokenType.SEMICOLON) {
+            if (tokens.type(current - 1) == TokenType.SEMICOLON) {
                 return;
             }
 
-            switch (peekCurrent().type) {
+            switch (currentType()) {
                 case FUN:
                 case VAR:
                 case FOR:
@@ -568,26 +781,52 @@ public class Parser {
     }
 
     private boolean checkCurrentToken(TokenType tokenType) {
-        return notEOF() && peekCurrent().type == tokenType;
+        return notEOF() && currentType() == tokenType;
+    }
+
+    /**
+     * Whether the token distance places after the current one has the type, lexing up to it first when
+     * streaming.
+     */
+    private boolean checkAhead(int distance, TokenType tokenType) {
+        for (int i = 0; i <= distance; i++) {
+            if (current + i == tokens.count()) {
+                stream.lexNext();
+            }
+            if (tokens.type(current + i) == TokenType.EOF) {
+                return false;
+            }
+        }
+        return tokens.type(current + distance) == tokenType;
     }
 
-    private Token advanceToken() {
+    private void advanceToken() {
         if (notEOF()) {
             current++;
         }
-        return peekPrevious();
     }
 
     private boolean notEOF() {
-        return peekCurrent().type != TokenType.EOF;
+        return currentType() != TokenType.EOF;
+    }
+
+    /**
+     * Type of the current token, lexing it first when streaming.
+     */
+    private TokenType currentType() {
+        if (current == tokens.count()) {
+            stream.lexNext();
+        }
+        return tokens.type(current);
     }
 
     private Token peekCurrent() {
-        return tokenSequence.get(current);
+        currentType();
+        return tokens.token(current);
     }
 
     private Token peekPrevious() {
-        return tokenSequence.get(current - 1);
+        return tokens.token(current - 1);
     }
 
 
@@ -1,5 +1,8 @@
 package net.scottnotfound.clara.lang;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class PrintAST implements IExprVisitor<String> {
 
     public String print(Expr expr) {
@@ -69,4 +72,34 @@ public class PrintAST implements IExprVisitor<String> {
         return null;
     }
 
+    @Override
+    public String visitExpr(Expr.Await expr) {
+        return parenthesize(expr.keyword.lexeme, expr.expression);
+    }
+
+    @Override
+    public String visitExpr(Expr.Index expr) {
+        return parenthesize("index", expr.object, expr.index);
+    }
+
+    @Override
+    public String visitExpr(Expr.IndexAssign expr) {
+        return parenthesize("index=", expr.object, expr.index, expr.value);
+    }
+
+    @Override
+    public String visitExpr(Expr.ListLiteral expr) {
+        return parenthesize("list", expr.elements.toArray(new Expr[0]));
+    }
+
+    @Override
+    public String visitExpr(Expr.MapLiteral expr) {
+        List<Expr> entries = new ArrayList<>();
+        for (int i = 0; i < expr.keys.size(); i++) {
+            entries.add(expr.keys.get(i));
+            entries.add(expr.values.get(i));
+        }
+        return parenthesize("map", entries.toArray(new Expr[0]));
+    }
+
 }
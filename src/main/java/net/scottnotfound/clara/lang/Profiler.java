@@ -0,0 +1,479 @@
+package net.scottnotfound.clara.lang;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Profiles scripts run by the Interpreter. Calls of script functions are instrumented, counting each
+ * call with its inclusive and self time, while a sampler thread looks at what every profiled thread
+ * is running once every -Dclara.profile.interval microseconds, a millisecond by default, and counts
+ * the line of the statement and the stack of calls leading to it.
+ *
+ * An Interpreter only profiles while it has a Stack, and checks for one once per statement and call,
+ * so scripts run as fast as ever when no Profiler is attached. Profiled calls always run in the
+ * Interpreter rather than as compiled code so that every call and line is seen, the times measured
+ * are those of interpreted code.
+ *
+ * Each thread has a Stack of its own, only the sampler reads it from another thread. Those reads are
+ * not synchronized, so a sample taken while a call is made may see a stack that is a frame off.
+ */
+final class Profiler {
+
+    private static final long INTERVAL = TimeUnit.MICROSECONDS.toNanos(Long.getLong("clara.profile.interval", 1000));
+
+    /** Number of functions and lines named in a report. */
+    private static final int TOP = 10;
+
+    private static final String SCRIPT = "<script>";
+
+    private final List<Stack> stacks = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Stack> threadStacks = ThreadLocal.withInitial(this::newStack);
+
+    /* Only touched by the sampler until it has stopped. */
+    private final Map<Integer, Long> lineSamples = new HashMap<>();
+    private final Map<String, Long> stackSamples = new HashMap<>();
+    private final Map<Stmt, Integer> lines = new IdentityHashMap<>();
+    private long samples = 0;
+
+    private Thread sampler;
+    private long started;
+    private long nanos = 0;
+
+    /**
+     * Creates a Stack for an Interpreter that may move between threads, such as the one of a
+     * ClaraRuntime.
+     */
+    Stack newStack() {
+        Stack stack = new Stack(this);
+        stacks.add(stack);
+        return stack;
+    }
+
+    /**
+     * The Stack of the calling thread, for Interpreters only ever used on the thread that created them,
+     * such as those running the iterations of a 'pfor'.
+     */
+    Stack threadStack() {
+        return threadStacks.get();
+    }
+
+    /**
+     * Starts taking samples, does nothing if they are being taken already.
+     */
+    synchronized void start() {
+        if (sampler != null) {
+            return;
+        }
+        started = System.nanoTime();
+        sampler = new Thread(this::sample, "clara-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /**
+     * Stops taking samples and waits for the sampler to finish, calls are counted until the
+     * Interpreters drop their Stacks.
+     */
+    synchronized void stop() {
+        if (sampler == null) {
+            return;
+        }
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sampler = null;
+        nanos += System.nanoTime() - started;
+    }
+
+    private void sample() {
+        while (!Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(INTERVAL);
+            for (Stack stack : stacks) {
+                Stmt statement = stack.statement;
+                if (statement != null) {
+                    record(statement, stack.snapshot());
+                }
+            }
+        }
+    }
+
+    private void record(Stmt statement, String stack) {
+        samples++;
+        lineSamples.merge(line(statement), 1L, Long::sum);
+        stackSamples.merge(stack, 1L, Long::sum);
+    }
+
+    /**
+     * Line of the first token of a statement that has one, -1 for statements made only of literals.
+     */
+    private int line(Stmt statement) {
+        Integer line = lines.get(statement);
+        if (line == null) {
+            line = statement.accept(Lines.INSTANCE);
+            lines.put(statement, line);
+        }
+        return line;
+    }
+
+    /**
+     * Counts of every function called so far, over all threads.
+     */
+    private List<FunctionStats> functions() {
+        Map<Stmt.Function, FunctionStats> functions = new IdentityHashMap<>();
+        for (Stack stack : stacks) {
+            for (FunctionStats stats : stack.functions.values()) {
+                functions.computeIfAbsent(stats.declaration, FunctionStats::new).add(stats);
+            }
+        }
+        return new ArrayList<>(functions.values());
+    }
+
+    /**
+     * Names the functions with the most self time and the lines with the most samples. Only complete
+     * once the Profiler has been stopped.
+     */
+    synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("profile: %d samples in %.1f ms%n", samples, nanos / 1e6));
+
+        List<FunctionStats> functions = functions();
+        functions.sort((a, b) -> Long.compare(b.self, a.self));
+        report.append(String.format("%10s %12s %12s  %s%n", "calls", "self ms", "total ms", "function"));
+        for (FunctionStats stats : functions.subList(0, Math.min(TOP, functions.size()))) {
+            report.append(String.format("%10d %12.3f %12.3f  %s%n", stats.calls, stats.self / 1e6, stats.inclusive / 1e6, stats.name()));
+        }
+
+        List<Map.Entry<Integer, Long>> lines = new ArrayList<>(lineSamples.entrySet());
+        lines.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        report.append(String.format("%10s %12s  %s%n", "samples", "%", "line"));
+        for (Map.Entry<Integer, Long> line : lines.subList(0, Math.min(TOP, lines.size()))) {
+            report.append(String.format("%10d %12.1f  %s%n", line.getValue(), 100.0 * line.getValue() / samples,
+                    line.getKey() == -1 ? "?" : line.getKey()));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Writes the samples as collapsed stacks, one line per distinct stack with its frames from the
+     * outermost separated by ';' and followed by its count, as flame graph tools read them.
+     */
+    synchronized void writeCollapsed(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> stack : new TreeMap<>(stackSamples).entrySet()) {
+                writer.write(stack.getKey() + " " + stack.getValue() + "\n");
+            }
+        }
+    }
+
+    /**
+     * What one thread is running: the script functions it is in and the statement it is at.
+     */
+    static final class Stack {
+
+        private final Profiler profiler;
+        private final Map<Stmt.Function, FunctionStats> functions = new IdentityHashMap<>();
+
+        /* Read by the sampler. */
+        private FunctionStats[] frames = new FunctionStats[64];
+        private int depth = 0;
+        private Stmt statement;
+
+        /* Start of each call in frames and the time spent in calls it made. */
+        private long[] starts = new long[64];
+        private long[] children = new long[64];
+
+        private Stack(Profiler profiler) {
+            this.profiler = profiler;
+        }
+
+        Profiler profiler() {
+            return profiler;
+        }
+
+        /**
+         * Executes a statement, marking it as the one being run until it completes.
+         */
+        Completion execute(Interpreter interpreter, Stmt statement) {
+            Stmt previous = this.statement;
+            this.statement = statement;
+            try {
+                return statement.accept(interpreter);
+            } finally {
+                this.statement = previous;
+            }
+        }
+
+        /**
+         * Calls a function like Function.call does, but always in the Interpreter, timing the call and
+         * every tail call it makes as calls of their own.
+         */
+        Object call(Interpreter interpreter, Function function, Object[] frame) {
+            Object result = callOnce(interpreter, function, frame);
+            while (result instanceof TailCall) {
+                TailCall tailCall = (TailCall) result;
+                result = callOnce(interpreter, tailCall.function, tailCall.frame);
+            }
+            return result;
+        }
+
+        private Object callOnce(Interpreter interpreter, Function function, Object[] frame) {
+            enter(function.declaration());
+            try {
+                return function.interpret(interpreter, frame);
+            } finally {
+                exit();
+            }
+        }
+
+        private void enter(Stmt.Function declaration) {
+            FunctionStats stats = functions.computeIfAbsent(declaration, FunctionStats::new);
+            if (depth == frames.length) {
+                frames = Arrays.copyOf(frames, depth * 2);
+                starts = Arrays.copyOf(starts, depth * 2);
+                children = Arrays.copyOf(children, depth * 2);
+            }
+            stats.active++;
+            starts[depth] = System.nanoTime();
+            children[depth] = 0;
+            frames[depth] = stats;
+            depth++;
+        }
+
+        private void exit() {
+            depth--;
+            long elapsed = System.nanoTime() - starts[depth];
+            FunctionStats stats = frames[depth];
+            stats.calls++;
+            stats.self += elapsed - children[depth];
+            // time of a recursive call is already part of the outermost call of the function
+            if (--stats.active == 0) {
+                stats.inclusive += elapsed;
+            }
+            if (depth > 0) {
+                children[depth - 1] += elapsed;
+            }
+        }
+
+        /**
+         * The frames of the stack from the outermost, as a line of collapsed stacks.
+         */
+        private String snapshot() {
+            FunctionStats[] frames = this.frames;
+            int depth = Math.min(this.depth, frames.length);
+            StringBuilder stack = new StringBuilder(SCRIPT);
+            for (int i = 0; i < depth; i++) {
+                FunctionStats frame = frames[i];
+                if (frame != null) {
+                    stack.append(';').append(frame.declaration.token.lexeme).append(':').append(frame.declaration.token.line);
+                }
+            }
+            return stack.toString();
+        }
+    }
+
+    /**
+     * Calls of one function declaration and the nanoseconds spent in them.
+     */
+    private static final class FunctionStats {
+
+        final Stmt.Function declaration;
+        long calls;
+        long self;
+        long inclusive;
+        int active;
+
+        FunctionStats(Stmt.Function declaration) {
+            this.declaration = declaration;
+        }
+
+        void add(FunctionStats stats) {
+            calls += stats.calls;
+            self += stats.self;
+            inclusive += stats.inclusive;
+        }
+
+        String name() {
+            return declaration.token.lexeme + " (line " + declaration.token.line + ")";
+        }
+    }
+
+    /**
+     * Finds the line of the first token in a statement.
+     */
+    private static final class Lines implements IStmtVisitor<Integer>, IExprVisitor<Integer> {
+
+        static final Lines INSTANCE = new Lines();
+
+        private int first(Expr... exprs) {
+            for (Expr expr : exprs) {
+                int line = expr == null ? -1 : expr.accept(this);
+                if (line != -1) {
+                    return line;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Assign expr) {
+            return expr.token.line;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Await expr) {
+            return expr.keyword.line;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Binary expr) {
+            int line = first(expr.expr_left);
+            return line != -1 ? line : expr.operator.line;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Call expr) {
+            int line = first(expr.callee);
+            return line != -1 ? line : expr.paren.line;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Command expr) {
+            return -1;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Grouping expr) {
+            return first(expr.expression);
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Index expr) {
+            int line = first(expr.object);
+            return line != -1 ? line : expr.bracket.line;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.IndexAssign expr) {
+            int line = first(expr.object);
+            return line != -1 ? line : expr.bracket.line;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.ListLiteral expr) {
+            return expr.bracket.line;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Literal expr) {
+            return -1;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Logical expr) {
+            int line = first(expr.left);
+            return line != -1 ? line : expr.operator.line;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.MapLiteral expr) {
+            return expr.brace.line;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Unary expr) {
+            return expr.operator.line;
+        }
+
+        @Override
+        public Integer visitExpr(Expr.Variable expr) {
+            return expr.token.line;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Block stmt) {
+            for (Stmt statement : stmt.statements) {
+                int line = statement.accept(this);
+                if (line != -1) {
+                    return line;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Break stmt) {
+            return stmt.token.line;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Command stmt) {
+            return -1;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Continue stmt) {
+            return stmt.token.line;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Expression stmt) {
+            return first(stmt.expression);
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.ForIn stmt) {
+            return stmt.keyword.line;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Function stmt) {
+            return stmt.token.line;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.If stmt) {
+            return first(stmt.condition);
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.PFor stmt) {
+            return stmt.keyword.line;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Print stmt) {
+            return first(stmt.value);
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Return stmt) {
+            return stmt.token.line;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.Variable stmt) {
+            return stmt.token.line;
+        }
+
+        @Override
+        public Integer visitStmt(Stmt.While stmt) {
+            return first(stmt.condition);
+        }
+    }
+}
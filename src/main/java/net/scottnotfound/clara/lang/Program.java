@@ -0,0 +1,28 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A script that has been parsed, resolved and optimized, ready to be run by a ClaraRuntime. The
+ * statements do not change once compiled, so one Program can be run any number of times, by several
+ * runtimes at once. The caches the Interpreter keeps in the tree, such as call site callees and
+ * specializations, are written so that runtimes sharing them only ever see values that are right
+ * for all of them.
+ */
+public final class Program {
+
+    final List<Stmt> statements;
+
+    /** The last statement when it is an expression, whose value is the value of the script. */
+    final Stmt.Expression result;
+
+    /** How the globals of the statements were numbered, which runtimes running them switch to. */
+    final Globals.Layout layout;
+
+    Program(List<Stmt> statements, Stmt.Expression result, Globals.Layout layout) {
+        this.statements = Collections.unmodifiableList(statements);
+        this.result = result;
+        this.layout = layout;
+    }
+}
@@ -1,18 +1,55 @@
 package net.scottnotfound.clara.lang;
 
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVisitor<Void>, IArgVisitor<Void> {
 
-    private final Interpreter interpreter;
+    /* Keyed by identity, the Lexer interns every name. */
     private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Map<String, Integer>> slots = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    /** Number of loops around the statement being resolved within the current function. */
+    private int loopDepth = 0;
+
+    /** True in the body of a 'pfor' when no loop or function lies in between. */
+    private boolean parallelBody = false;
+
+    /**
+     * Index in scopes of the frame of the innermost 'pfor', -1 outside of one. Iterations run at the
+     * same time, so nothing in scopes below it, nor any global, may be assigned in the body.
+     */
+    private int parallelScope = -1;
+
+    /* Functions declared in each scope of scopes, and at the top level, so calls can be checked. */
+    private final Stack<Map<String, Stmt.Function>> functions = new Stack<>();
+    private final Map<String, Stmt.Function> globalFunctions = new HashMap<>();
+
+    /* Functions being resolved, innermost last, and the index in scopes of their parameters. */
+    private final Stack<Stmt.Function> enclosingFunctions = new Stack<>();
+    private final Stack<Integer> functionScopes = new Stack<>();
+
+    /**
+     * For each function resolved, the index in scopes of the outermost variable declared outside of
+     * it that it or a function it calls assigns, appends to or assigns an element of, -1 for a global.
+     * Functions that only write their own variables are left out. A 'pfor' body may not call one that
+     * writes outside of the body.
+     */
+    private final Map<Stmt.Function, Integer> writes = new IdentityHashMap<>();
+
+    /* Where errors are reported. */
+    private final ClaraRuntime runtime;
+
+    /* Gives globals their slots in the Layout of the runtime. */
+    private final Globals globals;
+
+    Resolver(ClaraRuntime runtime) {
+        this.runtime = runtime;
+        this.globals = runtime.interpreter.globals;
     }
 
     void resolveStmts(List<Stmt> statements) {
@@ -43,37 +80,67 @@ public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVis
         expr.accept(this);
     }
 
-    private void resolveLocal(Expr expression, Token token) {
+    /**
+     * Finds how many scopes up the variable was declared. Returns -1 if the variable is not
+     * declared in any enclosing scope, in which case it is a global.
+     */
+    private int resolveDepth(Token token) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
             if (scopes.get(i).containsKey(token.lexeme)) {
-                interpreter.resolve(expression, scopes.size() - 1 - i);
-                return;
+                return scopes.size() - 1 - i;
             }
         }
+        return -1;
+    }
+
+    private int resolveSlot(Token token, int depth) {
+        return slots.get(slots.size() - 1 - depth).get(token.lexeme);
     }
 
     private void resolveFunction(Stmt.Function statement, FunctionType functionType) {
         FunctionType enclosingFunction = currentFunction;
+        int enclosingLoopDepth = loopDepth;
+        boolean enclosingParallelBody = parallelBody;
         currentFunction = functionType;
+        loopDepth = 0;
+        parallelBody = false;
         beginScope();
+        enclosingFunctions.push(statement);
+        functionScopes.push(scopes.size() - 1);
         for (Token param : statement.parameters) {
             declare(param);
             define(param);
         }
         resolveStmts(statement.body);
-        endScope();
+        statement.writesOutside = writes.containsKey(statement);
+        enclosingFunctions.pop();
+        functionScopes.pop();
+        statement.slots = endScope();
         currentFunction = enclosingFunction;
+        loopDepth = enclosingLoopDepth;
+        parallelBody = enclosingParallelBody;
     }
 
-    private void declare(Token token) {
+    /**
+     * Declares the variable in the innermost scope and gives it the next free slot of that scope. A
+     * global is given its slot in the Globals instead.
+     *
+     * @return the slot of the variable, or -1 if the variable is a global
+     */
+    private int declare(Token token) {
         if (scopes.isEmpty()) {
-            return;
+            globals.slot(token.lexeme);
+            return -1;
         }
         Map<String, Boolean> scope = scopes.peek();
+        Map<String, Integer> scopeSlots = slots.peek();
         if (scope.containsKey(token.lexeme)) {
-            Lang.error(token, "Variable with this name already declared in this scope.");
+            runtime.error(token, "Variable with this name already declared in this scope.");
+            return scopeSlots.get(token.lexeme);
         }
         scope.put(token.lexeme, false);
+        scopeSlots.put(token.lexeme, scopeSlots.size());
+        return scopeSlots.size() - 1;
     }
 
     private void define(Token token) {
@@ -82,12 +149,62 @@ public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVis
         }
         scopes.peek().put(token.lexeme, true);
     }
-    private void endScope() {
+
+    /**
+     * Closes the innermost scope.
+     *
+     * @return the number of slots the scope needs
+     */
+    private int endScope() {
         scopes.pop();
+        functions.pop();
+        return slots.pop().size();
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<>());
+        scopes.push(new IdentityHashMap<>());
+        slots.push(new IdentityHashMap<>());
+        functions.push(new IdentityHashMap<>());
+    }
+
+    /**
+     * The index in scopes of the scope a variable resolved to depth was declared in, -1 for a global.
+     */
+    private int scopeOf(int depth) {
+        return depth == -1 ? -1 : scopes.size() - 1 - depth;
+    }
+
+    /**
+     * Checks a write to a variable declared in the scope at index scope, -1 for a global, which may
+     * not be outside of the innermost 'pfor' body since its iterations run at the same time. The
+     * write is recorded for the functions being resolved that the variable is declared outside of.
+     */
+    private void write(Token token, int scope, String message) {
+        if (parallelScope != -1 && scope < parallelScope) {
+            runtime.error(token, message);
+        }
+        for (int i = enclosingFunctions.size() - 1; i >= 0 && functionScopes.get(i) > scope; i--) {
+            writes.merge(enclosingFunctions.get(i), scope, Math::min);
+        }
+    }
+
+    /**
+     * The variable a list or map expression such as 'xs[i][j]' reads its elements from, or null if it
+     * is not read from a variable.
+     */
+    private static Expr.Variable root(Expr expr) {
+        while (expr instanceof Expr.Index || expr instanceof Expr.Grouping) {
+            expr = expr instanceof Expr.Index ? ((Expr.Index) expr).object : ((Expr.Grouping) expr).expression;
+        }
+        return expr instanceof Expr.Variable ? (Expr.Variable) expr : null;
+    }
+
+    /**
+     * The declaration of the function a variable names, or null if it does not name one.
+     */
+    private Stmt.Function function(Expr.Variable variable) {
+        int scope = scopeOf(variable.depth);
+        return scope == -1 ? globalFunctions.get(variable.token.lexeme) : functions.get(scope).get(variable.token.lexeme);
     }
 
 
@@ -96,6 +213,42 @@ public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVis
         return null;
     }
 
+    @Override
+    public Void visitExpr(Expr.Index expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.IndexAssign expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+        resolve(expr.value);
+        Expr.Variable list = root(expr.object);
+        if (list != null) {
+            write(expr.bracket, scopeOf(list.depth), "Cannot assign an element of a variable declared outside of a 'pfor' body.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.ListLiteral expr) {
+        for (Expr element : expr.elements) {
+            resolve(element);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.MapLiteral expr) {
+        for (int i = 0; i < expr.keys.size(); i++) {
+            resolve(expr.keys.get(i));
+            resolve(expr.values.get(i));
+        }
+        return null;
+    }
+
     @Override
     public Void visitExpr(Expr.Grouping expr) {
         resolve(expr.expression);
@@ -118,17 +271,28 @@ public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVis
     @Override
     public Void visitExpr(Expr.Variable expr) {
         if (!scopes.isEmpty() && scopes.peek().get(expr.token.lexeme) == Boolean.FALSE) {
-            Lang.error(expr.token, "Cannot read local variable in its own initializer.");
+            runtime.error(expr.token, "Cannot read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.token);
+        expr.depth = resolveDepth(expr.token);
+        if (expr.depth != -1) {
+            expr.slot = resolveSlot(expr.token, expr.depth);
+        } else {
+            expr.globalSlot = globals.slot(expr.token.lexeme);
+        }
         return null;
     }
 
     @Override
     public Void visitExpr(Expr.Assign expr) {
         resolve(expr.expression);
-        resolveLocal(expr, expr.token);
+        expr.depth = resolveDepth(expr.token);
+        if (expr.depth != -1) {
+            expr.slot = resolveSlot(expr.token, expr.depth);
+        } else {
+            expr.globalSlot = globals.slot(expr.token.lexeme);
+        }
+        write(expr.token, scopeOf(expr.depth), "Cannot assign to a variable declared outside of a 'pfor' body.");
         return null;
     }
 
@@ -145,11 +309,34 @@ public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVis
         for (Expr argument : expr.arguments) {
             resolve(argument);
         }
+        if (!(expr.callee instanceof Expr.Variable)) {
+            return null;
+        }
+        Expr.Variable callee = (Expr.Variable) expr.callee;
+        Stmt.Function function = function(callee);
+        if (function != null) {
+            Integer scope = writes.get(function);
+            if (scope != null) {
+                write(expr.paren, scope, "Cannot call a function that assigns a variable declared outside of a 'pfor' body.");
+            }
+        } else if (callee.depth == -1 && callee.token.lexeme.equals("append") && !expr.arguments.isEmpty()) {
+            Expr.Variable list = root(expr.arguments.get(0));
+            if (list != null) {
+                write(expr.paren, scopeOf(list.depth), "Cannot append to a list declared outside of a 'pfor' body.");
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr.Await expr) {
+        resolve(expr.expression);
         return null;
     }
 
     @Override
     public Void visitExpr(Expr.Command expr) {
+        resolve(expr.cmd);
         return null;
     }
 
@@ -157,7 +344,15 @@ public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVis
     public Void visitStmt(Stmt.Block stmt) {
         beginScope();
         resolveStmts(stmt.statements);
-        endScope();
+        stmt.slots = endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitStmt(Stmt.Break stmt) {
+        if (loopDepth == 0) {
+            runtime.error(stmt.token, parallelBody ? "Cannot use 'break' in a 'pfor' body." : "Cannot use 'break' outside of a loop.");
+        }
         return null;
     }
 
@@ -167,6 +362,14 @@ public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVis
         return null;
     }
 
+    @Override
+    public Void visitStmt(Stmt.Continue stmt) {
+        if (loopDepth == 0 && !parallelBody) {
+            runtime.error(stmt.token, "Cannot use 'continue' outside of a loop.");
+        }
+        return null;
+    }
+
     @Override
     public Void visitStmt(Stmt.Expression stmt) {
         resolve(stmt.expression);
@@ -175,8 +378,9 @@ public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVis
 
     @Override
     public Void visitStmt(Stmt.Function stmt) {
-        declare(stmt.token);
+        stmt.slot = declare(stmt.token);
         define(stmt.token);
+        (scopes.isEmpty() ? globalFunctions : functions.peek()).put(stmt.token.lexeme, stmt);
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
     }
@@ -191,6 +395,49 @@ public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVis
         return null;
     }
 
+    /**
+     * Resolves the iterable in the enclosing scope and the body in a scope of its own holding the loop
+     * variable.
+     */
+    @Override
+    public Void visitStmt(Stmt.ForIn stmt) {
+        resolve(stmt.iterable);
+        beginScope();
+        declare(stmt.name);
+        define(stmt.name);
+        loopDepth++;
+        resolve(stmt.body);
+        loopDepth--;
+        stmt.slots = endScope();
+        return null;
+    }
+
+    /**
+     * Resolves the range in the enclosing scope and the body in a scope of its own holding the loop
+     * variable, which the body may assign.
+     */
+    @Override
+    public Void visitStmt(Stmt.PFor stmt) {
+        resolve(stmt.start);
+        resolve(stmt.end);
+
+        int enclosingLoopDepth = loopDepth;
+        boolean enclosingParallelBody = parallelBody;
+        int enclosingParallelScope = parallelScope;
+        loopDepth = 0;
+        parallelBody = true;
+        beginScope();
+        parallelScope = scopes.size() - 1;
+        declare(stmt.name);
+        define(stmt.name);
+        resolve(stmt.body);
+        stmt.slots = endScope();
+        loopDepth = enclosingLoopDepth;
+        parallelBody = enclosingParallelBody;
+        parallelScope = enclosingParallelScope;
+        return null;
+    }
+
     @Override
     public Void visitStmt(Stmt.Print stmt) {
         resolve(stmt.value);
@@ -200,17 +447,31 @@ public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVis
     @Override
     public Void visitStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lang.error(stmt.token, "Cannot return from top-level code.");
+            runtime.error(stmt.token, "Cannot return from top-level code.");
+        } else if (parallelBody) {
+            runtime.error(stmt.token, "Cannot return from a 'pfor' body.");
         }
         if (stmt.value != null) {
             resolve(stmt.value);
         }
+        stmt.tailCall = tailCall(stmt.value);
         return null;
     }
 
+    /**
+     * The call a return statement returns the result of directly, nothing is left to do in the
+     * calling function once it returns.
+     */
+    static Expr.Call tailCall(Expr value) {
+        while (value instanceof Expr.Grouping) {
+            value = ((Expr.Grouping) value).expression;
+        }
+        return value instanceof Expr.Call ? (Expr.Call) value : null;
+    }
+
     @Override
     public Void visitStmt(Stmt.Variable stmt) {
-        declare(stmt.token);
+        stmt.slot = declare(stmt.token);
         if (stmt.expression != null) {
             resolve(stmt.expression);
         }
@@ -221,12 +482,20 @@ public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVis
     @Override
     public Void visitStmt(Stmt.While stmt) {
         resolve(stmt.condition);
+        loopDepth++;
         resolve(stmt.body);
+        loopDepth--;
+        if (stmt.increment != null) {
+            resolve(stmt.increment);
+        }
         return null;
     }
 
     @Override
     public Void visitArg(Arg.Argument arg) {
+        if (arg.expr != null) {
+            resolve(arg.expr);
+        }
         return null;
     }
 
@@ -260,6 +529,17 @@ public class Resolver implements IExprVisitor<Void>, IStmtVisitor<Void>, ICmdVis
         for (Arg.Argument argument : cmd.reactants) {
             resolve(argument);
         }
+        if (cmd.input != null) {
+            resolve(cmd.input);
+        }
+        if (cmd.output != null) {
+            resolve(cmd.output);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCmd(Cmd.Stats cmd) {
         return null;
     }
 }
@@ -1,11 +1,16 @@
 package net.scottnotfound.clara.lang;
 
+/**
+ * An error in a running script, reported with the line of the token, if there is one. The Java stack trace is only
+ * filled in when Lang runs in debug mode, filling it in walks the whole Java stack, which is very
+ * deep in recursive scripts.
+ */
 class RuntimeError extends RuntimeException {
 
     final Token token;
 
     RuntimeError(Token token, String message) {
-        super(message);
+        super(message, null, false, Lang.debug);
         this.token = token;
     }
 }
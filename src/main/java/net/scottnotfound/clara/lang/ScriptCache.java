@@ -0,0 +1,335 @@
+package net.scottnotfound.clara.lang;
+
+import net.scottnotfound.clara.Clara;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps scripts on disk as resolved statements, so a script that has not changed skips lexing,
+ * parsing, resolving and optimizing when it is run again. An entry is named by a hash of the source
+ * and of everything else the statements depend on: the Clara version, the entry format, the token
+ * types and whether the Optimizer ran. A changed script or a new version never finds an old entry.
+ *
+ * An entry is written to a temporary file and moved into place once the whole script has run without
+ * errors, so a failed or concurrent run never leaves part of an entry behind. Entries are mapped when
+ * read, and checked against their checksum before any of their statements run. One that fails the
+ * check is deleted and the script is run from source. Once there are more than maxEntries entries,
+ * those used least recently are deleted.
+ *
+ * One cache may be shared by runtimes running at once. Entries are only ever replaced whole, and the
+ * counts are kept in atomics.
+ */
+final class ScriptCache {
+
+    private static final int MAGIC = 0x434c4143;
+
+    /* Bump when AstWriter changes how statements are written. */
+    private static final int FORMAT = 7;
+
+    private static final String ENTRY = ".ast";
+    private static final String STATS = "stats";
+
+    private final Path directory;
+    private final int maxEntries;
+
+    /* Counts for this process, added to the totals kept in the directory by saveStats. */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private volatile long[] totals;
+
+    ScriptCache(Path directory, int maxEntries) {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * The default directory, from -Dclara.cache.dir or .clara/cache in the home directory.
+     */
+    static Path defaultDirectory() {
+        String directory = System.getProperty("clara.cache.dir");
+        if (directory != null) {
+            return Paths.get(directory);
+        }
+        return Paths.get(System.getProperty("user.home"), ".clara", "cache");
+    }
+
+    /**
+     * Starts the hash a script's entry is found by.
+     */
+    static MessageDigest digest(boolean optimized) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update((Clara.APP_VERSION + '\0' + FORMAT + '\0' + optimized + '\0').getBytes(StandardCharsets.UTF_8));
+        for (TokenType type : TokenType.values()) {
+            digest.update(type.name().getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+        return digest;
+    }
+
+    /**
+     * Hashes a script file, reading it through a mapping.
+     */
+    static byte[] key(Path script, boolean optimized) throws IOException {
+        MessageDigest digest = digest(optimized);
+        try (FileChannel channel = FileChannel.open(script, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Integer.MAX_VALUE, size - position)));
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Finds the entry for a key, returns a reader over its statements or null if there is none.
+     */
+    AstReader find(byte[] key) {
+        Path path = path(key);
+        if (!Files.exists(path)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            ByteBuffer entry;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                entry = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (!valid(entry, key)) {
+                invalid.incrementAndGet();
+                misses.incrementAndGet();
+                Files.deleteIfExists(path);
+                return null;
+            }
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            return new AstReader(entry);
+        } catch (IOException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Checks the header and the checksum of a mapped entry, and leaves it positioned at the statements.
+     */
+    private static boolean valid(ByteBuffer entry, byte[] key) {
+        byte[] version = Clara.APP_VERSION.getBytes(StandardCharsets.UTF_8);
+        int header = 4 + 4 + 4 + version.length + key.length;
+        if (entry.remaining() < header + 1 + 4) {
+            return false;
+        }
+        if (entry.getInt() != MAGIC || entry.getInt() != FORMAT || entry.getInt() != version.length) {
+            return false;
+        }
+        byte[] stored = new byte[version.length + key.length];
+        entry.get(stored);
+        if (!Arrays.equals(Arrays.copyOfRange(stored, 0, version.length), version)
+                || !Arrays.equals(Arrays.copyOfRange(stored, version.length, stored.length), key)) {
+            return false;
+        }
+        int end = entry.limit() - 4;
+        CRC32 crc = new CRC32();
+        ByteBuffer statements = entry.duplicate();
+        statements.limit(end);
+        crc.update(statements);
+        if ((int) crc.getValue() != entry.getInt(end)) {
+            return false;
+        }
+        entry.limit(end);
+        return true;
+    }
+
+    /**
+     * Starts writing an entry for a key. Returns null if the directory can not be written to.
+     */
+    Writer create(byte[] key) {
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, hex(key), ".tmp");
+            return new Writer(key, temporary);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Path path(byte[] key) {
+        return directory.resolve(hex(key) + ENTRY);
+    }
+
+    private static String hex(byte[] key) {
+        StringBuilder builder = new StringBuilder(key.length * 2);
+        for (byte b : key) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Deletes the entries used least recently while there are more than maxEntries.
+     */
+    private void prune() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + ENTRY)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        }
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+        entries.sort(Comparator.comparingLong(entry -> entry.toFile().lastModified()));
+        for (Path entry : entries.subList(0, entries.size() - maxEntries)) {
+            Files.deleteIfExists(entry);
+        }
+    }
+
+    /**
+     * Adds the counts of this process to the totals kept in the directory. The file is locked while
+     * it is updated, so runs sharing the directory do not lose each other's counts.
+     */
+    synchronized void saveStats() {
+        try {
+            Files.createDirectories(directory);
+            try (FileChannel channel = FileChannel.open(directory.resolve(STATS),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    ByteBuffer counts = ByteBuffer.allocate(4 * 8);
+                    while (counts.hasRemaining() && channel.read(counts, counts.position()) > 0) {}
+                    counts.flip();
+                    long[] totals = new long[4];
+                    for (int i = 0; i < totals.length && counts.remaining() >= 8; i++) {
+                        totals[i] = counts.getLong();
+                    }
+                    totals[0] += hits.get();
+                    totals[1] += misses.get();
+                    totals[2] += invalid.get();
+                    totals[3] += stored.get();
+                    counts.clear();
+                    for (long total : totals) {
+                        counts.putLong(total);
+                    }
+                    counts.flip();
+                    channel.write(counts, 0);
+                    this.totals = totals;
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException e) {
+            totals = null;
+        }
+    }
+
+    /**
+     * The counts of this process, and the totals of every run when saveStats has read them.
+     */
+    String report() {
+        String report = "script cache: " + counts(hits.get(), misses.get(), invalid.get(), stored.get());
+        long[] totals = this.totals;
+        if (totals != null) {
+            report += ", in total " + counts(totals[0], totals[1], totals[2], totals[3]);
+        }
+        return report;
+    }
+
+    private static String counts(long hits, long misses, long invalid, long stored) {
+        return hits + " hits, " + misses + " misses, " + invalid + " invalid, " + stored + " stored";
+    }
+
+    /**
+     * Writes the statements of a script as they are prepared. Nothing is kept unless commit is called.
+     */
+    final class Writer {
+
+        private final byte[] key;
+        private final Path temporary;
+        private final OutputStream file;
+        private final CheckedOutputStream out;
+        private final AstWriter writer = new AstWriter();
+        private boolean failed = false;
+
+        private Writer(byte[] key, Path temporary) throws IOException {
+            this.key = key;
+            this.temporary = temporary;
+            this.file = new BufferedOutputStream(Files.newOutputStream(temporary));
+            byte[] version = Clara.APP_VERSION.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(4 + 4 + 4 + version.length + key.length);
+            header.putInt(MAGIC).putInt(FORMAT).putInt(version.length).put(version).put(key);
+            file.write(header.array());
+            this.out = new CheckedOutputStream(file, new CRC32());
+        }
+
+        void write(Stmt stmt) {
+            if (failed) {
+                return;
+            }
+            try {
+                writer.write(stmt, out);
+            } catch (IOException | IllegalArgumentException e) {
+                failed = true;
+            }
+        }
+
+        /**
+         * Moves the entry into place, if every statement could be written and the script read is
+         * the one the key was made from.
+         */
+        void commit(byte[] read) {
+            if (failed || !Arrays.equals(read, key)) {
+                abort();
+                return;
+            }
+            try {
+                writer.end(out);
+                int crc = (int) out.getChecksum().getValue();
+                file.write(ByteBuffer.allocate(4).putInt(crc).array());
+                file.close();
+                try {
+                    Files.move(temporary, path(key), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, path(key), StandardCopyOption.REPLACE_EXISTING);
+                }
+                stored.incrementAndGet();
+                prune();
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        void abort() {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package net.scottnotfound.clara.lang;
+
+/**
+ * Operand types an operator node has been specialized for by the Interpreter. A node starts out
+ * UNINITIALIZED, picks a specialization from the operands of its first evaluation and falls back to
+ * GENERIC for good once the operands no longer match.
+ */
+enum Specialization {
+    /** Not evaluated yet. */
+    UNINITIALIZED,
+    /** Operands are numbers, evaluated without boxing intermediate results. */
+    NUMBER,
+    /** Operands of '+' are strings. */
+    STRING,
+    /** Operand is a boolean, its truth can be read without isTruthy. */
+    BOOLEAN,
+    /** Any operand types, checked on every evaluation. */
+    GENERIC
+}
@@ -29,6 +29,25 @@ abstract class Stmt {
         }
 
         final List<Stmt> statements;
+
+        /* Number of local slots declared directly in this block, set by the Resolver. */
+        int slots;
+    }
+
+    /**
+     * Used when the statement is a 'break' out of the innermost loop.
+     */
+    static class Break extends Stmt {
+        Break(Token token) {
+            this.token = token;
+        }
+
+        @Override
+        <R> R accept(IStmtVisitor<R> visitor) {
+            return visitor.visitStmt(this);
+        }
+
+        final Token token;
     }
 
     /**
@@ -47,6 +66,22 @@ abstract class Stmt {
         final Cmd cmd;
     }
 
+    /**
+     * Used when the statement is a 'continue' with the next iteration of the innermost loop.
+     */
+    static class Continue extends Stmt {
+        Continue(Token token) {
+            this.token = token;
+        }
+
+        @Override
+        <R> R accept(IStmtVisitor<R> visitor) {
+            return visitor.visitStmt(this);
+        }
+
+        final Token token;
+    }
+
     /**
      * Used when the statement is just an expression.
      */
@@ -63,6 +98,34 @@ abstract class Stmt {
         final Expr expression;
     }
 
+    /**
+     * Used when the statement is a loop over the elements of a list or the keys of a map, written
+     * for (var name in iterable) body. Each iteration runs in a frame of its own holding the loop
+     * variable. The elements are read as the loop goes, so elements appended to a list by the body are
+     * visited too, while the keys of a map are the ones it had when the loop started.
+     */
+    static class ForIn extends Stmt {
+        ForIn(Token keyword, Token name, Expr iterable, Stmt body) {
+            this.keyword = keyword;
+            this.name = name;
+            this.iterable = iterable;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(IStmtVisitor<R> visitor) {
+            return visitor.visitStmt(this);
+        }
+
+        final Token keyword;
+        final Token name;
+        final Expr iterable;
+        final Stmt body;
+
+        /* Size of the frame of each iteration, the loop variable is in slot 0. Set by the Resolver. */
+        int slots;
+    }
+
     /**
      * Used when the statement is a function definition.
      */
@@ -71,6 +134,7 @@ abstract class Stmt {
             this.token = token;
             this.parameters = parameters;
             this.body = body;
+            this.profile = new FunctionProfile(parameters.size());
         }
 
         @Override
@@ -81,6 +145,16 @@ abstract class Stmt {
         final Token token;
         final List<Token> parameters;
         final List<Stmt> body;
+
+        /* Slot of the function name in the enclosing frame (-1 for a global) and size of the call frame. */
+        int slot = -1;
+        int slots;
+
+        /* Call counts and argument types collected while interpreting, used by the JitCompiler. */
+        final FunctionProfile profile;
+
+        /* Whether it or a function it calls writes to a variable declared outside of it, set by the Resolver. */
+        boolean writesOutside;
     }
 
     /**
@@ -103,6 +177,36 @@ abstract class Stmt {
         final Stmt elseB;
     }
 
+    /**
+     * Used when the statement is a 'pfor' loop, written pfor (var name = start, end) body. The body
+     * runs once for each whole step from start up to but not including end, with the iterations
+     * running in parallel, each in a frame of its own holding the loop variable. The Resolver makes
+     * sure the body assigns nothing declared outside of it, so the iterations can run in any order.
+     */
+    static class PFor extends Stmt {
+        PFor(Token keyword, Token name, Expr start, Expr end, Stmt body) {
+            this.keyword = keyword;
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(IStmtVisitor<R> visitor) {
+            return visitor.visitStmt(this);
+        }
+
+        final Token keyword;
+        final Token name;
+        final Expr start;
+        final Expr end;
+        final Stmt body;
+
+        /* Size of the frame of each iteration, the loop variable is in slot 0. Set by the Resolver. */
+        int slots;
+    }
+
     /**
      * Used when the statement is a print statement.
      */
@@ -135,6 +239,9 @@ abstract class Stmt {
 
         final Token token;
         final Expr value;
+
+        /* Set by the Resolver when the value is a call whose result is returned as is. */
+        Expr.Call tailCall;
     }
 
     /**
@@ -153,15 +260,24 @@ abstract class Stmt {
 
         final Token token;
         final Expr expression;
+
+        /* Slot in the enclosing frame, -1 for a global. Set by the Resolver. */
+        int slot = -1;
     }
 
     /**
-     * Used when the statement is a while statement.
+     * Used when the statement is a while statement. For loops are turned into while loops with an
+     * increment, which runs after the body, including when the body ends with 'continue'.
      */
     static class While extends Stmt {
         While(Expr condition, Stmt body) {
+            this(condition, body, null);
+        }
+
+        While(Expr condition, Stmt body, Expr increment) {
             this.condition = condition;
             this.body = body;
+            this.increment = increment;
         }
 
         @Override
@@ -171,6 +287,7 @@ abstract class Stmt {
 
         final Expr condition;
         final Stmt body;
+        final Expr increment;
     }
 
 
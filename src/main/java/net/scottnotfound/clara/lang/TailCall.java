@@ -0,0 +1,16 @@
+package net.scottnotfound.clara.lang;
+
+/**
+ * Returned by a function whose last action is calling another function. The caller's Function.call
+ * makes the call instead, so tail calls do not grow the Java stack.
+ */
+final class TailCall {
+
+    final Function function;
+    final Object[] frame;
+
+    TailCall(Function function, Object[] frame) {
+        this.function = function;
+        this.frame = frame;
+    }
+}
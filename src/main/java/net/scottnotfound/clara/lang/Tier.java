@@ -0,0 +1,15 @@
+package net.scottnotfound.clara.lang;
+
+/**
+ * How a function is currently being executed.
+ */
+public enum Tier {
+    /** Run by the tree walking Interpreter while call counts and argument types are collected. */
+    INTERPRETED,
+    /** Compiled to a JVM class by the JitCompiler. */
+    COMPILED,
+    /** Uses something the JitCompiler does not support, stays with the Interpreter. */
+    UNSUPPORTED,
+    /** Compiled code kept failing its type guards, stays with the Interpreter. */
+    DEOPTIMIZED
+}
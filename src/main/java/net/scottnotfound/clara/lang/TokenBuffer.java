@@ -0,0 +1,154 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tokens held as parallel arrays instead of Token objects. The Lexer fills the buffer and the Parser
+ * reads token types straight from it, creating a Token only for the tokens it keeps in the tree. A
+ * token is created at most once, so the tree can rely on Token identity as before.
+ *
+ * The lexeme of a token is kept as offsets into the source, except for identifiers whose literal is
+ * their name interned by the Lexer.
+ */
+final class TokenBuffer {
+
+    private TokenType[] types = new TokenType[64];
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int[] lines = new int[64];
+    /* Index into values, -1 for tokens without a literal. */
+    private int[] literals = new int[64];
+    private Token[] tokens = new Token[64];
+    private int count = 0;
+
+    private Object[] values = new Object[16];
+    private int valueCount = 0;
+
+    /* Characters the offsets refer to, replaced by the Lexer when it moves them. */
+    char[] source;
+
+    TokenBuffer(char[] source) {
+        this.source = source;
+    }
+
+    /**
+     * Wraps tokens that already exist, such as tokens passed to the Parser by other code. Identifier
+     * names are interned so they can be compared by identity like those from the Lexer.
+     */
+    static TokenBuffer of(List<Token> tokenSequence) {
+        TokenBuffer buffer = new TokenBuffer(new char[0]);
+        for (Token token : tokenSequence) {
+            if (token.type == TokenType.IDENTIFIER) {
+                token.lexeme = token.lexeme.intern();
+            }
+            int index = buffer.add(token.type, 0, 0, token.line, null);
+            buffer.tokens[index] = token;
+        }
+        return buffer;
+    }
+
+    int add(TokenType type, int start, int end, int line, Object literal) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            literals = Arrays.copyOf(literals, capacity);
+            tokens = Arrays.copyOf(tokens, capacity);
+        }
+        types[count] = type;
+        starts[count] = start;
+        ends[count] = end;
+        lines[count] = line;
+        if (literal != null) {
+            if (valueCount == values.length) {
+                values = Arrays.copyOf(values, valueCount * 2);
+            }
+            values[valueCount] = literal;
+            literals[count] = valueCount++;
+        } else {
+            literals[count] = -1;
+        }
+        return count++;
+    }
+
+    int count() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return types[index];
+    }
+
+    Object literal(int index) {
+        if (types[index] == TokenType.IDENTIFIER || literals[index] == -1) {
+            return null;
+        }
+        return values[literals[index]];
+    }
+
+    /**
+     * The token at index, created the first time it is asked for.
+     */
+    Token token(int index) {
+        Token token = tokens[index];
+        if (token == null) {
+            String lexeme = types[index] == TokenType.IDENTIFIER
+                    ? (String) values[literals[index]]
+                    : new String(source, starts[index], ends[index] - starts[index]);
+            token = new Token(types[index], lexeme, literal(index), lines[index]);
+            tokens[index] = token;
+        }
+        return token;
+    }
+
+    /**
+     * Start of the first token held, or -1 if there is none. The Lexer keeps the source from here on.
+     */
+    int firstStart() {
+        return count > 0 ? starts[0] : -1;
+    }
+
+    /**
+     * Called by the Lexer after it dropped the first characters of the source.
+     */
+    void shift(int characters) {
+        for (int i = 0; i < count; i++) {
+            starts[i] -= characters;
+            ends[i] -= characters;
+        }
+    }
+
+    /**
+     * Drops the first tokens, and the literals only they refer to, once the Parser is done with them.
+     */
+    void drop(int dropped) {
+        int firstValue = valueCount;
+        for (int i = dropped; i < count; i++) {
+            if (literals[i] != -1) {
+                firstValue = literals[i];
+                break;
+            }
+        }
+        int kept = count - dropped;
+        System.arraycopy(types, dropped, types, 0, kept);
+        System.arraycopy(starts, dropped, starts, 0, kept);
+        System.arraycopy(ends, dropped, ends, 0, kept);
+        System.arraycopy(lines, dropped, lines, 0, kept);
+        System.arraycopy(literals, dropped, literals, 0, kept);
+        System.arraycopy(tokens, dropped, tokens, 0, kept);
+        Arrays.fill(tokens, kept, count, null);
+        for (int i = 0; i < kept; i++) {
+            if (literals[i] != -1) {
+                literals[i] -= firstValue;
+            }
+        }
+        System.arraycopy(values, firstValue, values, 0, valueCount - firstValue);
+        Arrays.fill(values, valueCount - firstValue, valueCount, null);
+        valueCount -= firstValue;
+        count = kept;
+    }
+
+}
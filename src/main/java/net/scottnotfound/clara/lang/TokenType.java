@@ -26,7 +26,8 @@ public enum TokenType {
 
     PRINT, RETURN, IF, WHILE,
     VAR, CONST, ELSE, FOR,
-    FUN,
+    FUN, BREAK, CONTINUE, PFOR,
+    ASYNC, AWAIT, IN,
 
     COMMAND,
 
@@ -0,0 +1,15 @@
+package net.scottnotfound.clara.lang;
+
+/**
+ * Thrown when an expression specialized for numbers produces something else. Carries the value so the
+ * caller can carry on without evaluating the expression again.
+ */
+class UnexpectedValue extends RuntimeException {
+
+    final Object value;
+
+    UnexpectedValue(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
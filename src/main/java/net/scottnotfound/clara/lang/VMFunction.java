@@ -0,0 +1,35 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.List;
+
+/**
+ * A function compiled for the VirtualMachine along with the frame it closes over.
+ */
+class VMFunction implements Callable {
+
+    private final VirtualMachine vm;
+    final Chunk chunk;
+    final Environment closure;
+
+    VMFunction(VirtualMachine vm, Chunk chunk, Environment closure) {
+        this.vm = vm;
+        this.chunk = chunk;
+        this.closure = closure;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return vm.invoke(this, arguments);
+    }
+
+    @Override
+    public int arity() {
+        return chunk.arity;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + chunk.name + ">";
+    }
+
+}
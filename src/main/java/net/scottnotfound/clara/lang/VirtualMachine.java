@@ -0,0 +1,572 @@
+package net.scottnotfound.clara.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs Chunks produced by the BytecodeCompiler. This is an alternative to walking the tree with the
+ * Interpreter and is meant for long running scripts. Values live on a single operand stack, calls push
+ * a CallFrame rather than recursing on the Java stack, and returns do not throw.
+ *
+ * Locals are still kept in Environment frames so closures behave exactly as they do in the
+ * Interpreter. Globals, builtins, output and the simple commands are shared with the Interpreter.
+ */
+class VirtualMachine {
+
+    /** Depth of non-tail calls before reporting a stack overflow, can be raised with clara.maxFrames. */
+    private static final int MAX_FRAMES = Integer.getInteger("clara.maxFrames", 1 << 20);
+
+    private final Interpreter interpreter;
+    private final Globals globals;
+    private final BytecodeCompiler compiler;
+    private final CommandDistributor commandDistributor = new CommandDistributor();
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    VirtualMachine(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+        this.compiler = new BytecodeCompiler(globals);
+    }
+
+    /**
+     * Compiles and runs resolved statements.
+     */
+    void interpret(List<Stmt> statements) {
+        Chunk script = compiler.compile(statements);
+        try {
+            pushFrame(script, null, sp, null);
+            run(frameCount - 1);
+        } catch (RuntimeError e) {
+            interpreter.runtime.runtimeError(e);
+            sp = 0;
+            frameCount = 0;
+        } catch (ExitScript e) {
+            interpreter.runtime.exited = true;
+            sp = 0;
+            frameCount = 0;
+        }
+    }
+
+    /**
+     * Calls anything that is not a VMFunction with the arguments on top of the stack, through the
+     * fixed arity entry points where there is one.
+     */
+    private Object callNative(Callable callable, Object[] stack, int first, int argCount) {
+        if (callable instanceof Function) {
+            Function function = (Function) callable;
+            Object[] frame = function.newFrame();
+            System.arraycopy(stack, first, frame, 0, argCount);
+            return function.call(interpreter, frame);
+        }
+        switch (argCount) {
+            case 0: return callable.call0(interpreter);
+            case 1: return callable.call1(interpreter, stack[first]);
+            case 2: return callable.call2(interpreter, stack[first], stack[first + 1]);
+            case 3: return callable.call3(interpreter, stack[first], stack[first + 1], stack[first + 2]);
+            default: return callable.call(interpreter, new ArrayList<>(Arrays.asList(stack).subList(first, first + argCount)));
+        }
+    }
+
+    /**
+     * Calls a compiled function from outside of the dispatch loop, such as from a builtin.
+     */
+    Object invoke(VMFunction function, List<Object> arguments) {
+        Environment environment = new Environment(function.closure, function.chunk.slots);
+        for (int i = 0; i < arguments.size(); i++) {
+            environment.define(i, arguments.get(i));
+        }
+        int exitFrame = frameCount;
+        pushFrame(function.chunk, environment, sp, null);
+        return run(exitFrame);
+    }
+
+    private void pushFrame(Chunk chunk, Environment environment, int base, Token token) {
+        if (frameCount == frames.length) {
+            if (frameCount >= MAX_FRAMES) {
+                throw new RuntimeError(token, "Stack overflow.");
+            }
+            frames = Arrays.copyOf(frames, Math.min(frameCount * 2, MAX_FRAMES));
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frame.chunk = chunk;
+        frame.ip = 0;
+        frame.environment = environment;
+        frame.base = base;
+        frameCount++;
+
+        if (base + chunk.maxStack + 1 > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + chunk.maxStack + 1));
+        }
+    }
+
+    /**
+     * The dispatch loop. Runs until the frame at exitFrame returns and gives back its return value.
+     */
+    private Object run(int exitFrame) {
+        CallFrame frame = frames[frameCount - 1];
+        int[] code = frame.chunk.code;
+        Object[] constants = frame.chunk.constants;
+        Token[] tokens = frame.chunk.tokens;
+        Environment environment = frame.environment;
+        Object[] stack = this.stack;
+        int sp = this.sp;
+        int ip = 0;
+
+        for (;;) {
+            int op = ip;
+            switch (code[ip++]) {
+
+                case OpCode.CONSTANT: {
+                    stack[sp++] = constants[code[ip++]];
+                    break;
+                }
+                case OpCode.NIL: {
+                    stack[sp++] = null;
+                    break;
+                }
+                case OpCode.POP: {
+                    stack[--sp] = null;
+                    break;
+                }
+
+                case OpCode.GET_LOCAL: {
+                    stack[sp++] = environment.values[code[ip++]];
+                    break;
+                }
+                case OpCode.GET_UPPER: {
+                    int depth = code[ip++];
+                    stack[sp++] = environment.getAt(depth, code[ip++]);
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    int depth = code[ip++];
+                    environment.assignAt(depth, code[ip++], stack[--sp]);
+                    break;
+                }
+                case OpCode.DEFINE_LOCAL: {
+                    environment.define(code[ip++], stack[--sp]);
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    stack[sp++] = globals.get(code[ip++]);
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    globals.assign(code[ip++], tokens[op], stack[--sp]);
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    globals.define(code[ip++], stack[--sp]);
+                    break;
+                }
+
+                case OpCode.ADD: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Double && right instanceof Double) {
+                        stack[sp - 1] = (double) left + (double) right;
+                    } else if (left instanceof String && right instanceof String) {
+                        stack[sp - 1] = (String) left + (String) right;
+                    } else {
+                        throw new RuntimeError(tokens[op], "Operands must be two numbers or two strings.");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(tokens[op], left, right);
+                    stack[sp - 1] = (double) left - (double) right;
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(tokens[op], left, right);
+                    stack[sp - 1] = (double) left * (double) right;
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(tokens[op], left, right);
+                    stack[sp - 1] = (double) left / (double) right;
+                    break;
+                }
+                case OpCode.NEGATE: {
+                    Object right = stack[sp - 1];
+                    if (!(right instanceof Double)) {
+                        throw new RuntimeError(tokens[op], "Operands must be a number.");
+                    }
+                    stack[sp - 1] = -(double) right;
+                    break;
+                }
+                case OpCode.NOT: {
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case OpCode.GREATER: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(tokens[op], left, right);
+                    stack[sp - 1] = (double) left > (double) right;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(tokens[op], left, right);
+                    stack[sp - 1] = (double) left >= (double) right;
+                    break;
+                }
+                case OpCode.LESS: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(tokens[op], left, right);
+                    stack[sp - 1] = (double) left < (double) right;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(tokens[op], left, right);
+                    stack[sp - 1] = (double) left <= (double) right;
+                    break;
+                }
+
+                case OpCode.JUMP: {
+                    ip = code[ip];
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE: {
+                    int target = code[ip++];
+                    if (!Interpreter.isTruthy(stack[--sp])) {
+                        ip = target;
+                    }
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE_KEEP: {
+                    int target = code[ip++];
+                    if (!Interpreter.isTruthy(stack[sp - 1])) {
+                        ip = target;
+                    }
+                    break;
+                }
+                case OpCode.JUMP_IF_TRUE_KEEP: {
+                    int target = code[ip++];
+                    if (Interpreter.isTruthy(stack[sp - 1])) {
+                        ip = target;
+                    }
+                    break;
+                }
+
+                case OpCode.TAIL_CALL: {
+                    int argCount = code[ip];
+                    Object callee = stack[sp - argCount - 1];
+
+                    if (callee instanceof VMFunction) {
+                        VMFunction function = (VMFunction) callee;
+                        checkArity(tokens[op], function.chunk.arity, argCount);
+
+                        Environment calleeEnvironment = new Environment(function.closure, function.chunk.slots);
+                        for (int i = 0; i < argCount; i++) {
+                            calleeEnvironment.define(i, stack[sp - argCount + i]);
+                        }
+                        Arrays.fill(stack, frame.base, sp, null);
+                        sp = frame.base;
+
+                        // the callee takes over the frame of the function returning its result
+                        frame.chunk = function.chunk;
+                        frame.environment = calleeEnvironment;
+                        if (sp + function.chunk.maxStack + 1 > stack.length) {
+                            this.stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + function.chunk.maxStack + 1));
+                            stack = this.stack;
+                        }
+                        code = frame.chunk.code;
+                        constants = frame.chunk.constants;
+                        tokens = frame.chunk.tokens;
+                        environment = calleeEnvironment;
+                        ip = 0;
+                        break;
+                    }
+                    // anything else is called like a normal call, the RETURN after it does the rest
+                }
+                case OpCode.CALL: {
+                    int argCount = code[ip++];
+                    Object callee = stack[sp - argCount - 1];
+
+                    if (callee instanceof VMFunction) {
+                        VMFunction function = (VMFunction) callee;
+                        checkArity(tokens[op], function.chunk.arity, argCount);
+
+                        Environment calleeEnvironment = new Environment(function.closure, function.chunk.slots);
+                        for (int i = 0; i < argCount; i++) {
+                            calleeEnvironment.define(i, stack[sp - argCount + i]);
+                        }
+                        sp -= argCount + 1;
+
+                        frame.ip = ip;
+                        frame.environment = environment;
+                        this.sp = sp;
+                        pushFrame(function.chunk, calleeEnvironment, sp, tokens[op]);
+
+                        frame = frames[frameCount - 1];
+                        code = frame.chunk.code;
+                        constants = frame.chunk.constants;
+                        tokens = frame.chunk.tokens;
+                        environment = calleeEnvironment;
+                        stack = this.stack;
+                        ip = 0;
+                        break;
+                    }
+
+                    if (!(callee instanceof Callable)) {
+                        throw new RuntimeError(tokens[op], "Can only call functions.");
+                    }
+                    Callable callable = (Callable) callee;
+                    checkArity(tokens[op], callable.arity(), argCount);
+
+                    frame.ip = ip;
+                    frame.environment = environment;
+                    this.sp = sp;
+                    Object result = callNative(callable, stack, sp - argCount, argCount);
+                    stack = this.stack;
+
+                    sp -= argCount + 1;
+                    stack[sp++] = result;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    stack[sp++] = new VMFunction(this, (Chunk) constants[code[ip++]], environment);
+                    break;
+                }
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+                    Arrays.fill(stack, frame.base, sp, null);
+                    sp = frame.base;
+                    frame.chunk = null;
+                    frame.environment = null;
+                    frameCount--;
+
+                    if (frameCount == exitFrame) {
+                        this.sp = sp;
+                        return result;
+                    }
+
+                    stack[sp++] = result;
+                    frame = frames[frameCount - 1];
+                    code = frame.chunk.code;
+                    constants = frame.chunk.constants;
+                    tokens = frame.chunk.tokens;
+                    environment = frame.environment;
+                    ip = frame.ip;
+                    break;
+                }
+
+                case OpCode.RANGE_NEXT: {
+                    Object value = stack[sp - 2];
+                    Object end = stack[sp - 1];
+                    if (!(value instanceof Double && end instanceof Double)) {
+                        throw new RuntimeError(tokens[op], "Range of 'pfor' must be numbers.");
+                    }
+                    if ((double) value < (double) end) {
+                        stack[sp++] = value;
+                        ip++;
+                    } else {
+                        stack[sp - 2] = null;
+                        stack[sp - 1] = null;
+                        sp -= 2;
+                        ip = code[ip];
+                    }
+                    break;
+                }
+                case OpCode.ITER_START: {
+                    stack[sp] = Interpreter.iterable(tokens[op], stack[sp - 1]);
+                    stack[sp - 1] = 0.0;
+                    sp++;
+                    break;
+                }
+                case OpCode.ITER_NEXT: {
+                    double index = (double) stack[sp - 2];
+                    ClaraList list = (ClaraList) stack[sp - 1];
+                    if (index < list.size()) {
+                        stack[sp++] = list.get((int) index);
+                        ip++;
+                    } else {
+                        stack[sp - 2] = null;
+                        stack[sp - 1] = null;
+                        sp -= 2;
+                        ip = code[ip];
+                    }
+                    break;
+                }
+                case OpCode.RANGE_STEP: {
+                    stack[sp - 2] = (double) stack[sp - 2] + 1;
+                    break;
+                }
+                case OpCode.LIST: {
+                    int count = code[ip++];
+                    ClaraList list = new ClaraList(count);
+                    for (int i = sp - count; i < sp; i++) {
+                        list.add(stack[i]);
+                        stack[i] = null;
+                    }
+                    sp -= count;
+                    stack[sp++] = list;
+                    break;
+                }
+                case OpCode.MAP: {
+                    int count = code[ip++];
+                    ClaraMap map = new ClaraMap();
+                    for (int i = sp - 2 * count; i < sp; i += 2) {
+                        map.put(stack[i], stack[i + 1]);
+                        stack[i] = null;
+                        stack[i + 1] = null;
+                    }
+                    sp -= 2 * count;
+                    stack[sp++] = map;
+                    break;
+                }
+                case OpCode.GET_INDEX: {
+                    Object index = stack[--sp];
+                    stack[sp] = null;
+                    stack[sp - 1] = Interpreter.index(tokens[op], stack[sp - 1], index);
+                    break;
+                }
+                case OpCode.SET_INDEX: {
+                    Interpreter.assignIndex(tokens[op], stack[sp - 3], stack[sp - 2], stack[sp - 1]);
+                    stack[sp - 3] = null;
+                    stack[sp - 2] = null;
+                    stack[sp - 1] = null;
+                    sp -= 3;
+                    break;
+                }
+                case OpCode.ENTER_SCOPE: {
+                    environment = new Environment(environment, code[ip++]);
+                    break;
+                }
+                case OpCode.EXIT_SCOPE: {
+                    environment = environment.enclosing();
+                    break;
+                }
+
+                case OpCode.PRINT: {
+                    interpreter.runtime.out.println(Interpreter.stringify(stack[--sp]));
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.REACTION: {
+                    String flags = (String) constants[code[ip++]];
+                    int count = code[ip++];
+                    int files = code[ip++];
+                    sp -= count + files;
+                    commandDistributor.distributeCommand(reactionCommand(flags, stack, sp, count, files));
+                    break;
+                }
+                case OpCode.ASYNC_REACTION: {
+                    String flags = (String) constants[code[ip++]];
+                    int count = code[ip++];
+                    int files = code[ip++];
+                    sp -= count + files;
+                    Map<String,Object> commandMap = reactionCommand(flags, stack, sp, count, files);
+                    stack[sp++] = CommandFuture.submit(interpreter.runtime.executor, commandDistributor, commandMap);
+                    break;
+                }
+                case OpCode.AWAIT: {
+                    Object future = stack[sp - 1];
+                    if (!(future instanceof CommandFuture)) {
+                        throw new RuntimeError(tokens[op], "Can only await futures.");
+                    }
+                    stack[sp - 1] = ((CommandFuture) future).await(tokens[op]);
+                    break;
+                }
+                case OpCode.COMMAND: {
+                    ((Cmd) constants[code[ip++]]).accept(interpreter);
+                    break;
+                }
+
+                default: {
+                    throw new IllegalStateException("Unknown opcode " + code[op] + " in " + frame.chunk.name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects count reactants off of the stack starting at from into the map given to the modules,
+     * followed by the input and output files if files is 2.
+     */
+    private Map<String,Object> reactionCommand(String flags, Object[] stack, int from, int count, int files) {
+        List<String> reactants = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            try {
+                reactants.add((String) stack[i]);
+            } catch (Exception e) {
+                interpreter.runtime.error(-1, e.getMessage());
+            }
+            stack[i] = null;
+        }
+
+        Map<String,Object> commandMap = new TreeMap<>();
+        commandMap.put("flags", flags);
+        commandMap.put("reactants", reactants);
+        if (files == 2) {
+            int input = from + count;
+            if (!(stack[input] instanceof String) || stack[input + 1] != null && !(stack[input + 1] instanceof String)) {
+                throw new RuntimeError(null, "File name must be a string.");
+            }
+            commandMap.put("input", stack[input]);
+            if (stack[input + 1] != null) {
+                commandMap.put("output", stack[input + 1]);
+            }
+            stack[input] = null;
+            stack[input + 1] = null;
+        }
+        return commandMap;
+    }
+
+    private void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return;
+        }
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    private void checkArity(Token paren, int arity, int argCount) {
+        if (arity != Callable.VARIADIC && argCount != arity) {
+            throw new RuntimeError(paren, "Expected " + arity + " arguments but got " + argCount + ".");
+        }
+    }
+
+    /**
+     * State of a function that is currently running. Frames are reused between calls.
+     */
+    private static class CallFrame {
+        Chunk chunk;
+        int ip;
+        Environment environment;
+        int base;
+    }
+
+}
@@ -0,0 +1,42 @@
+package net.scottnotfound.clara.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up, such as reactions processed. Created through Metrics.counter.
+ */
+public final class Counter extends Metric {
+
+    private final AtomicLong value = new AtomicLong();
+
+    Counter(String name, String help) {
+        super(name, help);
+    }
+
+    public void increment() {
+        value.incrementAndGet();
+    }
+
+    public void add(long amount) {
+        value.addAndGet(amount);
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    @Override
+    String type() {
+        return "counter";
+    }
+
+    @Override
+    void writePrometheus(StringBuilder out) {
+        out.append(name).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void writeReport(StringBuilder out) {
+        out.append(String.format("%-40s %d%n", name, get()));
+    }
+}
@@ -0,0 +1,51 @@
+package net.scottnotfound.clara.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value that goes up and down, such as reactions being processed right now. Created through
+ * Metrics.gauge.
+ */
+public final class Gauge extends Metric {
+
+    private final AtomicLong value = new AtomicLong();
+
+    Gauge(String name, String help) {
+        super(name, help);
+    }
+
+    public void set(long value) {
+        this.value.set(value);
+    }
+
+    public void increment() {
+        value.incrementAndGet();
+    }
+
+    public void decrement() {
+        value.decrementAndGet();
+    }
+
+    public void add(long amount) {
+        value.addAndGet(amount);
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    @Override
+    String type() {
+        return "gauge";
+    }
+
+    @Override
+    void writePrometheus(StringBuilder out) {
+        out.append(name).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void writeReport(StringBuilder out) {
+        out.append(String.format("%-40s %d%n", name, get()));
+    }
+}
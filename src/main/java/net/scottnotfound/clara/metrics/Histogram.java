@@ -0,0 +1,126 @@
+package net.scottnotfound.clara.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies in nanoseconds counted in log linear buckets, like an HdrHistogram. Values below SUB are
+ * counted exactly, above that every power of two is split into SUB buckets, so any value is known
+ * to within 1 / SUB of itself over the whole range of a long, in a fixed array of counts. Recording
+ * a value increments a few atomics and nothing else. Created through Metrics.histogram.
+ *
+ * Readers see the counts while they change, so a quantile read during recording may be a value off.
+ */
+public final class Histogram extends Metric {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+    /** Upper bounds in seconds of the buckets written for Prometheus, which does not need them all. */
+    private static final double[] BOUNDS = {
+            1e-6, 1e-5, 1e-4, 5e-4, 1e-3, 5e-3, 1e-2, 5e-2, 0.1, 0.5, 1, 5, 10, 60
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String name, String help) {
+        super(name, help);
+    }
+
+    /**
+     * Records the nanoseconds since start, a time taken from System.nanoTime.
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * The smallest value that at least a fraction q of the values recorded are at or below, to within
+     * the width of its bucket.
+     */
+    public long quantile(double q) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) - SUB);
+    }
+
+    /**
+     * Largest value counted in a bucket.
+     */
+    private static long highest(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int shift = (index >>> SUB_BITS) - 1;
+        long lowest = (long) (SUB + (index & (SUB - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    @Override
+    String type() {
+        return "histogram";
+    }
+
+    @Override
+    void writePrometheus(StringBuilder out) {
+        long cumulative = 0;
+        int bucket = 0;
+        for (double bound : BOUNDS) {
+            long limit = (long) (bound * 1e9);
+            // buckets reaching past a bound are left for the next one, so counts are never overstated
+            while (bucket < BUCKETS && highest(bucket) <= limit) {
+                cumulative += counts.get(bucket++);
+            }
+            out.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        long total = Math.max(count.get(), cumulative);
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+        out.append(name).append("_sum ").append(sum.get() / 1e9).append('\n');
+        out.append(name).append("_count ").append(total).append('\n');
+    }
+
+    @Override
+    void writeReport(StringBuilder out) {
+        long total = count.get();
+        out.append(String.format("%-40s %d, mean %.3f ms, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                name, total, total == 0 ? 0 : sum.get() / 1e6 / total,
+                quantile(0.5) / 1e6, quantile(0.9) / 1e6, quantile(0.99) / 1e6, max.get() / 1e6));
+    }
+}
@@ -0,0 +1,25 @@
+package net.scottnotfound.clara.metrics;
+
+/**
+ * A named metric kept by Metrics. Recording only touches atomics, so it never blocks or allocates;
+ * writing it out may do both.
+ */
+abstract class Metric {
+
+    final String name;
+    final String help;
+
+    Metric(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    /** The Prometheus type of the metric. */
+    abstract String type();
+
+    /** Appends the samples of the metric in the Prometheus text exposition format. */
+    abstract void writePrometheus(StringBuilder out);
+
+    /** Appends a line for people to read, as the stats command prints it. */
+    abstract void writeReport(StringBuilder out);
+}
@@ -0,0 +1,154 @@
+package net.scottnotfound.clara.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+/**
+ * The registry of every metric in the process. Metrics are looked up by name once, usually into a
+ * static field, and recorded through that field from then on, so recording never touches the registry.
+ *
+ * The metrics can be printed with the stats command, and written in the Prometheus text exposition
+ * format every -Dclara.metrics.interval seconds, 10 by default, to the file named by
+ * -Dclara.metrics.file and to the host:port named by -Dclara.metrics.socket. Each write to the file
+ * replaces it as a whole, each write to the socket is a connection of its own that is closed after.
+ */
+public final class Metrics {
+
+    private static final Map<String, Metric> metrics = new TreeMap<>();
+
+    private static ScheduledExecutorService dumps;
+
+    private Metrics() {}
+
+    public static Counter counter(String name, String help) {
+        return register(name, Counter.class, n -> new Counter(n, help));
+    }
+
+    public static Gauge gauge(String name, String help) {
+        return register(name, Gauge.class, n -> new Gauge(n, help));
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return register(name, Histogram.class, n -> new Histogram(n, help));
+    }
+
+    /**
+     * A gauge whose value is computed by the supplier whenever the metrics are written.
+     */
+    public static SampledGauge sampledGauge(String name, String help, DoubleSupplier value) {
+        return register(name, SampledGauge.class, n -> new SampledGauge(n, help, value));
+    }
+
+    /**
+     * The metric with a name, created the first time it is asked for. Asking for it again as another
+     * type is an error.
+     */
+    private static synchronized <T extends Metric> T register(String name, Class<T> type, Function<String, T> create) {
+        Metric metric = metrics.computeIfAbsent(name, create);
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + metric.type() + ", not a " + type.getSimpleName() + ".");
+        }
+        return type.cast(metric);
+    }
+
+    private static synchronized List<Metric> all() {
+        return new ArrayList<>(metrics.values());
+    }
+
+    /**
+     * Every metric in the Prometheus text exposition format.
+     */
+    public static String prometheus() {
+        StringBuilder out = new StringBuilder();
+        for (Metric metric : all()) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            metric.writePrometheus(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Every metric on a line of its own, histograms summarized by their quantiles in milliseconds.
+     */
+    public static String report() {
+        StringBuilder out = new StringBuilder();
+        for (Metric metric : all()) {
+            metric.writeReport(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Starts writing the metrics to the file and socket given by the system properties, if any. Does
+     * nothing once started. The metrics are written one last time when the JVM exits.
+     */
+    public static synchronized void startDumps() {
+        String file = System.getProperty("clara.metrics.file");
+        String socket = System.getProperty("clara.metrics.socket");
+        if (dumps != null || file == null && socket == null) {
+            return;
+        }
+        long interval = Long.getLong("clara.metrics.interval", 10);
+        Runnable dump = () -> {
+            String text = prometheus();
+            if (file != null) {
+                dumpToFile(Paths.get(file), text);
+            }
+            if (socket != null) {
+                dumpToSocket(socket, text);
+            }
+        };
+        dumps = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "clara-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumps.scheduleAtFixedRate(dump, interval, interval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(dump, "clara-metrics-exit"));
+    }
+
+    /**
+     * Writes next to the file first and then moves it over, so readers never see half a dump.
+     */
+    private static void dumpToFile(Path path, String text) {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                writer.write(text);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Can not write metrics to " + path + ": " + e);
+        }
+    }
+
+    private static void dumpToSocket(String address, String text) {
+        int colon = address.lastIndexOf(':');
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))), 1000);
+            OutputStream out = socket.getOutputStream();
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            // nothing may be listening yet, the next dump tries again
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.scottnotfound.clara.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value computed each time it is read, such as a ratio of two counters. Nothing is recorded, the
+ * supplier is only called when the metrics are written. Created through Metrics.sampledGauge.
+ */
+public final class SampledGauge extends Metric {
+
+    private final DoubleSupplier value;
+
+    SampledGauge(String name, String help, DoubleSupplier value) {
+        super(name, help);
+        this.value = value;
+    }
+
+    public double get() {
+        return value.getAsDouble();
+    }
+
+    @Override
+    String type() {
+        return "gauge";
+    }
+
+    @Override
+    void writePrometheus(StringBuilder out) {
+        out.append(name).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void writeReport(StringBuilder out) {
+        out.append(String.format("%-40s %.4f%n", name, get()));
+    }
+}
@@ -0,0 +1,173 @@
+package net.scottnotfound.clara.reaction;
+
+import net.scottnotfound.clara.metrics.Gauge;
+import net.scottnotfound.clara.metrics.Metrics;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Builds and solves many reactions at once, for runs too large to go through reaction commands one
+ * by one. Got from ReactionModule.bulk and configured before solve is called:
+ *
+ * parallelism, the workers of the fork join pool the reactions are solved on, -Dclara.reactions.parallelism
+ * or one per processor by default. Idle workers steal reactions queued for busy ones.
+ *
+ * maxInFlight, the most reactions taken from the inputs whose results have not been given to the
+ * caller yet, 64 per worker by default. Inputs are only read as results are given, so a stream of
+ * inputs larger than memory is solved in memory bounded by this.
+ *
+ * ordered, whether results are given in the order of their inputs, rather than in the order they
+ * finish, the default. Ordered results that finish early wait for the ones before them, and count
+ * as in flight while they do, so one slow reaction holds back at most maxInFlight others.
+ *
+ * Reactions that fail do not stop the others, each one's error is given in its ReactionResult. An
+ * Error thrown while solving one, such as an OutOfMemoryError, stops the run instead and is thrown
+ * by solve.
+ */
+public final class BulkSolver {
+
+    private static final Gauge IN_FLIGHT = Metrics.gauge("clara_bulk_reactions_in_flight", "Reactions taken by bulk solvers whose results were not given yet.");
+
+    private final ReactionModule module;
+    private int parallelism = Integer.getInteger("clara.reactions.parallelism", Runtime.getRuntime().availableProcessors());
+    private int maxInFlight = -1;
+    private boolean ordered;
+
+    BulkSolver(ReactionModule module) {
+        this.module = module;
+    }
+
+    public BulkSolver parallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, not " + parallelism + ".");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public BulkSolver maxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least 1 reaction must be in flight, not " + maxInFlight + ".");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    public BulkSolver ordered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+    public long solve(Stream<ReactionInput> inputs, Consumer<ReactionResult> results) throws InterruptedException {
+        return solve(inputs.iterator(), results);
+    }
+
+    public long solve(Iterable<ReactionInput> inputs, Consumer<ReactionResult> results) throws InterruptedException {
+        return solve(inputs.iterator(), results);
+    }
+
+    /**
+     * Solves every input and gives each result to results, on the calling thread, which also reads
+     * the inputs. Returns once every result has been given.
+     *
+     * @return the number of reactions that failed
+     */
+    public long solve(Iterator<ReactionInput> inputs, Consumer<ReactionResult> results) throws InterruptedException {
+        int limit = maxInFlight > 0 ? maxInFlight : parallelism * 64;
+        ForkJoinPool pool = new ForkJoinPool(parallelism, BulkSolver::newWorker, null, true);
+        BlockingQueue<ReactionResult> done = new LinkedBlockingQueue<>();
+        Delivery delivery = new Delivery(results);
+        AtomicReference<Error> error = new AtomicReference<>();
+        long submitted = 0;
+        try {
+            while (inputs.hasNext() || delivery.given < submitted) {
+                if (inputs.hasNext() && submitted - delivery.given < limit) {
+                    ReactionInput input = inputs.next();
+                    long index = submitted++;
+                    IN_FLIGHT.increment();
+                    pool.execute(() -> {
+                        try {
+                            done.add(module.solve(index, input));
+                        } catch (Error e) {
+                            // the caller is woken with a result and throws the error instead of giving it
+                            error.compareAndSet(null, e);
+                            done.add(ReactionResult.failed(index, input, e));
+                        }
+                    });
+                    // results already done are given between inputs, so the caller sees them early
+                    for (ReactionResult result = done.poll(); result != null; result = done.poll()) {
+                        delivery.give(checked(result, error));
+                    }
+                } else {
+                    delivery.give(checked(done.take(), error));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            IN_FLIGHT.add(delivery.given - submitted);
+        }
+        return delivery.failures;
+    }
+
+    /**
+     * Passes a result on, unless a worker has thrown an Error, which is thrown on the calling thread.
+     */
+    private static ReactionResult checked(ReactionResult result, AtomicReference<Error> error) {
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return result;
+    }
+
+    private static ForkJoinWorkerThread newWorker(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("clara-reactions-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Gives results to the caller, holding back those that finished before the ones ahead of them
+     * when the results are ordered.
+     */
+    private final class Delivery {
+
+        private final Consumer<ReactionResult> results;
+        private final Map<Long, ReactionResult> waiting = new HashMap<>();
+        private long given;
+        private long failures;
+
+        Delivery(Consumer<ReactionResult> results) {
+            this.results = results;
+        }
+
+        void give(ReactionResult result) {
+            if (!ordered) {
+                accept(result);
+                return;
+            }
+            waiting.put(result.getIndex(), result);
+            for (ReactionResult next = waiting.remove(given); next != null; next = waiting.remove(given)) {
+                accept(next);
+            }
+        }
+
+        private void accept(ReactionResult result) {
+            given++;
+            IN_FLIGHT.decrement();
+            if (!result.isSolved()) {
+                failures++;
+            }
+            results.accept(result);
+        }
+    }
+}
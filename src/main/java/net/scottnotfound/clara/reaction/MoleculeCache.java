@@ -0,0 +1,135 @@
+package net.scottnotfound.clara.reaction;
+
+import net.scottnotfound.clara.metrics.Counter;
+import net.scottnotfound.clara.metrics.Metrics;
+import org.openscience.cdk.exception.InvalidSmilesException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Molecules parsed from SMILES, kept as templates so the same SMILES is parsed once. Every get hands
+ * out a clone of the template, since reactions compute their descriptors into the molecules they are
+ * given. A template is never changed once it is cached, so any number of threads can clone it at
+ * once. Whatever the parser perceived, such as aromaticity and implicit hydrogens, is cloned with it.
+ *
+ * Molecules differ a lot in size, so the cache is bounded by the atoms of the templates it holds
+ * rather than by their number, about -Dclara.molecules.cacheAtoms of them, 50000 by default, 0 to
+ * parse every time. Like the NameCache it is split into SEGMENTS with a lock and an equal share of
+ * the atoms each, and the templates used least recently are dropped first. A molecule with more
+ * atoms than a segment holds is parsed every time. SMILES that do not parse are not cached.
+ */
+final class MoleculeCache {
+
+    private static final int SEGMENTS = 16;
+
+    private static final Counter HITS = Metrics.counter("clara_molecule_cache_hits_total", "Molecules cloned from a template in the molecule cache.");
+    private static final Counter MISSES = Metrics.counter("clara_molecule_cache_misses_total", "Molecules that had to be parsed from SMILES.");
+    private static final Counter EVICTIONS = Metrics.counter("clara_molecule_cache_evictions_total", "Templates dropped from the molecule cache to make room.");
+
+    /**
+     * Parses SMILES into a new molecule.
+     */
+    interface Parser {
+        IAtomContainer parse(String smiles) throws InvalidSmilesException;
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Parser parser;
+    private final boolean enabled;
+
+    MoleculeCache(int atoms, Parser parser) {
+        int perSegment = (atoms + SEGMENTS - 1) / SEGMENTS;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.parser = parser;
+        this.enabled = atoms > 0;
+    }
+
+    /**
+     * The cache configured by the system properties.
+     */
+    static MoleculeCache fromProperties(Parser parser) {
+        MoleculeCache cache = new MoleculeCache(Integer.getInteger("clara.molecules.cacheAtoms", 50000), parser);
+        Metrics.sampledGauge("clara_molecule_cache_atoms", "Atoms of the templates held in the molecule cache.", cache::atoms);
+        return cache;
+    }
+
+    /**
+     * A molecule of its own for the caller, parsed from smiles or cloned from the template of it.
+     */
+    IAtomContainer get(String smiles) throws InvalidSmilesException {
+        if (!enabled) {
+            return parser.parse(smiles);
+        }
+
+        Segment segment = segments[(smiles.hashCode() & 0x7fffffff) % SEGMENTS];
+        IAtomContainer template = segment.get(smiles);
+        if (template != null) {
+            HITS.increment();
+            return copy(template);
+        }
+
+        MISSES.increment();
+        IAtomContainer mol = parser.parse(smiles);
+        // the template is a copy of its own, the caller is free to change the molecule it gets
+        segment.put(smiles, copy(mol));
+        return mol;
+    }
+
+    int atoms() {
+        int atoms = 0;
+        for (Segment segment : segments) {
+            atoms += segment.atoms();
+        }
+        return atoms;
+    }
+
+    private static IAtomContainer copy(IAtomContainer mol) {
+        try {
+            return mol.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("Can not clone a " + mol.getClass().getSimpleName() + ".", e);
+        }
+    }
+
+    /**
+     * A part of the cache, holding the templates used most recently up to a number of atoms.
+     */
+    private static final class Segment {
+
+        private final int capacity;
+        private final LinkedHashMap<String, IAtomContainer> templates = new LinkedHashMap<>(16, 0.75f, true);
+        private int atoms;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized IAtomContainer get(String smiles) {
+            return templates.get(smiles);
+        }
+
+        synchronized void put(String smiles, IAtomContainer template) {
+            int size = template.getAtomCount();
+            if (size > capacity) {
+                return;
+            }
+            IAtomContainer old = templates.put(smiles, template);
+            atoms += size - (old == null ? 0 : old.getAtomCount());
+            for (Iterator<Map.Entry<String, IAtomContainer>> it = templates.entrySet().iterator(); atoms > capacity; ) {
+                Map.Entry<String, IAtomContainer> eldest = it.next();
+                atoms -= eldest.getValue().getAtomCount();
+                it.remove();
+                EVICTIONS.increment();
+            }
+        }
+
+        synchronized int atoms() {
+            return atoms;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package net.scottnotfound.clara.reaction;
+
+import net.scottnotfound.clara.metrics.Counter;
+import net.scottnotfound.clara.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The SMILES of chemical names, remembered so OPSIN parses each name once. Names OPSIN can not parse
+ * are remembered too, as NameStore.NONE, since failing is as slow as succeeding.
+ *
+ * The names used most recently are kept in memory, about -Dclara.names.cacheSize of them, 10000 by
+ * default. The cache is split into SEGMENTS by the hash of the name, each an LRU map with a lock of
+ * its own holding an equal share of the names, so threads resolving different names rarely wait on
+ * each other. Two threads missing the same name at once both parse it, which is cheaper than making
+ * one wait for the other.
+ *
+ * Behind the memory is an optional NameStore in the file named by -Dclara.names.store, which lasts
+ * between runs and can be shared by many processes. It is only read, unless
+ * -Dclara.names.store.update is true, in which case the names parsed during the run are appended to
+ * the journal of the store as they are parsed, so memory does not grow with them while the run goes
+ * on, and added to the store when the JVM exits. Only one process at a time should update a store.
+ */
+final class NameCache {
+
+    private static final int SEGMENTS = 16;
+
+    private static final Counter HITS = Metrics.counter("clara_name_cache_hits_total", "Names found in the name cache in memory.");
+    private static final Counter STORE_HITS = Metrics.counter("clara_name_cache_store_hits_total", "Names found in the name store on disk.");
+    private static final Counter MISSES = Metrics.counter("clara_name_cache_misses_total", "Names that had to be parsed by OPSIN.");
+    private static final Counter EVICTIONS = Metrics.counter("clara_name_cache_evictions_total", "Names dropped from the name cache in memory to make room.");
+
+    static {
+        Metrics.sampledGauge("clara_name_cache_hit_ratio", "Fraction of names found in memory or in the name store.", () -> {
+            double hits = HITS.get() + STORE_HITS.get();
+            double total = hits + MISSES.get();
+            return total == 0 ? 0 : hits / total;
+        });
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Function<String, String> loader;
+    private final NameStore store;
+
+    /** Where names parsed during the run are kept to be added to the store, null if it is not updated. */
+    private volatile NameStore.Journal journal;
+
+    NameCache(int capacity, Function<String, String> loader, NameStore store, NameStore.Journal journal) {
+        int perSegment = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.loader = loader;
+        this.store = store;
+        this.journal = journal;
+    }
+
+    /**
+     * The cache configured by the system properties, with OPSIN as its loader.
+     */
+    static NameCache fromProperties(Function<String, String> loader) {
+        int capacity = Integer.getInteger("clara.names.cacheSize", 10000);
+        String file = System.getProperty("clara.names.store");
+        if (file == null) {
+            return new NameCache(capacity, loader, null, null);
+        }
+
+        Path path = Paths.get(file);
+        NameStore store = null;
+        try {
+            store = NameStore.open(path);
+        } catch (IOException e) {
+            System.err.println("Can not read names from " + path + ": " + e);
+        }
+        NameStore.Journal journal = null;
+        if (Boolean.getBoolean("clara.names.store.update")) {
+            try {
+                journal = NameStore.Journal.open(path);
+            } catch (IOException e) {
+                System.err.println("Can not add names to " + path + ": " + e);
+            }
+        }
+        NameCache cache = new NameCache(capacity, loader, store, journal);
+        if (journal != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> cache.save(path), "clara-names-exit"));
+        }
+        return cache;
+    }
+
+    /**
+     * The SMILES of a name, or null if OPSIN can not parse it.
+     */
+    String get(String name) {
+        Segment segment = segments[(name.hashCode() & 0x7fffffff) % SEGMENTS];
+        String smiles = segment.get(name);
+        if (smiles != null) {
+            HITS.increment();
+            return smiles == NameStore.NONE ? null : smiles;
+        }
+
+        smiles = store == null ? null : store.get(name);
+        if (smiles != null) {
+            STORE_HITS.increment();
+        } else {
+            MISSES.increment();
+            smiles = loader.apply(name);
+            if (smiles == null) {
+                smiles = NameStore.NONE;
+            }
+            add(name, smiles);
+        }
+        segment.put(name, smiles);
+        return smiles == NameStore.NONE ? null : smiles;
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Appends a parsed name to the journal, if the store is updated. The journal is given up on the
+     * first error, the names already in it are still added to the store.
+     */
+    private void add(String name, String smiles) {
+        NameStore.Journal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.add(name, smiles);
+        } catch (IOException e) {
+            this.journal = null;
+            System.err.println("Can not add names to the journal of the name store: " + e);
+        }
+    }
+
+    /**
+     * Writes the store again with the names of its journal added, and deletes the journal. Names
+     * parsed by threads still running while this is done are not added. A store that can not be read
+     * is written again with only the names of the journal.
+     */
+    private void save(Path path) {
+        NameStore.Journal journal = this.journal;
+        this.journal = null;
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Can not add names to the journal of " + path + ": " + e);
+        }
+        try {
+            Map<String, String> added = new LinkedHashMap<>();
+            NameStore.Journal.read(path, added);
+            if (!added.isEmpty()) {
+                // the store may have been replaced by another run since it was opened, so it is read again
+                NameStore current = null;
+                try {
+                    current = NameStore.open(path);
+                } catch (IOException e) {
+                    System.err.println("Can not read names from " + path + ", it is written again without them: " + e);
+                }
+                Map<String, String> entries = current != null ? current.entries() : new LinkedHashMap<>();
+                entries.putAll(added);
+                NameStore.write(path, entries);
+            }
+            NameStore.Journal.delete(path);
+        } catch (IOException e) {
+            System.err.println("Can not write names to " + path + ": " + e);
+        }
+    }
+
+    /**
+     * A part of the cache in memory, holding the names used most recently.
+     */
+    private static final class Segment extends LinkedHashMap<String, String> {
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized String get(Object name) {
+            return super.get(name);
+        }
+
+        @Override
+        public synchronized String put(String name, String smiles) {
+            return super.put(name, smiles);
+        }
+
+        @Override
+        public synchronized int size() {
+            return super.size();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            if (size() > capacity) {
+                EVICTIONS.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
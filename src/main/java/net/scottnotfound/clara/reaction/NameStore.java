@@ -0,0 +1,345 @@
+package net.scottnotfound.clara.reaction;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Names and the SMILES OPSIN gave for them, in a file mapped into memory read only. Any number of
+ * processes can map the same file, and the pages are shared between them by the operating system.
+ * A name OPSIN could not parse is stored without SMILES so it is not parsed again either.
+ *
+ * The file is never changed in place. write replaces it as a whole, and processes that had the old
+ * file mapped go on reading it until they map the new one.
+ *
+ * The file starts with a header of MAGIC, FORMAT, the number of entries and the number of slots,
+ * followed by an open addressing table of slots, each the offset of an entry or 0, then the entries.
+ * An entry is the hash of its name, the length and UTF-8 bytes of the name, then the length and
+ * bytes of its SMILES, -1 for a name without. A file cut short or damaged so that any of this points
+ * outside of it is rejected when it is opened, rather than failing in get.
+ *
+ * Names parsed while the store is being updated are appended to a Journal beside it, and added to
+ * the store when it is written again.
+ */
+final class NameStore {
+
+    private static final int MAGIC = 0x434c4e53;
+    private static final int FORMAT = 1;
+    private static final int HEADER = 16;
+
+    /** SMILES of the names that have none in the store, compared by identity. */
+    static final String NONE = new String("");
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int mask;
+
+    private NameStore(MappedByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+            throw new IOException("not a name store of format " + FORMAT);
+        }
+        this.buffer = buffer;
+        this.count = buffer.getInt(8);
+        this.mask = buffer.getInt(12) - 1;
+        check();
+    }
+
+    /**
+     * Checks that the table and every entry it points to lie within the file, and that the table has
+     * an empty slot to end the probes of names that are not stored.
+     */
+    private void check() throws IOException {
+        long slots = mask + 1L;
+        long base = HEADER + slots * 4;
+        long end = buffer.capacity();
+        if (slots < 1 || Long.bitCount(slots) != 1 || base > end || count < 0 || count >= slots) {
+            throw new IOException("damaged name store, its table does not fit in the file");
+        }
+        int filled = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            int offset = buffer.getInt(HEADER + slot * 4);
+            if (offset == 0) {
+                continue;
+            }
+            filled++;
+            if (offset < base || offset + 4L + 2 + 4 > end) {
+                throw new IOException("damaged name store, entry " + slot + " is outside of the file");
+            }
+            long smiles = offset + 4L + 2 + (buffer.getShort(offset + 4) & 0xFFFF);
+            if (smiles + 4 > end) {
+                throw new IOException("damaged name store, entry " + slot + " is outside of the file");
+            }
+            int length = buffer.getInt((int) smiles);
+            if (length < -1 || smiles + 4 + Math.max(0, length) > end) {
+                throw new IOException("damaged name store, entry " + slot + " is outside of the file");
+            }
+        }
+        if (filled != count) {
+            throw new IOException("damaged name store, it holds " + filled + " entries, not " + count);
+        }
+    }
+
+    /**
+     * Maps the store in a file, null if there is no file yet.
+     *
+     * @throws IOException if the file can not be read or is not a whole name store
+     */
+    static NameStore open(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new NameStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * The SMILES of a name, NONE if it is stored without, null if it is not stored.
+     */
+    String get(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int offset = buffer.getInt(HEADER + slot * 4);
+            if (offset == 0) {
+                return null;
+            }
+            if (buffer.getInt(offset) == hash && matches(offset + 4, bytes)) {
+                int smiles = offset + 4 + 2 + bytes.length;
+                int length = buffer.getInt(smiles);
+                return length < 0 ? NONE : string(smiles + 4, length);
+            }
+        }
+    }
+
+    private boolean matches(int offset, byte[] name) {
+        if ((buffer.getShort(offset) & 0xFFFF) != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (buffer.get(offset + 2 + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Every entry of the store, in the order of its table.
+     */
+    Map<String, String> entries() {
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int slot = 0; slot <= mask; slot++) {
+            int offset = buffer.getInt(HEADER + slot * 4);
+            if (offset != 0) {
+                int length = buffer.getShort(offset + 4) & 0xFFFF;
+                String name = string(offset + 6, length);
+                int smiles = offset + 6 + length;
+                int smilesLength = buffer.getInt(smiles);
+                entries.put(name, smilesLength < 0 ? NONE : string(smiles + 4, smilesLength));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Writes entries to a new store next to the file and moves it over the file. Names too long for
+     * the store are left out.
+     */
+    static void write(Path path, Map<String, String> entries) throws IOException {
+        int slots = Integer.highestOneBit(Math.max(4, entries.size() * 2 - 1)) << 1;
+        int[] table = new int[slots];
+        ByteBuffer data = ByteBuffer.allocate(1 << 16);
+        int base = HEADER + slots * 4;
+        int count = 0;
+
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xFFFF) {
+                continue;
+            }
+            byte[] smiles = entry.getValue() == NONE ? null : entry.getValue().getBytes(StandardCharsets.UTF_8);
+            int size = 4 + 2 + name.length + 4 + (smiles == null ? 0 : smiles.length);
+            if (data.remaining() < size) {
+                data = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + size)).put((ByteBuffer) data.flip());
+            }
+            int hash = hash(name);
+            int slot = hash & (slots - 1);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            table[slot] = base + data.position();
+            data.putInt(hash).putShort((short) name.length).put(name);
+            if (smiles == null) {
+                data.putInt(-1);
+            } else {
+                data.putInt(smiles.length).put(smiles);
+            }
+            count++;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(base);
+        header.putInt(MAGIC).putInt(FORMAT).putInt(count).putInt(slots);
+        for (int offset : table) {
+            header.putInt(offset);
+        }
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            out.write(header.array());
+            out.write(Arrays.copyOf(data.array(), data.position()));
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Hash of the bytes of a name, spread so that the low bits used for slots depend on all of them.
+     */
+    private static int hash(byte[] bytes) {
+        int hash = Arrays.hashCode(bytes) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Names and SMILES added since the store was last written, appended to a file beside it as they
+     * are parsed so they are not held in memory. Each record is the length and UTF-8 bytes of the
+     * name, then the length and bytes of its SMILES, -1 for a name without. A journal left behind by
+     * a run that did not finish is cut back to its last whole record, then appended to.
+     */
+    static final class Journal {
+
+        private final DataOutputStream out;
+
+        /* Set once the journal is closed, names added after that are not written. */
+        private boolean closed;
+
+        private Journal(Path path) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)));
+        }
+
+        /**
+         * Opens the journal of the store in a file for appending.
+         */
+        static Journal open(Path store) throws IOException {
+            Path path = path(store);
+            if (Files.exists(path)) {
+                long whole = records(path, null);
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(whole);
+                }
+            }
+            return new Journal(path);
+        }
+
+        private static Path path(Path store) {
+            return store.resolveSibling(store.getFileName() + ".journal");
+        }
+
+        /**
+         * Appends a name and its SMILES, unless the journal is closed.
+         */
+        synchronized void add(String name, String smiles) throws IOException {
+            if (closed) {
+                return;
+            }
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            if (smiles == NONE) {
+                out.writeInt(-1);
+            } else {
+                bytes = smiles.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        /**
+         * Closes the journal once the names being added have been written. Threads still parsing names
+         * may go on adding them, they are left out.
+         */
+        synchronized void close() throws IOException {
+            closed = true;
+            out.close();
+        }
+
+        /**
+         * Adds the entries of the journal of the store in a file to entries.
+         */
+        static void read(Path store, Map<String, String> entries) throws IOException {
+            Path path = path(store);
+            if (Files.exists(path)) {
+                records(path, entries);
+            }
+        }
+
+        /**
+         * Reads the whole records of a journal into entries, unless it is null, and returns the number
+         * of bytes they take. A record cut short by a run that stopped while writing it is left out.
+         */
+        private static long records(Path path, Map<String, String> entries) throws IOException {
+            long size = Files.size(path);
+            long position = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                while (size - position >= 8) {
+                    int nameLength = in.readInt();
+                    if (nameLength < 0 || nameLength > size - position - 8) {
+                        break;
+                    }
+                    byte[] name = bytes(in, nameLength);
+                    int smilesLength = in.readInt();
+                    long end = position + 8 + nameLength + Math.max(0, smilesLength);
+                    if (end > size) {
+                        break;
+                    }
+                    String smiles = smilesLength < 0 ? NONE : new String(bytes(in, smilesLength), StandardCharsets.UTF_8);
+                    if (entries != null) {
+                        entries.put(new String(name, StandardCharsets.UTF_8), smiles);
+                    }
+                    position = end;
+                }
+            }
+            return position;
+        }
+
+        private static byte[] bytes(DataInputStream in, int length) throws IOException {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        /**
+         * Deletes the journal of the store in a file, once its entries have been written to the store.
+         */
+        static void delete(Path store) throws IOException {
+            Files.deleteIfExists(path(store));
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package net.scottnotfound.clara.reaction;
 
+import net.scottnotfound.clara.metrics.Histogram;
+import net.scottnotfound.clara.metrics.Metrics;
 import org.openscience.cdk.AtomContainerSet;
 import org.openscience.cdk.exception.CDKException;
-import org.openscience.cdk.fingerprint.*;
+import org.openscience.cdk.fingerprint.ICountFingerprint;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.interfaces.IAtomContainerSet;
 import org.openscience.cdk.interfaces.IReaction;
@@ -16,6 +18,8 @@ class ReactionEngine {
 
     private static ReactionEngine RE_INSTANCE;
 
+    private static final Histogram SOLVE_TIME = Metrics.histogram("clara_reaction_solve_seconds", "Time taken by the ReactionEngine to solve a reaction.");
+
 
     static ReactionEngine getInstance() {
         if (RE_INSTANCE == null) {
@@ -29,8 +33,13 @@ class ReactionEngine {
     }
 
     IReaction solveReaction(IReaction unsolvedReaction) {
+        long start = System.nanoTime();
+
+        // nothing is solved yet, the reaction is returned as it was given
+        IReaction solvedReaction = unsolvedReaction;
 
-        return unsolvedReaction;
+        SOLVE_TIME.recordSince(start);
+        return solvedReaction;
     }
 
     /**
@@ -43,10 +52,7 @@ class ReactionEngine {
      * @param dim Dimension or size of the bitset.
      * @return Bitset of the modulo folded fingerprints.
      */
-    private BitSet generateFoldedFP(IReaction reaction, int FPclass, int dim) {
-
-        IBitFingerprint bitSetFingerprint   = new BitSetFingerprint(dim);
-        IFingerprinter fingerprinter        = new CircularFingerprinter(FPclass, dim);
+    BitSet generateFoldedFP(IReaction reaction, int FPclass, int dim) {
 
         IAtomContainerSet atomContainerSet = new AtomContainerSet();
         atomContainerSet.add(reaction.getReactants());
@@ -56,17 +62,18 @@ class ReactionEngine {
         Spliterator<IAtomContainer> atomContainerSpliterator = atomContainerSet.atomContainers().spliterator();
         Stream<IAtomContainer> atomContainerStream = StreamSupport.stream(atomContainerSpliterator, true);
 
-        // OR together all the bitsets of all the fingerprints
-        atomContainerStream.forEach(mol ->
-                                    {
-                                        try {
-                                            bitSetFingerprint.or(fingerprinter.getBitFingerprint(mol));
-                                        } catch (CDKException e) {
-                                            e.printStackTrace();
-                                        }
-                                    });
-
-        return bitSetFingerprint.asBitSet();
+        // every thread of the stream fingerprints with its own fingerprinter, and ORs into a bitset
+        // of its own, the bitsets are only ORed together once the threads are done with them
+        return atomContainerStream.collect(
+                () -> new BitSet(dim),
+                (bitSet, mol) -> {
+                    try {
+                        bitSet.or(Toolkit.get().fingerprinter(FPclass, dim).getBitFingerprint(mol).asBitSet());
+                    } catch (CDKException e) {
+                        e.printStackTrace();
+                    }
+                },
+                BitSet::or);
     }
 
     /** Folds the fingerprint counts into a bitset. */
@@ -0,0 +1,84 @@
+package net.scottnotfound.clara.reaction;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events of the stages a ReactionProfileBuilder goes through, so slow reactions can
+ * be told apart by stage and lined up with GC and JIT activity in the same recording. Sizes are only
+ * counted for events that will be committed.
+ */
+final class ReactionEvents {
+
+    private ReactionEvents() {}
+
+    @Name("net.scottnotfound.clara.NameToSmiles")
+    @Label("Name to SMILES")
+    @Category({"Clara", "Reaction"})
+    @Description("Chemical name converted to SMILES by OPSIN")
+    static final class NameToSmiles extends Event {
+
+        @Label("Name")
+        String name;
+
+        @Label("SMILES Length")
+        int smilesLength;
+
+        @Label("Parsed")
+        boolean parsed;
+    }
+
+    @Name("net.scottnotfound.clara.SmilesParse")
+    @Label("SMILES Parse")
+    @Category({"Clara", "Reaction"})
+    @Description("SMILES parsed into a molecule by CDK")
+    static final class SmilesParse extends Event {
+
+        @Label("SMILES")
+        String smiles;
+
+        @Label("Atoms")
+        int atoms;
+
+        @Label("Bonds")
+        int bonds;
+    }
+
+    @Name("net.scottnotfound.clara.Descriptors")
+    @Label("Descriptors")
+    @Category({"Clara", "Reaction"})
+    @Description("Partial charges, hybridization and covalent radii computed for the reactants")
+    static final class Descriptors extends Event {
+
+        @Label("Molecules")
+        int molecules;
+
+        @Label("Atoms")
+        int atoms;
+
+        @Label("Bonds")
+        int bonds;
+    }
+
+    @Name("net.scottnotfound.clara.FlagCheck")
+    @Label("Flag Check")
+    @Category({"Clara", "Reaction"})
+    @Description("Flag of a reaction profile checked against its reaction")
+    static final class FlagCheck extends Event {
+
+        @Label("Flag")
+        char flag;
+
+        @Label("Reactants")
+        int reactants;
+
+        @Label("Atoms")
+        int atoms;
+
+        @Label("Passed")
+        boolean passed;
+    }
+}
@@ -0,0 +1,150 @@
+package net.scottnotfound.clara.reaction;
+
+import org.openscience.cdk.Reaction;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IReaction;
+import org.openscience.cdk.io.MDLRXNV2000Reader;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the reactions of a file one record at a time, as inputs for a BulkSolver. Only the record
+ * being read is held, so files of any size can be read. Records are not parsed here, but by parse on
+ * the worker that solves them, so reading the file is not held up by parsing.
+ *
+ * Files whose name ends in .gz are decompressed as they are read. Blank lines and lines starting with
+ * '#' in SMILES files are skipped.
+ */
+public final class ReactionFileReader implements Iterator<ReactionInput>, Closeable {
+
+    private static final int BUFFER = 1 << 16;
+
+    private final BufferedReader reader;
+    private final ReactionFormat format;
+    private final String flags;
+
+    /** The next input, read ahead by hasNext, or null. */
+    private ReactionInput next;
+
+    /** The line that began the record after the one read last, for RDF. */
+    private String pending;
+
+    public ReactionFileReader(Path path, String flags) throws IOException {
+        this(path, ReactionFormat.of(path), flags);
+    }
+
+    public ReactionFileReader(Path path, ReactionFormat format, String flags) throws IOException {
+        InputStream in = Files.newInputStream(path);
+        if (path.getFileName().toString().endsWith(".gz")) {
+            in = new GZIPInputStream(in, BUFFER);
+        }
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER);
+        this.format = format;
+        this.flags = flags;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                String record = format == ReactionFormat.RDF ? readRxn() : readLine();
+                next = record == null ? null : new ReactionInput(format, record, flags);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public ReactionInput next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ReactionInput input = next;
+        next = null;
+        return input;
+    }
+
+    private String readLine() throws IOException {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            String trimmed = line.trim();
+            if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                return trimmed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the lines of the next $RXN block. The data lines an RDF record may have after its block
+     * are skipped, along with the header of the file.
+     */
+    private String readRxn() throws IOException {
+        String line = pending != null ? pending : reader.readLine();
+        pending = null;
+        while (line != null && !line.startsWith("$RXN")) {
+            line = reader.readLine();
+        }
+        if (line == null) {
+            return null;
+        }
+        StringBuilder record = new StringBuilder();
+        for (; line != null; line = reader.readLine()) {
+            if (line.startsWith("$RFMT") || line.startsWith("$DTYPE") || line.startsWith("$DATUM")
+                    || line.startsWith("$RXN") && record.length() > 0) {
+                pending = line;
+                break;
+            }
+            record.append(line).append('\n');
+        }
+        return record.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * The reaction of a record read by a ReactionFileReader, parsed with the toolkit of the calling
+     * thread.
+     *
+     * @throws IllegalArgumentException if the record is not a reaction of its format
+     */
+    static IReaction parse(ReactionInput input) {
+        try {
+            switch (input.getFormat()) {
+                case REACTION_SMILES:
+                    return Toolkit.get().smilesParser().parseReactionSmiles(input.getRecord());
+                case SMILES: {
+                    // read as the reactants of a reaction SMILES, so molecules are grouped the same way
+                    String record = input.getRecord();
+                    int space = record.indexOf(' ');
+                    String smiles = space < 0 ? record + ">>" : record.substring(0, space) + ">>" + record.substring(space);
+                    return Toolkit.get().smilesParser().parseReactionSmiles(smiles);
+                }
+                case RDF:
+                    try (MDLRXNV2000Reader rxn = new MDLRXNV2000Reader(new StringReader(input.getRecord()))) {
+                        return rxn.read(new Reaction());
+                    }
+                default:
+                    throw new IllegalStateException("Unknown format " + input.getFormat());
+            }
+        } catch (CDKException | IOException e) {
+            throw new IllegalArgumentException("Not a reaction of " + input.getFormat() + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package net.scottnotfound.clara.reaction;
+
+import org.openscience.cdk.exception.CDKException;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes results given by a BulkSolver to a file, a line each: the index of the input, then solved
+ * and the reaction SMILES of the solved reaction, or failed and the error, separated by tabs.
+ *
+ * Results are written on a thread of their own, so the thread giving them goes on reading inputs
+ * while earlier results are turned into SMILES and written. At most QUEUE results wait to be written,
+ * after that giving a result waits for room. Files whose name ends in .gz are compressed as they are
+ * written. Nothing is certain to be in the file until close returns.
+ */
+public final class ReactionFileWriter implements Consumer<ReactionResult>, Closeable {
+
+    private static final int BUFFER = 1 << 16;
+    private static final int QUEUE = 1024;
+
+    /** Put after the last result to stop the writing thread. */
+    private static final ReactionResult END = ReactionResult.failed(-1, null, null);
+
+    private final Writer writer;
+    private final BlockingQueue<ReactionResult> queue = new ArrayBlockingQueue<>(QUEUE);
+    private final Thread thread;
+
+    /** The first error writing, thrown by the next accept or by close. */
+    private volatile IOException failure;
+
+    public ReactionFileWriter(Path path) throws IOException {
+        if (path.getFileName().toString().endsWith(".gz")) {
+            writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(path), BUFFER), StandardCharsets.UTF_8), BUFFER);
+        } else {
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+        }
+        thread = new Thread(this::run, "clara-reaction-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void accept(ReactionResult result) {
+        if (failure != null) {
+            throw new IllegalStateException("Can not write results: " + failure.getMessage(), failure);
+        }
+        try {
+            queue.put(result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to write a result.", e);
+        }
+    }
+
+    private void run() {
+        StringBuilder line = new StringBuilder();
+        try {
+            // after an error the results are still taken, so accept does not wait on a full queue
+            for (ReactionResult result = queue.take(); result != END; result = queue.take()) {
+                if (failure == null) {
+                    line.setLength(0);
+                    format(result, line);
+                    try {
+                        writer.append(line);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Interrupted while writing results.");
+        }
+    }
+
+    private static void format(ReactionResult result, StringBuilder line) {
+        line.append(result.getIndex()).append('\t');
+        if (result.isSolved()) {
+            try {
+                String smiles = Toolkit.get().smilesGenerator().create(result.getProfile().getReaction());
+                line.append("solved\t").append(smiles).append('\n');
+                return;
+            } catch (CDKException e) {
+                line.append("failed\t").append(oneLine("Can not write the reaction as SMILES: " + e.getMessage())).append('\n');
+                return;
+            }
+        }
+        line.append("failed\t").append(oneLine(String.valueOf(result.getFailure()))).append('\n');
+    }
+
+    private static String oneLine(String message) {
+        return message.replace('\n', ' ').replace('\r', ' ').replace('\t', ' ');
+    }
+
+    /**
+     * Waits for every result given to be written and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            thread.interrupt();
+        }
+        writer.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package net.scottnotfound.clara.reaction;
+
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * The kinds of reaction file a ReactionFileReader reads, each record of which is one reaction.
+ */
+public enum ReactionFormat {
+
+    /**
+     * A reaction SMILES per line, reactants>agents>products, and optionally a title after a space.
+     * Every molecule separated by '.' is a reactant, agent or product of its own, unless grouped with
+     * others by the fragment layer of CXSMILES, as [Na+].[I-] is in CCCBr.[Na+].[I-]>> |f:1.2|.
+     */
+    REACTION_SMILES,
+
+    /** A SMILES per line, the molecules of which are the reactants of a reaction, grouped as above. */
+    SMILES,
+
+    /** MDL RDF, a $RXN record after each $RFMT line. A single MDL RXN file is read as one record. */
+    RDF;
+
+    /**
+     * The format of a file by its extension, .rsmi, .smi or .smiles, and .rdf or .rxn, which may be
+     * followed by .gz when the file is compressed.
+     */
+    public static ReactionFormat of(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".gz")) {
+            name = name.substring(0, name.length() - ".gz".length());
+        }
+        if (name.endsWith(".rsmi")) {
+            return REACTION_SMILES;
+        }
+        if (name.endsWith(".smi") || name.endsWith(".smiles")) {
+            return SMILES;
+        }
+        if (name.endsWith(".rdf") || name.endsWith(".rxn")) {
+            return RDF;
+        }
+        throw new IllegalArgumentException("Can not tell the format of " + path + " from its name, expected .rsmi, .smi, .smiles, .rdf or .rxn.");
+    }
+}
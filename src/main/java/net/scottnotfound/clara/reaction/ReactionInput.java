@@ -0,0 +1,69 @@
+package net.scottnotfound.clara.reaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One reaction to be solved by a BulkSolver, with its flags. The reaction is given either by the
+ * names of its molecules, the same things a reaction command gives, or by a record of a reaction
+ * file, which is only parsed by the worker that solves it.
+ */
+public final class ReactionInput {
+
+    private final List<String> reactants;
+    private final List<String> agents;
+    private final String flags;
+    private final ReactionFormat format;
+    private final String record;
+
+    public ReactionInput(List<String> reactants, List<String> agents, String flags) {
+        this.reactants = Collections.unmodifiableList(new ArrayList<>(reactants));
+        this.agents = Collections.unmodifiableList(new ArrayList<>(agents));
+        this.flags = flags;
+        this.format = null;
+        this.record = null;
+    }
+
+    public ReactionInput(ReactionFormat format, String record, String flags) {
+        this.reactants = Collections.emptyList();
+        this.agents = Collections.emptyList();
+        this.flags = flags;
+        this.format = format;
+        this.record = record;
+    }
+
+    public ReactionInput(List<String> reactants, String flags) {
+        this(reactants, Collections.emptyList(), flags);
+    }
+
+    public List<String> getReactants() {
+        return reactants;
+    }
+
+    public List<String> getAgents() {
+        return agents;
+    }
+
+    public String getFlags() {
+        return flags;
+    }
+
+    /** The format of the record, null if the reaction is given by names. */
+    public ReactionFormat getFormat() {
+        return format;
+    }
+
+    /** The record of a reaction file, null if the reaction is given by names. */
+    public String getRecord() {
+        return record;
+    }
+
+    @Override
+    public String toString() {
+        if (record != null) {
+            return "-" + flags + " " + format + " " + record.trim().split("\\R", 2)[0];
+        }
+        return "-" + flags + " " + reactants + (agents.isEmpty() ? "" : " " + agents);
+    }
+}
@@ -5,10 +5,21 @@ import net.scottnotfound.clara.ModuleBase;
 import net.scottnotfound.clara.ModuleRegistry;
 import net.scottnotfound.clara.RegisterModule;
 import net.scottnotfound.clara.lang.ICommandReceiver;
+import net.scottnotfound.clara.metrics.Counter;
+import net.scottnotfound.clara.metrics.Gauge;
+import net.scottnotfound.clara.metrics.Histogram;
+import net.scottnotfound.clara.metrics.Metrics;
 
+import org.openscience.cdk.interfaces.IReaction;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 public class ReactionModule extends ModuleBase implements ICommandReceiver, IModule {
 
@@ -16,6 +27,11 @@ public class ReactionModule extends ModuleBase implements ICommandReceiver, IMod
     private static ReactionModule RM_INSTANCE;
     private static ReactionEngine RE_INSTANCE;
 
+    private static final Counter REACTIONS = Metrics.counter("clara_reactions_total", "Reaction commands processed.");
+    private static final Counter REACTION_FAILURES = Metrics.counter("clara_reaction_failures_total", "Reaction commands that failed with an exception.");
+    private static final Gauge ACTIVE = Metrics.gauge("clara_reactions_active", "Reaction commands being processed.");
+    private static final Histogram REACTION_TIME = Metrics.histogram("clara_reaction_seconds", "Time taken to process a reaction command.");
+
 
     public static ReactionModule getInstance() {
         if (RM_INSTANCE == null) {
@@ -38,13 +54,91 @@ public class ReactionModule extends ModuleBase implements ICommandReceiver, IMod
     }
 
     private void handleReactContent(List<String> reactants, List<String> agents, String flagSequence) {
-        ReactionProfileBuilder builder = new ReactionProfileBuilder(flagSequence);
-        IReactionProfile profile = builder
+        react(reactants, agents, flagSequence, false);
+    }
+
+    /**
+     * Solves every reaction of a file in bulk and writes the results to another, if one is given.
+     * The file is read, solved and written at once, each on threads of its own.
+     */
+    private void handleReactFile(Path input, Path output, String flagSequence) {
+        long[] count = new long[1];
+        try (ReactionFileReader reader = new ReactionFileReader(input, flagSequence);
+             ReactionFileWriter writer = output == null ? null : new ReactionFileWriter(output)) {
+            long failed = bulk().solve(reader, result -> {
+                count[0]++;
+                if (writer != null) {
+                    writer.accept(result);
+                }
+            });
+            System.out.println(count[0] + " reactions read from " + input + ", " + failed + " failed"
+                    + (output == null ? "." : ", results written to " + output + "."));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can not solve the reactions of " + input + ": " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Builds the profile of a reaction and solves it. A strict build fails on names and SMILES that
+     * can not be parsed, where the builder would otherwise leave their molecules out.
+     */
+    private IReactionProfile react(List<String> reactants, List<String> agents, String flagSequence, boolean strict) {
+        return react(() -> new ReactionProfileBuilder(flagSequence).setStrict(strict)
                 .addReactants(reactants)
                 .addAgents(agents)
-                .buildProfile();
+                .buildProfile());
+    }
+
+    /**
+     * Builds the profile of a reaction read from a file and solves it.
+     */
+    private IReactionProfile react(IReaction reaction, String flagSequence) {
+        return react(() -> new ReactionProfileBuilder(reaction, flagSequence).buildProfile());
+    }
+
+    private IReactionProfile react(Supplier<IReactionProfile> build) {
+        long start = System.nanoTime();
+        ACTIVE.increment();
+        try {
+            // on a virtual thread this runs on a platform thread that keeps its toolkit
+            return Toolkit.call(() -> {
+                IReactionProfile profile = build.get();
+                solveReaction(profile);
+                return profile;
+            });
+        } catch (RuntimeException e) {
+            REACTION_FAILURES.increment();
+            throw e;
+        } finally {
+            ACTIVE.decrement();
+            REACTIONS.increment();
+            REACTION_TIME.recordSince(start);
+        }
+    }
+
+    /**
+     * A solver for many reactions at once, on a pool of its own.
+     */
+    public BulkSolver bulk() {
+        return new BulkSolver(this);
+    }
 
-        solveReaction(profile);
+    /**
+     * Solves the reaction of an input for a BulkSolver. Any exception is put in the result, so the
+     * solver gets one for every input it hands out. Errors such as running out of memory are thrown,
+     * the JVM may be in no state to go on with the run.
+     */
+    ReactionResult solve(long index, ReactionInput input) {
+        try {
+            if (input.getRecord() != null) {
+                return ReactionResult.solved(index, input, react(ReactionFileReader.parse(input), input.getFlags()));
+            }
+            return ReactionResult.solved(index, input, react(input.getReactants(), input.getAgents(), input.getFlags(), true));
+        } catch (Exception e) {
+            return ReactionResult.failed(index, input, e);
+        }
     }
 
     @Override
@@ -53,6 +147,8 @@ public class ReactionModule extends ModuleBase implements ICommandReceiver, IMod
         String flagSequence = "";
         List<String> reactants = new ArrayList<>();
         List<String> agents = new ArrayList<>();
+        String input = null;
+        String output = null;
 
         for (Map.Entry<String,Object> entry : commandMap.entrySet()) {
 
@@ -98,6 +194,19 @@ public class ReactionModule extends ModuleBase implements ICommandReceiver, IMod
                 //
 
             }
+
+            if (descriptor.equals("input") && object instanceof String) {
+                input = (String) object;
+            }
+
+            if (descriptor.equals("output") && object instanceof String) {
+                output = (String) object;
+            }
+        }
+
+        if (input != null) {
+            handleReactFile(Paths.get(input), output == null ? null : Paths.get(output), flagSequence);
+            return;
         }
 
         handleReactContent(reactants, agents, flagSequence);
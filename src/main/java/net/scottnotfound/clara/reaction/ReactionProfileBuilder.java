@@ -1,5 +1,8 @@
 package net.scottnotfound.clara.reaction;
 
+import net.scottnotfound.clara.metrics.Counter;
+import net.scottnotfound.clara.metrics.Histogram;
+import net.scottnotfound.clara.metrics.Metrics;
 import org.openscience.cdk.AtomContainerSet;
 import org.openscience.cdk.Reaction;
 import org.openscience.cdk.exception.InvalidSmilesException;
@@ -7,16 +10,7 @@ import org.openscience.cdk.interfaces.*;
 import org.openscience.cdk.qsar.DescriptorValue;
 import org.openscience.cdk.qsar.IAtomicDescriptor;
 import org.openscience.cdk.qsar.IBondDescriptor;
-import org.openscience.cdk.qsar.descriptors.atomic.AtomHybridizationVSEPRDescriptor;
-import org.openscience.cdk.qsar.descriptors.atomic.CovalentRadiusDescriptor;
-import org.openscience.cdk.qsar.descriptors.bond.BondPartialPiChargeDescriptor;
-import org.openscience.cdk.qsar.descriptors.bond.BondPartialSigmaChargeDescriptor;
-import org.openscience.cdk.qsar.descriptors.bond.BondPartialTChargeDescriptor;
-import org.openscience.cdk.silent.SilentChemObjectBuilder;
-import org.openscience.cdk.smiles.SmilesParser;
-import uk.ac.cam.ch.wwmm.opsin.NameToStructure;
-
-import java.io.IOException;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -24,17 +18,29 @@ import java.util.stream.Collectors;
 
 class ReactionProfileBuilder {
 
-    private static final NameToStructure NTS_INSTANCE;
-    private static final SmilesParser SP_INSTANCE;
+    private static final Histogram OPSIN_TIME = Metrics.histogram("clara_opsin_seconds", "Time taken by OPSIN to convert a name to SMILES.");
+    private static final Counter OPSIN_FAILURES = Metrics.counter("clara_opsin_failures_total", "Names OPSIN could not convert to SMILES.");
+    private static final Histogram SMILES_TIME = Metrics.histogram("clara_smiles_parse_seconds", "Time taken to parse SMILES into a molecule.");
+    private static final Counter SMILES_FAILURES = Metrics.counter("clara_smiles_parse_failures_total", "SMILES that could not be parsed.");
+    private static final Histogram DESCRIPTOR_TIME = Metrics.histogram("clara_descriptor_seconds", "Time taken to compute the descriptors of a reaction.");
+
+    /** Names are parsed by OPSIN once and remembered after that. */
+    private static final NameCache NAMES;
+
+    /** SMILES are parsed once too, every molecule after that is a clone. */
+    private static final MoleculeCache MOLECULES = MoleculeCache.fromProperties(ReactionProfileBuilder::parseSmiles);
 
     static {
-        NTS_INSTANCE = NameToStructure.getInstance();
-        SP_INSTANCE = new SmilesParser(SilentChemObjectBuilder.getInstance());
+        NAMES = NameCache.fromProperties(ReactionProfileBuilder::opsin);
+        Metrics.sampledGauge("clara_name_cache_size", "Names held in the name cache in memory.", NAMES::size);
     }
 
     /** The profile that will be built. */
     private ReactionProfile reactionProfile;
 
+    /** Whether names and SMILES that can not be parsed are errors rather than left out. */
+    private boolean strict;
+
 
     public ReactionProfileBuilder() {
         this.reactionProfile = new ReactionProfile();
@@ -61,6 +67,15 @@ class ReactionProfileBuilder {
         return this;
     }
 
+    /**
+     * Makes names OPSIN can not parse and SMILES that are not valid throw an IllegalArgumentException,
+     * rather than print an error and leave their molecule out of the reaction.
+     */
+    public ReactionProfileBuilder setStrict(boolean strict) {
+        this.strict = strict;
+        return this;
+    }
+
     public ReactionProfileBuilder setFlag(char c) {
         this.reactionProfile.setFlag(c);
         return this;
@@ -182,7 +197,7 @@ class ReactionProfileBuilder {
      */
     private Collection<String> namesToSmiles(Collection<String> names) {
 
-        return names.stream().map(NTS_INSTANCE::parseToSmiles).collect(Collectors.toList());
+        return names.stream().map(this::nameToSmile).collect(Collectors.toList());
     }
 
     /**
@@ -197,8 +212,11 @@ class ReactionProfileBuilder {
                 AtomContainerSet::new,
                 (set, s) -> {
                     try {
-                        set.addAtomContainer(SP_INSTANCE.parseSmiles(s));
+                        set.addAtomContainer(MOLECULES.get(s));
                     } catch (InvalidSmilesException e) {
+                        if (strict) {
+                            throw new IllegalArgumentException(e.getMessage(), e);
+                        }
                         e.printStackTrace();
                     }
                 },
@@ -206,30 +224,98 @@ class ReactionProfileBuilder {
     }
 
     private String nameToSmile(String name) {
-        return NTS_INSTANCE.parseToSmiles(name);
+        String smiles = NAMES.get(name);
+        if (smiles == null && strict) {
+            throw new IllegalArgumentException("OPSIN can not parse the name '" + name + "'.");
+        }
+        return smiles;
+    }
+
+    private static String opsin(String name) {
+        ReactionEvents.NameToSmiles event = new ReactionEvents.NameToSmiles();
+        event.begin();
+        long start = System.nanoTime();
+        String smiles = Toolkit.opsin().parseToSmiles(name);
+        OPSIN_TIME.recordSince(start);
+        if (smiles == null) {
+            OPSIN_FAILURES.increment();
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.name = name;
+            event.smilesLength = smiles == null ? 0 : smiles.length();
+            event.parsed = smiles != null;
+            event.commit();
+        }
+        return smiles;
     }
 
     private IAtomContainer smileToMol(String smile) {
         try {
-            return SP_INSTANCE.parseSmiles(smile);
+            return MOLECULES.get(smile);
         } catch (InvalidSmilesException e) {
+            if (strict) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
             System.err.println(e.getMessage());
             return null;
         }
     }
 
     /**
-     * Computes properties of the molecules in a reaction.
+     * Parses smiles with the SmilesParser of the Toolkit of the calling thread.
+     */
+    private static IAtomContainer parseSmiles(String smiles) throws InvalidSmilesException {
+        ReactionEvents.SmilesParse event = new ReactionEvents.SmilesParse();
+        event.begin();
+        long start = System.nanoTime();
+        IAtomContainer mol;
+        try {
+            mol = Toolkit.get().smilesParser().parseSmiles(smiles);
+        } catch (InvalidSmilesException | RuntimeException e) {
+            SMILES_FAILURES.increment();
+            throw e;
+        } finally {
+            SMILES_TIME.recordSince(start);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.smiles = smiles;
+            event.atoms = mol.getAtomCount();
+            event.bonds = mol.getBondCount();
+            event.commit();
+        }
+        return mol;
+    }
+
+    /**
+     * Computes properties of the molecules in a reaction, with the descriptors of the Toolkit of the
+     * calling thread.
      *
      * @param reaction reaction to compute properties of
      * @return the same reaction with computed properties
      */
-    private IReaction computeProperties(IReaction reaction) {
+    IReaction computeProperties(IReaction reaction) {
+
+        ReactionEvents.Descriptors event = new ReactionEvents.Descriptors();
+        event.begin();
+        long start = System.nanoTime();
 
         reaction = computePartialCharge(reaction);
         reaction = computeHybridization(reaction);
         reaction = computeCovalentRadius(reaction);
 
+        DESCRIPTOR_TIME.recordSince(start);
+        event.end();
+        if (event.shouldCommit()) {
+            for (IAtomContainer mol : reaction.getReactants().atomContainers()) {
+                event.molecules++;
+                event.atoms += mol.getAtomCount();
+                event.bonds += mol.getBondCount();
+            }
+            event.commit();
+        }
+
         return reaction;
     }
 
@@ -241,7 +327,7 @@ class ReactionProfileBuilder {
      */
     private IReaction computeHybridization(IReaction reaction) {
 
-        IAtomicDescriptor hybridizationVSEPRDescriptor = new AtomHybridizationVSEPRDescriptor();
+        IAtomicDescriptor hybridizationVSEPRDescriptor = Toolkit.get().hybridization();
 
         for (IAtomContainer mol : reaction.getReactants().atomContainers()) {
 
@@ -279,13 +365,7 @@ class ReactionProfileBuilder {
      */
     private IReaction computeCovalentRadius(IReaction reaction) {
 
-        IAtomicDescriptor covalentRadiusDescriptor = null;
-
-        try {
-            covalentRadiusDescriptor = new CovalentRadiusDescriptor();
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-        }
+        IAtomicDescriptor covalentRadiusDescriptor = Toolkit.get().covalentRadius();
 
         for (IAtomContainer mol : reaction.getReactants().atomContainers()) {
 
@@ -311,9 +391,10 @@ class ReactionProfileBuilder {
      */
     private IReaction computePartialCharge(IReaction reaction) {
 
-        IBondDescriptor partialPiChargeDescriptor       = new BondPartialPiChargeDescriptor();
-        IBondDescriptor partialSigmaChargeDescriptor    = new BondPartialSigmaChargeDescriptor();
-        IBondDescriptor partialTChargeDescriptor        = new BondPartialTChargeDescriptor();
+        Toolkit toolkit = Toolkit.get();
+        IBondDescriptor partialPiChargeDescriptor       = toolkit.partialPiCharge();
+        IBondDescriptor partialSigmaChargeDescriptor    = toolkit.partialSigmaCharge();
+        IBondDescriptor partialTChargeDescriptor        = toolkit.partialTCharge();
 
         for (IAtomContainer mol : reaction.getReactants().atomContainers()) {
 
@@ -392,7 +473,7 @@ class ReactionProfileBuilder {
 
                         for (IAtom atom1 : reactant.getConnectedAtomsList(atom)) {
 
-                            DescriptorValue descriptorValue = new AtomHybridizationVSEPRDescriptor().calculate(atom1, reactant);
+                            DescriptorValue descriptorValue = Toolkit.get().hybridization().calculate(atom1, reactant);
                             Integer hybridizationValue = Integer.parseInt(descriptorValue.getValue().toString());
                             if (hybridizationValue != 3) {
                                 // needs sp3 hybridization
@@ -419,6 +500,10 @@ class ReactionProfileBuilder {
 
     private void checkFlag(char c) {
 
+        ReactionEvents.FlagCheck event = new ReactionEvents.FlagCheck();
+        event.begin();
+        boolean passed = true;
+
         switch (c) {
 
             case 'p' : {
@@ -427,7 +512,8 @@ class ReactionProfileBuilder {
             }
 
             case 's' : {
-                if (!checkSimpleSN2(reactionProfile.getReaction())) {
+                passed = checkSimpleSN2(reactionProfile.getReaction());
+                if (!passed) {
                     System.out.println("Reaction is not a valid single halogen alkane SN2 reaction with alkali halogen salt.");
                 }
                 break;
@@ -435,6 +521,18 @@ class ReactionProfileBuilder {
 
 
         }
+
+        event.end();
+        if (event.shouldCommit()) {
+            IReaction reaction = reactionProfile.getReaction();
+            event.flag = c;
+            event.reactants = reaction.getReactantCount();
+            for (IAtomContainer mol : reaction.getReactants().atomContainers()) {
+                event.atoms += mol.getAtomCount();
+            }
+            event.passed = passed;
+            event.commit();
+        }
     }
 
 }
@@ -0,0 +1,56 @@
+package net.scottnotfound.clara.reaction;
+
+/**
+ * What a BulkSolver made of one ReactionInput: the solved profile, or the error building or solving
+ * it failed with. The index is the position of the input in what was given to the solver, counting
+ * from 0, so results given in completion order can still be matched to their inputs.
+ */
+public final class ReactionResult {
+
+    private final long index;
+    private final ReactionInput input;
+    private final IReactionProfile profile;
+    private final Throwable failure;
+
+    private ReactionResult(long index, ReactionInput input, IReactionProfile profile, Throwable failure) {
+        this.index = index;
+        this.input = input;
+        this.profile = profile;
+        this.failure = failure;
+    }
+
+    static ReactionResult solved(long index, ReactionInput input, IReactionProfile profile) {
+        return new ReactionResult(index, input, profile, null);
+    }
+
+    static ReactionResult failed(long index, ReactionInput input, Throwable failure) {
+        return new ReactionResult(index, input, null, failure);
+    }
+
+    public long getIndex() {
+        return index;
+    }
+
+    public ReactionInput getInput() {
+        return input;
+    }
+
+    /** The solved profile, null if the reaction failed. */
+    public IReactionProfile getProfile() {
+        return profile;
+    }
+
+    /** The error the reaction failed with, null if it was solved. */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public boolean isSolved() {
+        return failure == null;
+    }
+
+    @Override
+    public String toString() {
+        return index + " " + input + (failure == null ? " solved" : " failed: " + failure.getMessage());
+    }
+}
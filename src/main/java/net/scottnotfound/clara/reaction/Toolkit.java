@@ -0,0 +1,204 @@
+package net.scottnotfound.clara.reaction;
+
+import org.openscience.cdk.fingerprint.CircularFingerprinter;
+import org.openscience.cdk.qsar.IAtomicDescriptor;
+import org.openscience.cdk.qsar.IBondDescriptor;
+import org.openscience.cdk.qsar.descriptors.atomic.AtomHybridizationVSEPRDescriptor;
+import org.openscience.cdk.qsar.descriptors.atomic.CovalentRadiusDescriptor;
+import org.openscience.cdk.qsar.descriptors.bond.BondPartialPiChargeDescriptor;
+import org.openscience.cdk.qsar.descriptors.bond.BondPartialSigmaChargeDescriptor;
+import org.openscience.cdk.qsar.descriptors.bond.BondPartialTChargeDescriptor;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmiFlavor;
+import org.openscience.cdk.smiles.SmilesGenerator;
+import org.openscience.cdk.smiles.SmilesParser;
+import uk.ac.cam.ch.wwmm.opsin.NameToStructure;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The chemistry toolkit objects used to build, solve and write reactions, one set per thread. CDK
+ * parsers, generators, descriptors and fingerprinters keep state while they work and none are
+ * documented as thread safe, so a thread only ever uses its own, got through get(). Each is made the
+ * first time its thread asks for it and kept for the life of the thread, which also saves making
+ * them per reaction; the covalent radius descriptor reads its atom types from a file when it is made.
+ *
+ * That only pays while threads outlive the work they do. A virtual thread, which async commands get
+ * with -Dclara.async=virtual, runs one command and ends, so a toolkit kept for it would be made and
+ * dropped with every reaction. Reactions are built and solved through call, which hands the work of
+ * a virtual thread to a pool of -Dclara.toolkits platform threads, one per processor by default, and
+ * parks it until they are done. Platform threads run the work themselves.
+ *
+ * OPSIN has a single NameToStructure per process and no way to make more. Its rules are read once
+ * when it is made and only read after that, so every thread shares it through opsin().
+ */
+final class Toolkit {
+
+    private static final ThreadLocal<Toolkit> TOOLKITS = ThreadLocal.withInitial(Toolkit::new);
+
+    private static final NameToStructure OPSIN = NameToStructure.getInstance();
+
+    /** Thread.isVirtual, null on JVMs without virtual threads. */
+    private static final MethodHandle IS_VIRTUAL = isVirtual();
+
+    private SmilesParser smilesParser;
+    private SmilesGenerator smilesGenerator;
+    private IAtomicDescriptor hybridization;
+    private IAtomicDescriptor covalentRadius;
+    private IBondDescriptor partialPiCharge;
+    private IBondDescriptor partialSigmaCharge;
+    private IBondDescriptor partialTCharge;
+
+    /** Fingerprinters by their type in the high and their size in the low half of the key. */
+    private final Map<Long, CircularFingerprinter> fingerprinters = new HashMap<>();
+
+    private Toolkit() {}
+
+    /**
+     * The toolkit of the calling thread.
+     */
+    static Toolkit get() {
+        return TOOLKITS.get();
+    }
+
+    static NameToStructure opsin() {
+        return OPSIN;
+    }
+
+    /**
+     * Runs work that uses toolkits on a thread that keeps its toolkit, the calling one unless it is
+     * virtual. Whatever the work throws is thrown here.
+     */
+    static <T> T call(Supplier<T> work) {
+        if (!onVirtualThread()) {
+            return work.get();
+        }
+        Future<T> future = Workers.POOL.submit(work::get);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a toolkit.", e);
+        }
+    }
+
+    private static boolean onVirtualThread() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle isVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            // virtual threads came with Java 21
+            return null;
+        }
+    }
+
+    /**
+     * The platform threads that work for virtual threads, only started once one asks for a toolkit.
+     */
+    private static final class Workers {
+
+        static final ExecutorService POOL = create();
+
+        private static ExecutorService create() {
+            AtomicInteger threads = new AtomicInteger();
+            return Executors.newFixedThreadPool(
+                    Integer.getInteger("clara.toolkits", Runtime.getRuntime().availableProcessors()),
+                    task -> {
+                        Thread thread = new Thread(task, "clara-toolkit-" + threads.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+    }
+
+    SmilesParser smilesParser() {
+        if (smilesParser == null) {
+            smilesParser = new SmilesParser(SilentChemObjectBuilder.getInstance());
+        }
+        return smilesParser;
+    }
+
+    SmilesGenerator smilesGenerator() {
+        if (smilesGenerator == null) {
+            smilesGenerator = new SmilesGenerator(SmiFlavor.Default);
+        }
+        return smilesGenerator;
+    }
+
+    IAtomicDescriptor hybridization() {
+        if (hybridization == null) {
+            hybridization = new AtomHybridizationVSEPRDescriptor();
+        }
+        return hybridization;
+    }
+
+    IAtomicDescriptor covalentRadius() {
+        if (covalentRadius == null) {
+            try {
+                covalentRadius = new CovalentRadiusDescriptor();
+            } catch (IOException | ClassNotFoundException e) {
+                throw new IllegalStateException("Can not load the atom types of the covalent radius descriptor.", e);
+            }
+        }
+        return covalentRadius;
+    }
+
+    IBondDescriptor partialPiCharge() {
+        if (partialPiCharge == null) {
+            partialPiCharge = new BondPartialPiChargeDescriptor();
+        }
+        return partialPiCharge;
+    }
+
+    IBondDescriptor partialSigmaCharge() {
+        if (partialSigmaCharge == null) {
+            partialSigmaCharge = new BondPartialSigmaChargeDescriptor();
+        }
+        return partialSigmaCharge;
+    }
+
+    IBondDescriptor partialTCharge() {
+        if (partialTCharge == null) {
+            partialTCharge = new BondPartialTChargeDescriptor();
+        }
+        return partialTCharge;
+    }
+
+    /**
+     * A circular fingerprinter of a type, such as CircularFingerprinter.CLASS_ECFP4, folded to size bits.
+     */
+    CircularFingerprinter fingerprinter(int type, int size) {
+        return fingerprinters.computeIfAbsent(((long) type << 32) | size, key -> new CircularFingerprinter(type, size));
+    }
+}
@@ -0,0 +1,170 @@
+import net.scottnotfound.clara.ModuleRegistry;
+import net.scottnotfound.clara.lang.Lang;
+import net.scottnotfound.clara.reaction.MoleculeCacheBench;
+import net.scottnotfound.clara.reaction.ReactionInput;
+import net.scottnotfound.clara.reaction.ReactionModule;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rough wall-clock benchmarks of the interpreter. Run from src/test like TestClara so the script
+ * paths resolve. Script output is suppressed while timing. Allocation is measured on the calling
+ * thread, so it is only reported where the JVM supports it.
+ */
+public class BenchClara {
+
+    private static final int WARMUP = 5;
+
+    public static void main(String[] args) throws IOException {
+
+        runScriptBenchmarks();
+
+        runMoleculeBenchmarks();
+
+        runBulkBenchmarks();
+
+    }
+
+    private static void runScriptBenchmarks() throws IOException {
+
+        // recursive call heavy script
+        benchScript("resources/scripts/basic/recursive/sum100", 2000, "--no-jit");
+        benchScript("resources/scripts/basic/recursive/sum100", 2000);
+        benchScript("resources/scripts/basic/recursive/sum100", 2000, "--vm");
+
+        // hot recursive function, compiled by the JitCompiler unless disabled
+        benchScript("resources/scripts/bench/fib", 5, "--no-jit");
+        benchScript("resources/scripts/bench/fib", 5);
+        benchScript("resources/scripts/bench/fib", 5, "--vm");
+
+        // tight arithmetic loop
+        benchScript("resources/scripts/bench/loop", 10);
+        benchScript("resources/scripts/bench/loop", 10, "--vm");
+
+        // many operations per statement, intermediate results stay unboxed in specialized nodes
+        benchScript("resources/scripts/bench/arith", 10);
+        benchScript("resources/scripts/bench/arith", 10, "--vm");
+
+        // lists of numbers, stored in a double[] and indexed without boxing by the Interpreter
+        benchScript("resources/scripts/bench/list", 10);
+        benchScript("resources/scripts/bench/list", 10, "--vm");
+
+    }
+
+    private static void runMoleculeBenchmarks() throws IOException {
+
+        // SMILES of common reagents and solvents through the molecule cache, against parsing each time
+        String[] reagents = {
+                "CCO", "CC(=O)O", "OS(=O)(=O)O", "c1ccccc1", "O=[N+]([O-])O", "CC(C)=O", "[Na+].[BH4-]",
+                "CO", "Cc1ccccc1", "BrBr", "Br[Fe](Br)Br", "Oc1ccccc1", "CC(=O)OC(C)=O", "c1ccncc1",
+                "O=Cc1ccccc1", "CN", "O=C1CCCCC1", "NO", "O", "ClCCl", "C1CCOC1", "CN(C)C=O",
+                "CC(C)(C)OC(=O)OC(=O)OC(C)(C)C", "CCN(CC)CC", "O=C(O)c1ccccc1O"
+        };
+        try {
+            MoleculeCacheBench.run(reagents, 2000, Math.max(4, Runtime.getRuntime().availableProcessors()));
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        // the same reagents by name through reaction commands, run with -Dclara.molecules.cacheAtoms=0 to compare
+        ModuleRegistry.registerModule("Reaction", ReactionModule.getInstance());
+        benchScript("resources/scripts/bench/reagents", 200);
+
+    }
+
+    private static void runBulkBenchmarks() {
+
+        // SN2 checks of a mix of reactions, solved in bulk on 1 worker and then twice as many up to one per processor
+        List<ReactionInput> mix = Arrays.asList(
+                new ReactionInput(Arrays.asList("1-bromopropane", "sodium iodide"), "s"),
+                new ReactionInput(Arrays.asList("bromoethane", "potassium chloride"), "s"),
+                new ReactionInput(Arrays.asList("1-chlorobutane", "sodium bromide"), "s"),
+                new ReactionInput(Arrays.asList("iodomethane", "lithium chloride"), "s"),
+                new ReactionInput(Arrays.asList("2-bromo-2-methylpropane", "sodium iodide"), "s"),
+                new ReactionInput(Arrays.asList("ethanol", "acetic acid"), "s"));
+        List<ReactionInput> inputs = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            inputs.add(mix.get(i % mix.size()));
+        }
+
+        PrintStream out = System.out;
+        // the invalid SN2 reactions print why
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+        }));
+        try {
+            int processors = Runtime.getRuntime().availableProcessors();
+            benchBulk(inputs, processors);
+            double single = 0;
+            for (int parallelism = 1; ; parallelism = Math.min(parallelism * 2, processors)) {
+                double rate = benchBulk(inputs, parallelism);
+                single = parallelism == 1 ? rate : single;
+                out.printf("%-45s %-8s %10.0f reactions/s %6.2fx%n", "bulk SN2 checks", parallelism + " cores", rate, rate / single);
+                if (parallelism == processors) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            System.setOut(out);
+        }
+
+    }
+
+    private static double benchBulk(List<ReactionInput> inputs, int parallelism) throws InterruptedException {
+        long start = System.nanoTime();
+        ReactionModule.getInstance().bulk().parallelism(parallelism).solve(inputs, result -> {});
+        return inputs.size() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void benchScript(String path, int runs, String... flags) throws IOException {
+        String[] args = new String[flags.length + 1];
+        System.arraycopy(flags, 0, args, 0, flags.length);
+        args[flags.length] = path;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+        }));
+        try {
+            for (int i = 0; i < WARMUP * runs; i++) {
+                Lang.main(args);
+            }
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                Lang.main(args);
+            }
+            long elapsed = System.nanoTime() - start;
+            allocated = allocatedBytes() - allocated;
+            out.printf("%-45s %-8s %10.3f ms/run %10.2f MB/run%n", path, String.join(" ", flags),
+                    elapsed / 1e6 / runs, allocated / 1e6 / runs);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Bytes allocated by all live threads, scripts run on a thread of their own.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            long total = 0;
+            for (long bytes : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+                total += Math.max(bytes, 0);
+            }
+            return total;
+        }
+        return 0;
+    }
+}
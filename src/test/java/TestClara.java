@@ -1,4 +1,11 @@
+import net.scottnotfound.clara.ModuleRegistry;
 import net.scottnotfound.clara.lang.Lang;
+import net.scottnotfound.clara.metrics.Metrics;
+import net.scottnotfound.clara.reaction.ReactionFileReader;
+import net.scottnotfound.clara.reaction.ReactionFileWriter;
+import net.scottnotfound.clara.reaction.ReactionInput;
+import net.scottnotfound.clara.reaction.ReactionModule;
+import net.scottnotfound.clara.reaction.ToolkitStress;
 import org.openscience.cdk.CDKConstants;
 import org.openscience.cdk.exception.InvalidSmilesException;
 import org.openscience.cdk.interfaces.IAtomContainer;
@@ -6,14 +13,52 @@ import org.openscience.cdk.silent.SilentChemObjectBuilder;
 import org.openscience.cdk.smiles.SmilesParser;
 import uk.ac.cam.ch.wwmm.opsin.NameToStructure;
 
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 public class TestClara {
 
     public static void main(String[] args) throws IOException {
 
+        // pfor and preduce run on 4 workers however many processors there are, so the concurrency
+        // tests run concurrently on small machines too; this is read when the first one runs
+        if (System.getProperty("clara.parallelism") == null) {
+            System.setProperty("clara.parallelism", "4");
+        }
+
         runBasicScriptTests();
 
+        runScriptEngineTests();
+
+        runScriptCacheTests();
+
+        runConcurrencyTests();
+
+        runBulkTests();
+
+        runFileTests();
+
     }
 
     private static void runBasicScriptTests() throws IOException {
@@ -21,9 +66,222 @@ public class TestClara {
         // iterative test
         Lang.main(new String[]{"resources/scripts/basic/iterative/sum100"});
 
+        // break and continue
+        Lang.main(new String[]{"resources/scripts/basic/iterative/control"});
+
         // recursive test
         Lang.main(new String[]{"resources/scripts/basic/recursive/sum100"});
 
+        // tail calls and recursion deeper than the default thread stack
+        Lang.main(new String[]{"resources/scripts/basic/recursive/deep"});
+
+        // pfor and preduce on the fork join pool
+        Lang.main(new String[]{"resources/scripts/basic/parallel/sum100"});
+
+        // async reaction commands and await
+        Lang.main(new String[]{"resources/scripts/basic/async/await"});
+
+        // lists and maps
+        Lang.main(new String[]{"resources/scripts/basic/collections/lists"});
+
+        // recursion again with the profiler, which prints its report after the script
+        Lang.main(new String[]{"--profile", "resources/scripts/basic/recursive/sum100"});
+
+    }
+
+    private static void runScriptEngineTests() {
+
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName("clara");
+        try {
+            // a compiled script run again with other bindings
+            CompiledScript script = ((Compilable) engine).compile("for (var i = 1; i <= n; i = i + 1) total = total + i; total;");
+            for (int n : new int[]{10, 100}) {
+                Bindings bindings = engine.createBindings();
+                bindings.put("n", n);
+                bindings.put("total", 0);
+                Object value = script.eval(bindings);
+                System.out.println("sum to " + n + " = " + value + ", total = " + bindings.get("total"));
+            }
+
+            // output goes to the writer of the context
+            engine.eval("print \"hello from the engine\";");
+
+            // exit ends the script, not the application running it
+            Object value = engine.eval("{ def stop() { exit; } print \"before exit\"; stop(); print \"after exit\"; }");
+            System.out.println("still running after exit, value " + value + ", result should be before exit, then null");
+        } catch (ScriptException e) {
+            System.err.println(e.getMessage());
+        }
+
+        // errors are thrown with their line
+        try {
+            engine.eval("print 1;\nprint 1 +;");
+        } catch (ScriptException e) {
+            System.out.println("expected error on line " + e.getLineNumber() + ": " + e.getMessage());
+        }
+
+        // pfor bodies and the functions preduce runs may not write to anything declared outside of them,
+        // directly or through a call
+        String[] shared = {
+                "{ var xs = []; pfor (var i = 0, 1000) { append(xs, i); } }",
+                "{ var xs = [0]; pfor (var i = 0, 1000) { xs[0] = i; } }",
+                "{ var count = 0; def inc() { count = count + 1; } def twice() { inc(); inc(); } pfor (var i = 0, 1000) { twice(); } }",
+                "{ var count = 0; def map(i) { count = count + 1; return i; } def add(a, b) { return a + b; } preduce(0, 10000, 0, map, add); }"
+        };
+        for (String script : shared) {
+            try {
+                engine.eval(script);
+                System.out.println("unexpected success of " + script);
+            } catch (ScriptException e) {
+                System.out.println("expected error: " + e.getMessage());
+            }
+        }
+
+    }
+
+    private static void runScriptCacheTests() throws IOException {
+
+        Path directory = Files.createTempDirectory("clara-cache");
+        System.setProperty("clara.cache.dir", directory.toString());
+        System.setProperty("clara.cache.maxEntries", "3");
+        String[] scripts = {
+                "resources/scripts/basic/iterative/control", "resources/scripts/basic/recursive/sum100",
+                "resources/scripts/basic/parallel/sum100", "resources/scripts/basic/collections/lists"
+        };
+        try {
+            // the first run writes the entry, the second runs from it and prints the same
+            int differing = 0;
+            for (String script : scripts) {
+                String[] source = runCached(script);
+                String[] cached = runCached(script);
+                if (!source[0].equals(cached[0]) || !cached[1].contains("1 hits, 0 misses")) {
+                    System.out.println(script + " from source:\n" + source[0] + "from the cache:\n" + cached[0] + cached[1]);
+                    differing++;
+                }
+            }
+            System.out.println("scripts run from the cache differing from source " + differing + ", result should be 0");
+
+            // least recently used entries beyond maxEntries are deleted
+            System.out.println("cache entries " + entries(directory).size() + ", result should be 3");
+
+            // a corrupted entry is deleted and the script run from source, which stores it again
+            String script = scripts[scripts.length - 1];
+            String expected = runCached(script)[0];
+            for (Path entry : entries(directory)) {
+                byte[] bytes = Files.readAllBytes(entry);
+                bytes[bytes.length / 2] ^= 0x5a;
+                Files.write(entry, bytes);
+            }
+            String[] corrupted = runCached(script);
+            String[] rewritten = runCached(script);
+            System.out.println("corrupted entry " + (corrupted[0].equals(expected) ? "same output" : "different output")
+                    + ", " + corrupted[1] + ", then " + rewritten[1]
+                    + ", result should be same output, 0 hits, 1 misses, 1 invalid, 1 stored, then 1 hits, 0 misses, 0 invalid, 0 stored");
+        } finally {
+            System.clearProperty("clara.cache.dir");
+            System.clearProperty("clara.cache.maxEntries");
+            for (Path entry : entries(directory)) {
+                Files.delete(entry);
+            }
+            Files.deleteIfExists(directory.resolve("stats"));
+            Files.delete(directory);
+        }
+
+    }
+
+    /**
+     * Runs a script with the cache, returns what it printed and the counts of the cache for the run.
+     */
+    private static String[] runCached(String script) throws IOException {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(output, true));
+        System.setErr(new PrintStream(errors, true));
+        try {
+            Lang.main(new String[]{"--cache-stats", script});
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        String stats = errors.toString();
+        stats = stats.substring(stats.indexOf("script cache: ") + "script cache: ".length()).trim();
+        if (stats.contains(", in total")) {
+            stats = stats.substring(0, stats.indexOf(", in total"));
+        }
+        return new String[]{output.toString(), stats};
+    }
+
+    private static List<Path> entries(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".ast")).collect(Collectors.toList());
+        }
+    }
+
+    private static void runConcurrencyTests() throws IOException {
+
+        // reactions checked on every worker of pfor at once, each with its own toolkit
+        ModuleRegistry.registerModule("Reaction", ReactionModule.getInstance());
+        Lang.main(new String[]{"resources/scripts/basic/parallel/reactions"});
+        System.out.println("reaction failures " + Metrics.counter("clara_reaction_failures_total", "").get() + ", result should be 0");
+
+        // profiles built, solved, described and fingerprinted on 8 threads at once, each through its
+        // own toolkit, against one thread
+        try {
+            int differing = ToolkitStress.run(8, 20);
+            System.out.println("reactions on 8 threads differing from one thread " + differing + ", result should be 0");
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    private static void runBulkTests() {
+
+        List<ReactionInput> inputs = new ArrayList<>();
+        inputs.add(new ReactionInput(Arrays.asList("1-bromopropane", "sodium iodide"), "s"));
+        inputs.add(new ReactionInput(Arrays.asList("ethanol", "acetic acid"), ""));
+        inputs.add(new ReactionInput(Arrays.asList("not a chemical", "water"), ""));
+        inputs.add(new ReactionInput(Arrays.asList("bromoethane", "potassium chloride"), "s"));
+        inputs.add(new ReactionInput(Arrays.asList("benzene", "bromine"), ""));
+        try {
+            StringBuilder order = new StringBuilder();
+            long failed = ReactionModule.getInstance().bulk().parallelism(4).maxInFlight(2).ordered(true)
+                    .solve(inputs, result -> order.append(result.getIndex()).append(result.isSolved() ? " " : "! "));
+            System.out.println("bulk results in input order " + order + "failed " + failed + ", result should be 0 1 2! 3 4 failed 1");
+
+            long[] count = new long[1];
+            failed = ReactionModule.getInstance().bulk()
+                    .solve(Collections.nCopies(100, inputs.get(2)).stream(), result -> count[0]++);
+            System.out.println("bulk results " + count[0] + " failed " + failed + ", result should be 100 failed 100");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    private static void runFileTests() throws IOException {
+
+        Lang.main(new String[]{"resources/scripts/basic/files/reactions"});
+
+        // the reader, solver and writer used together, to a compressed file read back after
+        Path out = Files.createTempFile("clara-reactions", ".out.gz");
+        try (ReactionFileReader reader = new ReactionFileReader(Paths.get("resources/reactions/esters.rsmi"), "");
+             ReactionFileWriter writer = new ReactionFileWriter(out)) {
+            long failed = ReactionModule.getInstance().bulk().ordered(true).solve(reader, writer);
+            System.out.println("file reactions failed " + failed + ", result should be 1");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        try (BufferedReader lines = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(out)), StandardCharsets.UTF_8))) {
+            StringBuilder written = new StringBuilder();
+            lines.lines().forEach(line -> written.append(line, 0, line.indexOf('\t', 2)).append(' '));
+            System.out.println("file results " + written + "result should be 0\tsolved 1\tsolved 2\tsolved 3\tfailed");
+        } finally {
+            Files.delete(out);
+        }
+
     }
 
     public static void testSMILES() {
@@ -0,0 +1,91 @@
+package net.scottnotfound.clara.reaction;
+
+import org.openscience.cdk.exception.InvalidSmilesException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Times MoleculeCache.get on a mix of reagents for BenchClara, which can not make caches of its own
+ * outside of this package. Each cache is timed on one thread and then on several getting the same
+ * reagents at once, as the builders of a BulkSolver do. Times are wall clock per molecule got, over
+ * all of the threads, so they fall as threads are added for as long as the cache scales.
+ */
+public final class MoleculeCacheBench {
+
+    private static final int WARMUP = 5;
+
+    private MoleculeCacheBench() {}
+
+    /**
+     * Gets every reagent runs times per thread from a cache holding all of them, one too small for
+     * them that keeps evicting, and one of 0 atoms that parses every time.
+     */
+    public static void run(String[] reagents, int runs, int threads) throws InterruptedException {
+        for (int workers : new int[]{1, threads}) {
+            bench("reagents from a cache holding them all", 50000, reagents, runs, workers);
+            bench("reagents from a cache of 128 atoms", 128, reagents, runs, workers);
+            bench("reagents parsed, cache of 0 atoms", 0, reagents, runs, workers);
+        }
+    }
+
+    private static void bench(String name, int atoms, String[] reagents, int runs, int workers) throws InterruptedException {
+        MoleculeCache cache = new MoleculeCache(atoms, smiles -> Toolkit.get().smilesParser().parseSmiles(smiles));
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            long made = getAll(pool, cache, reagents, WARMUP * runs, workers)[1];
+            long[] timed = getAll(pool, cache, reagents, runs, workers);
+            made += timed[1];
+            // the atoms are printed so the molecules made are used
+            System.out.printf("%-45s %-8s %10.3f us/mol %10d atoms%n", name, workers + " threads",
+                    timed[0] / 1e3 / ((long) runs * reagents.length * workers), made);
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Gets the reagents runs times on each of the workers, started together, each from its own place
+     * in the mix. Returns the nanoseconds taken and the atoms of the molecules got.
+     */
+    private static long[] getAll(ExecutorService pool, MoleculeCache cache, String[] reagents, int runs, int workers)
+            throws InterruptedException, ExecutionException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            int offset = w * 7;
+            futures.add(pool.submit(() -> {
+                start.await();
+                long atoms = 0;
+                for (int run = 0; run < runs; run++) {
+                    for (int i = 0; i < reagents.length; i++) {
+                        atoms += get(cache, reagents[(i + offset) % reagents.length]);
+                    }
+                }
+                return atoms;
+            }));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        long atoms = 0;
+        for (Future<Long> future : futures) {
+            atoms += future.get();
+        }
+        return new long[]{System.nanoTime() - begin, atoms};
+    }
+
+    private static int get(MoleculeCache cache, String smiles) {
+        try {
+            return cache.get(smiles).getAtomCount();
+        } catch (InvalidSmilesException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+}
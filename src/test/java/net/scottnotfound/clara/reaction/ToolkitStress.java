@@ -0,0 +1,107 @@
+package net.scottnotfound.clara.reaction;
+
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.fingerprint.CircularFingerprinter;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IReaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds, solves, describes and fingerprints reactions on several threads at once for TestClara,
+ * through the Toolkit of each thread as ReactionModule does, and compares every result with the one
+ * got on a single thread. It is in the package of the Toolkit so the descriptors and fingerprinters
+ * it holds can be reached.
+ */
+public final class ToolkitStress {
+
+    /** The flags and reactant names of each reaction, the SN2 ones checked by the 's' flag. */
+    private static final String[][] REACTIONS = {
+            {"s", "1-bromopropane", "sodium iodide"},
+            {"s", "bromoethane", "potassium chloride"},
+            {"", "ethanol", "acetic acid"},
+            {"", "benzaldehyde", "phenol"},
+            {"", "cyclohexanone", "pyridine"},
+            {"", "toluene", "water"}
+    };
+
+    private ToolkitStress() {}
+
+    /**
+     * Runs every reaction runs times on each of the threads, started together, and returns the number
+     * of results that differ from those of one thread.
+     */
+    public static int run(int threads, int runs) throws InterruptedException, ExecutionException {
+        String[] expected = new String[REACTIONS.length];
+        for (int i = 0; i < REACTIONS.length; i++) {
+            expected[i] = signature(REACTIONS[i]);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int offset = t;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    int differing = 0;
+                    for (int run = 0; run < runs; run++) {
+                        for (int r = 0; r < REACTIONS.length; r++) {
+                            int i = (r + offset) % REACTIONS.length;
+                            if (!signature(REACTIONS[i]).equals(expected[i])) {
+                                differing++;
+                            }
+                        }
+                    }
+                    return differing;
+                }));
+            }
+            start.countDown();
+            int differing = 0;
+            for (Future<Integer> future : futures) {
+                differing += future.get();
+            }
+            return differing;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Builds and solves a reaction, computes the descriptors of its reactants and fingerprints it, and
+     * writes all of them out.
+     */
+    private static String signature(String[] reaction) throws CDKException {
+        ReactionProfileBuilder builder = new ReactionProfileBuilder(reaction[0]).setStrict(true)
+                .addReactants(Arrays.asList(reaction).subList(1, reaction.length));
+        IReactionProfile profile = builder.buildProfile();
+        IReaction solved = builder.computeProperties(ReactionEngine.getInstance().solveReaction(profile.getReaction()));
+        BitSet fingerprint = ReactionEngine.getInstance().generateFoldedFP(solved, CircularFingerprinter.CLASS_ECFP4, 1024);
+
+        StringBuilder signature = new StringBuilder(profile.getFlags());
+        for (IAtomContainer mol : solved.getReactants().atomContainers()) {
+            signature.append(' ').append(Toolkit.get().smilesGenerator().create(mol));
+            for (IAtom atom : mol.atoms()) {
+                signature.append(' ').append(atom.getSymbol()).append(':').append(atom.getHybridization())
+                        .append(':').append(atom.getCovalentRadius());
+            }
+            for (IBond bond : mol.bonds()) {
+                signature.append(' ').append(bond.<String>getProperty("partialPiCharge"))
+                        .append(':').append(bond.<String>getProperty("partialSigmaCharge"))
+                        .append(':').append(bond.<String>getProperty("partialTCharge"));
+            }
+        }
+        return signature.append(' ').append(fingerprint).toString();
+    }
+}